@@ -27,12 +27,14 @@ package ini.trakem2;
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ij.io.DirectoryChooser;
+import ini.trakem2.analysis.ConnectivityGraph;
 import ini.trakem2.display.AreaList;
 import ini.trakem2.display.AreaTree;
 import ini.trakem2.display.Ball;
 import ini.trakem2.display.Bucket;
 import ini.trakem2.display.Connector;
 import ini.trakem2.display.DLabel;
+import ini.trakem2.display.DirtyRegions;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Dissector;
@@ -64,6 +66,7 @@ import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
@@ -797,6 +800,8 @@ public class Project extends DBObject {
 		// close all open Displays
 		Display.close(this);
 		Search.removeTabs(this);
+		SearchIndex.remove(this);
+		ConnectivityGraph.remove(this);
 		synchronized (ptcache) { ptcache.clear(); }
 		return true;
 	}
@@ -1529,6 +1534,10 @@ public class Project extends DBObject {
 		gd.addCheckbox("Layer_mipmaps", layer_mipmaps);
 		boolean keep_mipmaps = "true".equals(ht_props.get("keep_mipmaps"));
 		gd.addCheckbox("Keep_mipmaps_when_deleting_images", keep_mipmaps); // coping with the fact that thee is no Action context ... there should be one in the Worker thread.
+		boolean cache_processed_originals = "true".equals(ht_props.get("cache_processed_originals"));
+		gd.addCheckbox("Cache_preprocessed_originals_on_disk", cache_processed_originals);
+		boolean track_dirty_regions = "true".equals(ht_props.get("track_dirty_regions"));
+		gd.addCheckbox("Track_changed_regions_for_export", track_dirty_regions);
 		int bucket_side = (int)getProperty("bucket_side", Bucket.MIN_BUCKET_SIZE);
 		gd.addNumericField("Bucket side length: ", bucket_side, 0, 6, "pixels");
 		boolean no_shutdown_hook = "true".equals(ht_props.get("no_shutdown_hook"));
@@ -1588,6 +1597,14 @@ public class Project extends DBObject {
 		}
 		adjustProp("keep_mipmaps", keep_mipmaps, gd.getNextBoolean());
 		Utils.log2("keep_mipmaps: " + getBooleanProperty("keep_mipmaps"));
+		adjustProp("cache_processed_originals", cache_processed_originals, gd.getNextBoolean());
+		if (adjustProp("track_dirty_regions", track_dirty_regions, gd.getNextBoolean())) {
+			// Start tracking from the current state, or stop
+			final DirtyRegions dr = layer_set.getDirtyRegions();
+			if (null != dr) {
+				for (final Layer la : layer_set.getLayers()) dr.update(la, la.getDisplayables());
+			}
+		}
 		//
 		bucket_side = (int)gd.getNextNumber();
 		if (bucket_side > Bucket.MIN_BUCKET_SIZE) {
@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Scores every pair of a list of items, in parallel.
+ *
+ * The upper half of the matrix of pairs is split into square blocks of equal size, which are scheduled
+ * in a {@link ForkJoinPool}: all blocks but those on the diagonal have the same number of pairs, so that
+ * threads stay busy until the end, unlike when scheduling whole rows, of which the first is the longest.
+ * Each item is prepared only once, before any pair is scored, for example to precompute its reversed copy.
+ * The scores of each block are handed to a {@link ScoreSink} as soon as the block is done,
+ * which may keep them in memory or write them to a file.
+ */
+public final class AllToAll {
+
+	private AllToAll() {}
+
+	/** Scores a pair of items. Implementations must be thread-safe.
+	 * @param <T> The type of the items.
+	 * @param <P> The type of the items once prepared for scoring. */
+	static public interface Scoring<T,P> {
+		/** Called once per item, before scoring any pair. */
+		public P prepare(T item);
+		/** The score of the pair of items {@code a} and {@code b}, in this order. */
+		public float score(P a, P b);
+	}
+
+	/** Receives the scores of the pairs i, j with i &lt; j, one block at a time and from many threads at once. */
+	static public interface ScoreSink {
+		/** The score of the pair i, j is at {@code scores[(i - i0) * (j1 - j0) + j - j0]},
+		 * for i in [i0, i1) and j in [j0, j1), and only for i &lt; j. */
+		public void put(int i0, int i1, int j0, int j1, float[] scores) throws IOException;
+	}
+
+	/** Score all pairs of {@code items}.
+	 * @return false if the {@code worker}, which may be null, quitted, or if the sink failed. */
+	static public final <T,P> boolean compute(final List<T> items, final Scoring<T,P> scoring, final ScoreSink sink, final int n_threads, final Worker worker) {
+		final int n = items.size();
+		final int threads = Math.max(1, n_threads);
+		// Small enough blocks for every thread to get a few, large enough to amortize their scheduling
+		final int side = Math.max(1, Math.min(64, (n + 4 * threads - 1) / (4 * threads)));
+		final int n_blocks = (n + side - 1) / side;
+		final long total = (long)n * (n - 1) / 2;
+		final AtomicLong done = new AtomicLong(0);
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// Prepare all items
+			final List<P> prepared = new ArrayList<P>(n);
+			for (int i = 0; i < n; ++i) prepared.add(null);
+			final List<ForkJoinTask<?>> preps = new ArrayList<ForkJoinTask<?>>();
+			for (int b = 0; b < n_blocks; ++b) {
+				final int i0 = b * side,
+				          i1 = Math.min(n, i0 + side);
+				preps.add(pool.submit(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						for (int i = i0; i < i1; ++i) {
+							if (null != worker && worker.hasQuitted()) return;
+							prepared.set(i, scoring.prepare(items.get(i)));
+						}
+					}
+				}));
+			}
+			for (final ForkJoinTask<?> task : preps) task.join();
+			if (null != worker && worker.hasQuitted()) return false;
+
+			// Score all blocks of the upper half, the diagonal ones included
+			final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (int bi = 0; bi < n_blocks; ++bi) {
+				for (int bj = bi; bj < n_blocks; ++bj) {
+					final int i0 = bi * side,
+					          i1 = Math.min(n, i0 + side),
+					          j0 = bj * side,
+					          j1 = Math.min(n, j0 + side);
+					tasks.add(pool.submit(new RecursiveAction() {
+						@Override
+						protected void compute() {
+							if (null != worker && worker.hasQuitted()) return;
+							final int w = j1 - j0;
+							final float[] scores = new float[(i1 - i0) * w];
+							int count = 0;
+							for (int i = i0; i < i1; ++i) {
+								final P a = prepared.get(i);
+								for (int j = Math.max(j0, i + 1); j < j1; ++j) {
+									if (null != worker && worker.hasQuitted()) return;
+									scores[(i - i0) * w + j - j0] = scoring.score(a, prepared.get(j));
+									++count;
+								}
+							}
+							try {
+								sink.put(i0, i1, j0, j1, scores);
+							} catch (final IOException ioe) {
+								throw new RuntimeException(ioe);
+							}
+							Utils.showProgress(done.addAndGet(count) / (double)total);
+						}
+					}));
+				}
+			}
+			for (final ForkJoinTask<?> task : tasks) task.join();
+		} catch (final Throwable t) {
+			IJError.print(t);
+			return false;
+		} finally {
+			pool.shutdownNow();
+			Utils.showProgress(1);
+		}
+		return null == worker || !worker.hasQuitted();
+	}
+
+	/** Stores the scores in a square matrix, mirrored, with a diagonal of zeros. */
+	static public final class DenseScores implements ScoreSink {
+		public final float[][] scores;
+		public DenseScores(final int n) {
+			this.scores = new float[n][n];
+		}
+		@Override
+		public void put(final int i0, final int i1, final int j0, final int j1, final float[] block) {
+			final int w = j1 - j0;
+			for (int i = i0; i < i1; ++i) {
+				for (int j = Math.max(j0, i + 1); j < j1; ++j) {
+					scores[i][j] = scores[j][i] = block[(i - i0) * w + j - j0];
+				}
+			}
+		}
+	}
+
+	/** Writes the scores to a file as the upper half of the matrix without the diagonal, row after row,
+	 * as 32-bit floats in big-endian order: the file takes n * (n - 1) * 2 bytes, and no memory.
+	 * Blocks are written at their place as they arrive, from any thread. */
+	static public final class TriangleFile implements ScoreSink {
+		private final int n;
+		private final RandomAccessFile ra;
+		private final FileChannel ch;
+
+		/** Open {@code file} for writing scores, or for reading them back when already written for {@code n} items. */
+		public TriangleFile(final File file, final int n) throws IOException {
+			this.n = n;
+			this.ra = new RandomAccessFile(file, "rw");
+			this.ch = ra.getChannel();
+		}
+
+		/** Position in the file of the score of the pair i, j with i &lt; j. */
+		private final long offset(final int i, final int j) {
+			return 4 * ((long)i * n - (long)i * (i + 1) / 2 + (j - i - 1));
+		}
+
+		@Override
+		public void put(final int i0, final int i1, final int j0, final int j1, final float[] block) throws IOException {
+			final int w = j1 - j0;
+			final ByteBuffer bb = ByteBuffer.allocate(4 * w);
+			for (int i = i0; i < i1; ++i) {
+				final int first = Math.max(j0, i + 1);
+				if (first >= j1) continue;
+				bb.clear();
+				bb.asFloatBuffer().put(block, (i - i0) * w + first - j0, j1 - first);
+				bb.limit(4 * (j1 - first));
+				long pos = offset(i, first);
+				while (bb.hasRemaining()) pos += ch.write(bb, pos);
+			}
+		}
+
+		/** Fill {@code row} from index i + 1 on with the scores of the pairs i, j with j &gt; i,
+		 * which are consecutive in the file; the rest of {@code row} is not touched. */
+		public void readRow(final int i, final float[] row) throws IOException {
+			final int len = n - i - 1;
+			if (0 == len) return;
+			final ByteBuffer bb = ByteBuffer.allocate(4 * len);
+			long pos = offset(i, i + 1);
+			while (bb.hasRemaining()) {
+				final int r = ch.read(bb, pos);
+				if (r < 0) throw new IOException("Truncated scores file.");
+				pos += r;
+			}
+			bb.flip();
+			bb.asFloatBuffer().get(row, i + 1, len);
+		}
+
+		public void close() throws IOException {
+			ch.close();
+			ra.close();
+		}
+	}
+}
@@ -48,11 +48,15 @@ public class Centrality {
 	 *  where all vertices are part of the same graph.
 	 *  Assumes the internal variables of each Vertex are reset to its initialization values,
 	 *  and that the neighbors array is proper as well.
-	 *  When done, the centrality of each Vertex is set in the homonymous Vertex field. */
+	 *  When done, the centrality of each Vertex is set in the homonymous Vertex field.
+	 *  When the graph is a tree, or a forest, the centrality is computed in linear time with {@link TreeCentrality}. */
 	static public final<T> void compute(final Collection<Vertex<T>> vs) {
 		if (1 == vs.size()) {
 			return;
 		}
+		if (computeForest(vs)) {
+			return;
+		}
 		final LinkedList<Vertex<T>> stack = new LinkedList<Vertex<T>>();
 		final LinkedList<Vertex<T>> queue = new LinkedList<Vertex<T>>();
 
@@ -99,6 +103,43 @@ public class Centrality {
 		}
 	}
 	
+	/** If the vertices form a forest, set the centrality of each with {@link TreeCentrality} and return true;
+	 *  otherwise return false without altering any. Neighbors not in {@code vs} are ignored. */
+	static private final<T> boolean computeForest(final Collection<Vertex<T>> vs) {
+		// The index of each vertex in the order in which it is reached, or -1 if not yet reached
+		final HashMap<Vertex<T>,Integer> index = new HashMap<Vertex<T>,Integer>(vs.size() * 2);
+		for (final Vertex<T> v : vs) index.put(v, -1);
+		final ArrayList<Vertex<T>> order = new ArrayList<Vertex<T>>(vs.size());
+		final int[] parents = new int[vs.size()];
+		// Breadth-first from each vertex not yet reached, so that every parent is indexed before its children
+		for (final Vertex<T> root : vs) {
+			if (-1 != index.get(root)) continue;
+			index.put(root, order.size());
+			parents[order.size()] = -1;
+			order.add(root);
+			for (int k = order.size() - 1; k < order.size(); ++k) {
+				final Vertex<T> v = order.get(k);
+				final int parent = parents[k];
+				for (final Vertex<T> w : v.neighbors) {
+					final Integer i = index.get(w);
+					if (null == i) continue;
+					if (-1 == i) {
+						index.put(w, order.size());
+						parents[order.size()] = k;
+						order.add(w);
+					} else if (i.intValue() != parent) {
+						return false; // a cycle
+					}
+				}
+			}
+		}
+		final double[] c = TreeCentrality.compute(parents);
+		for (int k = 0; k < c.length; ++k) {
+			order.get(k).centrality = (float)c[k];
+		}
+		return true;
+	}
+
 	/** Find the chain of nodes, over branch points if necessary, that have not yet been processed. */
 	static private final <T> List<Vertex<T>> findChain(
 			final Vertex<T> origin,
@@ -149,15 +190,12 @@ public class Centrality {
 
 		final HashSet<Vertex<T>> processed = new HashSet<Vertex<T>>();
 
-		// TODO the node centrality needs to be computed only once!
-		// TODO the centrality value is thrown out!
-		
 		while (vs.size() > 0) {
 			// Reset all internal vars related to computing centrality
 			for (final Vertex<T> v : vs) {
 				v.reset();
 			}
-			// Recompute centrality for the now smaller graph
+			// Recompute centrality for the now smaller forest, in linear time
 			Centrality.compute(vs);
 
 			// Remove all vertices whose centrality falls below a certain threshold
@@ -90,7 +90,6 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.VectorString3D;
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.imglib.container.cell.Cell;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.MovingLeastSquaresTransform;
@@ -779,11 +778,18 @@ public class Compare {
 	}
 
 	static public final Object[] findBestMatch(final VectorString3D vs1, final VectorString3D vs2, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final boolean direct, final boolean substring_matching, final double wi, final double wd, final double wm) {
+		return findBestMatch(vs1, null, vs2, null, delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching, wi, wd, wm);
+	}
+
+	/** As {@link #findBestMatch(VectorString3D, VectorString3D, double, boolean, int, float, int, boolean, boolean, double, double, double)},
+	 * given the reversed copies of the strings, or null to make them when needed. */
+	static private final Object[] findBestMatch(final VectorString3D vs1, final VectorString3D vs1rev, final VectorString3D vs2, final VectorString3D vs2rev, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final boolean direct, final boolean substring_matching, final double wi, final double wd, final double wm) {
 
 		if (substring_matching) {
 			// identify shorter chain
 			final VectorString3D shorter = vs1.length() < vs2.length() ? vs1 : vs2;
 			final VectorString3D longer  = vs1 == shorter ? vs2 : vs1;
+			final VectorString3D shorter_rev = direct ? null : (vs1 == shorter ? vs1rev : vs2rev);
 
 			// iterate matching of shorter string inside longer string:
 			// (so that the match is always between two equally long strings)
@@ -805,7 +811,7 @@ public class Compare {
 				//Utils.log2(k + " longer_sub is " + longer_sub + " made from " + longer + " with first,last: " + k + ", " + (k + shorter_len));
 				final Object[] ob = direct ?
 					              matchDirect(shorter, longer_sub, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm)
-						    : matchFwdRev(shorter, longer_sub, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
+						    : matchFwdRev(shorter, shorter_rev, longer_sub, null, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
 				if (null == best) best = ob;
 				else {
 					final double dob = ((Double)ob[1]).doubleValue();     // values generated in getScore
@@ -820,7 +826,7 @@ public class Compare {
 			if (direct) {
 				return matchDirect(vs1, vs2, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
 			} else {
-				return matchFwdRev(vs1, vs2, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
+				return matchFwdRev(vs1, vs1rev, vs2, vs2rev, delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
 			}
 		}
 	}
@@ -891,11 +897,11 @@ public class Compare {
 		      : new Object[]{ed2, score2};
 	}
 
-	// Match in all possible ways
-	static private final Object[] matchFwdRev(final VectorString3D vs1, final VectorString3D vs2, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final double wi, final double wd, final double wm) {
+	// Match in all possible ways. The reversed copies are made when null.
+	static private final Object[] matchFwdRev(final VectorString3D vs1, VectorString3D vs1rev, final VectorString3D vs2, VectorString3D vs2rev, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final double wi, final double wd, final double wm) {
 
-		final VectorString3D vs1rev = vs1.makeReversedCopy();
-		final VectorString3D vs2rev = vs2.makeReversedCopy();
+		if (null == vs1rev) vs1rev = vs1.makeReversedCopy();
+		if (null == vs2rev) vs2rev = vs2.makeReversedCopy();
 
 		final Editions[] ed = new Editions[4];
 
@@ -960,6 +966,8 @@ public class Compare {
 		public boolean normalize = false;
 		public boolean direct = true;
 		public boolean substring_matching = false;
+		/** Score {@link Compare#LEVENSHTEIN} with the {@link EditDistance} kernel; see {@link KernelScoring}. */
+		public boolean fast_levenshtein = false;
 		public String regex = "";
 		public boolean with_source = false;
 		public double plot_max_x = 200, plot_max_y = 20;
@@ -1001,6 +1009,7 @@ public class Compare {
 			gd.addCheckbox("normalize", normalize);
 			gd.addCheckbox("direct", direct);
 			gd.addCheckbox("substring_matching", substring_matching);
+			gd.addCheckbox("fast_levenshtein (Levenshtein scoring only)", fast_levenshtein);
 			gd.addStringField("regex: ", null != regex ? regex : "");
 			if (plot) {
 				gd.addNumericField("plot_width: ", plot_width, 0);
@@ -1048,6 +1057,11 @@ public class Compare {
 			normalize = gd.getNextBoolean();
 			direct = gd.getNextBoolean();
 			substring_matching = gd.getNextBoolean();
+			fast_levenshtein = gd.getNextBoolean();
+			if (fast_levenshtein && LEVENSHTEIN != distance_type) {
+				Utils.log("fast_levenshtein applies only to Levenshtein scoring: ignored.");
+				fast_levenshtein = false;
+			}
 
 			this.regex = gd.getNextString().trim();
 			if (0 == this.regex.length()) this.regex = null;
@@ -1302,7 +1316,9 @@ public class Compare {
 		// compare all to all
 		final VectorString3D[] vs = new VectorString3D[n_chains];
 		for (int i=0; i<n_chains; i++) vs[i] = chains.get(i).vs;
-		final float[][] scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, this);
+		final float[][] scores = cp.fast_levenshtein ?
+			  Compare.scoreAllToAllLevenshtein(vs, cp.delta, cp.direct, cp.substring_matching, this)
+			: Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, this);
 
 		if (null == scores) {
 			finishedWorking();
@@ -1492,62 +1508,130 @@ public class Compare {
 	/** Returns the half matrix of scores, with values copied from one half matrix to the other, and a diagonal of zeros.
 	 * @param distance_type ranges from 0 to 5, and includes: 0=Levenshtein, 1=Dissimilarity, 2=Average physical distance, 3=Median physical distance, 4=Cummulative physical distance and 5=Standard deviation. */
 	static public float[][] scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final Worker worker) {
-		final float[][] scores = new float[vs.length][vs.length];
+		final AllToAll.DenseScores scores = new AllToAll.DenseScores(vs.length);
+		if (!scoreAllToAll(vs, distance_type, delta, skip_ends, max_mut, min_chunk, direct, substring_matching, scores, worker)) return null;
+		return scores.scores;
+	}
 
+	/** Score all pairs of {@code vs} into {@code sink}, such as an {@link AllToAll.TriangleFile} when there are too many to hold the whole matrix in memory.
+	 * @return false if the {@code worker} quitted or the {@code sink} failed. */
+	static public boolean scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final AllToAll.ScoreSink sink, final Worker worker) {
+		return AllToAll.compute(Arrays.asList(vs), new MatchScoring(distance_type, delta, skip_ends, max_mut, min_chunk, direct, substring_matching, 1.1, 1.1, 1),
+				sink, Runtime.getRuntime().availableProcessors(), worker);
+	}
 
-		final AtomicInteger ai = new AtomicInteger(0);
+	/** As {@link #scoreAllToAll(VectorString3D[], int, double, boolean, int, float, boolean, boolean, Worker)} for {@link #LEVENSHTEIN},
+	 * but with the {@link EditDistance} kernel; see {@link KernelScoring}. The strings must be resampled to {@code delta}. */
+	static public float[][] scoreAllToAllLevenshtein(final VectorString3D[] vs, final double delta, final boolean direct, final boolean substring_matching, final Worker worker) {
+		final AllToAll.DenseScores scores = new AllToAll.DenseScores(vs.length);
+		if (!AllToAll.compute(Arrays.asList(vs), new KernelScoring(delta, direct, substring_matching, 1.1, 1.1, 1, -1),
+				scores, Runtime.getRuntime().availableProcessors(), worker)) return null;
+		return scores.scores;
+	}
 
-		final Thread[] threads = MultiThreading.newThreads();
-		for (int ithread=0; ithread<threads.length; ithread++) {
-			threads[ithread] = new Thread() { @Override
-            public void run() {
-				////
-
-		for (int i=ai.getAndIncrement(); i<vs.length; i=ai.getAndIncrement()) {
-			final VectorString3D vs1 = vs[i];
-			for (int j=i+1; j<vs.length; j++) {
-				if (null != worker && worker.hasQuitted()) return;
-				final Object[] ob = findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching); // TODO should add 'distance_type' as well for the selection of the best match when not direct.
-				/*
-				switch (distance_type) {
-					case 0: // Levenshtein
-						scores[i][j] = (float)((Editions)ob[0]).getDistance();
-						break;
-					case 1: // dissimilarity
-						scores[i][j] = (float)((Double)ob[1]).doubleValue();
-						break;
-					case 2: // average physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, true);
-						break;
-					case 3: // median physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStatistics(skip_ends, max_mut, min_chunk, false)[3]; // 3 is median
-						break;
-					case 4: // cummulative physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, false);
-						break;
-					case 5: // stdDev of distances between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStdDev(skip_ends, max_mut, min_chunk);
-						break;
-				}
-				*/
+	/** Scores a pair of strings like {@link #findBestMatch(VectorString3D, VectorString3D, double, boolean, int, float, int, boolean, boolean, double, double, double)},
+	 * with the reversed copy of each string made only once instead of for every pair. */
+	static public class MatchScoring implements AllToAll.Scoring<VectorString3D,VectorString3D[]> {
+		final int distance_type, max_mut;
+		final double delta, wi, wd, wm;
+		final boolean skip_ends, direct, substring_matching;
+		final float min_chunk;
 
-				final Editions ed = (Editions)ob[0];
-				scores[i][j] = (float)getScore(ed, skip_ends, max_mut, min_chunk, distance_type);
+		public MatchScoring(final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final double wi, final double wd, final double wm) {
+			this.distance_type = distance_type;
+			this.delta = delta;
+			this.skip_ends = skip_ends;
+			this.max_mut = max_mut;
+			this.min_chunk = min_chunk;
+			this.direct = direct;
+			this.substring_matching = substring_matching;
+			this.wi = wi;
+			this.wd = wd;
+			this.wm = wm;
+		}
+
+		/** The string and, unless matching directly, its reversed copy. */
+		@Override
+		public VectorString3D[] prepare(final VectorString3D vs) {
+			return new VectorString3D[]{vs, direct ? null : vs.makeReversedCopy()};
+		}
+
+		@Override
+		public float score(final VectorString3D[] a, final VectorString3D[] b) {
+			// As before, the best match is chosen with the COMBINED score and then scored with the distance_type
+			final Object[] ob = findBestMatch(a[0], a[1], b[0], b[1], delta, skip_ends, max_mut, min_chunk, COMBINED, direct, substring_matching, wi, wd, wm);
+			return (float)getScore((Editions)ob[0], skip_ends, max_mut, min_chunk, distance_type);
+		}
+	}
 
+	/** Scores a pair of strings by their {@link #LEVENSHTEIN} distance with the primitive {@link EditDistance} kernel,
+	 * trying the same orientations and substrings as {@link MatchScoring} but without creating any {@link Editions}
+	 * or {@link VectorString3D}, and abandoning each alignment as soon as it cannot beat the best one so far.
+	 * Expects strings resampled to the same {@code delta}.
+	 *
+	 * The score is the lowest distance among the orientations, whereas {@link MatchScoring} reports the distance of the
+	 * orientation with the best {@link #COMBINED} score, also trying a match from the center of the longest run of mutations:
+	 * scores may therefore be lower. The skip_ends, max_mut and min_chunk parameters do not apply, as they don't to
+	 * {@link #LEVENSHTEIN} in {@link MatchScoring} either. */
+	static public class KernelScoring implements AllToAll.Scoring<VectorString3D,double[][][]> {
+		final double delta, wi, wd, wm;
+		final boolean direct, substring_matching;
+		final int band;
+		final ThreadLocal<EditDistance> kernels = new ThreadLocal<EditDistance>() {
+			@Override
+			protected EditDistance initialValue() { return new EditDistance(); }
+		};
 
-				// mirror value
-				scores[j][i] = scores[i][j];
-			}
+		/** @param band The half width of the band around the diagonal of each alignment, or negative to compute the whole matrix. */
+		public KernelScoring(final double delta, final boolean direct, final boolean substring_matching, final double wi, final double wd, final double wm, final int band) {
+			this.delta = delta;
+			this.direct = direct;
+			this.substring_matching = substring_matching;
+			this.wi = wi;
+			this.wd = wd;
+			this.wm = wm;
+			this.band = band;
 		}
 
-			////
-			}};
+		/** The vectors of the string and of its reversed copy. */
+		@Override
+		public double[][][] prepare(final VectorString3D vs) {
+			final double[][] v = EditDistance.vectors(vs.getPoints(0), vs.getPoints(1), vs.getPoints(2));
+			return new double[][][]{v, EditDistance.reversed(v)};
 		}
-		MultiThreading.startAndJoin(threads);
 
-		if (null != worker && worker.hasQuitted()) return null;
+		@Override
+		public float score(final double[][][] a, final double[][][] b) {
+			final EditDistance ed = kernels.get();
+			double best = Double.MAX_VALUE;
+			if (substring_matching) {
+				final double[][][] shorter = a[0][0].length < b[0][0].length ? a : b;
+				final double[][][] longer = a == shorter ? b : a;
+				final int len = shorter[0][0].length,
+				          total = longer[0][0].length;
+				for (int k = 0; k + len <= total; ++k) {
+					// The reversed substring at k is the substring of the reversed string at total - k - len
+					best = Math.min(best, match(ed, shorter[0], shorter[1], 0, longer[0], k, longer[1], total - k - len, len, len, best));
+				}
+			} else {
+				best = match(ed, a[0], a[1], 0, b[0], 0, b[1], 0, a[0][0].length, b[0][0].length, best);
+			}
+			return (float)best;
+		}
 
-		return scores;
+		private final double match(final EditDistance ed, final double[][] a, final double[][] arev, final int a0,
+				final double[][] b, final int b0, final double[][] brev, final int brev0, final int n, final int m, double best) {
+			if (direct) {
+				// Both ways, as matchDirect does; the same when insertions and deletions cost the same
+				best = Math.min(best, ed.distance(a, a0, n, b, b0, m, delta, wi, wd, wm, band, best));
+				if (wi == wd) return best;
+				return Math.min(best, ed.distance(b, b0, m, a, a0, n, delta, wi, wd, wm, band, best));
+			}
+			best = Math.min(best, ed.distance(a, a0, n, b, b0, m, delta, wi, wd, wm, band, best));
+			best = Math.min(best, ed.distance(arev, a0, n, brev, brev0, m, delta, wi, wd, wm, band, best));
+			best = Math.min(best, ed.distance(a, a0, n, brev, brev0, m, delta, wi, wd, wm, band, best));
+			return Math.min(best, ed.distance(arev, a0, n, b, b0, m, delta, wi, wd, wm, band, best));
+		}
 	}
 
 	/** Creates a transform with the 4 given vectors: X, Y, Z and translation of origin. */
@@ -0,0 +1,501 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.AreaTree;
+import ini.trakem2.display.Connector;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Tree;
+import ini.trakem2.display.Treeline;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** The graph of {@link Displayable} objects connected by the {@link Connector} instances of a {@link LayerSet},
+ * as primitive arrays of edges from origin to target, in the order of the connectors and also indexed by origin.
+ *
+ * There is one edge per {@link Connector}, origin and target, as in {@link Connector#getOrigins()} and
+ * {@link Connector#getTargets()}. Instead of searching the {@link LayerSet} for each origin and target node
+ * of each {@link Connector}, all are resolved in one pass per {@link Layer}, in parallel, against a grid
+ * of the bounds of the nodes of all {@link Tree} instances and of the other {@link ZDisplayable} at that
+ * {@link Layer}; the exact intersection tests run only for the nodes that are near each origin or target.
+ *
+ * Use {@link #get(LayerSet)} to reuse the graph until the {@link LayerSet#getEditCount()} changes;
+ * {@link #remove(Project)} discards the graphs of a project when it is closed.
+ */
+public final class ConnectivityGraph {
+
+	/** Side of the cells of the grid, in world pixels. */
+	static private final double CELL = 128;
+	/** Bounds spanning more cells than this in either dimension are tested for every query. */
+	static private final int MAX_CELLS = 64;
+
+	/** The connected objects; edges refer to them by their index. */
+	private final Displayable[] vertices;
+	/** Whether each vertex is under the origin of any {@link Connector} that has targets. */
+	private final boolean[] is_origin;
+	/** Origin vertex, target vertex and {@link Connector} of each edge, in the order of the connectors,
+	 * and within each, of its origins and then of its targets, as the exported graphs list them. */
+	private final int[] origins, targets;
+	private final Connector[] connectors;
+	/** The edges of vertex i are those from offsets[i] to offsets[i+1], exclusive, in {@link #by_origin}. */
+	private final int[] offsets;
+	/** The target vertex of each edge, sorted by origin. */
+	private final int[] by_origin;
+
+	private ConnectivityGraph(final Displayable[] vertices, final boolean[] is_origin, final int[] origins, final int[] targets, final Connector[] connectors) {
+		this.vertices = vertices;
+		this.is_origin = is_origin;
+		this.origins = origins;
+		this.targets = targets;
+		this.connectors = connectors;
+		// Counting sort of the targets by origin, stable so that they keep the order of their connectors
+		final int n = vertices.length,
+		          m = origins.length;
+		this.offsets = new int[n + 1];
+		for (int e = 0; e < m; ++e) offsets[origins[e] + 1] += 1;
+		for (int v = 0; v < n; ++v) offsets[v + 1] += offsets[v];
+		final int[] next = Arrays.copyOf(offsets, n);
+		this.by_origin = new int[m];
+		for (int e = 0; e < m; ++e) by_origin[next[origins[e]]++] = targets[e];
+	}
+
+	public int getVertexCount() { return vertices.length; }
+
+	public int getEdgeCount() { return origins.length; }
+
+	public Displayable getVertex(final int v) { return vertices[v]; }
+
+	public int getOrigin(final int e) { return origins[e]; }
+
+	public int getTarget(final int e) { return targets[e]; }
+
+	public Connector getConnector(final int e) { return connectors[e]; }
+
+	/** The edges of vertex {@code v} as origin are those from {@code getOffsets()[v]} to {@code getOffsets()[v+1]}, exclusive.
+	 * The array is the original: do not modify. */
+	public int[] getOffsets() { return offsets; }
+
+	/** The target vertex of each edge, sorted by origin as indexed by {@link #getOffsets()}.
+	 * The array is the original: do not modify. */
+	public int[] getTargets() { return by_origin; }
+
+	/** The subgraph of the vertices whose class is one of {@code only}, and the edges between them. */
+	public ConnectivityGraph filter(final Collection<? extends Class<?>> only) {
+		final int[] index = new int[vertices.length];
+		final boolean[] keep = new boolean[vertices.length];
+		for (int v = 0; v < vertices.length; ++v) keep[v] = only.contains(vertices[v].getClass());
+		// Keep the origins, and the targets of any kept edge
+		final boolean[] used = new boolean[vertices.length];
+		int m = 0;
+		for (int e = 0; e < origins.length; ++e) {
+			if (keep[origins[e]] && keep[targets[e]]) {
+				used[targets[e]] = true;
+				++m;
+			}
+		}
+		int n = 0;
+		for (int v = 0; v < vertices.length; ++v) {
+			index[v] = keep[v] && (is_origin[v] || used[v]) ? n++ : -1;
+		}
+		final Displayable[] vs = new Displayable[n];
+		final boolean[] os = new boolean[n];
+		for (int v = 0; v < vertices.length; ++v) {
+			if (-1 == index[v]) continue;
+			vs[index[v]] = vertices[v];
+			os[index[v]] = is_origin[v];
+		}
+		final int[] o = new int[m],
+		            t = new int[m];
+		final Connector[] c = new Connector[m];
+		for (int e = 0, k = 0; e < origins.length; ++e) {
+			if (keep[origins[e]] && keep[targets[e]]) {
+				o[k] = index[origins[e]];
+				t[k] = index[targets[e]];
+				c[k] = connectors[e];
+				++k;
+			}
+		}
+		return new ConnectivityGraph(vs, os, o, t, c);
+	}
+
+	/** One line "origin_id pd target_id" per edge. */
+	public StringBuilder appendSIF(final StringBuilder sb) {
+		for (int e = 0; e < origins.length; ++e) {
+			sb.append(vertices[origins[e]].getId()).append(" pd ").append(vertices[targets[e]].getId()).append('\n');
+		}
+		return sb;
+	}
+
+	/** One edge element per edge, without the enclosing graph element. */
+	public StringBuilder appendXML(final StringBuilder sb) {
+		for (int e = 0; e < origins.length; ++e) {
+			sb.append('\t').append("<edge cid=\"").append(connectors[e].getId()).append("\" origin=\"").append(vertices[origins[e]].getId()).append("\" target=\"").append(vertices[targets[e]].getId()).append("\" />\n");
+		}
+		return sb;
+	}
+
+	/** One line "origin_id,target_id,connector_id" per edge, after a header line. */
+	public StringBuilder appendCSV(final StringBuilder sb) {
+		sb.append("origin,target,connector\n");
+		for (int e = 0; e < origins.length; ++e) {
+			sb.append(vertices[origins[e]].getId()).append(',').append(vertices[targets[e]].getId()).append(',').append(connectors[e].getId()).append('\n');
+		}
+		return sb;
+	}
+
+	/** One line "id\ttitle" per vertex. */
+	public StringBuilder appendNames(final StringBuilder sb) {
+		for (final Displayable d : vertices) {
+			sb.append(d.getId()).append('\t').append(d.getProject().getMeaningfulTitle(d)).append('\n');
+		}
+		return sb;
+	}
+
+	/** The graph as undirected {@link Vertex} instances, in the order of the vertices, for {@link Centrality}. */
+	public ArrayList<Vertex<Displayable>> asVertices() {
+		final ArrayList<Vertex<Displayable>> vs = new ArrayList<Vertex<Displayable>>(vertices.length);
+		for (final Displayable d : vertices) vs.add(new Vertex<Displayable>(d));
+		for (int e = 0; e < origins.length; ++e) {
+			if (origins[e] == targets[e]) continue;
+			final Vertex<Displayable> o = vs.get(origins[e]),
+			                          t = vs.get(targets[e]);
+			o.neighbors.add(t);
+			t.neighbors.add(o);
+		}
+		return vs;
+	}
+
+	/** The graph of each LayerSet and the edit count it was computed at. Not weak: the graph refers to its LayerSet. */
+	static private final Map<LayerSet,Object[]> cache = Collections.synchronizedMap(new HashMap<LayerSet,Object[]>());
+
+	/** Discard the graphs of the layer sets of {@code project}, if any, which would otherwise keep it in memory. */
+	static public final void remove(final Project project) {
+		synchronized (cache) {
+			for (final Iterator<LayerSet> it = cache.keySet().iterator(); it.hasNext(); ) {
+				if (project == it.next().getProject()) it.remove();
+			}
+		}
+	}
+
+	/** Returns the graph of {@code ls}, computing it only if the {@link LayerSet#getEditCount()} changed
+	 * since it was last computed, or null if interrupted. */
+	static public final ConnectivityGraph get(final LayerSet ls) {
+		final long count = ls.getEditCount();
+		final Object[] cached = cache.get(ls);
+		if (null != cached && count == ((Long)cached[0]).longValue()) return (ConnectivityGraph)cached[1];
+		final ConnectivityGraph g = compute(ls, Runtime.getRuntime().availableProcessors());
+		if (null != g) cache.put(ls, new Object[]{count, g});
+		return g;
+	}
+
+	/** The origin or a target node of a {@link Connector}, and what lays under it. */
+	static private final class Endpoint {
+		final Connector c;
+		final Area area;
+		final Rectangle2D bounds;
+		final Set<Displayable> hits = new LinkedHashSet<Displayable>();
+		Endpoint(final Connector c, final Node<Float> nd) {
+			this.c = c;
+			this.area = nd.getArea();
+			this.area.transform(c.getAffineTransform());
+			this.bounds = area.getBounds2D();
+		}
+	}
+
+	/** The world bounds of a {@link Node} of a {@link Tree}, or of a whole {@link ZDisplayable} when the node is null. */
+	static private final class Entry {
+		final ZDisplayable d;
+		final Node<?> nd;
+		final double x0, y0, x1, y1;
+		Entry(final ZDisplayable d, final Node<?> nd, final double x0, final double y0, final double x1, final double y1) {
+			this.d = d;
+			this.nd = nd;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+		}
+		final boolean intersects(final Rectangle2D r) {
+			return x0 <= r.getMaxX() && y0 <= r.getMaxY() && x1 >= r.getMinX() && y1 >= r.getMinY();
+		}
+	}
+
+	/** Compute the graph without looking at the cache; returns null if interrupted. */
+	static public final ConnectivityGraph compute(final LayerSet ls, final int n_threads) {
+		final List<Connector> cons = ls.getAll(Connector.class);
+
+		// The endpoints of each connector: first the origin, then the targets
+		final ArrayList<Endpoint[]> ends = new ArrayList<Endpoint[]>(cons.size());
+		final HashMap<Layer,ArrayList<Endpoint>> by_layer = new HashMap<Layer,ArrayList<Endpoint>>();
+		for (final Connector con : cons) {
+			final Node<Float> root = con.getRoot();
+			if (null == root) {
+				ends.add(null);
+				continue;
+			}
+			final ArrayList<Node<Float>> nodes = root.getChildrenNodes();
+			nodes.add(0, root);
+			final Endpoint[] e = new Endpoint[nodes.size()];
+			for (int i = 0; i < e.length; ++i) {
+				final Node<Float> nd = nodes.get(i);
+				e[i] = new Endpoint(con, nd);
+				ArrayList<Endpoint> list = by_layer.get(nd.getLayer());
+				if (null == list) {
+					list = new ArrayList<Endpoint>();
+					by_layer.put(nd.getLayer(), list);
+				}
+				list.add(e[i]);
+			}
+			ends.add(e);
+		}
+
+		// Trees are indexed node by node, with their inverse transforms; any other ZDisplayable as a whole
+		final ArrayList<Tree<?>> trees = new ArrayList<Tree<?>>();
+		final ArrayList<ZDisplayable> others = new ArrayList<ZDisplayable>();
+		final HashMap<Tree<?>,AffineTransform> inverses = new HashMap<Tree<?>,AffineTransform>();
+		for (final ZDisplayable zd : ls.getZDisplayables()) {
+			if (zd instanceof Tree<?>) {
+				final Tree<?> t = (Tree<?>)zd;
+				try {
+					inverses.put(t, t.getAffineTransform().createInverse());
+					trees.add(t);
+				} catch (final NoninvertibleTransformException e) {
+					IJError.print(e);
+				}
+			} else {
+				others.add(zd);
+			}
+		}
+
+		final ExecutorService exe = Utils.newFixedThreadPool(Math.max(1, n_threads), "Connectivity");
+		try {
+			final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+			for (final Map.Entry<Layer,ArrayList<Endpoint>> e : by_layer.entrySet()) {
+				fus.add(exe.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						resolve(e.getKey(), e.getValue(), trees, inverses, others);
+						return null;
+					}
+				}));
+			}
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			return null;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		} finally {
+			exe.shutdownNow();
+		}
+		if (Thread.currentThread().isInterrupted()) return null;
+
+		// Edges in the order of the connectors
+		final HashMap<Displayable,Integer> index = new HashMap<Displayable,Integer>();
+		final ArrayList<Displayable> vs = new ArrayList<Displayable>();
+		final ArrayList<Boolean> os = new ArrayList<Boolean>();
+		int[] o = new int[1024],
+		      t = new int[1024];
+		Connector[] c = new Connector[1024];
+		int m = 0;
+		for (int i = 0; i < ends.size(); ++i) {
+			final Endpoint[] e = ends.get(i);
+			if (null == e || e[0].hits.isEmpty()) {
+				Utils.log("Graph: ignoring connector without origins: #" + cons.get(i).getId());
+				continue;
+			}
+			if (1 == e.length) {
+				Utils.log("Graph: ignoring connector without targets: #" + cons.get(i).getId());
+				continue;
+			}
+			for (final Displayable origin : e[0].hits) {
+				final int vo = indexOf(origin, index, vs, os);
+				os.set(vo, true);
+				for (int k = 1; k < e.length; ++k) {
+					for (final Displayable target : e[k].hits) {
+						if (m == o.length) {
+							o = Arrays.copyOf(o, m * 2);
+							t = Arrays.copyOf(t, m * 2);
+							c = Arrays.copyOf(c, m * 2);
+						}
+						o[m] = vo;
+						t[m] = indexOf(target, index, vs, os);
+						c[m] = e[0].c;
+						++m;
+					}
+				}
+			}
+		}
+		final boolean[] is_origin = new boolean[vs.size()];
+		for (int v = 0; v < is_origin.length; ++v) is_origin[v] = os.get(v);
+		return new ConnectivityGraph(vs.toArray(new Displayable[vs.size()]), is_origin, Arrays.copyOf(o, m), Arrays.copyOf(t, m), Arrays.copyOf(c, m));
+	}
+
+	static private final int indexOf(final Displayable d, final HashMap<Displayable,Integer> index, final ArrayList<Displayable> vs, final ArrayList<Boolean> os) {
+		final Integer i = index.get(d);
+		if (null != i) return i;
+		index.put(d, vs.size());
+		vs.add(d);
+		os.add(false);
+		return vs.size() - 1;
+	}
+
+	/** Find what lays under each of the endpoints at {@code layer}. */
+	static private final void resolve(final Layer layer, final List<Endpoint> eps, final List<Tree<?>> trees,
+			final Map<Tree<?>,AffineTransform> inverses, final List<ZDisplayable> others) {
+		// The grid of the world bounds of the nodes and of the other ZDisplayable at this layer
+		final HashMap<Long,ArrayList<Entry>> grid = new HashMap<Long,ArrayList<Entry>>();
+		final ArrayList<Entry> large = new ArrayList<Entry>();
+		final double[] box = new double[8];
+		for (final Tree<?> t : trees) {
+			final AffineTransform aff = t.getAffineTransform();
+			for (final Node<?> nd : t.getNodesAt(layer)) {
+				localBounds(nd, box);
+				// the four corners
+				box[4] = box[2];
+				box[5] = box[1];
+				box[6] = box[0];
+				box[7] = box[3];
+				aff.transform(box, 0, box, 0, 4);
+				final double x0 = Math.min(Math.min(box[0], box[2]), Math.min(box[4], box[6])),
+				             y0 = Math.min(Math.min(box[1], box[3]), Math.min(box[5], box[7])),
+				             x1 = Math.max(Math.max(box[0], box[2]), Math.max(box[4], box[6])),
+				             y1 = Math.max(Math.max(box[1], box[3]), Math.max(box[5], box[7]));
+				insert(grid, large, new Entry(t, nd, x0 - 1, y0 - 1, x1 + 1, y1 + 1));
+			}
+		}
+		for (final ZDisplayable zd : others) {
+			final Rectangle r = zd.getBounds(new Rectangle(), layer);
+			if (null == r || (0 == r.width && 0 == r.height)) continue;
+			insert(grid, large, new Entry(zd, null, r.x - 1, r.y - 1, r.x + r.width + 1, r.y + r.height + 1));
+		}
+
+		for (final Endpoint ep : eps) {
+			if (Thread.currentThread().isInterrupted()) return;
+			// Images, text labels and profiles, from the buckets of the layer
+			ep.hits.addAll(layer.getDisplayables(Displayable.class, ep.area, false, true));
+			final HashMap<Tree<?>,Area> local = new HashMap<Tree<?>,Area>();
+			final int cx0 = cell(ep.bounds.getMinX()), cx1 = cell(ep.bounds.getMaxX()),
+			          cy0 = cell(ep.bounds.getMinY()), cy1 = cell(ep.bounds.getMaxY());
+			for (int cy = cy0; cy <= cy1; ++cy) {
+				for (int cx = cx0; cx <= cx1; ++cx) {
+					final ArrayList<Entry> es = grid.get(key(cx, cy));
+					if (null != es) test(es, ep, layer, inverses, local);
+				}
+			}
+			test(large, ep, layer, inverses, local);
+		}
+	}
+
+	static private final void test(final List<Entry> es, final Endpoint ep, final Layer layer, final Map<Tree<?>,AffineTransform> inverses, final Map<Tree<?>,Area> local) {
+		for (final Entry en : es) {
+			if (en.d == ep.c || ep.hits.contains(en.d) || !en.intersects(ep.bounds)) continue;
+			if (null == en.nd) {
+				if (en.d.intersects(layer, ep.area)) ep.hits.add(en.d);
+				continue;
+			}
+			final Tree<?> t = (Tree<?>)en.d;
+			Area a = local.get(t);
+			if (null == a) {
+				a = ep.area.createTransformedArea(inverses.get(t));
+				local.put(t, a);
+			}
+			if (en.nd.intersects(a)) ep.hits.add(t);
+		}
+	}
+
+	/** Fill {@code box} with x0, y0, x1, y1 of what the node covers, in local coordinates of its {@link Tree}. */
+	static private final void localBounds(final Node<?> nd, final double[] box) {
+		final double x = nd.getX(),
+		             y = nd.getY();
+		double r = 1;
+		if (nd instanceof Treeline.RadiusNode) {
+			r = Math.max(1, ((Treeline.RadiusNode)nd).getData());
+		} else if (nd instanceof AreaTree.AreaNode) {
+			final Area a = ((AreaTree.AreaNode)nd).getDataCopy();
+			if (null != a && !a.isEmpty()) {
+				final Rectangle2D b = a.getBounds2D();
+				box[0] = Math.min(x - 1, b.getMinX());
+				box[1] = Math.min(y - 1, b.getMinY());
+				box[2] = Math.max(x + 1, b.getMaxX());
+				box[3] = Math.max(y + 1, b.getMaxY());
+				return;
+			}
+		}
+		box[0] = x - r;
+		box[1] = y - r;
+		box[2] = x + r;
+		box[3] = y + r;
+	}
+
+	static private final void insert(final HashMap<Long,ArrayList<Entry>> grid, final ArrayList<Entry> large, final Entry en) {
+		final int cx0 = cell(en.x0), cx1 = cell(en.x1),
+		          cy0 = cell(en.y0), cy1 = cell(en.y1);
+		if (cx1 - cx0 >= MAX_CELLS || cy1 - cy0 >= MAX_CELLS) {
+			large.add(en);
+			return;
+		}
+		for (int cy = cy0; cy <= cy1; ++cy) {
+			for (int cx = cx0; cx <= cx1; ++cx) {
+				final Long k = key(cx, cy);
+				ArrayList<Entry> es = grid.get(k);
+				if (null == es) {
+					es = new ArrayList<Entry>(4);
+					grid.put(k, es);
+				}
+				es.add(en);
+			}
+		}
+	}
+
+	static private final int cell(final double v) {
+		return (int)Math.floor(v / CELL);
+	}
+
+	static private final long key(final int cx, final int cy) {
+		return (((long)cx) << 32) | (cy & 0xffffffffL);
+	}
+}
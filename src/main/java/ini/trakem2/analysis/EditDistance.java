@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+/** Weighted edit distance between two strings of 3D vectors, on primitive arrays.
+ *
+ * The strings are the difference vectors between consecutive points of resampled chains,
+ * all of about the same length {@code delta}. Converting one string into the other costs
+ * {@code wd * delta} per deletion, {@code wi * delta} per insertion, and {@code wm} times
+ * the length of the difference of the two vectors per mutation, as in {@link ini.trakem2.vector.Editions}.
+ *
+ * Only the distance is computed, with two rows of the dynamic programming matrix which are reused
+ * from call to call: no memory is allocated once the rows are long enough.
+ * The computation can be restricted to a band around the diagonal, and stops as soon as the minimum
+ * of a row exceeds a cutoff, such as the best score found so far: since all costs are positive,
+ * no path through that row can end below it.
+ *
+ * An instance is not thread-safe; use one per thread.
+ */
+public final class EditDistance {
+
+	private double[] prev = new double[0],
+	                 curr = new double[0];
+
+	/** The difference vectors between consecutive points, as {x, y, z} arrays one shorter than the points. */
+	static public final double[][] vectors(final double[] px, final double[] py, final double[] pz) {
+		final int n = Math.max(0, px.length - 1);
+		final double[] vx = new double[n],
+		               vy = new double[n],
+		               vz = new double[n];
+		for (int i = 0; i < n; ++i) {
+			vx[i] = px[i+1] - px[i];
+			vy[i] = py[i+1] - py[i];
+			vz[i] = pz[i+1] - pz[i];
+		}
+		return new double[][]{vx, vy, vz};
+	}
+
+	/** The vectors of the reversed string: in reverse order and pointing the other way. */
+	static public final double[][] reversed(final double[][] v) {
+		final int n = v[0].length;
+		final double[][] r = new double[3][n];
+		for (int d = 0; d < 3; ++d) {
+			for (int i = 0; i < n; ++i) r[d][i] = -v[d][n - 1 - i];
+		}
+		return r;
+	}
+
+	/** The distance between the {@code n} vectors of {@code a} starting at {@code a0}
+	 * and the {@code m} vectors of {@code b} starting at {@code b0}.
+	 *
+	 * @param band The maximum number of cells away from the diagonal of the n x m matrix to compute, or negative for all.
+	 *             A band narrower than the optimal path gives a distance larger than the true one.
+	 * @param cutoff The distance above which there's no interest in the exact value; use Double.MAX_VALUE for none.
+	 * @return The distance, or Double.POSITIVE_INFINITY when it is larger than {@code cutoff}. */
+	public double distance(final double[][] a, final int a0, final int n,
+	                       final double[][] b, final int b0, final int m,
+	                       final double delta, final double wi, final double wd, final double wm,
+	                       final int band, final double cutoff) {
+		final double ci = wi * delta,
+		             cd = wd * delta;
+		if (0 == n || 0 == m) {
+			final double d = 0 == n ? m * ci : n * cd;
+			return d > cutoff ? Double.POSITIVE_INFINITY : d;
+		}
+
+		if (prev.length < m + 1) {
+			prev = new double[m + 1];
+			curr = new double[m + 1];
+		}
+		double[] p = prev,
+		         c = curr;
+
+		final double[] ax = a[0], ay = a[1], az = a[2],
+		               bx = b[0], by = b[1], bz = b[2];
+		final double INF = Double.POSITIVE_INFINITY;
+
+		// Row 0: insertions only
+		int hi = hi(0, n, m, band);
+		for (int j = 0; j <= hi; ++j) p[j] = j * ci;
+		for (int j = hi + 1, end = hi(1, n, m, band); j <= end; ++j) p[j] = INF;
+
+		for (int i = 1; i <= n; ++i) {
+			final int lo = lo(i, n, m, band);
+			hi = hi(i, n, m, band);
+			final double x = ax[a0 + i - 1],
+			             y = ay[a0 + i - 1],
+			             z = az[a0 + i - 1];
+			double row_min;
+			int j = lo;
+			if (0 == lo) {
+				c[0] = i * cd;
+				row_min = c[0];
+				j = 1;
+			} else {
+				c[lo - 1] = INF;
+				row_min = INF;
+			}
+			for (; j <= hi; ++j) {
+				final double dx = x - bx[b0 + j - 1],
+				             dy = y - by[b0 + j - 1],
+				             dz = z - bz[b0 + j - 1];
+				double v = p[j - 1] + wm * Math.sqrt(dx * dx + dy * dy + dz * dz);
+				final double del = p[j] + cd;
+				if (del < v) v = del;
+				final double ins = c[j - 1] + ci;
+				if (ins < v) v = ins;
+				c[j] = v;
+				if (v < row_min) row_min = v;
+			}
+			if (row_min > cutoff) return INF;
+			// Cells that the next row reads beyond this row's band
+			if (i < n) {
+				for (int k = hi + 1, end = hi(i + 1, n, m, band); k <= end; ++k) c[k] = INF;
+			}
+			final double[] t = p;
+			p = c;
+			c = t;
+		}
+		final double d = p[m];
+		return d > cutoff ? INF : d;
+	}
+
+	/** Column of the diagonal at row {@code i}, rounded up so that the last row includes column m. */
+	static private final int center(final int i, final int n, final int m) {
+		return (int)(((long)i * m + n - 1) / n);
+	}
+
+	/** Starts at the center of the previous row, so that each row overlaps the previous one even when m &gt; n. */
+	static private final int lo(final int i, final int n, final int m, final int band) {
+		if (band < 0) return 0;
+		return Math.max(0, center(i - 1, n, m) - band);
+	}
+
+	static private final int hi(final int i, final int n, final int m, final int band) {
+		if (band < 0) return m;
+		return Math.min(m, center(i, n, m) + band);
+	}
+}
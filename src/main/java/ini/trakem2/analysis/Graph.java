@@ -36,12 +36,10 @@ import ini.trakem2.display.Polyline;
 import ini.trakem2.display.Profile;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
-import ini.trakem2.utils.Utils;
 
 import java.awt.Point;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -50,50 +48,17 @@ import javax.swing.SwingUtilities;
 public class Graph {
 
 
+	/** Returns the "sif", "xml" and "names" of the graph of {@link Connector} origins and targets,
+	 * from the {@link ConnectivityGraph} of the {@link LayerSet}; or null if interrupted. */
 	static public final <T extends Displayable> Map<String,StringBuilder> extractGraph(final LayerSet ls, final Set<Class<T>> only) {
-		
-		final StringBuilder sif = new StringBuilder(4096),
-							xml = new StringBuilder(4096).append("<graph>\n"),
-							names = new StringBuilder(4096);
-		
-		final Set<Displayable> seen = new HashSet<Displayable>();
-
-		for (final Connector con : ls.getAll(Connector.class)) {
-			Set<Displayable> origins = con.getOrigins();
-			if (origins.isEmpty()) {
-				Utils.log("Graph: ignoring connector without origins: #" + con.getId());
-				continue;
-			}
-			List<Set<Displayable>> target_lists = con.getTargets();
-			if (target_lists.isEmpty()) {
-				Utils.log("Graph: ignoring connector without targets: #" + con.getId());
-				continue;
-			}
-			for (final Displayable origin : origins) {
-				if (Thread.currentThread().isInterrupted()) return null;
-				if (null != only && !only.contains(origin.getClass())) continue;
-				seen.add(origin);
-				for (final Set<Displayable> targets : target_lists) {
-					for (final Displayable target : targets) {
-						if (null != only && !only.contains(target.getClass())) continue;
-						sif.append(origin.getId()).append(" pd ").append(target.getId()).append('\n');
-						xml.append('\t').append("<edge cid=\"").append(con.getId()).append("\" origin=\"").append(origin.getId()).append("\" target=\"").append(target.getId()).append("\" />\n");
-						seen.add(target);
-					}
-				}
-			}
-		}
-
-		xml.append("</graph>\n");
-
-		for (final Displayable d : seen) {
-			names.append(d.getId()).append('\t').append(d.getProject().getMeaningfulTitle(d)).append('\n');
-		}
+		ConnectivityGraph g = ConnectivityGraph.get(ls);
+		if (null == g) return null;
+		if (null != only) g = g.filter(only);
 
 		final Map<String,StringBuilder> m = new HashMap<String,StringBuilder>();
-		m.put("sif", sif);
-		m.put("xml", xml);
-		m.put("names", names);
+		m.put("sif", g.appendSIF(new StringBuilder(4096)));
+		m.put("xml", g.appendXML(new StringBuilder(4096).append("<graph>\n")).append("</graph>\n"));
+		m.put("names", g.appendNames(new StringBuilder(4096)));
 		return m;
 	}
 
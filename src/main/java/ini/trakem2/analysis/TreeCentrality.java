@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+/** Exact betweenness centrality of the vertices of a tree, or of a forest, in linear time.
+ *
+ * In a tree there is a single path between any two vertices, which passes through a vertex v
+ * if and only if the two vertices are in different components of the tree without v.
+ * With the sizes c_i of those components, which sum up to n - 1, the number of ordered pairs
+ * of vertices whose path passes through v is (n - 1)^2 - sum(c_i^2): the same value that
+ * {@link Centrality#compute(java.util.Collection)} accumulates over all sources with Brandes' algorithm.
+ * The sizes of the components are those of the subtrees of the children of v, and the rest of the tree.
+ *
+ * Operates on arrays of parent indices, without any objects per vertex.
+ */
+public final class TreeCentrality {
+
+	private TreeCentrality() {}
+
+	/** @param parents The index of the parent of each vertex, or -1 for the root of each tree.
+	 *  @return The betweenness centrality of each vertex, in the same order.
+	 *  @throws IllegalArgumentException if the parents contain a cycle or indices out of range. */
+	static public final double[] compute(final int[] parents) {
+		final int n = parents.length;
+		final int[] order = topologicalOrder(parents);
+
+		// Size of the subtree of each vertex, children before parents
+		final long[] size = new long[n];
+		for (int k = n - 1; k > -1; --k) {
+			final int v = order[k];
+			size[v] += 1;
+			if (-1 != parents[v]) size[parents[v]] += size[v];
+		}
+
+		// Size of the tree of each vertex, and the sum of the squared sizes of the subtrees of its children
+		final long[] total = new long[n];
+		final long[] sumSq = new long[n];
+		for (int k = 0; k < n; ++k) {
+			final int v = order[k];
+			final int p = parents[v];
+			if (-1 == p) {
+				total[v] = size[v];
+			} else {
+				total[v] = total[p];
+				sumSq[p] += size[v] * size[v];
+			}
+		}
+
+		final double[] c = new double[n];
+		for (int v = 0; v < n; ++v) {
+			final long rest = total[v] - size[v];
+			c[v] = (total[v] - 1) * (total[v] - 1) - sumSq[v] - rest * rest;
+		}
+		return c;
+	}
+
+	/** The vertices in an order in which every parent comes before its children. */
+	static private final int[] topologicalOrder(final int[] parents) {
+		final int n = parents.length;
+		// Children of each vertex, as consecutive ranges of one array
+		final int[] start = new int[n + 1];
+		for (int v = 0; v < n; ++v) {
+			final int p = parents[v];
+			if (p < -1 || p >= n || p == v) throw new IllegalArgumentException("Invalid parent " + p + " for vertex " + v);
+			if (-1 != p) start[p + 1] += 1;
+		}
+		for (int v = 0; v < n; ++v) start[v + 1] += start[v];
+		final int[] next = new int[n];
+		System.arraycopy(start, 0, next, 0, n);
+		final int[] children = new int[start[n]];
+		for (int v = 0; v < n; ++v) {
+			if (-1 != parents[v]) children[next[parents[v]]++] = v;
+		}
+
+		// Breadth-first from the roots
+		final int[] order = new int[n];
+		int count = 0;
+		for (int v = 0; v < n; ++v) {
+			if (-1 == parents[v]) order[count++] = v;
+		}
+		for (int k = 0; k < count; ++k) {
+			final int v = order[k];
+			for (int i = start[v]; i < start[v + 1]; ++i) order[count++] = children[i];
+		}
+		if (count != n) throw new IllegalArgumentException("The parents contain a cycle.");
+		return order;
+	}
+}
@@ -37,6 +37,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
@@ -975,9 +976,12 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	/** @param area is expected in world coordinates. */
 	@Override
 	public boolean intersects(final Area area, final double z_first, final double z_last) {
+		final Rectangle2D bounds = area.getBounds2D();
 		for (final Map.Entry<Long,Area> entry : ht_areas.entrySet()) {
 			final Layer layer = layer_set.getLayer(((Long)entry.getKey()).longValue());
 			if (layer.getZ() >= z_first && layer.getZ() <= z_last) {
+				// Cheap rejection by the transformed bounds, before transforming the area
+				if (!this.at.createTransformedShape(entry.getValue().getBounds2D()).getBounds2D().intersects(bounds)) continue;
 				final Area a = ((Area)entry.getValue()).createTransformedArea(this.at);
 				a.intersect(area);
 				final Rectangle r = a.getBounds();
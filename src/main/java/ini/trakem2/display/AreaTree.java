@@ -192,7 +192,10 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 		@Override
 		public boolean intersects(final Area a) {
 			if (null == aw) return a.contains(x, y);
-			return M.intersects(a, aw.getArea());
+			final Area b = aw.getArea();
+			// Cheap rejection by the bounds of the area
+			if (!a.intersects(b.getBounds2D())) return false;
+			return M.intersects(a, b);
 		}
 
 		@Override
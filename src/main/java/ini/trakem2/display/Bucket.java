@@ -23,7 +23,6 @@
 
 package ini.trakem2.display;
 
-import ini.trakem2.utils.M;
 import ini.trakem2.utils.Utils;
 
 import java.awt.BasicStroke;
@@ -84,26 +83,26 @@ public class Bucket {
 		final HashMap<Integer,Displayable> list = new HashMap<Integer,Displayable>();
 		int i = 0;
 		// cache all bounding boxes
-		final HashMap<Displayable,Area> areas = new HashMap<Displayable,Area>();
+		final HashMap<Displayable,BucketGeometry> areas = new HashMap<Displayable,BucketGeometry>();
 		for (final Displayable d : container.getDisplayableList()) {
 			list.put(i, d);
 			i++;
-			final Area a = d.getAreaForBucket(layer);
-			if (null != a) areas.put(d, a);
+			final BucketGeometry g = d.getBucketGeometry(layer);
+			if (null != g.area) areas.put(d, g);
 		}
 		populate(container, db_map, w+w, h+h, w, h, list, areas);
 	}
 
 	/** Recursive initialization of buckets. This method is meant to be used as init, when root is null or is made new from scratch. Returns true if not empty. */
-	final private boolean populate(final Bucketable container, final HashMap<Displayable,HashSet<Bucket>> db_map, final int parent_w, final int parent_h, final int max_width, final int max_height, final HashMap<Integer,Displayable> parent_list, final HashMap<Displayable,Area> areas) {
+	final private boolean populate(final Bucketable container, final HashMap<Displayable,HashSet<Bucket>> db_map, final int parent_w, final int parent_h, final int max_width, final int max_height, final HashMap<Integer,Displayable> parent_list, final HashMap<Displayable,BucketGeometry> areas) {
 		if (this.w <= bucket_side || this.h <= bucket_side) {
 			// add displayables, sorted by index
 			map = new TreeMap<Integer,Displayable>();
 			for (final Map.Entry<Integer,Displayable> e : parent_list.entrySet()) {
 				final Displayable d = e.getValue();
-				final Area a = areas.get(d);
-				if (null == a) continue;
-				if (a.intersects(x, y, w, h)) {
+				final BucketGeometry g = areas.get(d);
+				if (null == g) continue;
+				if (g.intersects(x, y, w, h)) {
 					map.put(e.getKey(), d);
 					putToBucketMap(d, db_map);
 				}
@@ -123,9 +122,9 @@ public class Bucket {
 			final HashMap<Integer,Displayable> local_list = new HashMap<Integer,Displayable>();
 			for (final Map.Entry<Integer,Displayable> e : parent_list.entrySet()) {
 				final Displayable d = e.getValue();
-				final Area a = areas.get(d);
-				if (null == a) continue;
-				if (a.intersects(x, y, w, h)) local_list.put(e.getKey(), d);
+				final BucketGeometry g = areas.get(d);
+				if (null == g) continue;
+				if (g.intersects(x, y, w, h)) local_list.put(e.getKey(), d);
 			}
 
 			//Utils.log2(local_list.size() + " :: " + this.toString());
@@ -204,12 +203,10 @@ public class Bucket {
 				bu.find(accum, srcRect, layer, visible_only);
 			}
 		} else {
-			final Area asrc = new Area(srcRect);
 			for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
 				final Displayable d = entry.getValue();
 				if (visible_only && !d.isVisible()) continue;
-				final Area a = d.getAreaForBucket(layer);
-				if (null != a && M.intersects(asrc, a)) {
+				if (d.getBucketGeometry(layer).intersects(srcRect)) {
 					accum.put(entry.getKey(), d);
 				}
 			}
@@ -269,14 +266,12 @@ public class Bucket {
 				bu.find(accum, c, srcRect, layer, visible_only, instance_of);
 			}
 		} else {
-			final Area asrc = new Area(srcRect);
 			if (instance_of) {
 				for (final Map.Entry<Integer,Displayable> entry : map.entrySet()) {
 					final Displayable d = entry.getValue();
 					if (visible_only && !d.isVisible()) continue;
 					if (c.isAssignableFrom(d.getClass())) {
-						final Area a = d.getAreaForBucket(layer);
-						if (null != a && M.intersects(asrc, a)) {
+						if (d.getBucketGeometry(layer).intersects(srcRect)) {
 							accum.put(entry.getKey(), d);
 						}
 					}
@@ -286,8 +281,7 @@ public class Bucket {
 					final Displayable d = entry.getValue();
 					if (visible_only && !d.isVisible()) continue;
 					if (d.getClass() == c) {
-						final Area a = d.getAreaForBucket(layer);
-						if (null != a && M.intersects(asrc, a)) {
+						if (d.getBucketGeometry(layer).intersects(srcRect)) {
 							accum.put(entry.getKey(), d);
 						}
 					}
@@ -463,27 +457,27 @@ public class Bucket {
 	/** Remove from wherever it is, then test if it's in that bucket, otherwise re-add. */
 	synchronized final void updatePosition(final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
 		final HashSet<Bucket> hs = db_map.get(d);
-		final Area a = d.getAreaForBucket(layer);
+		final BucketGeometry g = d.getBucketGeometry(layer);
 		final int stack_index = d.getBucketable().getDisplayableList().indexOf(d);
 		if (null != hs) {
 			for (final Iterator<Bucket> it = hs.iterator(); it.hasNext(); ) {
 				final Bucket bu = it.next();
-				if (null != a && a.intersects(bu.x, bu.y, bu.w, bu.h)) continue; // bu.intersects(box)) continue; // no change of bucket: lower-right corner still within the bucket
+				if (g.intersects(bu.x, bu.y, bu.w, bu.h)) continue; // bu.intersects(box)) continue; // no change of bucket: lower-right corner still within the bucket
 				// else, remove
 				bu.map.remove(stack_index);
 				it.remove();
 			}
 		}
 		// insert wherever appropriate, if not there
-		if (null != a) this.put(stack_index, d, layer, a, db_map);
+		if (null != g.area) this.put(stack_index, d, layer, g, db_map);
 	}
 
 	/** Add the given Displayable to all buckets that intercept its bounding box. */
 	synchronized final void put(final int stack_index, final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		put(stack_index, d, layer, d.getAreaForBucket(layer), db_map);
+		put(stack_index, d, layer, d.getBucketGeometry(layer), db_map);
 	}
-	synchronized final void put(final int stack_index, final Displayable d, final Layer layer, final Area a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
-		if (null == a) return;
+	synchronized final void put(final int stack_index, final Displayable d, final Layer layer, final BucketGeometry a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+		if (null == a.area) return;
 		/*
 		if (0 == box.width || 0 == box.height) {
 			// d doesn't contain any data: use whole 2D world
@@ -493,7 +487,7 @@ public class Bucket {
 		*/
 		putIn(stack_index, d, a, db_map);
 	}
-	private final void putIn(final int stack_index, final Displayable d, final Area a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+	private final void putIn(final int stack_index, final Displayable d, final BucketGeometry a, final HashMap<Displayable,HashSet<Bucket>> db_map) {
 		if (!a.intersects(x, y, w, h)) return;
 		// there will be at least one now
 		this.empty = false;
@@ -658,9 +652,8 @@ public class Bucket {
 			final int[] sizes = new int[col.size()];
 			int i = 0;
 			for (final Displayable d : col) {
-				Area a = d.getAreaForBucket(la);
-				if (null == a) continue;
-				Rectangle r = a.getBounds();
+				final Rectangle r = d.getBucketGeometry(la).bounds;
+				if (null == r) continue;
 				sizes[i++] = Math.max(r.width, r.height);
 			}
 			Arrays.sort(sizes);
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+
+/** The area of a {@link Displayable} at a {@link Layer}, in world coordinates, as returned by
+ * {@link Displayable#getAreaForBucket(Layer)}, with its bounds in primitive form.
+ *
+ * Rectangles are tested first against the bounds, and then, only when the area is not a plain rectangle,
+ * against the area itself with {@link Area#intersects(double, double, double, double)}, which doesn't create new areas.
+ *
+ * Instances are cached by each {@link Displayable} and never modified: the {@link Area} must not be modified either.
+ */
+final class BucketGeometry {
+
+	final Layer layer;
+	/** What the geometry was computed from, to tell whether it is still valid. */
+	private final long version;
+	private final double m00, m10, m01, m11, m02, m12, width, height;
+
+	/** The area in world coordinates, or null if the Displayable has no area at the layer. */
+	final Area area;
+	/** The bounds of the area; empty when there is no area. */
+	final double x0, y0, x1, y1;
+	/** The enclosing integer bounds of the area, or null when there is no area. */
+	final Rectangle bounds;
+	private final boolean rectangular;
+
+	BucketGeometry(final Layer layer, final long version, final double[] m, final double width, final double height, final Area area) {
+		this.layer = layer;
+		this.version = version;
+		this.m00 = m[0];
+		this.m10 = m[1];
+		this.m01 = m[2];
+		this.m11 = m[3];
+		this.m02 = m[4];
+		this.m12 = m[5];
+		this.width = width;
+		this.height = height;
+		this.area = area;
+		if (null == area || area.isEmpty()) {
+			this.x0 = this.y0 = 0;
+			this.x1 = this.y1 = -1;
+			this.bounds = null == area ? null : area.getBounds();
+			this.rectangular = false;
+		} else {
+			final Rectangle2D b = area.getBounds2D();
+			this.x0 = b.getMinX();
+			this.y0 = b.getMinY();
+			this.x1 = b.getMaxX();
+			this.y1 = b.getMaxY();
+			this.bounds = area.getBounds();
+			this.rectangular = area.isRectangular();
+		}
+	}
+
+	final boolean isValid(final Layer layer, final long version, final double[] m, final double width, final double height) {
+		return layer == this.layer && version == this.version
+		    && m[0] == m00 && m[1] == m10 && m[2] == m01 && m[3] == m11 && m[4] == m02 && m[5] == m12
+		    && width == this.width && height == this.height;
+	}
+
+	/** Whether the interior of the area intersects the interior of the rectangle. */
+	final boolean intersects(final double x, final double y, final double w, final double h) {
+		if (null == area || w <= 0 || h <= 0) return false;
+		if (x >= x1 || y >= y1 || x + w <= x0 || y + h <= y0) return false;
+		if (rectangular) return true;
+		return area.intersects(x, y, w, h);
+	}
+
+	final boolean intersects(final Rectangle r) {
+		return intersects(r.x, r.y, r.width, r.height);
+	}
+}
@@ -108,6 +108,8 @@ public class Connector extends Treeline {
 		@Override
 		public boolean intersects(final Area a) {
 			if (0 == r) return a.contains(x, y);
+			// Cheap rejection by the bounds of the circle
+			if (!a.intersects(x-r, y-r, r+r, r+r)) return false;
 			return M.intersects(a, getArea());
 		}
 
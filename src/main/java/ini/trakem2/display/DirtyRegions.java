@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** The regions of each {@link Layer}, in world coordinates, where the images have changed since they were last exported.
+ *
+ * A {@link Displayable} marks as dirty its bounding box before and after being transformed or edited, which is noticed
+ * when its buckets are updated or recreated, as all transforming and editing operations do. A {@link Patch} also marks
+ * its bounding box when its min and max, filters, alpha mask or mipmaps change. Additions, removals and changes
+ * in the stacking order mark the bounding box of the {@link Displayable} concerned.
+ * A {@link ZDisplayable} does all of the above in each {@link Layer} where it has data, with its bounds in that layer.
+ *
+ * Enabled with the project property "track_dirty_regions"; see {@link LayerSet#getDirtyRegions()}.
+ * Tracking of a {@link Layer} starts when its buckets are first made, which happens when opening a project.
+ * The regions are kept in memory only: after reopening a project, export everything once.
+ */
+public final class DirtyRegions {
+
+	/** For each layer, the last known bounding box in it of each Displayable and ZDisplayable. */
+	private final HashMap<Layer,HashMap<Displayable,Rectangle>> boxes = new HashMap<Layer,HashMap<Displayable,Rectangle>>();
+	/** For each layer, non-overlapping dirty regions. */
+	private final HashMap<Layer,ArrayList<Rectangle>> dirty = new HashMap<Layer,ArrayList<Rectangle>>();
+
+	/** The layers whose Displayable instances have all been seen. */
+	private final HashSet<Layer> known = new HashSet<Layer>();
+
+	DirtyRegions() {}
+
+	private final HashMap<Displayable,Rectangle> getBoxes(final Layer layer) {
+		HashMap<Displayable,Rectangle> bs = boxes.get(layer);
+		if (null == bs) {
+			bs = new HashMap<Displayable,Rectangle>();
+			boxes.put(layer, bs);
+		}
+		return bs;
+	}
+
+	/** Mark the region of {@code d} in {@code layer} as dirty if {@code changed} or if it moved, and if it moved,
+	 * also its previous region. */
+	synchronized final void update(final Layer layer, final Displayable d, final boolean changed) {
+		if (null == layer) return;
+		final Rectangle box = d.getBounds(new Rectangle(), layer);
+		final Rectangle before = getBoxes(layer).put(d, box);
+		if (null == before) {
+			// Added to the layer, or its layer not seen yet
+			add(layer, box);
+		} else if (changed || !before.equals(box)) {
+			add(layer, before);
+			add(layer, box);
+		}
+	}
+
+	/** Mark the last known region of {@code d} in {@code layer} as dirty, or its current one if none, and forget it;
+	 * for when {@code d} is removed from {@code layer}. */
+	synchronized final void removed(final Layer layer, final Displayable d) {
+		if (null == layer) return;
+		final Rectangle before = getBoxes(layer).remove(d);
+		add(layer, null != before ? before : d.getBounds(new Rectangle(), layer));
+	}
+
+	/** Check all {@code ds} of {@code layer}, which are all its {@link Displayable} instances other than the
+	 * {@link ZDisplayable} ones, for movements, additions and removals.
+	 * The first time for a {@code layer}, record their bounding boxes as they are, as if they had just been exported.
+	 * Never calls into {@code layer}, so that it can be called while holding its lock. */
+	public synchronized final void update(final Layer layer, final Collection<? extends Displayable> ds) {
+		final HashMap<Displayable,Rectangle> bs = getBoxes(layer);
+		if (known.add(layer)) {
+			for (final Displayable d : ds) {
+				if (!bs.containsKey(d)) bs.put(d, d.getBounds(new Rectangle(), layer));
+			}
+			return;
+		}
+		final HashSet<Displayable> present = new HashSet<Displayable>(ds);
+		for (final Displayable d : ds) {
+			final Rectangle box = d.getBounds(new Rectangle(), layer);
+			final Rectangle before = bs.put(d, box);
+			if (null == before) {
+				add(layer, box);
+			} else if (!before.equals(box)) {
+				add(layer, before);
+				add(layer, box);
+			}
+		}
+		for (final Iterator<Map.Entry<Displayable,Rectangle>> it = bs.entrySet().iterator(); it.hasNext(); ) {
+			final Map.Entry<Displayable,Rectangle> e = it.next();
+			if (e.getKey() instanceof ZDisplayable) continue; // not among ds
+			if (!present.contains(e.getKey())) {
+				add(layer, e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/** Mark a region of {@code layer} as dirty, merging it with any dirty region it overlaps or touches. */
+	public synchronized void add(final Layer layer, final Rectangle r) {
+		if (null == r || r.isEmpty()) return;
+		ArrayList<Rectangle> rs = dirty.get(layer);
+		if (null == rs) {
+			rs = new ArrayList<Rectangle>();
+			dirty.put(layer, rs);
+		}
+		Rectangle u = new Rectangle(r);
+		for (boolean merged = true; merged; ) {
+			merged = false;
+			for (final Iterator<Rectangle> it = rs.iterator(); it.hasNext(); ) {
+				final Rectangle o = it.next();
+				// Grown by 1 to merge also those that touch
+				if (o.intersects(u.x - 1, u.y - 1, u.width + 2, u.height + 2)) {
+					u = u.union(o);
+					it.remove();
+					merged = true;
+				}
+			}
+		}
+		rs.add(u);
+	}
+
+	/** A copy of the dirty regions of {@code layer}, empty if none. */
+	public synchronized List<Rectangle> get(final Layer layer) {
+		final ArrayList<Rectangle> rs = dirty.get(layer);
+		final ArrayList<Rectangle> copy = new ArrayList<Rectangle>();
+		if (null != rs) {
+			for (final Rectangle r : rs) copy.add(new Rectangle(r));
+		}
+		return copy;
+	}
+
+	/** Forget the dirty regions of {@code layer} that lie within the given regions, as obtained from {@link #get(Layer)}
+	 * before exporting them; regions marked dirty during the export remain. */
+	public synchronized void remove(final Layer layer, final Collection<Rectangle> exported) {
+		remove(layer, exported, null);
+	}
+
+	/** As {@link #remove(Layer, Collection)}, but forgetting only the parts of those regions that lie within {@code area},
+	 * the part of the layer that was exported; the rest of them remains dirty. A null {@code area} means all of it. */
+	public synchronized void remove(final Layer layer, final Collection<Rectangle> exported, final Rectangle area) {
+		final ArrayList<Rectangle> rs = dirty.get(layer);
+		if (null == rs) return;
+		final ArrayList<Rectangle> left = new ArrayList<Rectangle>();
+		for (final Iterator<Rectangle> it = rs.iterator(); it.hasNext(); ) {
+			final Rectangle r = it.next();
+			for (final Rectangle e : exported) {
+				if (e.contains(r)) {
+					it.remove();
+					if (null != area) subtract(r, area, left);
+					break;
+				}
+			}
+		}
+		// The pieces never overlap each other nor the remaining regions
+		rs.addAll(left);
+		if (rs.isEmpty()) dirty.remove(layer);
+	}
+
+	/** Add to {@code pieces} up to four rectangles that cover {@code r} except for {@code s}. */
+	static private final void subtract(final Rectangle r, final Rectangle s, final List<Rectangle> pieces) {
+		final Rectangle i = r.intersection(s);
+		if (i.isEmpty()) {
+			pieces.add(r);
+			return;
+		}
+		final int r_bottom = r.y + r.height,
+		          i_bottom = i.y + i.height;
+		// Above and below, full width
+		if (i.y > r.y) pieces.add(new Rectangle(r.x, r.y, r.width, i.y - r.y));
+		if (r_bottom > i_bottom) pieces.add(new Rectangle(r.x, i_bottom, r.width, r_bottom - i_bottom));
+		// Left and right, in the rows of the intersection
+		if (i.x > r.x) pieces.add(new Rectangle(r.x, i.y, i.x - r.x, i.height));
+		if (r.x + r.width > i.x + i.width) pieces.add(new Rectangle(i.x + i.width, i.y, r.x + r.width - i.x - i.width, i.height));
+	}
+
+	/** Forget all dirty regions of {@code layer}. */
+	public synchronized void clear(final Layer layer) {
+		dirty.remove(layer);
+	}
+}
@@ -150,6 +150,7 @@ import ini.trakem2.io.NeuroML;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.ExportVolume;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.ProjectTiler;
 import ini.trakem2.persistence.XMLOptions;
@@ -178,6 +179,7 @@ import mpicbg.trakem2.align.Util;
 import mpicbg.trakem2.transform.AffineModel3D;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
+import mpicbg.trakem2.transform.ExportUnsignedShort;
 
 /** A Display is a class to show a Layer and enable mouse and keyboard manipulation of all its components. */
 public final class Display extends DBObject implements ActionListener, IJEventListener {
@@ -3288,6 +3290,8 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		menu = new JMenu("Export");
 		final boolean has_arealists = layer.getParent().contains(AreaList.class);
 		item = new JMenuItem("Make flat image..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Volume as N5 blocks..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Flat 16-bit or 32-bit image..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Arealists as labels (tif)"); item.addActionListener(this); menu.add(item);
 		item.setEnabled(has_arealists);
 		item = new JMenuItem("Arealists as labels (amira)"); item.addActionListener(this); menu.add(item);
@@ -5095,7 +5099,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			gd.addChoice("Directory structure", new String[]{"<section>/<Y>_<X>_<scale_power>.<ext>", "<section>/<scale_power>/<Y>_<X>.<ext>"}, "<section>/<scale_power>/<Y>_<X>.<ext>");
 			final Choice tile_directory_structure = (Choice)gd.getChoices().get(gd.getChoices().size() -1);
 			tile_directory_structure.setEnabled(false);
-			gd.addChoice("Strategy:", new String[]{"Use original images", "Use mipmaps", "Use mipmaps (multi-layer)"}, "Use mipmaps (multi-layer)");
+			gd.addChoice("Strategy:", new String[]{"Use original images", "Use mipmaps", "Use mipmaps (multi-layer)", "Use mipmaps (resumable)", "Use mipmaps (resumable, changed regions only)"}, "Use mipmaps (multi-layer)");
 			final Choice cstrategy = (Choice)gd.getChoices().get(gd.getChoices().size() -1);
 			cstrategy.setEnabled(false);
 			gd.addCheckbox("Skip empty tiles", true);
@@ -6132,6 +6136,69 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 					}
 				}
 			}, project);
+		} else if (command.equals("Volume as N5 blocks...")) {
+			final Roi roi = canvas.getFakeImagePlus().getRoi();
+			final Rectangle srcRect = null != roi ? roi.getBounds() : getLayerSet().get2DBounds();
+			final GenericDialog gd = new GenericDialog("Export volume");
+			Utils.addLayerRangeChoices(Display.this.layer, gd);
+			gd.addNumericField("Scale (%)", 100, 2);
+			final String[] types = new String[]{"8-bit", "16-bit", "32-bit"};
+			gd.addChoice("Type", types, types[0]);
+			gd.addNumericField("Block_width", 128, 0);
+			gd.addNumericField("Block_height", 128, 0);
+			gd.addNumericField("Block_depth", 64, 0);
+			gd.addNumericField("Number_of_threads_to_use", Runtime.getRuntime().availableProcessors(), 0);
+			gd.addMessage("Blocks already exported and unchanged are not exported again.");
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			final int i_start = gd.getNextChoiceIndex(),
+			          i_end = gd.getNextChoiceIndex();
+			final double scale = gd.getNextNumber() / 100;
+			final int the_type = new int[]{ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32}[gd.getNextChoiceIndex()];
+			final int[] blockSize = new int[]{(int)gd.getNextNumber(), (int)gd.getNextNumber(), (int)gd.getNextNumber()};
+			final int nThreads = (int)gd.getNextNumber();
+			if (Double.isNaN(scale) || scale <= 0 || blockSize[0] <= 0 || blockSize[1] <= 0 || blockSize[2] <= 0) {
+				Utils.showMessage("Invalid scale or block size.");
+				return;
+			}
+			final DirectoryChooser dc = new DirectoryChooser("Choose the volume folder");
+			final String folder = dc.getDirectory();
+			if (null == folder) return;
+			Bureaucrat.createAndStart(ExportVolume.export(getLayerSet().getLayers(i_start, i_end), srcRect, scale, the_type, blockSize, folder, nThreads), project);
+		} else if (command.equals("Flat 16-bit or 32-bit image...")) {
+			final Roi roi = canvas.getFakeImagePlus().getRoi();
+			final Rectangle srcRect = null != roi ? roi.getBounds() : getLayerSet().get2DBounds();
+			final GenericDialog gd = new GenericDialog("Flat image");
+			gd.addNumericField("Scale (%)", 100, 2);
+			final String[] types = new String[]{"16-bit", "32-bit"};
+			gd.addChoice("Type", types, types[0]);
+			final String[] formats = new String[]{"Tiled TIFF", "Raw"};
+			gd.addChoice("Format", formats, formats[0]);
+			gd.addMessage("Images only, with the intensities of all mapped into one range,\nrendered tile by tile straight into the file.");
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			final double scale = Math.min(1, gd.getNextNumber() / 100);
+			final int the_type = 0 == gd.getNextChoiceIndex() ? ImagePlus.GRAY16 : ImagePlus.GRAY32;
+			final boolean raw = 1 == gd.getNextChoiceIndex();
+			if (Double.isNaN(scale) || scale <= 0) {
+				Utils.showMessage("Invalid scale.");
+				return;
+			}
+			final SaveDialog sd = new SaveDialog("Save flat image", layer.getPrintableTitle(), raw ? ".raw" : ".tif");
+			final String filename = sd.getFileName();
+			if (null == filename) return; // canceled
+			final String path = sd.getDirectory() + filename;
+			final Layer la = Display.this.layer;
+			Bureaucrat.createAndStart(new Worker.Task("Exporting flat image") {
+				@Override
+				public void exec() {
+					final boolean ok = raw ? ExportUnsignedShort.saveAsRaw(la, srcRect, scale, the_type, path)
+					                       : ExportUnsignedShort.saveAsTiledTIFF(la, srcRect, scale, the_type, path);
+					if (!ok) Utils.log("Could not save the flat image to " + path);
+					else if (raw) Utils.log("Saved " + (int)(srcRect.width * scale) + " x " + (int)(srcRect.height * scale)
+							+ (ImagePlus.GRAY16 == the_type ? " 16-bit unsigned" : " 32-bit float") + " big endian pixels to " + path);
+				}
+			}, project);
 		} else if (command.equals("Create sibling project with retiled layers")) {
 			final GenericDialog gd = new GenericDialog("Export flattened layers");
 			gd.addNumericField("Tile_width", 2048, 0);
@@ -36,6 +36,7 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.Search;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 
 import java.awt.AlphaComposite;
@@ -66,6 +67,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** The class that any element to be drawn on a Display must extend. */
 public abstract class Displayable extends DBObject implements Paintable  {
@@ -165,6 +167,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			if (null == props) props = new HashMap<String,String>();
 			props.put(key, value);
 		}
+		SearchIndex.changed(this, "properties");
 		return true;
 	}
 
@@ -213,6 +216,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		} else {
 			linkedProps(target).put(key, value);
 		}
+		SearchIndex.changed(this, "linked_properties");
 		return true;
 	}
 
@@ -1032,7 +1036,10 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	}
 
 	public boolean intersects(final Area area) {
-		final Area a = new Area(getPerimeter());
+		final Polygon perimeter = getPerimeter();
+		// Cheap rejection before building an Area
+		if (!perimeter.getBounds().intersects(area.getBounds())) return false;
+		final Area a = new Area(perimeter);
 		a.intersect(area);
 		final Rectangle b = a.getBounds();
 		return 0 != b.width && 0 != b.height;
@@ -2199,16 +2206,54 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		return getAreaAt(layer);
 	}
 
+	/** Source of unique values for {@link #geometry_version}. */
+	static private final AtomicLong geometry_versions = new AtomicLong(0);
+
+	/** Changes whenever the data may have changed; see {@link #geometryChanged()}. */
+	private volatile long geometry_version = 0;
+
+	/** The geometry of the last two layers asked for, if any. Replaced as a whole, never modified. */
+	private volatile BucketGeometry[] bucket_geometry = null;
+
+	/** The result of {@link #getAreaForBucket(Layer)} with its bounds, cached until the affine transform, the dimensions
+	 * or the data change. Changes to the data are known from the updates of the buckets, as in {@link #updateBucket()}. */
+	final BucketGeometry getBucketGeometry(final Layer layer) {
+		final double[] m = new double[6];
+		this.at.getMatrix(m);
+		final long version = this.geometry_version;
+		final BucketGeometry[] cached = this.bucket_geometry;
+		if (null != cached) {
+			for (final BucketGeometry g : cached) {
+				if (null != g && g.isValid(layer, version, m, width, height)) return g;
+			}
+		}
+		final BucketGeometry g = new BucketGeometry(layer, version, m, width, height, getAreaForBucket(layer));
+		// Keep the most recent first; drop it if the data changed meanwhile
+		if (version == this.geometry_version) {
+			this.bucket_geometry = new BucketGeometry[]{g, null == cached ? null : cached[0]};
+		}
+		return g;
+	}
+
+	/** Discard the cached geometry. Called by the containers when updating the buckets of this Displayable. */
+	final void geometryChanged() {
+		this.geometry_version = geometry_versions.incrementAndGet();
+		this.bucket_geometry = null;
+	}
+
 	/** If this Displayable intersects with @param r or almost intersects, then returns true.
 	 *  This method is meant to be very fast, and err on the "yes" and never on the "no". */
 	protected boolean isRoughlyInside(final Layer layer, final Rectangle r) {
 		// Unless overriden:
-		final Area a = getAreaForBucket(layer);
-		if (a == null) return false;
-		return a.getBounds().intersects(r);
+		final Rectangle b = getBucketGeometry(layer).bounds;
+		if (b == null) return false;
+		return b.intersects(r);
 	}
 
-	public void setAnnotation(final String annotation) { this.annotation = annotation; }
+	public void setAnnotation(final String annotation) {
+		this.annotation = annotation;
+		SearchIndex.changed(this, "annotation");
+	}
 
 	/** Returns null if none. */
 	public String getAnnotation() { return this.annotation; }
@@ -292,6 +292,10 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
 			}
 		}
+		if (null != parent) {
+			parent.edited();
+			markDirty(displ);
+		}
 
 		if (update_displays) {
 			Display.add(this, displ);
@@ -328,7 +332,10 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			return false;
 		}
 		al_displayables.remove(old_stack_index);
+		final DirtyRegions dr = parent.getDirtyRegions();
+		if (null != dr) dr.removed(this, displ);
 		if (null != root) recreateBuckets();
+		parent.edited();
 		parent.removeFromOffscreens(this);
 		Display.remove(this, displ);
 		return true;
@@ -337,16 +344,19 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Remove a set of children. Does not destroy the children nor remove them from the database, only from the Layer and the Display. */
 	public synchronized boolean removeAll(final Set<Displayable> ds) {
 		if (null == ds || null == al_displayables) return false;
+		final DirtyRegions dr = parent.getDirtyRegions();
 		// Ensure list is iterated only once: don't ask for index every time!
 		for (final Iterator<Displayable> it = al_displayables.iterator(); it.hasNext(); ) {
 			final Displayable d = it.next();
 			if (ds.contains(d)) {
 				it.remove();
+				if (null != dr) dr.removed(this, d);
 				parent.removeFromOffscreens(this);
 				Display.remove(this, d);
 			}
 		}
 		if (null != root) recreateBuckets();
+		parent.edited();
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -737,6 +747,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
 		if (null != root) root.updateRange(this, d, i, i+1);
+		markDirty(d);
 	}
 
 	/** Within its own class only. */
@@ -751,6 +762,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
 		if (null != root) root.updateRange(this, d, i-1, i);
+		markDirty(d);
 	}
 
 	/** Within its own class only. */
@@ -780,6 +792,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
 		if (null != root) root.updateRange(this, d, i, j);
+		markDirty(d);
 	}
 
 	/** Within its own class only. */
@@ -807,6 +820,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
 		if (null != root) root.updateRange(this, d, j, i);
+		markDirty(d);
 	}
 
 	/** Within its own class only. */
@@ -1063,16 +1077,29 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	synchronized public void recreateBuckets() {
+		for (final Displayable d : al_displayables) d.geometryChanged();
 		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
 		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
 		this.root.populate(this, this, db_map);
 		//root.debug();
+		// Notice transformations of many at once, additions and removals
+		final DirtyRegions dr = parent.getDirtyRegions();
+		if (null != dr) dr.update(this, new ArrayList<Displayable>(al_displayables));
 	}
 
 	/** Update buckets of a position change for the given Displayable. */
 	@Override
 	public void updateBucket(final Displayable d, final Layer layer) { // ignore layer
+		d.geometryChanged();
 		if (null != root) root.updatePosition(d, this, db_map);
+		parent.edited();
+		markDirty(d);
+	}
+
+	/** Mark the region of {@code d} as changed, for exports of changed regions only; see {@link DirtyRegions}. */
+	private final void markDirty(final Displayable d) {
+		final DirtyRegions dr = parent.getDirtyRegions();
+		if (null != dr) dr.update(this, d, true);
 	}
 
 	public void checkBuckets() {
@@ -65,6 +65,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -862,6 +863,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		}
 		*/
 		addToBuckets(zdispl, al_zdispl.size()-1);
+		edited();
+		markDirty(zdispl);
 
 		Display.add(this, zdispl);
 	}
@@ -875,6 +878,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zd.updateInDatabase("layer_set_id");
 		}
 		recreateBuckets(false); // only ZDisplayable
+		edited();
+		for (final ZDisplayable zd : coll) markDirty(zd);
 		Display.addAll(this, coll);
 	}
 
@@ -904,6 +909,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		al_zdispl.remove(old_stack_index);
 		// remove from Bucket AFTER modifying stack index, so it gets reindexed properly
 		removeFromBuckets(zdispl, old_stack_index);
+		edited();
+		markRemoved(zdispl);
 		removeFromOffscreens(zdispl);
 		Display.remove(zdispl);
 		return true;
@@ -919,6 +926,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			final ZDisplayable zd = it.next();
 			if (zds.contains(zd)) {
 				it.remove();
+				markRemoved(zd);
 				removeFromOffscreens(zd);
 				Display.remove(zd);
 				count++;
@@ -926,6 +934,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			}
 		}
 		removeFromBuckets(zds);
+		edited();
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -940,6 +949,50 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return -1 != al_zdispl.indexOf(zdispl);
 	}
 
+	private final AtomicLong edit_count = new AtomicLong();
+
+	/** Counts the additions, removals and changes in position or shape of any {@link Displayable}
+	 * in this LayerSet or in any of its {@link Layer} instances, as reported to the buckets.
+	 * Derived data such as a {@link ini.trakem2.analysis.ConnectivityGraph} are stale when the count has changed. */
+	public long getEditCount() {
+		return edit_count.get();
+	}
+
+	/** Increment the edit count; see {@link #getEditCount()}. */
+	public void edited() {
+		edit_count.incrementAndGet();
+	}
+
+	private DirtyRegions dirty_regions = null;
+	private final Object dirty_regions_lock = new Object();
+
+	/** Mark the region of {@code zd} in each {@link Layer} where it has data as changed; see {@link DirtyRegions}. */
+	private final void markDirty(final ZDisplayable zd) {
+		final DirtyRegions dr = getDirtyRegions();
+		if (null == dr) return;
+		for (final Layer layer : zd.getLayersWithData()) dr.update(layer, zd, true);
+	}
+
+	/** Mark the last known region of {@code zd} in each {@link Layer} where it has data as changed; see {@link DirtyRegions}. */
+	private final void markRemoved(final ZDisplayable zd) {
+		final DirtyRegions dr = getDirtyRegions();
+		if (null == dr) return;
+		for (final Layer layer : zd.getLayersWithData()) dr.removed(layer, zd);
+	}
+
+	/** The regions of each {@link Layer} where the images have changed since they were last exported,
+	 * or null unless the project property "track_dirty_regions" is true. */
+	public DirtyRegions getDirtyRegions() {
+		synchronized (dirty_regions_lock) {
+			if (!project.getBooleanProperty("track_dirty_regions")) {
+				dirty_regions = null;
+			} else if (null == dirty_regions) {
+				dirty_regions = new DirtyRegions();
+			}
+			return dirty_regions;
+		}
+	}
+
 	/** Returns a copy of the layer list. */
 	public ArrayList<Layer> getLayers() {
 		return new ArrayList<Layer>(al_layers); // for integrity and safety, return a copy.
@@ -1437,6 +1490,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			}
 			updateInDatabase("stack_index");
 			Display.updatePanelIndex(d.getLayer(), d);
+			markDirty((ZDisplayable)d);
 		} else {
 			switch (place) {
 				case LayerSet.TOP: d.getLayer().moveTop(d); break;
@@ -1850,10 +1904,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
+		d.geometryChanged();
 		synchronized (lbucks) {
 			final LayerBucket lb = lbucks.get(layer);
 			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
 		}
+		edited();
+		final DirtyRegions dr = getDirtyRegions();
+		if (null != dr) dr.update(layer, d, true);
 	}
 
 	/** Recreate the ZDisplayable buckets, and also the Layer Displayable buckets if desired. */
@@ -1866,6 +1924,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	 * @param layer_buckets Whether to also recreate the {@link Layer}-specific buckets for images and text labels.
 	 */
 	public void recreateBuckets(final Layer layer, final boolean layer_buckets) {
+		for (final ZDisplayable zd : al_zdispl) zd.geometryChanged();
 		LayerBucket lb = new LayerBucket(layer);
 		synchronized (lbucks) {
 			lbucks.put(layer, lb);
@@ -1876,6 +1935,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Regenerate the quad-tree bucket system for the ZDisplayable instances that have data at each of the given layers,
 	 *  and optionally regenerate the buckets as well for the 2D Displayable instances of that layer as well. */
 	public void recreateBuckets(final Collection<Layer> layers, final boolean layer_buckets) {
+		for (final ZDisplayable zd : al_zdispl) zd.geometryChanged();
 		final HashMap<Layer,LayerBucket> m = new HashMap<Layer,LayerBucket>();
 		try {
 			Process.progressive(layers, new TaskFactory<Layer,Object>() {
@@ -1896,6 +1956,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			lbucks.clear();
 			lbucks.putAll(m);
 		}
+		edited();
 	}
 
 	/** Checks only buckets for ZDisplayable, not any related to any layer. */
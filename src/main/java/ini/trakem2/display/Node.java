@@ -31,6 +31,7 @@ import java.awt.geom.Area;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
@@ -45,6 +46,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jogamp.vecmath.Point3f;
 
@@ -782,12 +784,47 @@ public abstract class Node<T> implements Taggable {
 	 */
 	Object tags = null; // private to the package
 
+	/** Counts additions and removals of tags in any node, so that caches of tags can tell whether they are stale. */
+	static private final AtomicLong tag_edits = new AtomicLong(0);
+	/** How many of the last nodes whose tags changed are remembered. */
+	static private final int TAG_LOG_SIZE = 4096;
+	/** The node of each of the last tag edits, by edit count modulo {@link #TAG_LOG_SIZE}; weakly, so that deleted nodes can go. */
+	static private final WeakReference<?>[] tag_log = new WeakReference<?>[TAG_LOG_SIZE];
+
+	/** @return A number that changes whenever a tag is added to or removed from any node. */
+	static public final long getTagEditCount() {
+		return tag_edits.get();
+	}
+
+	/** Count a tag edit of {@code nd} and remember the node. */
+	static private final void tagsEdited(final Node<?> nd) {
+		synchronized (tag_log) {
+			tag_log[(int)(tag_edits.incrementAndGet() % TAG_LOG_SIZE)] = new WeakReference<Node<?>>(nd);
+		}
+	}
+
+	/** @return The nodes whose tags changed since {@link #getTagEditCount()} returned {@code count}, without those
+	 *  that have been garbage collected; or null when too many changed to remember them all, or if {@code count} is negative. */
+	static public final List<Node<?>> getTagEditsSince(final long count) {
+		synchronized (tag_log) {
+			final long last = tag_edits.get();
+			if (count < 0 || count > last || last - count > TAG_LOG_SIZE) return null;
+			final ArrayList<Node<?>> nodes = new ArrayList<Node<?>>((int)(last - count));
+			for (long k = count + 1; k <= last; ++k) {
+				final Node<?> nd = (Node<?>)tag_log[(int)(k % TAG_LOG_SIZE)].get();
+				if (null != nd) nodes.add(nd);
+			}
+			return nodes;
+		}
+	}
+
 	/** @return true if the tag wasn't there already. */
 	@Override
     synchronized public boolean addTag(final Tag tag) {
 		if (null == this.tags) {
 			// Currently no tags
 			this.tags = tag;
+			tagsEdited(this);
 			return true;
 		}
 		// If not null, there is already at least one tag
@@ -812,6 +849,7 @@ public abstract class Node<T> implements Taggable {
 		for (final Tag t : t2) al.add(t);
 		Collections.sort(al);
 		this.tags = al.toArray(t2); // reuse t2 array, has the right size
+		tagsEdited(this);
 		return true;
 	}
 
@@ -839,6 +877,7 @@ public abstract class Node<T> implements Taggable {
 						}
 						this.tags = t2;
 					}
+					tagsEdited(this);
 					return true;
 				}
 			}
@@ -847,6 +886,7 @@ public abstract class Node<T> implements Taggable {
 			// Currently just one tag
 			if (this.tags.equals(tag)) {
 				this.tags = null;
+				tagsEdited(this);
 			}
 			return false;
 		}
@@ -855,6 +895,7 @@ public abstract class Node<T> implements Taggable {
 	protected final void copyProperties(final Node<?> nd) {
 		this.confidence = nd.confidence;
 		this.tags = nd.getTagsCopy();
+		if (null != this.tags) tagsEdited(this);
 	}
 
 	synchronized private final Object getTagsCopy() {
@@ -889,6 +930,7 @@ public abstract class Node<T> implements Taggable {
     synchronized public Set<Tag> removeAllTags() {
 		final Set<Tag> tags = getTags();
 		this.tags = null;
+		if (null != tags) tagsEdited(this);
 		return tags;
 	}
 
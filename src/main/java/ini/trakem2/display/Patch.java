@@ -39,6 +39,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DirectColorModel;
@@ -54,6 +55,8 @@ import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -89,6 +92,7 @@ import ini.trakem2.io.ImageSaver;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.XMLOptions;
+import ini.trakem2.scripting.PatchScript;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -101,6 +105,7 @@ import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
 import mpicbg.models.CoordinateTransformMesh;
 import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.PointMatch;
 import mpicbg.trakem2.transform.AffineModel2D;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
@@ -264,7 +269,7 @@ public final class Patch extends Displayable implements ImageData {
 		if (null != (data = ht_attributes.get("o_width"))) this.o_width = Integer.parseInt(data);
 		if (null != (data = ht_attributes.get("o_height"))) this.o_height = Integer.parseInt(data);
 		if (null != (data = ht_attributes.get("pps"))) {
-			if (FSLoader.isRelativePath(data)) data = project.getLoader().getParentFolder() + data;
+			if (!PatchScript.isJavaPreprocessor(data) && FSLoader.isRelativePath(data)) data = project.getLoader().getParentFolder() + data;
 			project.getLoader().setPreprocessorScriptPathSilently(this, data);
 		}
 		if (null != (data = ht_attributes.get("original_path"))) this.original_path = data;
@@ -336,9 +341,17 @@ public final class Patch extends Displayable implements ImageData {
 	 *    project.getLoader().generateMipMaps(ArrayList patches, boolean overwrite);
 	 */
 	public Future<Boolean> updateMipMaps() {
+		markDirty();
 		return project.getLoader().regenerateMipMaps(this);
 	}
 
+	/** Mark the region of this Patch as changed, for exports of changed regions only; see {@link DirtyRegions}. */
+	private final void markDirty() {
+		if (null == layer) return;
+		final DirtyRegions dr = layer.getParent().getDirtyRegions();
+		if (null != dr) dr.update(layer, this, true);
+	}
+
 	/** Update type, original dimensions and min,max from the ImagePlus.
 	 *  This is automatically done after a preprocessor script has modified the image. */
 	public void updatePixelProperties(final ImagePlus imp) {
@@ -439,6 +452,7 @@ public final class Patch extends Displayable implements ImageData {
 		this.max = max;
 		checkMinMax();
 		updateInDatabase("min_and_max");
+		markDirty();
 		Utils.log2("Patch.setMinAndMax: min,max " + min + "," + max);
 	}
 
@@ -885,7 +899,7 @@ public final class Patch extends Displayable implements ImageData {
 		sb_body.append(in).append("max=\"").append(max).append("\"\n");
 
 		final String pps = getPreprocessorScriptPath();
-		if (null != pps) sb_body.append(in).append("pps=\"").append(project.getLoader().makeRelativePath(pps)).append("\"\n");
+		if (null != pps) sb_body.append(in).append("pps=\"").append(PatchScript.isJavaPreprocessor(pps) ? pps : project.getLoader().makeRelativePath(pps)).append("\"\n");
 
 		sb_body.append(in).append("mres=\"").append(meshResolution).append("\"\n");
 
@@ -1252,12 +1266,19 @@ public final class Patch extends Displayable implements ImageData {
 			return;
 		}
 
-		CoordinateTransform this_ct = hasCoordinateTransform() ? getCoordinateTransform() : null;
+		setCoordinateTransform(ct, getCoordinateTransformBoundingBox(), true);
+	}
 
-		if (null != this_ct) {
+	/** Set a CoordinateTransform to this Patch, as in {@link #setCoordinateTransform(CoordinateTransform)},
+	 *  for bulk operations that already know the current bounding box and that update the buckets
+	 *  of each {@link Layer} at once afterwards, see {@link Layer#recreateBuckets()}.
+	 *  Does not check whether this Patch is linked.
+	 *
+	 *  @param box The bounding box of the current {@link CoordinateTransform}, as returned by {@link #getCoordinateTransformBoundingBox()}.
+	 *  @param update_bucket Whether to update the bucket of this Patch. */
+	public final void setCoordinateTransform(final CoordinateTransform ct, final Rectangle box, final boolean update_bucket) {
+		if (hasCoordinateTransform()) {
 			// restore image without the transform
-			final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
-			final Rectangle box = mesh.getBoundingBox();
 			this.at.translate(-box.x, -box.y);
 			updateInDatabase("transform+dimensions");
 		}
@@ -1267,26 +1288,25 @@ public final class Patch extends Displayable implements ImageData {
 		} catch (final Exception e) {
 			throw new RuntimeException(e);
 		}
-		this_ct = ct;
 
 		updateInDatabase("ict_transform");
 
-		if (null == this_ct) {
+		if (null == ct) {
 			width = o_width;
 			height = o_height;
-			updateBucket();
+			if (update_bucket) updateBucket();
 			return;
 		}
 
 		// Adjust the AffineTransform to correct for bounding box displacement
 
-		final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
-		final Rectangle box = mesh.getBoundingBox();
-		this.at.translate(box.x, box.y);
-		width = box.width;
-		height = box.height;
+		final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+		final Rectangle new_box = mesh.getBoundingBox();
+		this.at.translate(new_box.x, new_box.y);
+		width = new_box.width;
+		height = new_box.height;
 		updateInDatabase("transform+dimensions"); // the AffineTransform
-		updateBucket();
+		if (update_bucket) updateBucket();
 
 		// Updating the mipmaps will call createTransformedImage below if ct is not null
 		/* DISABLED */ //updateMipMaps();
@@ -1365,7 +1385,7 @@ public final class Patch extends Displayable implements ImageData {
 	 * @param ct
 	 * @return
 	 */
-	protected static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
+	public static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
 		if (!p.hasCoordinateTransform())
 			return new Rectangle(0,0,p.o_width,p.o_height);
 		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.o_width, p.o_height);
@@ -1556,6 +1576,7 @@ public final class Patch extends Displayable implements ImageData {
 	/** Must call updateMipMaps() afterwards. Set it to null to remove it.
 	 * @return true if the alpha mask file was written successfully. */
 	public synchronized boolean setAlphaMask(final ByteProcessor bp) throws IllegalArgumentException {
+		markDirty();
 		if (null == bp) {
 			alpha_mask_id = 0;
 			return true;
@@ -1931,106 +1952,256 @@ public final class Patch extends Displayable implements ImageData {
 		return null != getPreprocessorScriptPath() || null != filters;
 	}
 
-	/** Returns an Area in world coords representing the inside of this Patch. The fully alpha pixels are considered outside. */
+	/** Returns an Area in world coords representing the inside of this Patch. The fully alpha pixels are considered outside.
+	 *  The outline in local coordinates is cached until the {@link CoordinateTransform}, the alpha mask or the mesh resolution change. */
 	@Override
 	public Area getArea() {
-		CoordinateTransform ct = null;
-		if (hasAlphaMask()) {
-			// Read the mask as a ROI for the 0 pixels only and apply the AffineTransform to it:
-			ImageProcessor alpha_mask = getAlphaMask();
+		Outline o = this.outline;
+		if (null == o || !o.isValid(this)) {
+			o = createOutline(true);
+			// Without the alpha mask, which could not be read: not cached, to try again next time
+			if (null == o) return createOutline(false).area.createTransformedArea(this.at);
+			this.outline = o;
+		}
+		return o.area.createTransformedArea(this.at);
+	}
+
+	/** The outline of the image before the affine transform, in the coordinates of the bounds of the {@link TransformMesh} when there is a {@link CoordinateTransform}. */
+	static private final class Outline {
+		final long ct_id, alpha_mask_id;
+		final int meshResolution, o_width, o_height;
+		final Area area;
+		Outline(final Patch p, final Area area) {
+			this.ct_id = p.ct_id;
+			this.alpha_mask_id = p.alpha_mask_id;
+			this.meshResolution = p.meshResolution;
+			this.o_width = p.o_width;
+			this.o_height = p.o_height;
+			this.area = area;
+		}
+		final boolean isValid(final Patch p) {
+			return ct_id == p.ct_id && alpha_mask_id == p.alpha_mask_id && meshResolution == p.meshResolution
+			    && o_width == p.o_width && o_height == p.o_height;
+		}
+	}
+
+	/** Cached by {@link #getArea()}. */
+	private transient volatile Outline outline = null;
+
+	/** Alpha masks are reduced to at most this many pixels on their longest side before tracing their outline. */
+	static private final int MASK_OUTLINE_SIDE = 1024;
+
+	/** @return null if the alpha mask could not be read. */
+	private final Outline createOutline(final boolean with_alpha_mask) {
+		final CoordinateTransform ct = hasCoordinateTransform() ? getCoordinateTransform() : null;
+		final TransformMesh mesh = null == ct ? null : new TransformMesh(ct, meshResolution, o_width, o_height);
+		if (with_alpha_mask && hasAlphaMask()) {
+			final ByteProcessor alpha_mask = getAlphaMask();
 			if (null == alpha_mask) {
 				Utils.log2("Could not retrieve alpha mask for " + this);
-			} else {
-				if (hasCoordinateTransform()) {
-					// must transform it
-					ct = getCoordinateTransform();
-					final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-					final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
-					alpha_mask = mapping.createMappedImage( alpha_mask ); // Without interpolation
-					// Keep in mind the affine of the Patch already contains the translation specified by the mesh bounds.
-				}
-				// Threshold all non-zero areas of the mask:
-				alpha_mask.setThreshold(1, 255, ImageProcessor.NO_LUT_UPDATE);
-				final ImagePlus imp = new ImagePlus("", alpha_mask);
-				final ThresholdToSelection tts = new ThresholdToSelection(); // TODO replace by our much faster method that scans by line, in AmiraImporter
-				tts.setup("", imp);
-				tts.run(alpha_mask);
-				final Roi roi = imp.getRoi();
-				if (null == roi) {
-					// All pixels in the alpha mask have a value of zero
-					return new Area();
-				}
-				return M.getArea(roi).createTransformedArea(this.at);
+				return null;
 			}
+			Area area = maskOutline(alpha_mask);
+			if (null != ct) area = mapOutline(area, ct, mesh.getBoundingBox(), Math.max(o_width, o_height) / (double)meshResolution);
+			return new Outline(this, area);
 		}
-		// No alpha mask, or error in retrieving it:
-		final int[] x = new int[o_width + o_width + o_height + o_height];
-		final int[] y = new int[x.length];
-		int next = 0;
-		// Top edge:
-		for (int i=0; i<=o_width; i++, next++) { // len: o_width + 1
-			x[next] = i;
-			y[next] = 0;
+		if (null == ct) {
+			return new Outline(this, new Area(new Rectangle(0, 0, o_width, o_height)));
 		}
-		// Right edge:
-		for (int i=1; i<=o_height; i++, next++) { // len: o_height
-			x[next] = o_width;
-			y[next] = i;
+		return new Outline(this, meshOutline(mesh, ct, o_width, o_height));
+	}
+
+	/** The image edges after the {@link CoordinateTransform}, as rendered with the {@code mesh}:
+	 *  the vertices of the {@code mesh} that lie on the edges of the original image, walked clockwise
+	 *  and placed relative to the bounds of the {@code mesh}. */
+	static private final Area meshOutline(final TransformMesh mesh, final CoordinateTransform ct, final int width, final int height) {
+		final Rectangle box = mesh.getBoundingBox();
+		final double eps = 0.001;
+		// Each vertex on an edge, as {distance along the edges from the top-left corner, x, y}
+		final ArrayList<double[]> edge = new ArrayList<double[]>();
+		for (final PointMatch pm : mesh.getVA().keySet()) {
+			final double[] l = pm.getP1().getL();
+			final double t;
+			if (l[1] < eps) t = l[0]; // top
+			else if (l[0] > width - eps) t = width + l[1]; // right
+			else if (l[1] > height - eps) t = width + height + (width - l[0]); // bottom
+			else if (l[0] < eps) t = 2 * width + height + (height - l[1]); // left
+			else continue;
+			edge.add(new double[]{t, l[0], l[1]});
+		}
+		Collections.sort(edge, new Comparator<double[]>() {
+			@Override
+			public int compare(final double[] a, final double[] b) {
+				return Double.compare(a[0], b[0]);
+			}
+		});
+		final Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD, edge.size() + 1);
+		final double[] f = new double[2];
+		double last = -1;
+		for (final double[] e : edge) {
+			if (e[0] - last < eps) continue; // same vertex, shared by two triangles
+			last = e[0];
+			f[0] = e[1];
+			f[1] = e[2];
+			ct.applyInPlace(f);
+			if (path.getCurrentPoint() == null) path.moveTo(f[0] - box.x, f[1] - box.y);
+			else path.lineTo(f[0] - box.x, f[1] - box.y);
+		}
+		path.closePath();
+		return new Area(path);
+	}
+
+	/** The outline of the non-zero pixels of the {@code mask}, traced on a version reduced to {@link #MASK_OUTLINE_SIDE}
+	 *  in which a pixel is non-zero when any of the pixels it covers is: the outline may be larger, but never smaller. */
+	static private final Area maskOutline(final ByteProcessor mask) {
+		final int w = mask.getWidth(),
+		          h = mask.getHeight();
+		final int f = Math.max(1, (Math.max(w, h) + MASK_OUTLINE_SIDE - 1) / MASK_OUTLINE_SIDE);
+		ByteProcessor small = mask;
+		if (f > 1) {
+			final int sw = (w + f - 1) / f,
+			          sh = (h + f - 1) / f;
+			final byte[] pix = (byte[])mask.getPixels(),
+			             spix = new byte[sw * sh];
+			for (int y=0, i=0; y<h; ++y) {
+				final int offset = (y / f) * sw;
+				for (int x=0; x<w; ++x, ++i) {
+					if (0 != pix[i]) spix[offset + x / f] = (byte)255;
+				}
+			}
+			small = new ByteProcessor(sw, sh, spix, null);
+		}
+		// Threshold all non-zero areas of the mask:
+		small.setThreshold(1, 255, ImageProcessor.NO_LUT_UPDATE);
+		final ImagePlus imp = new ImagePlus("", small);
+		final ThresholdToSelection tts = new ThresholdToSelection();
+		tts.setup("", imp);
+		tts.run(small);
+		final Roi roi = imp.getRoi();
+		if (null == roi) {
+			// All pixels in the alpha mask have a value of zero
+			return new Area();
+		}
+		final Area area = M.getArea(roi);
+		if (f > 1) {
+			area.transform(new AffineTransform(f, 0, 0, f, 0, 0));
+			area.intersect(new Area(new Rectangle(0, 0, w, h)));
+		}
+		return area;
+	}
+
+	/** Apply the {@code ct} to the outline {@code area}, splitting its edges into steps no longer than {@code step}
+	 *  so that they bend like the mesh does, and place it relative to the bounds of the mesh {@code box}. */
+	static private final Area mapOutline(final Area area, final CoordinateTransform ct, final Rectangle box, final double step) {
+		final PathIterator it = area.getPathIterator(null, 0.5);
+		final Path2D.Double path = new Path2D.Double(it.getWindingRule());
+		final double[] seg = new double[6],
+		               f = new double[2];
+		double x0 = 0, y0 = 0; // the last point, untransformed
+		for (; !it.isDone(); it.next()) {
+			switch (it.currentSegment(seg)) {
+				case PathIterator.SEG_MOVETO:
+					f[0] = x0 = seg[0];
+					f[1] = y0 = seg[1];
+					ct.applyInPlace(f);
+					path.moveTo(f[0] - box.x, f[1] - box.y);
+					break;
+				case PathIterator.SEG_LINETO:
+					final int n = Math.max(1, (int)Math.ceil(Math.hypot(seg[0] - x0, seg[1] - y0) / step));
+					for (int i=1; i<=n; ++i) {
+						f[0] = x0 + (seg[0] - x0) * i / n;
+						f[1] = y0 + (seg[1] - y0) * i / n;
+						ct.applyInPlace(f);
+						path.lineTo(f[0] - box.x, f[1] - box.y);
+					}
+					x0 = seg[0];
+					y0 = seg[1];
+					break;
+				case PathIterator.SEG_CLOSE:
+					path.closePath();
+					break;
+			}
 		}
-		// bottom edge:
-		for (int i=o_width-1; i>-1; i--, next++) { // len: o_width
-			x[next] = i;
-			y[next] = o_height;
+		return new Area(path);
+	}
+
+	/** The mapping of the image of {@code p}, as returned by {@link #makeFlatSource(Patch, int, boolean)},
+	 *  into a flat image whose pixel at {@code ox},{@code oy} is at {@code x},{@code y} in world coordinates
+	 *  and which is scaled by {@code scale}. Used by {@link #makeFlatImage(int, Layer, Rectangle, double, Collection, Color, boolean)}
+	 *  with zero {@code ox},{@code oy} and by {@link ini.trakem2.imaging.TiledFlatImage} for each tile. */
+	static public mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> makeFlatMapping(final Patch p, final double x, final double y, final double scale, final int ox, final int oy) {
+		return new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>(makeFlatMesh(p, x, y, scale, ox, oy));
+	}
+
+	/** The mesh of {@link #makeFlatMapping(Patch, double, double, double, int, int)}. */
+	static public CoordinateTransformMesh makeFlatMesh(final Patch p, final double x, final double y, final double scale, final int ox, final int oy) {
+		// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
+		final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
+
+		final AffineTransform at = new AffineTransform();
+		at.translate( -x, -y );
+		at.concatenate( p.getAffineTransform() );
+
+		// 1. The coordinate tranform of the Patch, if any
+		if (p.hasCoordinateTransform()) {
+			final CoordinateTransform ct = p.getCoordinateTransform();
+			list.add(ct);
+			// Remove the translation in the patch_affine that the ct added to it
+			final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
+			at.translate( -box.x, -box.y );
 		}
-		// left edge:
-		for (int i=o_height-1; i>0; i--, next++) { // len: o_height -1
-			x[next] = 0;
-			y[next] = i;
+
+		// 2. The affine transform of the Patch
+		final AffineModel2D patch_affine = new AffineModel2D();
+		patch_affine.set( at );
+		list.add( patch_affine );
+
+		// 3. The desired scaling
+		if ( 1 != scale ) {
+			final AffineModel2D sc = new AffineModel2D();
+			sc.set( scale, 0, 0, scale, 0, 0 );
+			patch_affine.preConcatenate( sc );
 		}
 
-		if (hasCoordinateTransform() && null == ct) ct = getCoordinateTransform();
-		if (null != ct) {
-			final CoordinateTransformList<CoordinateTransform> t = new CoordinateTransformList<CoordinateTransform>();
-			t.add(ct);
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-			final Rectangle box = mesh.getBoundingBox();
-			final AffineTransform aff = new AffineTransform(this.at);
-			// Must correct for the inverse of the mesh translation, because the affine also includes the translation.
-			aff.translate(-box.x, -box.y);
-			final AffineModel2D affm = new AffineModel2D();
-			affm.set(aff);
-			t.add(affm);
-
-
-			/*
-			 * WORKS FINE, but for points that fall outside the mesh, they don't get transformed!
-			// Do it like Patch does it to generate the mipmap, with a mesh (and all the imprecisions of a mesh):
-			final CoordinateTransformList t = new CoordinateTransformList();
-			final TransformMesh mesh = new TransformMesh(this.ct, meshResolution, o_width, o_height);
-			final AffineTransform aff = new AffineTransform(this.at);
-			t.add(mesh);
-			final AffineModel2D affm = new AffineModel2D();
-			affm.set(aff);
-			t.add(affm);
-			*/
-
-			final double[] f = new double[]{x[0], y[0]};
-			t.applyInPlace(f);
-			final Path2D.Float path = new Path2D.Float(Path2D.Float.WIND_EVEN_ODD, x.length+1);
-			path.moveTo(f[0], f[1]);
-
-			for (int i=1; i<x.length; i++) {
-				f[0] = x[i];
-				f[1] = y[i];
-				t.applyInPlace(f);
-				path.lineTo(f[0], f[1]);
-			}
-			path.closePath(); // line to last call to moveTo
+		// 4. The offset of the target within the flat image
+		if ( 0 != ox || 0 != oy ) {
+			final AffineModel2D t = new AffineModel2D();
+			t.set( 1, 0, 0, 1, -ox, -oy );
+			patch_affine.preConcatenate( t );
+		}
 
-			return new Area(path);
-		} else {
-			return new Area(new Polygon(x, y, x.length)).createTransformedArea(this.at);
+		return new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
+	}
+
+	/** The image of {@code p} converted to {@code type}, to be mapped with {@link #makeFlatMapping(Patch, double, double, double, int, int)}.
+	 *  @param setMinAndMax whether to apply the min and max of {@code p} before converting. */
+	static public ImageProcessor makeFlatSource(final Patch p, final int type, final boolean setMinAndMax) {
+		ImageProcessor pi = p.getImageProcessor();
+		if (setMinAndMax) {
+			pi = pi.duplicate();
+			pi.setMinAndMax(p.min, p.max);
 		}
+		switch ( type )
+		{
+		case ImagePlus.GRAY8:
+			pi = pi.convertToByte( true );
+			break;
+		case ImagePlus.GRAY16:
+			pi = pi.convertToShort( true );
+			break;
+		case ImagePlus.GRAY32:
+			pi = pi.convertToFloat();
+			break;
+		default: // ImagePlus.COLOR_RGB and COLOR_256
+			pi = pi.convertToRGB();
+			break;
+		}
+
+		/* TODO for taking into account independent min/max setting for each patch,
+		 * we will need a mapping with an `intensity transfer function' to be implemented.
+		 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
+		 */
+		return pi;
 	}
 
 	/** Defaults to setMinAndMax = true. */
@@ -2047,6 +2218,7 @@ public final class Patch extends Displayable implements ImageData {
 	 *  @param setMinAndMax defines whether the min and max of each Patch is set before pasting the Patch.
 	 *
 	 * For exporting while blending the display ranges (min,max) and respecting alpha masks, see {@link ExportUnsignedShort}.
+	 * For images too large to fit in memory, see {@link ini.trakem2.imaging.TiledFlatImage}.
 	 */
 	static public ImageProcessor makeFlatImage(final int type, final Layer layer, final Rectangle srcRect, final double scale, final Collection<Patch> patches, final Color background, final boolean setMinAndMax) {
 
@@ -2083,71 +2255,10 @@ public final class Patch extends Displayable implements ImageData {
 			ip.fill();
 		}
 
-		AffineModel2D sc = null;
-		if ( scale < 1.0 )
-		{
-			sc = new AffineModel2D();
-			sc.set( scale, 0, 0, scale, 0, 0 );
-		}
 		for ( final Patch p : patches )
 		{
 			// TODO patches seem to come in in inverse order---find out why
-
-			// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
-			final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
-
-			final AffineTransform at = new AffineTransform();
-			at.translate( -srcRect.x, -srcRect.y );
-			at.concatenate( p.getAffineTransform() );
-
-			// 1. The coordinate tranform of the Patch, if any
-			if (p.hasCoordinateTransform()) {
-				final CoordinateTransform ct = p.getCoordinateTransform();
-				list.add(ct);
-				// Remove the translation in the patch_affine that the ct added to it
-				final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
-				at.translate( -box.x, -box.y );
-			}
-
-			// 2. The affine transform of the Patch
-			final AffineModel2D patch_affine = new AffineModel2D();
-			patch_affine.set( at );
-			list.add( patch_affine );
-
-			// 3. The desired scaling
-			if (null != sc) patch_affine.preConcatenate( sc );
-
-			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
-
-			final mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> mapping = new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>( mesh );
-
-			// 4. Convert the patch to the required type
-			ImageProcessor pi = p.getImageProcessor();
-			if (setMinAndMax) {
-				pi = pi.duplicate();
-				pi.setMinAndMax(p.min, p.max);
-			}
-			switch ( type )
-			{
-			case ImagePlus.GRAY8:
-				pi = pi.convertToByte( true );
-				break;
-			case ImagePlus.GRAY16:
-				pi = pi.convertToShort( true );
-				break;
-			case ImagePlus.GRAY32:
-				pi = pi.convertToFloat();
-				break;
-			default: // ImagePlus.COLOR_RGB and COLOR_256
-				pi = pi.convertToRGB();
-				break;
-			}
-
-			/* TODO for taking into account independent min/max setting for each patch,
-			 * we will need a mapping with an `intensity transfer function' to be implemented.
-			 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
-			 */
-			mapping.mapInterpolated( pi, ip );
+			makeFlatMapping( p, srcRect.x, srcRect.y, scale < 1 ? scale : 1, 0, 0 ).mapInterpolated( makeFlatSource( p, type, setMinAndMax ), ip );
 		}
 
 		return ip;
@@ -2252,9 +2363,11 @@ public final class Patch extends Displayable implements ImageData {
 	public void appendFilters(final IFilter[] fs) {
 		if (null == filters || 0 == filters.length) {
 			filters = fs;
+			markDirty();
 			return;
 		}
 		if (null == fs) return;
+		markDirty();
 		final IFilter[] c = new IFilter[filters.length + fs.length];
 		for (int i=0; i<filters.length; ++i) c[i] = filters[i];
 		for (int i=filters.length; i<c.length; ++i) c[i] = fs[i-filters.length];
@@ -2270,6 +2383,7 @@ public final class Patch extends Displayable implements ImageData {
 	 */
 	public void setFilters(final IFilter[] fs) {
 		this.filters = fs;
+		markDirty();
 	}
 
 	/**
@@ -38,6 +38,10 @@ public class Tag implements Comparable<Tag> {
 		final Tag t = (Tag)ob;
 		return t.keyCode == this.keyCode && t.tag.equals(this.tag);
 	}
+	/** Consistent with {@link #equals(Object)}, so that equal tags of different projects meet in hash sets. */
+	public int hashCode() {
+		return 31 * tag.hashCode() + keyCode;
+	}
 	public int compareTo(final Tag t) {
 		return t.tag.toString().compareTo(this.tag.toString());
 	}
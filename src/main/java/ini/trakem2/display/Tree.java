@@ -100,6 +100,7 @@ import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ini.trakem2.Project;
 import ini.trakem2.analysis.Centrality;
+import ini.trakem2.analysis.TreeCentrality;
 import ini.trakem2.analysis.Vertex;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
@@ -108,6 +109,7 @@ import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
@@ -825,6 +827,16 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return null;
 	}
 
+	/** Tell the {@link SearchIndex} to read again the tags of this Tree if any of the {@code nodes}, added or removed, has tags. */
+	private final void nodesChanged(final Iterable<Node<T>> nodes) {
+		for (final Node<T> nd : nodes) {
+			if (null != nd.tags) {
+				SearchIndex.changed(this, "tags");
+				return;
+			}
+		}
+	}
+
 	protected void cacheSubtree(final Iterable<Node<T>> nodes) {
 		cache(nodes, end_nodes, node_layer_map);
 	}
@@ -1190,6 +1202,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 				subtree = child.getSubtreeNodes();
 				cacheSubtree(subtree);
+				nodesChanged(subtree);
 
 				setLastAdded(child);
 
@@ -1279,6 +1292,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				node.parent.remove(node);
 			}
 			fireNodeRemoved(node);
+			nodesChanged(null != subtree_nodes ? subtree_nodes : Collections.singletonList(node));
 		}
 		synchronized (tolink) {
 			if (null != subtree_nodes) {
@@ -1360,6 +1374,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				tl.node_layer_map.clear();
 			}
 			tl.end_nodes.clear();
+			SearchIndex.changed(tl, "tags");
 		}
 
 		// Don't clear this.marked
@@ -3630,30 +3645,37 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	}
 
 	/** Computes betweenness centrality of each node in the tree,
-	 *  using Ulrik Brandes betweenness centrality algorithm. */
+	 *  with the same values as Ulrik Brandes betweenness centrality algorithm
+	 *  but in linear time; see {@link TreeCentrality}. */
 	public HashMap<Node<T>,Float> computeCentrality() {
 		final HashMap<Node<T>,Float> cs = new HashMap<Node<T>,Float>();
 		if (null == root) return cs;
 
-		final HashMap<Node<T>,Vertex<Node<T>>> m = asVertices();
-		Centrality.compute(m.values());
+		final ArrayList<Node<T>> nodes = new ArrayList<Node<T>>(root.getSubtreeNodes());
+		final HashMap<Node<T>,Integer> index = new HashMap<Node<T>,Integer>(nodes.size() * 2);
+		for (final Node<T> nd : nodes) index.put(nd, index.size());
+		final int[] parents = new int[nodes.size()];
+		for (int i = 0; i < parents.length; ++i) {
+			final Node<T> parent = nodes.get(i).getParent();
+			parents[i] = null == parent ? -1 : index.get(parent);
+		}
+		final double[] c = TreeCentrality.compute(parents);
 
-		for (final Map.Entry<Node<T>,Vertex<Node<T>>> e : m.entrySet()) {
-			cs.put(e.getKey(), e.getValue().centrality);
+		for (int i = 0; i < c.length; ++i) {
+			cs.put(nodes.get(i), (float)c[i]);
 		}
 		return cs;
 	}
 
 	public void colorizeByNodeBetweennessCentrality() {
 		if (null == root) return;
-		final HashMap<Node<T>,Vertex<Node<T>>> m = asVertices();
-		Centrality.compute(m.values());
+		final HashMap<Node<T>,Float> m = computeCentrality();
 		final IndexColorModel cm = Utils.fireLUT();
 		final Map<Integer,Color> colors = new HashMap<Integer,Color>();
 		double max = 0;
-		for (final Vertex<?> v : m.values()) max = Math.max(max, v.centrality);
-		for (final Map.Entry<Node<T>, Vertex<Node<T>>> e : m.entrySet()) {
-			final int i = (int)(255 * (e.getValue().centrality / max) + 0.5f);
+		for (final Float c : m.values()) max = Math.max(max, c);
+		for (final Map.Entry<Node<T>,Float> e : m.entrySet()) {
+			final int i = (int)(255 * (e.getValue() / max) + 0.5f);
 			Color c = colors.get(i);
 			if (null == c) {
 				c = new Color(cm.getRed(i), cm.getGreen(i), cm.getBlue(i));
@@ -377,6 +377,8 @@ public class Treeline extends Tree<Float> {
 		@Override
 		public boolean intersects(final Area a) {
 			if (0 == r) return a.contains(x, y);
+			// Cheap rejection by the bounds of the circle
+			if (!a.intersects(x-r, y-r, r+r, r+r)) return false;
 			return M.intersects(a, new Area(new Ellipse2D.Float(x-r, y-r, r+r, r+r)));
 			// TODO: not the getSegment() ?
 		}
@@ -35,24 +35,19 @@ import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import mpicbg.models.NoninvertibleModelException;
-import mpicbg.trakem2.transform.TransformMesh;
-
 /** Utility functions for blending images together, to remove contrast seams.
  *  Inspired and guided by Stephan Preibisch's blending functions in his Stitching plugins. */
 public final class Blending {
@@ -68,18 +63,33 @@ public final class Blending {
 	}
 
 	static public final void blendLayerWise(final List<Layer> layers, final boolean respect_current_mask, final Filter<Patch> filter) {
-		for (final Layer layer : layers) {
-			final List<Patch> patches = layer.getAll(Patch.class);
-			final Set<Patch> s = new HashSet<Patch>();
-			if (null == filter) {
-				s.addAll(patches);
-			} else {
-				for (final Iterator<Patch> it = patches.iterator(); it.hasNext(); ) {
-					final Patch p = it.next();
-					if (filter.accept(p)) s.add(p);
+		// A single pool for all layers, so that layers with few images don't leave threads idle
+		final ExecutorService exe = Utils.newFixedThreadPool("Blending");
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			final List<Future<?>> mipmaps = Collections.synchronizedList(new ArrayList<Future<?>>());
+			for (final Layer layer : layers) {
+				if (Thread.currentThread().isInterrupted()) break;
+				final List<Patch> patches = layer.getAll(Patch.class);
+				final Set<Patch> s = new HashSet<Patch>();
+				if (null == filter) {
+					s.addAll(patches);
+				} else {
+					for (final Iterator<Patch> it = patches.iterator(); it.hasNext(); ) {
+						final Patch p = it.next();
+						if (filter.accept(p)) s.add(p);
+					}
 				}
+				submit(s, respect_current_mask, exe, futures, mipmaps);
 			}
-			blendPatches(s, respect_current_mask);
+			// join all:
+			Utils.waitIfAlive(futures, false);
+			Utils.waitIfAlive(mipmaps, false);
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			exe.shutdownNow();
+			Display.repaint();
 		}
 	}
 
@@ -102,159 +112,179 @@ public final class Blending {
 	}
 
 	static public final void blendPatches(final Set<Patch> patches, final boolean respect_current_mask) {
-		ExecutorService exe = null;
+		if (null == patches || patches.size() < 2) return;
+		final ExecutorService exe = Utils.newFixedThreadPool("Blending");
 		try {
-			if (null == patches || patches.size() < 2) return;
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			final List<Future<?>> mipmaps = Collections.synchronizedList(new ArrayList<Future<?>>());
+			submit(patches, respect_current_mask, exe, futures, mipmaps);
+			// join all:
+			Utils.waitIfAlive(futures, false);
+			Utils.waitIfAlive(mipmaps, false);
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			exe.shutdownNow();
+			Display.repaint();
+		}
+	}
 
-			final Layer layer = patches.iterator().next().getLayer();
+	/** Submit to {@code exe} the computation of the blending mask of each of the {@code patches},
+	 *  adding the futures of the masks to {@code futures} and those of the regenerated mipmaps to {@code mipmaps}.
+	 *  @return false if the {@code patches} cannot be blended. */
+	static private final boolean submit(final Set<Patch> patches, final boolean respect_current_mask, final ExecutorService exe,
+			final List<Future<?>> futures, final List<Future<?>> mipmaps) {
+		if (null == patches || patches.size() < 2) return false;
 
-			for (final Patch p : patches) {
-				if (null != p.getCoordinateTransform()) {
-					Utils.log("CANNOT blend: at least one image has a coordinate transform.\nBlending of coordinate-transformed images will be enabled in the near future.");
-					return;
-				}
-				if (p.getLayer() != layer) {
-					Utils.log("CANNOT blend: all images must belong to the same layer!\n  Otherwise the overlap cannot be computed.");
-					return;
-				}
-			}
+		final Layer layer = patches.iterator().next().getLayer();
 
-			final HashMap<Patch,TransformMesh> meshes = new HashMap<Patch,TransformMesh>();
-			for (final Patch p : patches) {
-				meshes.put(p, null == p.getCoordinateTransform() ? null
-						: new TransformMesh(p.getCoordinateTransform(), p.getMeshResolution(), p.getOWidth(), p.getOHeight()));
+		for (final Patch p : patches) {
+			if (p.hasCoordinateTransform()) {
+				Utils.log("CANNOT blend: at least one image has a coordinate transform.\nBlending of coordinate-transformed images will be enabled in the near future.");
+				return false;
 			}
-
-			exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-			final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
-			final List<Future<?>> futures2 = Collections.synchronizedList(new ArrayList<Future<?>>());
-
-
-			// Cache the indices that determine overlap order within the layer
-			final HashMap<Patch,Integer> indices = new HashMap<Patch,Integer>();
-			int i = 0;
-			for (final Displayable d : layer.getDisplayables()) {
-				if (d.getClass() == Patch.class && patches.contains((Patch)d)) {
-					indices.put((Patch)d, i);
-				}
-				i += 1;
+			if (p.getLayer() != layer) {
+				Utils.log("CANNOT blend: all images must belong to the same layer!\n  Otherwise the overlap cannot be computed.");
+				return false;
 			}
+		}
 
-			for (final Patch p : patches) {
-				if (Thread.currentThread().isInterrupted()) break;
-				futures.add(exe.submit(new Runnable() { @Override
-                public void run() {
-					final int pLayerIndex = indices.get(p);
-					final Set<Patch> overlapping = new HashSet<Patch>();
-					for (final Patch op : patches) {
-						if (indices.get(op) < pLayerIndex) overlapping.add(op);
-					}
-					if (setBlendingMask(p, overlapping, meshes, respect_current_mask)) {
-						futures2.add(p.updateMipMaps());
-					}
-				}}, null));
+		// Cache the indices that determine overlap order within the layer
+		final HashMap<Patch,Integer> indices = new HashMap<Patch,Integer>();
+		int i = 0;
+		for (final Displayable d : layer.getDisplayables()) {
+			if (d.getClass() == Patch.class && patches.contains((Patch)d)) {
+				indices.put((Patch)d, i);
 			}
+			i += 1;
+		}
 
-			// join all:
-			Utils.waitIfAlive(futures, false);
-			Utils.waitIfAlive(futures2, false);
-
-		} catch (final Exception e) {
-			IJError.print(e);
-		} finally {
-			if (null != exe) exe.shutdown();
-			Display.repaint();
+		for (final Patch p : patches) {
+			if (Thread.currentThread().isInterrupted()) break;
+			// The patches under p whose bounds intersect those of p, from the buckets of the layer.
+			// Bounding boxes are rounded to integers: grow by one pixel so that none is missed.
+			final Rectangle r = p.getBoundingBox();
+			r.grow(1, 1);
+			final int pLayerIndex = indices.get(p);
+			final List<Patch> overlapping = new ArrayList<Patch>();
+			for (final Displayable d : layer.find(Patch.class, r, false)) {
+				final Integer index = indices.get(d);
+				if (null != index && index < pLayerIndex) overlapping.add((Patch)d);
+			}
+			if (overlapping.isEmpty()) {
+				Utils.log("Nothing to blend in image " + p);
+				continue;
+			}
+			futures.add(exe.submit(new Runnable() { @Override
+			public void run() {
+				if (setBlendingMask(p, overlapping, respect_current_mask)) {
+					mipmaps.add(p.updateMipMaps());
+				}
+			}}, null));
 		}
+		return true;
 	}
 
-	/** Returns true if a new mask has been set to Patch p. */
-	static private boolean setBlendingMask(final Patch p, Set<Patch> overlapping, final Map<Patch,TransformMesh> meshes, final boolean respect_current_mask) {
+	/** Returns true if a new mask has been set to Patch p.
+	 *  Works row by row: each of the {@code overlapping} patches adds its weight to the pixels of the row
+	 *  that it covers, found by mapping the row into its local coordinates with a single affine transform.
+	 *  The weights of p itself are the product of two precomputed tables, one per row and one per column. */
+	static private boolean setBlendingMask(final Patch p, final List<Patch> overlapping, final boolean respect_current_mask) {
 
 		Utils.log2("Blending " + p);
 
-		if (overlapping.contains(p)) {
-			overlapping = new HashSet<Patch>(overlapping);
-			overlapping.remove(p);
+		final int p_o_width = p.getOWidth();
+		final int p_o_height = p.getOHeight();
+
+		// From the pixels of p to the pixels of each overlapping patch
+		final int n = overlapping.size();
+		final double[][] m = new double[n][];
+		final int[] o_widths = new int[n];
+		final int[] o_heights = new int[n];
+		for (int k=0; k<n; k++) {
+			final Patch other = overlapping.get(k);
+			try {
+				final AffineTransform aff = other.getAffineTransform().createInverse();
+				aff.concatenate(p.getAffineTransform());
+				m[k] = new double[6];
+				aff.getMatrix(m[k]); // m00, m10, m01, m11, m02, m12
+			} catch (final NoninvertibleTransformException nite) {
+				// Never overlaps
+				m[k] = null;
+			}
+			o_widths[k] = other.getOWidth();
+			o_heights[k] = other.getOHeight();
 		}
 
-		final AffineTransform at = p.getAffineTransform();
-		final TransformMesh mesh = meshes.get(p);
+		// The weight of p, separable
+		final double[] wx = new double[p_o_width];
+		for (int x=0; x<p_o_width; x++) wx[x] = Math.min(x, p_o_width - x) / (double)(p_o_width/2);
+		final double[] wy = new double[p_o_height];
+		for (int y=0; y<p_o_height; y++) wy[y] = Math.min(y, p_o_height - y) / (double)(p_o_height/2);
 
 		ByteProcessor mask = null;
 		if (respect_current_mask) {
 			mask = p.getAlphaMask();
 		}
 		if (null == mask) {
-			mask = new ByteProcessor(p.getOWidth(), p.getOHeight());
+			mask = new ByteProcessor(p_o_width, p_o_height);
 			mask.setValue(255);
 			mask.fill();
 		}
 
 		final byte[] pix = (byte[]) mask.getPixels();
 
-		final Point2D.Double po = new Point2D.Double();
-		final double[] fo = new double[2];
+		// Sum of the weights of the overlapping patches, and how many, for each pixel of a row
+		final double[] sums = new double[p_o_width];
+		final int[] counts = new int[p_o_width];
+		final int[] range = new int[2];
 
-		final int p_o_width = p.getOWidth();
-		final int p_o_height = p.getOHeight();
-
-		int next = 0;
-		final double[] weights = new double[overlapping.size() + 1]; // the self as well
 		int masked = 0;
 
 		for (int y=0; y<p_o_height; y++) {
 
 			if (Thread.currentThread().isInterrupted()) return false;
 
-			for (int x=0; x<p_o_width; x++) {
-
-				// transform x,y to world coords
-				if (null != mesh) {
-					fo[0] = x;
-					fo[1] = y;
-					mesh.applyInPlace(fo);
-					po.x = fo[0];
-					po.y = fo[1];
-				} else {
-					po.x = x;
-					po.y = y;
-				}
-
-				at.transform(po, po);
-
-				fo[0] = po.x;
-				fo[1] = po.y;
-
-				// debug:
-				if (0 == x && 0 == y) {
-					Utils.log2("point 0,0 goes to " + fo[0] + ", " + fo[1]);
-				}
-
-				// check if it intersects any Patch
-				next = 0;
-				for (final Patch other : overlapping) {
-					final double weight = intersects(fo, other, meshes.get(other));
-					if (weight > 0) weights[next++] = weight;
+			for (int k=0; k<n; k++) {
+				final double[] a = m[k];
+				if (null == a) continue;
+				final int ow = o_widths[k],
+				          oh = o_heights[k];
+				// u = a[0] * x + a[2] * y + a[4] and v = a[1] * x + a[3] * y + a[5], linear along the row
+				final double bu = a[2] * y + a[4],
+				             bv = a[3] * y + a[5];
+				range[0] = 0;
+				range[1] = p_o_width - 1;
+				if (!clip(a[0], bu, ow, range) || !clip(a[1], bv, oh, range)) continue;
+				for (int x=range[0]; x<=range[1]; x++) {
+					final double u = a[0] * x + bu,
+					             v = a[1] * x + bv;
+					if (u >= 0 && u < ow && v >= 0 && v < oh) {
+						final double weight = computeWeight(u, v, ow, oh);
+						if (weight > 0) {
+							sums[x] += weight;
+							counts[x] += 1;
+						}
+					}
 				}
+			}
 
-				final int i = y * p_o_width + x;
-
+			for (int x=0, i=y*p_o_width; x<p_o_width; x++, i++) {
+				if (0 == counts[x]) continue;
+				final double self = wx[x] * wy[y]; // the weight of Patch p, added last
+				final double sum = sums[x] + self;
+				sums[x] = 0;
+				counts[x] = 0;
 				if (respect_current_mask) {
-					// Don't compute if no overlap or if current mask value is zero
-					if (next > 0 && pix[i] != 0) {
-						weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
-						double sum = 0;
-						for (int f=0; f<next; f++) sum += weights[f];
-						pix[i] = (byte)((int)(255 * (weights[next-1] / sum) * ((pix[i]&0xff) / 255.0f) ));
+					// Don't compute if the current mask value is zero
+					if (pix[i] != 0) {
+						pix[i] = (byte)((int)(255 * (self / sum) * ((pix[i]&0xff) / 255.0f) ));
 						masked++;
 					}
 					// else leave current value untouched
-				} else if (next > 0) {
+				} else {
 					// Overwritting current mask
-					weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
-					double sum = 0;
-					for (int f=0; f<next; f++) sum += weights[f];
-					pix[i] = (byte)((int)(255 * (weights[next-1] / sum)));
+					pix[i] = (byte)((int)(255 * (self / sum)));
 					masked++;
 				}
 			}
@@ -276,42 +306,26 @@ public final class Blending {
 		return false;
 	}
 
+	/** Narrow {@code range}, inclusive, to the x at which 0 &lt;= slope * x + offset &lt; max,
+	 *  give or take one pixel at each end, which the caller tests exactly.
+	 *  @return false if the range is empty. */
+	static private final boolean clip(final double slope, final double offset, final int max, final int[] range) {
+		if (0 == slope) {
+			return offset >= 0 && offset < max;
+		}
+		final double x0 = (0 - offset) / slope,
+		             x1 = (max - offset) / slope;
+		final double lo = Math.floor(Math.min(x0, x1)) - 1,
+		             hi = Math.ceil(Math.max(x0, x1)) + 1;
+		if (lo > range[0]) range[0] = (int)Math.min(lo, Integer.MAX_VALUE);
+		if (hi < range[1]) range[1] = (int)Math.max(hi, Integer.MIN_VALUE);
+		return range[0] <= range[1];
+	}
+
 	static private final double computeWeight(final double x, final double y, final int width, final int height) {
 		//return Math.min(Math.min(x, width - x),
 		//		Math.min(y, height - y));
 		// Normalized, as suggested by Stephan Preibisch:
 		return (Math.min(x, width - x) / (width/2)) * (Math.min(y, height - y) / (height/2));
 	}
-
-	/** Returns true if fo[0,1] x,y world coords intersect the affine and potentially coordinate transformed pixels of the other Patch. */
-	static private double intersects(final double[] fo, final Patch other, final TransformMesh mesh) {
-		// First inverse affine transform
-		final AffineTransform at = other.getAffineTransform();
-		final Point2D.Double po = new Point2D.Double(fo[0], fo[1]);
-		final int o_width = other.getOWidth();
-		final int o_height = other.getOHeight();
-		try {
-			at.inverseTransform(po, po);
-		} catch (final NoninvertibleTransformException nite) {
-			return -1;
-		}
-		if (null == mesh) {
-			if (po.x >= 0 && po.x < o_width
-			 && po.y >= 0 && po.y < o_height) {
-				return computeWeight(po.x, po.y, o_width, o_height);
-			 } else {
-				 return -1;
-			 }
-		}
-		// Then inverse the coordinate transform
-		try {
-			fo[0] = po.x;
-			fo[1] = po.y;
-			mesh.applyInverseInPlace(fo);
-			return computeWeight(fo[0], fo[1], o_width, o_height);
-		} catch (final NoninvertibleModelException nime) {
-			// outside boundaries
-			return -1;
-		}
-	}
 }
@@ -100,6 +100,52 @@ public final class FastIntegralImage
 		return f;
 	}
 	
+	/** Returns an image of @{param w}+1, @{param y}+1, where the first row and the first column are zeros,
+	 * and the rest contain the sum of the squares of the area from 0,0 to that pixel in {@code b}.
+	 * Together with {@link #doubleIntegralImage(float[], int, int)}, gives the variance of any rectangle in constant time.
+	 * 
+	 * @param b
+	 * @param w
+	 * @param h
+	 * @return a double[] representing the integral image of squares, with the first row and the first column with zeros.
+	 */
+	static public final double[] doubleIntegralImageOfSquares(final float[] b, final int w, final int h) {
+		final int w2 = w+1;
+		final int h2 = h+1;
+		final double[] f = new double[w2 * h2];
+		// Sum rows
+		for (int y=0, offset1=0, offset2=w2+1; y<h; ++y) {
+			double s = 0;
+			for (int x=0; x<w; ++x) {
+				final double v = b[offset1 + x];
+				s += v * v;
+				f[offset2 + x] = s;
+			}
+			offset1 += w;
+			offset2 += w2;
+		}
+		// Sum columns over the summed rows
+		for (int x=1; x<w2; ++x) {
+			 double s = 0;
+			 for (int y=1, i=w2+x; y<h2; ++y) {
+				 s += f[i];
+				 f[i] = s;
+				 i += w2;
+			 }
+		}
+
+		return f;
+	}
+	
+	/** Sum of the area from {@code x0},{@code y0} inclusive to {@code x1},{@code y1} exclusive, in source image coordinates.
+	 * 
+	 * @param f  The pixels of the integral image.
+	 * @param fw The width of the integral image (source image width + 1)
+	 */
+	static public final double sum(final double[] f, final int fw, final int x0, final int y0, final int x1, final int y1) {
+		return f[y1 * fw + x1] - f[y0 * fw + x1] - f[y1 * fw + x0] + f[y0 * fw + x0];
+	}
+	
 	/** Returns an image of @{param w}+1, @{param y}+1, where the first row and the first column are zeros,
 	 * and the rest contain the sum of the area from 0,0 to that pixel in {@code b}.
 	 * 
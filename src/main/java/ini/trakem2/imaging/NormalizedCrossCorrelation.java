@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging;
+
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Exhaustive search of the translation with the highest normalized cross-correlation
+ * (Pearson's R) between two images, on primitive float arrays.
+ *
+ * Pixels with value -1 are considered missing, as in {@link mpi.fruitfly.registration.CrossCorrelation2D}.
+ * When neither image has missing pixels, the means and variances of every overlap are read in constant time
+ * from integral images (see {@link FastIntegralImage}) and only the products of pixel pairs are summed,
+ * in a single pass. Otherwise, all sums are accumulated in a single pass that skips missing pixels.
+ *
+ * The products are summed row by row over contiguous float arrays, without branches, which the JIT compiler
+ * turns into SIMD instructions. Translations are processed in tiles of {@link #TILE} vertical shifts that
+ * share the rows of the first image while they are in the CPU cache. Tiles are executed in a thread pool
+ * shared by all callers.
+ *
+ * The result is deterministic: among equal correlations, the first translation in scan order wins.
+ */
+public final class NormalizedCrossCorrelation
+{
+	/** Number of vertical shifts computed together. */
+	static public final int TILE = 8;
+
+	static private ExecutorService exec = null;
+
+	static private final synchronized ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "NormalizedCrossCorrelation", false);
+		return exec;
+	}
+
+	private NormalizedCrossCorrelation() {}
+
+	/** Find the translation of {@code img2} relative to {@code img1} with the highest correlation,
+	 * as {@link mpi.fruitfly.registration.CrossCorrelation2D#computeCrossCorrelationMT(double, double, boolean)} does.
+	 *
+	 * @param relMinOverlapX Do not scan translations for which the overlap is smaller than this fraction of the narrower image.
+	 * @param relMinOverlapY Do not scan translations for which the overlap is smaller than this fraction of the lower image.
+	 * @return {displaceX, displaceY, R}, with displacements of {@code img1} relative to {@code img2}; R is -2 when no overlap had any valid pixels.
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	static public final double[] bestTranslation(
+			final float[] img1, final int w1, final int h1,
+			final float[] img2, final int w2, final int h2,
+			final double relMinOverlapX, final double relMinOverlapY) throws InterruptedException, ExecutionException {
+
+		final int min_border_w = (int) (w1 < w2 ? w1 * relMinOverlapX + 0.5 : w2 * relMinOverlapX + 0.5);
+		final int min_border_h = (int) (h1 < h2 ? h1 * relMinOverlapY + 0.5 : h2 * relMinOverlapY + 0.5);
+
+		final int firstX = -w1 + min_border_w,
+		          firstY = -h1 + min_border_h;
+		final int nx = Math.max(0, w2 - min_border_w - firstX),
+		          ny = Math.max(0, h2 - min_border_h - firstY);
+
+		final double[] rs = new double[nx * ny];
+
+		final boolean masked = hasMissing(img1) || hasMissing(img2);
+		final double[] ii1 = masked ? null : FastIntegralImage.doubleIntegralImage(img1, w1, h1),
+		               ii2 = masked ? null : FastIntegralImage.doubleIntegralImage(img2, w2, h2),
+		               sq1 = masked ? null : FastIntegralImage.doubleIntegralImageOfSquares(img1, w1, h1),
+		               sq2 = masked ? null : FastIntegralImage.doubleIntegralImageOfSquares(img2, w2, h2);
+
+		final ExecutorService exec = getExecutor();
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		try {
+			// One task per horizontal shift, as many as in CrossCorrelation2D
+			for (int ix = 0; ix < nx; ++ix) {
+				final int moveX = firstX + ix;
+				final int offset = ix * ny;
+				fus.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int iy = 0; iy < ny; iy += TILE) {
+							if (Thread.currentThread().isInterrupted()) return;
+							final int n = Math.min(TILE, ny - iy);
+							if (masked) correlateMasked(img1, w1, h1, img2, w2, h2, moveX, firstY + iy, n, rs, offset + iy);
+							else correlate(img1, w1, h1, ii1, sq1, img2, w2, h2, ii2, sq2, moveX, firstY + iy, n, rs, offset + iy);
+						}
+					}
+				}));
+			}
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			for (final Future<?> fu : fus) fu.cancel(true);
+			throw ie;
+		}
+
+		double maxR = -2;
+		int displaceX = 0,
+		    displaceY = 0;
+		for (int ix = 0, i = 0; ix < nx; ++ix) {
+			for (int iy = 0; iy < ny; ++iy, ++i) {
+				if (rs[i] > maxR) {
+					maxR = rs[i];
+					displaceX = firstX + ix;
+					displaceY = firstY + iy;
+				}
+			}
+		}
+
+		return new double[]{-displaceX, -displaceY, maxR};
+	}
+
+	static private final boolean hasMissing(final float[] img) {
+		for (int i = 0; i < img.length; ++i) {
+			if (-1 == img[i]) return true;
+		}
+		return false;
+	}
+
+	/** Sum of the products of {@code n} consecutive pixels, with four accumulators to let the additions run in parallel.
+	 * Products and sums are in double precision, as in the sums of the integral images they are combined with:
+	 * a float sum over a large block loses the small differences that the correlation depends on. */
+	static private final double dot(final float[] a, final int ia, final float[] b, final int ib, final int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (final int n4 = n - 3; i < n4; i += 4) {
+			s0 += (double)a[ia + i    ] * b[ib + i    ];
+			s1 += (double)a[ia + i + 1] * b[ib + i + 1];
+			s2 += (double)a[ia + i + 2] * b[ib + i + 2];
+			s3 += (double)a[ia + i + 3] * b[ib + i + 3];
+		}
+		for (; i < n; ++i) s0 += (double)a[ia + i] * b[ib + i];
+		return s0 + s1 + s2 + s3;
+	}
+
+	/** Correlations of the translations moveX, moveY0 ... moveY0 + n - 1, without missing pixels. */
+	static private final void correlate(
+			final float[] img1, final int w1, final int h1, final double[] ii1, final double[] sq1,
+			final float[] img2, final int w2, final int h2, final double[] ii2, final double[] sq2,
+			final int moveX, final int moveY0, final int n,
+			final double[] rs, final int offset) {
+		final int x1a = Math.max(0, -moveX),
+		          x1b = Math.min(w1, w2 - moveX),
+		          nw = x1b - x1a;
+		if (nw <= 0) {
+			for (int k = 0; k < n; ++k) rs[offset + k] = -2;
+			return;
+		}
+		final double[] s12 = new double[n];
+		// Rows of img1 touched by any shift of the tile
+		final int y1first = Math.max(0, -(moveY0 + n - 1)),
+		          y1last = Math.min(h1, h2 - moveY0);
+		for (int y1 = y1first; y1 < y1last; ++y1) {
+			final int i1 = y1 * w1 + x1a;
+			for (int k = 0; k < n; ++k) {
+				final int y2 = y1 + moveY0 + k;
+				if (y2 < 0 || y2 >= h2) continue;
+				s12[k] += dot(img1, i1, img2, y2 * w2 + x1a + moveX, nw);
+			}
+		}
+		for (int k = 0; k < n; ++k) {
+			final int moveY = moveY0 + k;
+			final int y1a = Math.max(0, -moveY),
+			          y1b = Math.min(h1, h2 - moveY);
+			final int count = nw * (y1b - y1a);
+			if (count <= 0) {
+				rs[offset + k] = -2;
+				continue;
+			}
+			final double s1 = FastIntegralImage.sum(ii1, w1 + 1, x1a, y1a, x1b, y1b),
+			             ss1 = FastIntegralImage.sum(sq1, w1 + 1, x1a, y1a, x1b, y1b),
+			             s2 = FastIntegralImage.sum(ii2, w2 + 1, x1a + moveX, y1a + moveY, x1b + moveX, y1b + moveY),
+			             ss2 = FastIntegralImage.sum(sq2, w2 + 1, x1a + moveX, y1a + moveY, x1b + moveX, y1b + moveY);
+			rs[offset + k] = r(count, s1, s2, ss1, ss2, s12[k]);
+		}
+	}
+
+	/** Correlations of the translations moveX, moveY0 ... moveY0 + n - 1, skipping missing pixels. */
+	static private final void correlateMasked(
+			final float[] img1, final int w1, final int h1,
+			final float[] img2, final int w2, final int h2,
+			final int moveX, final int moveY0, final int n,
+			final double[] rs, final int offset) {
+		final int x1a = Math.max(0, -moveX),
+		          x1b = Math.min(w1, w2 - moveX);
+		for (int k = 0; k < n; ++k) {
+			final int moveY = moveY0 + k;
+			final int y1a = Math.max(0, -moveY),
+			          y1b = Math.min(h1, h2 - moveY);
+			double s1 = 0, s2 = 0, ss1 = 0, ss2 = 0, s12 = 0;
+			int count = 0;
+			for (int y1 = y1a; y1 < y1b; ++y1) {
+				for (int i1 = y1 * w1 + x1a, i2 = (y1 + moveY) * w2 + x1a + moveX, e1 = y1 * w1 + x1b; i1 < e1; ++i1, ++i2) {
+					final double v1 = img1[i1];
+					if (-1 == v1) continue;
+					final double v2 = img2[i2];
+					if (-1 == v2) continue;
+					s1 += v1;
+					s2 += v2;
+					ss1 += v1 * v1;
+					ss2 += v2 * v2;
+					s12 += v1 * v2;
+					++count;
+				}
+			}
+			rs[offset + k] = 0 == count ? -2 : r(count, s1, s2, ss1, ss2, s12);
+		}
+	}
+
+	/** Pearson's R from the sums; NaN when either overlap has no variance, which never wins.
+	 * Variances within the rounding error of the sums of squares are considered zero, like
+	 * those of flat overlaps, which would otherwise yield arbitrary correlations. */
+	static private final double r(final int count, final double s1, final double s2, final double ss1, final double ss2, final double s12) {
+		final double coVar = s12 - s1 * s2 / count,
+		             var1 = ss1 - s1 * s1 / count,
+		             var2 = ss2 - s2 * s2 / count;
+		if (var1 <= 1e-10 * ss1 || var2 <= 1e-10 * ss2) return Double.NaN;
+		return coVar / Math.sqrt(var1 * var2);
+	}
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.io.TiledTIFFWriter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.trakem2.transform.ExportUnsignedByte;
+
+/** A flat image of the {@link Patch} instances of a {@link Layer}, like {@link Patch#makeFlatImage(int, Layer, Rectangle, double, Collection, Color)}
+ * makes, but rendered as square tiles that are handed to a {@link TileSink} and then discarded, so that the whole image is never in memory.
+ * Tiles are rendered in parallel, in rows from top to bottom.
+ *
+ * Each tile paints only the patches that intersect it, as found with {@link Layer#find(Class, Rectangle, boolean)}, which uses the buckets.
+ * The image of a patch is loaded and converted once and shared by all tiles it intersects, until the last one is done.
+ * When exporting 8-bit images at scales of 0.5 or less, the images of the patches are read from the mipmaps,
+ * as in {@link ExportUnsignedByte#makeFlatImageFromMipMaps(List, Rectangle, double, double)}.
+ */
+public final class TiledFlatImage {
+
+	/** Receives the tiles of a {@link TiledFlatImage}, from several threads at once. */
+	static public interface TileSink {
+		/** @param tile The tile at column {@code col} and row {@code row}, of the side of the tiles; pixels beyond the edges of the image are background. */
+		public void put(int col, int row, ImageProcessor tile) throws IOException;
+	}
+
+	private final Layer layer;
+	private final Rectangle srcRect;
+	private final double scale;
+	private final int type, side, width, height, nCols, nRows;
+	private final Color background;
+
+	/**
+	 * @param type Any of ImagePlus.GRAY_8, GRAY_16, GRAY_32 or COLOR_RGB.
+	 * @param srcRect the box in world coordinates to make an image out of.
+	 * @param scale may be up to 1.0.
+	 * @param background The color with which to paint the outsides where no image paints into.
+	 * @param side The side of the tiles, a multiple of 16. */
+	public TiledFlatImage(final Layer layer, final Rectangle srcRect, final double scale, final int type, final Color background, final int side) {
+		switch (type) {
+			case ImagePlus.GRAY8:
+			case ImagePlus.GRAY16:
+			case ImagePlus.GRAY32:
+			case ImagePlus.COLOR_RGB:
+				break;
+			default:
+				throw new IllegalArgumentException("Cannot create an image of type " + type + ".\nSupported types: 8-bit, 16-bit, 32-bit and RGB.");
+		}
+		if (side <= 0 || 0 != side % 16) throw new IllegalArgumentException("The side of the tiles must be a positive multiple of 16.");
+		this.layer = layer;
+		this.srcRect = new Rectangle(srcRect);
+		this.scale = scale < 1 ? scale : 1;
+		this.type = type;
+		this.background = background;
+		this.side = side;
+		this.width = (int)(srcRect.width * this.scale);
+		this.height = (int)(srcRect.height * this.scale);
+		this.nCols = (width + side - 1) / side;
+		this.nRows = (height + side - 1) / side;
+	}
+
+	public final int getWidth() { return width; }
+	public final int getHeight() { return height; }
+	public final int getColumns() { return nCols; }
+	public final int getRows() { return nRows; }
+	public final int getTileSide() { return side; }
+
+	/** The image of a patch, shared by the tiles that paint it. */
+	private final class Source {
+		private final Patch patch;
+		/** Number of tiles yet to paint it. */
+		private int uses = 0;
+		private ImageProcessor ip = null;
+		private ExportUnsignedByte.ImageData mipmap = null;
+
+		private Source(final Patch patch) {
+			this.patch = patch;
+		}
+
+		synchronized private final void load(final boolean from_mipmaps) {
+			if (from_mipmaps) {
+				if (null == mipmap) mipmap = new ExportUnsignedByte.MipMapSource().fetch(patch, scale);
+			} else {
+				if (null == ip) ip = Patch.makeFlatSource(patch, type, true);
+			}
+		}
+
+		/** Called once by each tile that painted it; frees the image after the last one. */
+		synchronized private final void release() {
+			if (0 == --uses) {
+				ip = null;
+				mipmap = null;
+			}
+		}
+	}
+
+	/** Render all tiles and hand each to {@code sink}; returns when all have been handed over.
+	 * @param n_threads The number of tiles to render in parallel.
+	 * @throws ExecutionException when a tile could not be rendered or the {@code sink} failed.
+	 * @throws InterruptedException */
+	public void render(final TileSink sink, final int n_threads) throws InterruptedException, ExecutionException {
+		final boolean from_mipmaps = ImagePlus.GRAY8 == type && scale <= 0.5 && layer.getProject().getLoader().isMipMapsRegenerationEnabled();
+
+		// The patches of each tile, bottom first, and the number of tiles that paint each patch
+		final HashMap<Patch,Integer> order = new HashMap<Patch,Integer>();
+		for (final Patch p : layer.getPatches(true)) order.put(p, order.size());
+		final Comparator<Patch> bottom_first = new Comparator<Patch>() {
+			@Override
+			public int compare(final Patch p1, final Patch p2) {
+				return order.get(p1) - order.get(p2);
+			}
+		};
+		final HashMap<Patch,Source> sources = new HashMap<Patch,Source>();
+		final List<List<Source>> tiles = new ArrayList<List<Source>>(nCols * nRows);
+		for (int row = 0; row < nRows; ++row) {
+			for (int col = 0; col < nCols; ++col) {
+				final ArrayList<Patch> ps = new ArrayList<Patch>();
+				for (final Object ob : layer.find(Patch.class, getWorldBounds(col, row), true)) {
+					if (order.containsKey(ob)) ps.add((Patch)ob);
+				}
+				Collections.sort(ps, bottom_first);
+				final ArrayList<Source> ss = new ArrayList<Source>(ps.size());
+				for (final Patch p : ps) {
+					Source s = sources.get(p);
+					if (null == s) {
+						s = new Source(p);
+						sources.put(p, s);
+					}
+					s.uses += 1;
+					ss.add(s);
+				}
+				tiles.add(ss);
+			}
+		}
+		// Only the tiles refer to the sources from now on
+		sources.clear();
+
+		final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, n_threads), "TiledFlatImage");
+		// Bound the number of tiles, and therefore of patch images, in memory
+		final Semaphore in_flight = new Semaphore(2 * Math.max(1, n_threads));
+		final LinkedList<Future<?>> fus = new LinkedList<Future<?>>();
+		final AtomicInteger done = new AtomicInteger(0);
+		try {
+			for (int i = 0; i < tiles.size(); ++i) {
+				final int col = i % nCols,
+				          row = i / nCols;
+				final List<Source> ss = tiles.get(i);
+				in_flight.acquire();
+				// Throw early on failure, and forget the tiles that are done
+				for (final Iterator<Future<?>> it = fus.iterator(); it.hasNext(); ) {
+					final Future<?> fu = it.next();
+					if (fu.isDone()) {
+						fu.get();
+						it.remove();
+					}
+				}
+				fus.add(exec.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							final ImageProcessor tile = renderTile(col, row, ss, from_mipmaps);
+							sink.put(col, row, tile);
+							Utils.showProgress(done.incrementAndGet() / (double)(nCols * nRows));
+							return null;
+						} finally {
+							// Release the images of the patches that no other tile will paint
+							for (final Source s : ss) s.release();
+							in_flight.release();
+						}
+					}
+				}));
+				tiles.set(i, null);
+			}
+			for (final Future<?> fu : fus) fu.get();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** The box in world coordinates painted by the tile at {@code col}, {@code row}, plus a margin for interpolation. */
+	private final Rectangle getWorldBounds(final int col, final int row) {
+		final double x0 = srcRect.x + (col * side - 1) / scale,
+		             y0 = srcRect.y + (row * side - 1) / scale,
+		             x1 = srcRect.x + ((col + 1) * side + 1) / scale,
+		             y1 = srcRect.y + ((row + 1) * side + 1) / scale;
+		final int x = (int)Math.floor(x0),
+		          y = (int)Math.floor(y0);
+		return new Rectangle(x, y, (int)Math.ceil(x1) - x, (int)Math.ceil(y1) - y);
+	}
+
+	private final ImageProcessor renderTile(final int col, final int row, final List<Source> ss, final boolean from_mipmaps) {
+		final ImageProcessor ip;
+		switch (type) {
+			case ImagePlus.GRAY8: ip = new ByteProcessor(side, side); break;
+			case ImagePlus.GRAY16: ip = new ShortProcessor(side, side); break;
+			case ImagePlus.GRAY32: ip = new FloatProcessor(side, side); break;
+			default: ip = new ColorProcessor(side, side); break;
+		}
+		if (null != background && !Color.black.equals(background)) {
+			ip.setColor(background);
+			ip.fill();
+		}
+		final int ox = col * side,
+		          oy = row * side;
+		final ByteProcessor mask = from_mipmaps ? new ByteProcessor(side, side) : null;
+		for (final Source s : ss) {
+			if (Thread.currentThread().isInterrupted()) return ip;
+			s.load(from_mipmaps);
+			if (from_mipmaps) {
+				ExportUnsignedByte.map(s.patch, s.mipmap, srcRect.x + ox / scale, srcRect.y + oy / scale, scale, (ByteProcessor)ip, mask);
+			} else {
+				Patch.makeFlatMapping(s.patch, srcRect.x, srcRect.y, scale, ox, oy).mapInterpolated(s.ip, ip);
+			}
+		}
+		return ip;
+	}
+
+	/** Save as an uncompressed tiled TIFF file, or BigTIFF when larger than 4 GB. Returns false when it failed, and deletes the file.
+	 * @see TiledFlatImage#TiledFlatImage(Layer, Rectangle, double, int, Color, int) */
+	static public final boolean saveAsTiledTIFF(final Layer layer, final Rectangle srcRect, final double scale, final int type, final Color background, final String path) {
+		final TiledFlatImage tfi = new TiledFlatImage(layer, srcRect, scale, type, background, 512);
+		TiledTIFFWriter writer = null;
+		try {
+			writer = new TiledTIFFWriter(path, type, tfi.width, tfi.height, tfi.side, tfi.side);
+			tfi.render(makeTIFFSink(writer), Runtime.getRuntime().availableProcessors());
+			writer.close();
+			return true;
+		} catch (final Throwable t) {
+			IJError.print(t);
+			if (null != writer) {
+				try { writer.abort(); } catch (final IOException ioe) { IJError.print(ioe); }
+			}
+			new File(path).delete();
+		}
+		return false;
+	}
+
+	/** Save the pixels only, row after row, in big endian byte order, as ImageJ's "File - Import - Raw" reads them; RGB pixels as three bytes.
+	 * Returns false when it failed, and deletes the file.
+	 * @see TiledFlatImage#TiledFlatImage(Layer, Rectangle, double, int, Color, int) */
+	static public final boolean saveAsRaw(final Layer layer, final Rectangle srcRect, final double scale, final int type, final Color background, final String path) {
+		final TiledFlatImage tfi = new TiledFlatImage(layer, srcRect, scale, type, background, 512);
+		RandomAccessFile ra = null;
+		try {
+			final File f = new File(path);
+			if (f.exists()) f.delete();
+			ra = new RandomAccessFile(f, "rw");
+			tfi.render(makeRawSink(ra, type, tfi.width, tfi.height, tfi.side), Runtime.getRuntime().availableProcessors());
+			ra.close();
+			return true;
+		} catch (final Throwable t) {
+			IJError.print(t);
+			if (null != ra) {
+				try { ra.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+			}
+			new File(path).delete();
+		}
+		return false;
+	}
+
+	/** A {@link TileSink} that writes each tile into {@code writer}. */
+	static public final TileSink makeTIFFSink(final TiledTIFFWriter writer) {
+		return new TileSink() {
+			@Override
+			public void put(final int col, final int row, final ImageProcessor tile) throws IOException {
+				writer.writeTile(col, row, tile);
+			}
+		};
+	}
+
+	/** A {@link TileSink} that writes the pixels of each tile into {@code out} at their place in an image of {@code width} by {@code height}
+	 * pixels, row after row, in big endian byte order; RGB pixels as three bytes. Sets the length of {@code out} to that of the image.
+	 * @param side The side of the tiles. */
+	static public final TileSink makeRawSink(final RandomAccessFile out, final int type, final int width, final int height, final int side) throws IOException {
+		final int bytesPerPixel;
+		switch (type) {
+			case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+			case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+			case ImagePlus.GRAY32: bytesPerPixel = 4; break;
+			default: bytesPerPixel = 3; break;
+		}
+		out.setLength((long)width * height * bytesPerPixel);
+		return new TileSink() {
+			@Override
+			public void put(final int col, final int row, final ImageProcessor tile) throws IOException {
+				final int x = col * side,
+				          w = Math.min(side, width - x),
+				          h = Math.min(side, height - row * side);
+				final ByteBuffer bb = ByteBuffer.allocate(w * bytesPerPixel);
+				for (int y = 0; y < h; ++y) {
+					bb.clear();
+					TiledTIFFWriter.putRow(bb, type, tile.getPixels(), y * side, w);
+					bb.flip();
+					final long pos = ((long)(row * side + y) * width + x) * bytesPerPixel;
+					while (bb.hasRemaining()) out.getChannel().write(bb, pos + bb.position());
+				}
+			}
+		};
+	}
+}
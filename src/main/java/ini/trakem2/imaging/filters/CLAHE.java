@@ -60,7 +60,15 @@ public class CLAHE implements IFilter
 		if (fast) {
 			Flat.getFastInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
 		} else {
-			Flat.getInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
+			// Each pixel depends only on its histogram within blockRadius, so bands give the same result in parallel.
+			// The fast instance interpolates between blocks laid out over the whole image, and cannot be split.
+			final boolean done = RowBands.run(ip, blockRadius, new RowBands.Op() {
+				@Override
+				public void process(final ImageProcessor band) {
+					Flat.getInstance().run(new ImagePlus("", band), blockRadius, bins, slope, null, false);
+				}
+			});
+			if (!done) Flat.getInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
 		}
 		return ip;
 	}
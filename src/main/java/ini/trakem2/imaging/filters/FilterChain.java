@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Applies a sequence of {@link IFilter} to an image, in order.
+ *
+ * Runs of consecutive {@link ITileFilter} that can process the image are fused: the image is split into bands
+ * of rows, and each band goes through all filters of the run before the next band, so that the pixels are read
+ * from memory once for the whole run rather than once per filter. Bands are processed in parallel, in place,
+ * without any intermediate image. All other filters are applied one at a time with {@link IFilter#process(ImageProcessor)}.
+ *
+ * Only {@link Invert} (on 8-bit and RGB images) and {@link ValueToNoise} are {@link ITileFilter}, so a chain is
+ * free of intermediate images only when made of these. {@link DefaultMinAndMax}, {@link ResetMinAndMax} and the LUT
+ * filters only set the display range or the color table, and do not touch the pixels. {@link Normalize},
+ * {@link EnhanceContrast} and {@link CorrectBackground} depend on the statistics of the whole image or on a median
+ * over a neighbourhood, so they cannot be applied one band at a time either.
+ *
+ * The other filters cannot be fused because the value of a pixel depends on more than that same pixel, which
+ * a band would read after the filters before it in the run have already altered the neighbouring bands:
+ * <ul>
+ * <li>{@link CLAHE} and {@link NormalizeLocalContrast} depend on a neighbourhood; they already run in parallel on bands
+ * with halos on their own, see {@link RowBands}, reusing the arrays cached by the calling {@link ini.trakem2.utils.CachingThread}.</li>
+ * <li>{@link GaussianBlur} and {@link RankFilter} depend on a neighbourhood, and ImageJ already runs them with many threads.
+ * Large sigmas are blurred on a downscaled grid anchored at the image origin, so bands would not give the same result.</li>
+ * <li>{@link SubtractBackground} rolls a ball over a shrunken image, which is not a fixed neighbourhood of each pixel.</li>
+ * <li>{@link EqualizeHistogram} depends on the histogram of the whole image.</li>
+ * <li>{@link RobustNormalizeLocalContrast} works on a downscaled copy, with blocks of up to thousands of pixels, and already runs in parallel.</li>
+ * </ul> */
+public final class FilterChain
+{
+	/** Approximate number of pixels in a band of rows. */
+	static public final int BAND_SIZE = 1 << 16;
+
+	static private ExecutorService exec = null;
+
+	static private final synchronized ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "FilterChain");
+		return exec;
+	}
+
+	private FilterChain() {}
+
+	/** Same as calling {@code ip = filter.process(ip)} for each filter in order.
+	 * @return possibly a new ImageProcessor, or the same as given. */
+	static public final ImageProcessor process(ImageProcessor ip, final IFilter[] filters) {
+		final ArrayList<ITileFilter> run = new ArrayList<ITileFilter>();
+		for (final IFilter filter : filters) {
+			if (filter instanceof ITileFilter && ((ITileFilter)filter).canProcessRows(ip)) {
+				run.add((ITileFilter)filter);
+				continue;
+			}
+			processRows(ip, run);
+			run.clear();
+			ip = filter.process(ip);
+		}
+		processRows(ip, run);
+		return ip;
+	}
+
+	static private final void processRows(final ImageProcessor ip, final ArrayList<ITileFilter> run) {
+		if (run.isEmpty()) return;
+		final ITileFilter[] fs = run.toArray(new ITileFilter[run.size()]);
+		final int height = ip.getHeight();
+		final int rows = Math.max(1, BAND_SIZE / Math.max(1, ip.getWidth()));
+		if (rows >= height) {
+			for (final ITileFilter f : fs) f.processRows(ip, 0, height);
+			return;
+		}
+		final ExecutorService exec = getExecutor();
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		for (int y = 0; y < height; y += rows) {
+			final int first = y,
+			          last = Math.min(height, y + rows);
+			fus.add(exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (final ITileFilter f : fs) f.processRows(ip, first, last);
+				}
+			}));
+		}
+		for (final Future<?> fu : fus) {
+			try {
+				fu.get();
+			} catch (final InterruptedException ie) {
+				for (final Future<?> f : fus) f.cancel(true);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final Exception e) {
+				IJError.print(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+
+/** An {@link IFilter} that can alter the pixels of an image in place, one horizontal band at a time,
+ * with each pixel depending only on itself. Bands can then be processed in parallel, and consecutive
+ * such filters can be applied to each band in turn while it is in the CPU cache; see {@link FilterChain}. */
+public interface ITileFilter extends IFilter
+{
+	/** Whether {@link #processRows(ImageProcessor, int, int)} can process the type of {@code ip}. */
+	public boolean canProcessRows(ImageProcessor ip);
+
+	/** Alter in place the pixels of rows {@code firstRow} (inclusive) to {@code lastRow} (exclusive).
+	 * Must be safe to call concurrently for non-overlapping bands of rows. */
+	public void processRows(ImageProcessor ip, int firstRow, int lastRow);
+}
@@ -21,11 +21,14 @@
  */
 package ini.trakem2.imaging.filters;
 
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
 import java.util.Map;
 
-public class Invert implements IFilter
+public class Invert implements ITileFilter
 {
 	public Invert() {}
 	
@@ -37,6 +40,34 @@ public class Invert implements IFilter
 		return ip;
 	}
 
+	/** Only for 8-bit and RGB images, for which inverting does not depend on min and max. */
+	@Override
+	public boolean canProcessRows(final ImageProcessor ip) {
+		return ip.getClass() == ByteProcessor.class || ip.getClass() == ColorProcessor.class;
+	}
+
+	/** Same as {@link ImageProcessor#invert()} for 8-bit and RGB images: only within the rectangle of the ROI, if any. */
+	@Override
+	public void processRows(final ImageProcessor ip, final int firstRow, final int lastRow) {
+		final Rectangle roi = ip.getRoi();
+		final int w = ip.getWidth(),
+		          y0 = Math.max(firstRow, roi.y),
+		          y1 = Math.min(lastRow, roi.y + roi.height),
+		          x0 = roi.x,
+		          x1 = roi.x + roi.width;
+		if (ip instanceof ColorProcessor) {
+			final int[] pix = (int[])ip.getPixels();
+			for (int y = y0; y < y1; ++y) {
+				for (int i = y * w + x0, end = y * w + x1; i < end; ++i) pix[i] = 0xff000000 | ~pix[i];
+			}
+		} else {
+			final byte[] pix = (byte[])ip.getPixels();
+			for (int y = y0; y < y1; ++y) {
+				for (int i = y * w + x0, end = y * w + x1; i < end; ++i) pix[i] = (byte)(255 - (pix[i] & 0xff));
+			}
+		}
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent).append("<t2_filter class=\"")
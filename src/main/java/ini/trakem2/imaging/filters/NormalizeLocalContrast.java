@@ -21,7 +21,9 @@
  */
 package ini.trakem2.imaging.filters;
 
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import java.util.Map;
 
@@ -70,13 +72,34 @@ public class NormalizeLocalContrast implements IFilter
 	@Override
 	public ImageProcessor process(final ImageProcessor ip) {
 		try {
-			mpicbg.ij.plugin.NormalizeLocalContrast.run(ip, brx, bry, stds, cent, stret);
+			final boolean done = hasExactSums(ip) && RowBands.run(ip, bry, new RowBands.Op() {
+				@Override
+				public void process(final ImageProcessor band) {
+					mpicbg.ij.plugin.NormalizeLocalContrast.run(band, brx, bry, stds, cent, stret);
+				}
+			});
+			if (!done) mpicbg.ij.plugin.NormalizeLocalContrast.run(ip, brx, bry, stds, cent, stret);
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
 		return ip;
 	}
 
+	/** Whether the block means and standard deviations, read from integral images of doubles,
+	 * are free of rounding errors and therefore do not depend on where the image starts. True for
+	 * 8-bit and for 16-bit images whose sum of squares fits in the 53 bits of a double's mantissa. */
+	static private final boolean hasExactSums(final ImageProcessor ip) {
+		if (ip.getClass() == ByteProcessor.class) return true;
+		if (ip.getClass() != ShortProcessor.class) return false;
+		final short[] pix = (short[])ip.getPixels();
+		long sum = 0;
+		for (int i = 0; i < pix.length; ++i) {
+			final long v = pix[i] & 0xffff;
+			sum += v * v;
+		}
+		return sum < (1L << 53);
+	}
+
 	@Override
 	public String toXML(final String indent) {
 		return new StringBuilder(indent)
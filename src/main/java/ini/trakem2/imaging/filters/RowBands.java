@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Runs an in-place filter in parallel on horizontal bands of an image.
+ *
+ * Each band is copied together with {@code halo} rows above and below it, the filter is run on the copy,
+ * and then the rows of the band are copied back. For a filter whose value at each pixel depends only on
+ * the pixels within {@code halo} rows of it, and on no statistic of the whole image, the result is
+ * identical to running the filter on the whole image. All copies are made before any band is written back.
+ * For 8-bit and RGB images, the copies reuse the arrays cached by the calling thread when it is a {@link CachingThread},
+ * such as those that make the mipmaps, and are given back to it at the end.
+ *
+ * The threads come from a pool of as many daemon threads as CPUs, created once and shared by all callers, so that
+ * filtering many images starts no new threads; one band per thread. The calling thread
+ * runs any band that no thread of the pool has started yet, so that it never waits on a pool whose threads
+ * may all be busy, or all be waiting themselves on bands of other images. */
+public final class RowBands
+{
+	/** The in-place operation to run on each band. */
+	static public interface Op {
+		public void process(ImageProcessor band);
+	}
+
+	/** Bands are at least this many rows high, not counting the halo. */
+	static public final int MIN_ROWS = 64;
+
+	static private ExecutorService exec = null;
+
+	static private final synchronized ExecutorService getExecutor() {
+		if (null == exec) exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "RowBands", false);
+		return exec;
+	}
+
+	private RowBands() {}
+
+	/** @return false if the image is too small to be split, in which case nothing was done. */
+	static public final boolean run(final ImageProcessor ip, final int halo, final Op op) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final int minRows = Math.max(MIN_ROWS, halo);
+		if (height < 2 * minRows) return false;
+
+		// Shared by all calls: never shut it down
+		final ExecutorService exec = getExecutor();
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		final ArrayList<Object> borrowed = new ArrayList<Object>();
+		boolean done = false;
+		try {
+			final int nBands = Math.min(Runtime.getRuntime().availableProcessors(), height / minRows);
+			if (nBands < 2) return false;
+
+			// Copy all bands, with their halos, before any is altered
+			final ImageProcessor[] bands = new ImageProcessor[nBands];
+			final int[] first = new int[nBands],
+			            last = new int[nBands],
+			            top = new int[nBands];
+			for (int i = 0; i < nBands; ++i) {
+				first[i] = (int)((long)height * i / nBands);
+				last[i] = (int)((long)height * (i + 1) / nBands);
+				top[i] = Math.max(0, first[i] - halo);
+				final int bottom = Math.min(height, last[i] + halo);
+				bands[i] = copyRows(ip, top[i], bottom, borrowed);
+				// crop() recomputes min and max for 16-bit and float images, and for RGB setMinAndMax would alter the pixels
+				if (!(ip instanceof ColorProcessor)) bands[i].setMinAndMax(ip.getMin(), ip.getMax());
+			}
+
+			// Each band is run once, by whichever thread claims it first
+			final AtomicBoolean[] claimed = new AtomicBoolean[nBands];
+			final Runnable[] tasks = new Runnable[nBands];
+			for (int i = 0; i < nBands; ++i) {
+				final int k = i;
+				claimed[k] = new AtomicBoolean(false);
+				tasks[k] = new Runnable() {
+					@Override
+					public void run() {
+						if (!claimed[k].compareAndSet(false, true)) return;
+						op.process(bands[k]);
+						// Copy back only the rows of the band
+						System.arraycopy(bands[k].getPixels(), (first[k] - top[k]) * width, ip.getPixels(), first[k] * width, (last[k] - first[k]) * width);
+					}
+				};
+			}
+			for (int i = 1; i < nBands; ++i) fus.add(exec.submit(tasks[i]));
+			for (final Runnable task : tasks) task.run();
+			for (final Future<?> fu : fus) fu.get();
+			done = true;
+
+			// Keep the display range set by the filter, if any: a fixed one, or else one reset to the pixel values
+			if (!(ip instanceof ColorProcessor)) {
+				final double min = bands[0].getMin(),
+				             max = bands[0].getMax();
+				boolean same = true;
+				for (final ImageProcessor b : bands) same = same && min == b.getMin() && max == b.getMax();
+				if (!same) ip.resetMinAndMax();
+				else if (min != ip.getMin() || max != ip.getMax()) ip.setMinAndMax(min, max);
+			}
+			return true;
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return true;
+		} catch (final ExecutionException ee) {
+			IJError.print(ee.getCause());
+			return true;
+		} finally {
+			// Release the bands not yet run when interrupted or failed; no-op for those done
+			for (final Future<?> fu : fus) fu.cancel(true);
+			// Only when no band can be running any longer
+			if (done) {
+				for (final Object pix : borrowed) {
+					if (pix instanceof byte[]) CachingThread.storeForReuse((byte[])pix);
+					else CachingThread.storeForReuse((int[])pix);
+				}
+			}
+		}
+	}
+
+	/** Same as cropping {@code ip} to the rows from {@code top} (inclusive) to {@code bottom} (exclusive), but for 8-bit and RGB
+	 * images the pixel array is taken from those cached by the calling {@link CachingThread}, if it is one, and added to {@code borrowed}. */
+	static private final ImageProcessor copyRows(final ImageProcessor ip, final int top, final int bottom, final ArrayList<Object> borrowed) {
+		final int width = ip.getWidth(),
+		          length = width * (bottom - top);
+		if (ip.getClass() == ByteProcessor.class) {
+			final byte[] pix = CachingThread.getOrCreateByteArray(1, length)[0];
+			System.arraycopy(ip.getPixels(), top * width, pix, 0, length);
+			borrowed.add(pix);
+			return new ByteProcessor(width, bottom - top, pix, ip.getColorModel());
+		}
+		if (ip.getClass() == ColorProcessor.class) {
+			final int[] pix = CachingThread.getOrCreateIntArray(length);
+			System.arraycopy(ip.getPixels(), top * width, pix, 0, length);
+			borrowed.add(pix);
+			return new ColorProcessor(width, bottom - top, pix);
+		}
+		ip.setRoi(0, top, width, bottom - top);
+		final ImageProcessor band = ip.crop();
+		ip.resetRoi();
+		return band;
+	}
+}
@@ -28,46 +28,42 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 import java.util.Random;
 
-public class ValueToNoise implements IFilter
+public class ValueToNoise implements ITileFilter
 {
-	final static private void processFloatNaN(final FloatProcessor ip, final double min, final double max) {
+	final static private void processFloatNaN(final FloatProcessor ip, final int first, final int last, final double min, final double max) {
 		final double scale = max - min;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = first; i < last; ++i) {
 			final float v = ip.getf(i);
 			if (Float.isNaN(v))
 				ip.setf(i, (float)(rnd.nextDouble() * scale + min));
 		}
 	}
 
-	final static private void processFloat(final FloatProcessor ip, final float value, final double min, final double max) {
+	final static private void processFloat(final FloatProcessor ip, final int first, final int last, final float value, final double min, final double max) {
 		final double scale = max - min;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = first; i < last; ++i) {
 			final float v = ip.getf(i);
 			if (v == value)
 				ip.setf(i, (float)(rnd.nextDouble() * scale + min));
 		}
 	}
 
-	final static private void processGray(final ImageProcessor ip, final int value, final int min, final int max) {
+	final static private void processGray(final ImageProcessor ip, final int first, final int last, final int value, final int min, final int max) {
 		final int scale = max - min + 1;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = first; i < last; ++i) {
 			final int v = ip.get(i);
 			if (v == value)
 				ip.set(i, rnd.nextInt(scale) + min);
 		}
 	}
 
-	final static private void processColor(final ColorProcessor ip, final int value, final int min, final int max) {
+	final static private void processColor(final ColorProcessor ip, final int first, final int last, final int value, final int min, final int max) {
 		final int scale = max - min + 1;
 		final Random rnd = new Random();
-		final int n = ip.getWidth() * ip.getHeight();
-		for (int i =0; i < n; ++i) {
+		for (int i = first; i < last; ++i) {
 			final int v = ip.get(i);
 			if (v == value)
 			{
@@ -116,23 +112,38 @@ public class ValueToNoise implements IFilter
 	@Override
 	public ImageProcessor process(final ImageProcessor ip) {
 		try {
-			if (FloatProcessor.class.isInstance(ip)) {
-				if (Double.isNaN(value))
-					processFloatNaN((FloatProcessor)ip, min, max);
-				else
-					processFloat((FloatProcessor)ip, (float)value, min, max);
-			} else {
-				if (ColorProcessor.class.isInstance(ip))
-					processColor((ColorProcessor)ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
-				else
-					processGray(ip, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
-			}
+			process(ip, 0, ip.getWidth() * ip.getHeight());
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
 		return ip;
 	}
 
+	/** Pixels with indices from {@code first} (inclusive) to {@code last} (exclusive). */
+	private final void process(final ImageProcessor ip, final int first, final int last) {
+		if (FloatProcessor.class.isInstance(ip)) {
+			if (Double.isNaN(value))
+				processFloatNaN((FloatProcessor)ip, first, last, min, max);
+			else
+				processFloat((FloatProcessor)ip, first, last, (float)value, min, max);
+		} else {
+			if (ColorProcessor.class.isInstance(ip))
+				processColor((ColorProcessor)ip, first, last, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
+			else
+				processGray(ip, first, last, (int)Math.round(value), (int)Math.round(min), (int)Math.round(max));
+		}
+	}
+
+	@Override
+	public boolean canProcessRows(final ImageProcessor ip) {
+		return true;
+	}
+
+	@Override
+	public void processRows(final ImageProcessor ip, final int firstRow, final int lastRow) {
+		process(ip, firstRow * ip.getWidth(), lastRow * ip.getWidth());
+	}
+
 	@Override
 	public String toXML(final String indent) {
 		return new StringBuilder(indent)
@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Single-slice {@link ImagePlus} of any type but indexed color, as a header and the uncompressed pixel array,
+ * to be read back without any decoding. The header includes a key that identifies the data the image was
+ * made from; an image is only read back when the key matches.
+ *
+ * Header: magic number, key length, key (UTF-8), type, width, height, min, max. */
+public final class RawImages {
+
+	static private final int MAGIC = 0x54325249; // "T2RI"
+
+	private RawImages() {}
+
+	/** Whether the {@link ImagePlus} can be saved. */
+	static public final boolean canSave(final ImagePlus imp) {
+		if (null == imp || imp.getStackSize() > 1) return false;
+		final ImageProcessor ip = imp.getProcessor();
+		if (null == ip || null == ip.getPixels()) return false;
+		switch (imp.getType()) {
+			case ImagePlus.GRAY8:
+				return !ip.isColorLut() && !ip.isInvertedLut();
+			case ImagePlus.GRAY16:
+			case ImagePlus.GRAY32:
+			case ImagePlus.COLOR_RGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Write to a temporary file first, then rename, so that readers never find a partial file. */
+	static public final boolean save(final String path, final String key, final ImagePlus imp) {
+		if (!canSave(imp)) return false;
+		if (!ImageSaver.checkPath(path)) return false;
+		final ImageProcessor ip = imp.getProcessor();
+		final int n = ip.getWidth() * ip.getHeight();
+		final byte[] k = key.getBytes(java.nio.charset.Charset.forName("UTF-8"));
+		final int bytesPerPixel;
+		switch (imp.getType()) {
+			case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+			case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+			default: bytesPerPixel = 4; break;
+		}
+		final ByteBuffer bb = ByteBuffer.allocate(4 + 4 + k.length + 4 + 4 + 4 + 8 + 8 + n * bytesPerPixel);
+		bb.putInt(MAGIC).putInt(k.length).put(k)
+		  .putInt(imp.getType()).putInt(ip.getWidth()).putInt(ip.getHeight())
+		  .putDouble(ip.getMin()).putDouble(ip.getMax());
+		switch (imp.getType()) {
+			case ImagePlus.GRAY8: bb.put((byte[])ip.getPixels()); break;
+			case ImagePlus.GRAY16: bb.asShortBuffer().put((short[])ip.getPixels()); break;
+			case ImagePlus.GRAY32: bb.asFloatBuffer().put((float[])ip.getPixels()); break;
+			case ImagePlus.COLOR_RGB: bb.asIntBuffer().put((int[])ip.getPixels()); break;
+		}
+		bb.rewind();
+
+		final File f = new File(path);
+		final File tmp = new File(path + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			final FileChannel ch = out.getChannel();
+			while (bb.hasRemaining()) ch.write(bb);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				if (!tmp.renameTo(f)) {
+					Utils.log2("Could not rename " + tmp + " to " + f);
+					tmp.delete();
+					return false;
+				}
+			}
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			tmp.delete();
+		} finally {
+			if (null != out) try { out.close(); } catch (final IOException e) { IJError.print(e); }
+		}
+		return false;
+	}
+
+	/** Returns null if the file does not exist, cannot be read, or was saved with a different key.
+	 * The pixels are read straight into the pixel array of the image, in chunks, without holding the whole file in memory. */
+	static public final ImagePlus read(final String path, final String key) {
+		final File f = new File(path);
+		if (!f.exists()) return null;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			final FileChannel ch = in.getChannel();
+			final ByteBuffer head = ByteBuffer.allocate(8);
+			if (!readFully(ch, head)) return null;
+			head.flip();
+			if (MAGIC != head.getInt()) return null;
+			final int klen = head.getInt();
+			if (klen < 0 || klen > ch.size() - ch.position()) return null;
+			final ByteBuffer bb = ByteBuffer.allocate(klen + 4 + 4 + 4 + 8 + 8);
+			if (!readFully(ch, bb)) return null;
+			bb.flip();
+			final byte[] k = new byte[klen];
+			bb.get(k);
+			if (!key.equals(new String(k, java.nio.charset.Charset.forName("UTF-8")))) return null;
+			final int type = bb.getInt(),
+			          width = bb.getInt(),
+			          height = bb.getInt();
+			final double min = bb.getDouble(),
+			             max = bb.getDouble();
+			final int bytesPerPixel;
+			switch (type) {
+				case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+				case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+				case ImagePlus.GRAY32:
+				case ImagePlus.COLOR_RGB: bytesPerPixel = 4; break;
+				default: return null;
+			}
+			// Truncated files are not read at all
+			if (width < 0 || height < 0 || (long)width * height * bytesPerPixel != ch.size() - ch.position()) return null;
+			final int n = width * height;
+			final ImageProcessor ip;
+			switch (type) {
+				case ImagePlus.GRAY8: {
+					final byte[] pix = new byte[n];
+					if (!readFully(ch, ByteBuffer.wrap(pix))) return null;
+					ip = new ByteProcessor(width, height, pix, null);
+					break;
+				}
+				case ImagePlus.GRAY16: {
+					final short[] pix = new short[n];
+					final ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+					for (int i = 0; i < n; ) {
+						final int m = Math.min(CHUNK / 2, n - i);
+						if (!readChunk(ch, chunk, m * 2)) return null;
+						chunk.asShortBuffer().get(pix, i, m);
+						i += m;
+					}
+					ip = new ShortProcessor(width, height, pix, null);
+					break;
+				}
+				case ImagePlus.GRAY32: {
+					final float[] pix = new float[n];
+					final ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+					for (int i = 0; i < n; ) {
+						final int m = Math.min(CHUNK / 4, n - i);
+						if (!readChunk(ch, chunk, m * 4)) return null;
+						chunk.asFloatBuffer().get(pix, i, m);
+						i += m;
+					}
+					ip = new FloatProcessor(width, height, pix, null);
+					break;
+				}
+				default: {
+					final int[] pix = new int[n];
+					final ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+					for (int i = 0; i < n; ) {
+						final int m = Math.min(CHUNK / 4, n - i);
+						if (!readChunk(ch, chunk, m * 4)) return null;
+						chunk.asIntBuffer().get(pix, i, m);
+						i += m;
+					}
+					ip = new ColorProcessor(width, height, pix);
+					break;
+				}
+			}
+			// For RGB, setMinAndMax would alter the pixels, which are stored as they were
+			if (ImagePlus.COLOR_RGB != type) ip.setMinAndMax(min, max);
+			return new ImagePlus(f.getName(), ip);
+		} catch (final Exception e) {
+			// Corrupt: will be overwritten
+			Utils.log2("Could not read raw image " + path + ": " + e);
+		} finally {
+			if (null != in) try { in.close(); } catch (final IOException e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Bytes read at once into a pixel array other than of bytes; a multiple of 4. */
+	static private final int CHUNK = 1 << 16;
+
+	/** Fill the remaining space of {@code bb}; false if the file ends before. */
+	static private final boolean readFully(final FileChannel ch, final ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			if (ch.read(bb) < 0) return false;
+		}
+		return true;
+	}
+
+	/** Read the next {@code n_bytes} into the start of {@code chunk}, ready to be read from. */
+	static private final boolean readChunk(final FileChannel ch, final ByteBuffer chunk, final int n_bytes) throws IOException {
+		chunk.clear();
+		chunk.limit(n_bytes);
+		if (!readFully(ch, chunk)) return false;
+		chunk.flip();
+		return true;
+	}
+}
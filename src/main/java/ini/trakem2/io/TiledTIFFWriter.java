@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/** Writes an uncompressed, tiled TIFF file one tile at a time, in any order, without ever holding more than one tile in memory.
+ * Tiles are appended to the file as they arrive; the directory with the tile offsets is written by {@link #close()}.
+ * Files larger than 4 GB are written as BigTIFF.
+ *
+ * Supports 8-bit, 16-bit, 32-bit (float) and RGB images. Tiles at the right and bottom edges are padded,
+ * as the TIFF specification requires. Tile sides must be multiples of 16. */
+public final class TiledTIFFWriter {
+
+	private final RandomAccessFile ra;
+	private final int type, width, height, tileWidth, tileHeight, nCols, nRows, bytesPerPixel;
+	private final boolean big;
+	private final long[] offsets;
+	private boolean closed = false;
+
+	/**
+	 * @param type Any of ImagePlus.GRAY8, GRAY16, GRAY32 or COLOR_RGB.
+	 * @throws IOException */
+	public TiledTIFFWriter(final String path, final int type, final int width, final int height, final int tileWidth, final int tileHeight) throws IOException {
+		if (0 != tileWidth % 16 || 0 != tileHeight % 16 || tileWidth <= 0 || tileHeight <= 0) {
+			throw new IllegalArgumentException("Tile sides must be positive multiples of 16.");
+		}
+		switch (type) {
+			case ImagePlus.GRAY8: this.bytesPerPixel = 1; break;
+			case ImagePlus.GRAY16: this.bytesPerPixel = 2; break;
+			case ImagePlus.GRAY32: this.bytesPerPixel = 4; break;
+			case ImagePlus.COLOR_RGB: this.bytesPerPixel = 3; break;
+			default: throw new IllegalArgumentException("Unsupported image type: " + type);
+		}
+		this.type = type;
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.nCols = (width + tileWidth - 1) / tileWidth;
+		this.nRows = (height + tileHeight - 1) / tileHeight;
+		this.offsets = new long[nCols * nRows];
+		// Tiles plus generous room for the directory and the two tile arrays
+		final long size = (long)nCols * nRows * getTileByteCount() + 16L * offsets.length + 4096;
+		this.big = size > 0xffffffffL;
+		final File f = new File(path);
+		if (f.exists()) f.delete();
+		this.ra = new RandomAccessFile(f, "rw");
+		// Header, in big endian, with the offset to the directory to be filled in by close()
+		ra.writeShort(0x4d4d); // "MM"
+		if (big) {
+			ra.writeShort(43);
+			ra.writeShort(8); // bytes per offset
+			ra.writeShort(0);
+			ra.writeLong(0);
+		} else {
+			ra.writeShort(42);
+			ra.writeInt(0);
+		}
+	}
+
+	public final int getTileByteCount() {
+		return tileWidth * tileHeight * bytesPerPixel;
+	}
+
+	public final int getColumns() { return nCols; }
+
+	public final int getRows() { return nRows; }
+
+	/** Write the tile at column {@code col} and row {@code row}, whose top-left pixel is at col * tileWidth, row * tileHeight.
+	 * The {@code tile} must be of the type of this writer and at least as large as a tile; any excess is ignored. */
+	public final void writeTile(final int col, final int row, final ImageProcessor tile) throws IOException {
+		final ByteBuffer bb = ByteBuffer.allocate(getTileByteCount()); // big endian
+		final int w = tile.getWidth();
+		final Object pixels = tile.getPixels();
+		for (int y = 0; y < tileHeight; ++y) {
+			putRow(bb, type, pixels, y * w, tileWidth);
+		}
+		bb.rewind();
+		synchronized (ra) {
+			if (closed) throw new IOException("Writer is closed.");
+			final long pos = ra.length();
+			while (bb.hasRemaining()) ra.getChannel().write(bb, pos + bb.position());
+			offsets[row * nCols + col] = pos;
+		}
+	}
+
+	/** Put {@code length} pixels of the {@code pixels} array of an image of {@code type}, starting at {@code offset},
+	 * into {@code bb} in its byte order, and advance its position. RGB pixels are put as three bytes each. */
+	static public final void putRow(final ByteBuffer bb, final int type, final Object pixels, final int offset, final int length) {
+		switch (type) {
+			case ImagePlus.GRAY8:
+				bb.put((byte[])pixels, offset, length);
+				break;
+			case ImagePlus.GRAY16:
+				bb.asShortBuffer().put((short[])pixels, offset, length);
+				bb.position(bb.position() + length * 2);
+				break;
+			case ImagePlus.GRAY32:
+				bb.asFloatBuffer().put((float[])pixels, offset, length);
+				bb.position(bb.position() + length * 4);
+				break;
+			case ImagePlus.COLOR_RGB:
+				final int[] c = (int[])pixels;
+				for (int i = offset, end = offset + length; i < end; ++i) {
+					final int v = c[i];
+					bb.put((byte)(v >> 16)).put((byte)(v >> 8)).put((byte)v);
+				}
+				break;
+		}
+	}
+
+	/** Write the directory and close the file.
+	 * @throws IOException if not all tiles were written, in which case the file is not a valid TIFF. */
+	public final void close() throws IOException {
+		synchronized (ra) {
+			if (closed) return;
+			closed = true;
+			try {
+				for (final long offset : offsets) {
+					if (0 == offset) throw new IOException("Not all tiles were written.");
+				}
+				writeDirectory();
+			} finally {
+				ra.close();
+			}
+		}
+	}
+
+	/** Abort writing, without a directory: the file is not a valid TIFF. */
+	public final void abort() throws IOException {
+		synchronized (ra) {
+			if (closed) return;
+			closed = true;
+			ra.close();
+		}
+	}
+
+	static private final int SHORT = 3, LONG = 4, LONG8 = 16;
+
+	private final void writeDirectory() throws IOException {
+		final boolean rgb = ImagePlus.COLOR_RGB == type;
+		final int samples = rgb ? 3 : 1;
+		final int bits = rgb ? 8 : bytesPerPixel * 8;
+
+		// Arrays that do not fit in the entries go after the directory
+		final int nEntries = 12;
+		final int entrySize = big ? 20 : 12,
+		          valueSize = big ? 8 : 4;
+		final long ifd = (ra.length() + 1) & ~1L; // word aligned
+		final long extra = ifd + (big ? 8 : 2) + nEntries * entrySize + valueSize;
+
+		final ByteBuffer dir = ByteBuffer.allocate((int)(extra - ifd));
+		if (big) dir.putLong(nEntries); else dir.putShort((short)nEntries);
+
+		final ByteBuffer tail = ByteBuffer.allocate(samples * 2 + offsets.length * (big ? 8 : 4) * 2 + 16);
+
+		// BitsPerSample
+		final long bitsAt;
+		if (samples * 2 > valueSize) {
+			bitsAt = extra + tail.position();
+			for (int i = 0; i < samples; ++i) tail.putShort((short)bits);
+		} else bitsAt = -1;
+		// TileOffsets and TileByteCounts
+		final int tileType = big ? LONG8 : LONG;
+		final long offsetsAt, countsAt;
+		if (offsets.length > 1) {
+			offsetsAt = extra + tail.position();
+			for (final long o : offsets) { if (big) tail.putLong(o); else tail.putInt((int)o); }
+			countsAt = extra + tail.position();
+			for (int i = 0; i < offsets.length; ++i) { if (big) tail.putLong(getTileByteCount()); else tail.putInt(getTileByteCount()); }
+		} else {
+			offsetsAt = countsAt = -1;
+		}
+
+		entry(dir, 256, LONG, 1, width);
+		entry(dir, 257, LONG, 1, height);
+		if (-1 == bitsAt) shorts(dir, 258, bits, samples);
+		else entry(dir, 258, SHORT, samples, bitsAt);
+		entry(dir, 259, SHORT, 1, 1); // no compression
+		entry(dir, 262, SHORT, 1, rgb ? 2 : 1); // RGB or black is zero
+		entry(dir, 277, SHORT, 1, samples);
+		entry(dir, 284, SHORT, 1, 1); // chunky
+		entry(dir, 322, LONG, 1, tileWidth);
+		entry(dir, 323, LONG, 1, tileHeight);
+		entry(dir, 324, tileType, offsets.length, -1 == offsetsAt ? offsets[0] : offsetsAt);
+		entry(dir, 325, tileType, offsets.length, -1 == countsAt ? getTileByteCount() : countsAt);
+		entry(dir, 339, SHORT, 1, ImagePlus.GRAY32 == type ? 3 : 1); // float or unsigned integer
+		// No next directory
+		if (big) dir.putLong(0); else dir.putInt(0);
+
+		dir.flip();
+		tail.flip();
+		while (dir.hasRemaining()) ra.getChannel().write(dir, ifd + dir.position());
+		while (tail.hasRemaining()) ra.getChannel().write(tail, extra + tail.position());
+
+		// Point the header to the directory
+		ra.seek(big ? 8 : 4);
+		if (big) ra.writeLong(ifd); else ra.writeInt((int)ifd);
+	}
+
+	/** A directory entry with a single value, or with the offset to its values, left-justified in the value field. */
+	private final void entry(final ByteBuffer dir, final int tag, final int fieldType, final long count, final long value) {
+		dir.putShort((short)tag).putShort((short)fieldType);
+		if (big) dir.putLong(count); else dir.putInt((int)count);
+		final boolean inline = 1 == count;
+		if (inline && SHORT == fieldType) {
+			dir.putShort((short)value);
+			dir.position(dir.position() + (big ? 6 : 2));
+		} else if (big) {
+			if (inline && LONG == fieldType) {
+				dir.putInt((int)value).putInt(0);
+			} else dir.putLong(value);
+		} else {
+			dir.putInt((int)value);
+		}
+	}
+
+	/** A directory entry of {@code count} copies of a short value that fit in the value field. */
+	private final void shorts(final ByteBuffer dir, final int tag, final int value, final int count) {
+		dir.putShort((short)tag).putShort((short)SHORT);
+		if (big) dir.putLong(count); else dir.putInt(count);
+		final int start = dir.position();
+		for (int i = 0; i < count; ++i) dir.putShort((short)value);
+		dir.position(start + (big ? 8 : 4));
+	}
+}
@@ -24,6 +24,7 @@
 package ini.trakem2.persistence;
 
 import ini.trakem2.Project;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 
 import java.util.Set;
@@ -81,9 +82,11 @@ public class DBObject {
 	}
 
 	public boolean updateInDatabase(String key) {
+		SearchIndex.changed(this, key);
 		return project.getLoader().updateInDatabase(this, key);
 	}
 	public boolean updateInDatabase(Set<String> keys) {
+		for (final String key : keys) SearchIndex.changed(this, key);
 		return project.getLoader().updateInDatabase(this, keys);
 	}
 
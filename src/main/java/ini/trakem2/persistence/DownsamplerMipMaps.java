@@ -144,9 +144,9 @@ public final class DownsamplerMipMaps
 			final int[] argbs = new int[tw * th];
 			for (int i=0; i<rs.length; ++i) {
 				argbs[i] = 0xff000000 // alpha: fully visible
-						   & ((rs[i] & 0xff) << 16)
-                           & ((gs[i] & 0xff) <<  8)
-                           & ( bs[i] & 0xff       );
+						   | ((rs[i] & 0xff) << 16)
+                           | ((gs[i] & 0xff) <<  8)
+                           | ( bs[i] & 0xff       );
 			}
 			ipi = new ColorProcessor(tw, th, argbs);
 			type2 = ImagePlus.COLOR_RGB;
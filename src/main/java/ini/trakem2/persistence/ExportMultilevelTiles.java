@@ -69,7 +69,7 @@ import mpicbg.trakem2.util.Downsampler;
 public class ExportMultilevelTiles
 {
 	/** Will overwrite if the file path exists. */
-	static private Runnable makeTileRunnable(final Layer layer, final Rectangle srcRect, final double mag,
+	static Runnable makeTileRunnable(final Layer layer, final Rectangle srcRect, final double mag,
 			final int c_alphas, final int type, final Class<?> clazz, final String file_path,
 			final Saver saver, final int tileWidth, final int tileHeight, final boolean skip_empty_tiles,
 			final boolean padding) {
@@ -106,7 +106,7 @@ public class ExportMultilevelTiles
 	}
 
 	/** Find the closest, but larger, power of 2 number for the given edge size; the base root may be any of {1,2,3,5}. */
-	static private int[] determineClosestPowerOfTwo(final int edge) {
+	static int[] determineClosestPowerOfTwo(final int edge) {
 		final int[] starter = new int[]{1, 2, 3, 5}; // I love primer numbers
 		final int[] larger = new int[starter.length]; System.arraycopy(starter, 0, larger, 0, starter.length); // I hate java's obscene verbosity
 		for (int i=0; i<larger.length; i++) {
@@ -143,7 +143,7 @@ public class ExportMultilevelTiles
 	 * @param row
 	 * @return
 	 */
-	static private final String makeTilePath(final int type, String base_dir, final int section, final int row, final int column, final int scale_pow) {
+	static final String makeTilePath(final int type, String base_dir, final int section, final int row, final int column, final int scale_pow) {
 		
 		if (!base_dir.endsWith("/")) base_dir += "/";
 		
@@ -159,7 +159,7 @@ public class ExportMultilevelTiles
 		}
 	}
 	
-	static private final boolean isEmptyTile(final ImageProcessor ip) {
+	static final boolean isEmptyTile(final ImageProcessor ip) {
 		if (ip instanceof ByteProcessor) {
 			final byte[] b = (byte[])ip.getPixels();
 			for (int i=0; i<b.length; ++i) {
@@ -196,7 +196,8 @@ public class ExportMultilevelTiles
 	 * Best results obtained when the srcRect approaches or is a square. Black space will pad the right and bottom edges when the srcRect is not exactly a square.
 	 * Only the area within the srcRect is ever included, even if actual data exists beyond.
 	 * 
-	 * @param strategy 0 (original images), 1 (mipmaps) or 2 (mipmaps, with multi-layer threading)
+	 * @param strategy 0 (original images), 1 (mipmaps), 2 (mipmaps, with multi-layer threading), 3 (mipmaps, resumable: see {@link ExportTilePyramid})
+	 *                 or 4 (as 3, but only the regions changed since the last export: see {@link ini.trakem2.display.DirtyRegions})
 	 * @param directory_structure_type 0 or 1. See above.
 	 * @param skip_empty_tiles Entirely black tiles will not be written to disk.
 	 * @param use_layer_indices The folder for each layer will be that of its index in the LayerSet, which is guaranteed to be unique.
@@ -331,6 +332,14 @@ public class ExportMultilevelTiles
 				worker = exportFromMipMapsLayerWise(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
 						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
 				break;
+			case 3:
+				worker = ExportTilePyramid.export(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
+				break;
+			case 4:
+				worker = ExportTilePyramid.export(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads), true);
+				break;
 			default:
 				Utils.log("Unknown strategy: " + strategy);
 				return null;
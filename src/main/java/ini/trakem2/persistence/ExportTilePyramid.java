@@ -0,0 +1,632 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.DirtyRegions;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Saver;
+import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+
+/** Exports the same tile pyramid as {@link ExportMultilevelTiles#makePrescaledTiles}, but resumable and incremental.
+ *
+ * Only the tiles of the finest level are rendered. Each tile of a coarser level is made by averaging
+ * the 4 tiles below it, either as they are made or, when those are up to date, as read back from disk.
+ * All tiles of all layers are scheduled in a single {@link ForkJoinPool}, whose idle threads steal
+ * whole subtrees of the pyramid from busy ones.
+ *
+ * Each layer directory has a manifest with a stamp for every tile written. The stamp of a tile of the finest level
+ * is a hash of the XML of the visible instances of the exported class that intersect it, {@link ZDisplayable} instances included,
+ * and of the modification time of the image files of the {@link Patch} instances among them;
+ * that of a coarser tile combines the stamps of the 4 tiles below it. Tiles whose stamp matches that of the manifest
+ * and whose file exists are not made again, so that an interrupted export resumes where it stopped, and a repeated export
+ * only makes the tiles whose images have changed.
+ *
+ * When exporting changed regions only, the stamps are computed only for the tiles that intersect the {@link DirtyRegions}
+ * of each layer, and those tiles and their ancestors in the pyramid are made again; all other tiles are taken from the manifest.
+ */
+public class ExportTilePyramid
+{
+	static private final String MANIFEST = "tiles.manifest";
+
+	private ExportTilePyramid() {}
+
+	/** See {@link ExportMultilevelTiles#makePrescaledTiles} for the parameters. The {@code tileSide} must be even. */
+	static public Worker export(
+			final TreeMap<Integer, Layer> indices,
+			final int smallestIndex,
+			final String dir,
+			final Saver saver,
+			final Rectangle srcRect,
+			final int c_alphas,
+			final int type, final Class<?> clazz,
+			final int tileSide,
+			final int directory_structure_type,
+			final boolean use_layer_indices,
+			final boolean skip_empty_tiles,
+			final int n_threads)
+	{
+		return export(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+				directory_structure_type, use_layer_indices, skip_empty_tiles, n_threads, false);
+	}
+
+	/** @param dirty_only Whether to consider only the tiles that intersect the {@link DirtyRegions} of each layer, and their
+	 *                    ancestors, trusting the manifest for all others. The parts of those regions within the srcRect
+	 *                    are then forgotten, unless a tile could not be written.
+	 *                    Requires the project property "track_dirty_regions" and a previous export into the same directory.
+	 * @see #export(TreeMap, int, String, Saver, Rectangle, int, int, Class, int, int, boolean, boolean, int) */
+	static public Worker export(
+			final TreeMap<Integer, Layer> indices,
+			final int smallestIndex,
+			final String dir,
+			final Saver saver,
+			final Rectangle srcRect,
+			final int c_alphas,
+			final int type, final Class<?> clazz,
+			final int tileSide,
+			final int directory_structure_type,
+			final boolean use_layer_indices,
+			final boolean skip_empty_tiles,
+			final int n_threads,
+			final boolean dirty_only)
+	{
+		return new Worker("Creating resumable tile pyramid")
+		{
+			@Override
+			public void run() {
+				startedWorking();
+				final Worker worker = this;
+				final ForkJoinPool pool = new ForkJoinPool(Math.max(1, n_threads));
+				try {
+					final int[] best = ExportMultilevelTiles.determineClosestPowerOfTwo(srcRect.width > srcRect.height ? srcRect.width : srcRect.height);
+					final int n_edge_tiles = best[0] / tileSide;
+					if (n_edge_tiles < best[1] || 0 != tileSide % 2) {
+						Utils.log("The resumable pyramid needs an even tile side and more than one tile: use another strategy.");
+						return;
+					}
+					// Number of levels
+					int n_levels = 0;
+					for (int n_et = n_edge_tiles; n_et >= best[1]; n_et /= 2) ++n_levels;
+
+					final double thumb_scale = 192.0 / Math.max(srcRect.width, srcRect.height);
+					final AtomicInteger done = new AtomicInteger(0);
+					final int total = indices.size() * n_edge_tiles * n_edge_tiles;
+					final Params params = new Params(worker, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+							directory_structure_type, skip_empty_tiles, dirty_only, n_edge_tiles, n_levels, done, total);
+					if (dirty_only && null == indices.firstEntry().getValue().getParent().getDirtyRegions()) {
+						Utils.log("Changed regions are not being tracked: enable it in the project properties. Exporting all changed tiles.");
+					}
+
+					final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+					for (final Map.Entry<Integer, Layer> entry : indices.entrySet()) {
+						final Layer layer = entry.getValue();
+						final int index = use_layer_indices ? layer.getParent().indexOf(layer) : entry.getKey() - smallestIndex;
+						if (!Utils.ensure(dir + index)) {
+							Utils.log("Cannot write to the desired directory: " + dir + index + "/");
+							return;
+						}
+						tasks.add(pool.submit(new RecursiveAction() {
+							@Override
+							protected void compute() {
+								if (worker.hasQuitted()) return;
+								// Create layer thumbnail, max 192x192
+								ExportMultilevelTiles.makeTileRunnable(layer, srcRect, thumb_scale, c_alphas, type, clazz, dir + index + "/small", saver, 192, 192, false, false).run();
+								new LayerPyramid(params, layer, index).run();
+							}
+						}));
+					}
+					for (final ForkJoinTask<?> task : tasks) task.join();
+				} catch (final Throwable t) {
+					IJError.print(t);
+				} finally {
+					pool.shutdownNow();
+					Utils.showProgress(1);
+					finishedWorking();
+				}
+			}
+		};
+	}
+
+	/** The parameters shared by all layers. */
+	static private final class Params
+	{
+		private final Worker worker;
+		private final String dir;
+		private final Saver saver;
+		private final Rectangle srcRect;
+		private final int c_alphas, type, tileSide, directory_structure_type, n_edge_tiles, n_levels, total;
+		private final Class<?> clazz;
+		private final boolean skip_empty_tiles, dirty_only;
+		private final AtomicInteger done;
+		/** Folds the parameters that change the tiles into every stamp. */
+		private final long seed;
+		/** The stamp of each Displayable, shared by all layers so that each {@link ZDisplayable} is stamped once. */
+		private final ConcurrentHashMap<Displayable,Long> stamps = new ConcurrentHashMap<Displayable,Long>();
+
+		private Params(final Worker worker, final String dir, final Saver saver, final Rectangle srcRect,
+				final int c_alphas, final int type, final Class<?> clazz, final int tileSide,
+				final int directory_structure_type, final boolean skip_empty_tiles, final boolean dirty_only,
+				final int n_edge_tiles, final int n_levels, final AtomicInteger done, final int total) {
+			this.worker = worker;
+			this.dir = dir;
+			this.saver = saver;
+			this.srcRect = srcRect;
+			this.c_alphas = c_alphas;
+			this.type = type;
+			this.clazz = clazz;
+			this.tileSide = tileSide;
+			this.directory_structure_type = directory_structure_type;
+			this.skip_empty_tiles = skip_empty_tiles;
+			this.dirty_only = dirty_only;
+			this.n_edge_tiles = n_edge_tiles;
+			this.n_levels = n_levels;
+			this.done = done;
+			this.total = total;
+			this.seed = hash(srcRect + " " + c_alphas + " " + type + " " + clazz.getName() + " " + tileSide + " " + saver.getExtension() + " " + skip_empty_tiles);
+		}
+	}
+
+	/** The pyramid of one layer, with its stamps and manifest. */
+	static private final class LayerPyramid
+	{
+		private final Params pa;
+		private final Layer layer;
+		private final int index;
+		/** For each level, the stamp of each tile, by row and then column. */
+		private final long[][] stamps;
+		private final Manifest manifest;
+		/** The changed regions to export, or null to consider all tiles. */
+		private List<Rectangle> dirty = null;
+		/** Whether any tile could not be written, so that the changed regions must be kept. */
+		private volatile boolean failed = false;
+
+		private LayerPyramid(final Params pa, final Layer layer, final int index) {
+			this.pa = pa;
+			this.layer = layer;
+			this.index = index;
+			this.stamps = new long[pa.n_levels][];
+			this.manifest = new Manifest(pa.dir + index + "/" + MANIFEST);
+		}
+
+		private final void run() {
+			final DirtyRegions dr = pa.dirty_only ? layer.getParent().getDirtyRegions() : null;
+			try {
+				manifest.open();
+				if (null != dr) {
+					dirty = dr.get(layer);
+					if (dirty.isEmpty()) {
+						Utils.showProgress(pa.done.addAndGet(pa.n_edge_tiles * pa.n_edge_tiles) / (double)pa.total);
+						return;
+					}
+				}
+				computeStamps();
+				// The coarsest level has best[1] x best[1] tiles
+				final int n = pa.n_edge_tiles >> (pa.n_levels - 1);
+				final ArrayList<TileTask> roots = new ArrayList<TileTask>();
+				for (int row = 0; row < n; ++row) {
+					for (int col = 0; col < n; ++col) {
+						roots.add(new TileTask(this, pa.n_levels - 1, row, col, false));
+					}
+				}
+				ForkJoinTask.invokeAll(roots);
+			} catch (final IOException ioe) {
+				failed = true;
+				IJError.print(ioe);
+			} finally {
+				manifest.close(!pa.worker.hasQuitted());
+			}
+			// Forget only what was exported: the parts within the srcRect, once every tile has been written
+			if (null != dirty && !failed && !pa.worker.hasQuitted()) dr.remove(layer, dirty, pa.srcRect);
+		}
+
+		/** Whether the tile intersects any of the changed regions, when exporting changed regions only. */
+		private final boolean isDirty(final int level, final int row, final int col) {
+			if (null == dirty) return false;
+			final int side = pa.tileSide << level;
+			// Grown by 1 pixel for interpolation
+			final Rectangle box = new Rectangle(pa.srcRect.x + side * col - 1, pa.srcRect.y + side * row - 1, side + 2, side + 2);
+			for (final Rectangle r : dirty) {
+				if (r.intersects(box)) return true;
+			}
+			return false;
+		}
+
+		/** Everything that {@link Loader#getFlatImage} paints into the tile: the visible instances of the class
+		 * that intersect it, including the {@link ZDisplayable} instances present in this layer. */
+		private final ArrayList<Displayable> findPainted(final Rectangle tile_src) {
+			final ArrayList<Displayable> ds = new ArrayList<Displayable>(layer.find(pa.clazz, tile_src, true, true));
+			ds.addAll(layer.getParent().findZDisplayables(pa.clazz, layer, tile_src, true, true));
+			return ds;
+		}
+
+		private final void computeStamps() {
+			// Stacking order, to sort the Displayable instances of each tile
+			final HashMap<Displayable,Integer> order = new HashMap<Displayable,Integer>();
+			for (final Displayable d : layer.getDisplayables()) order.put(d, order.size());
+			for (final ZDisplayable zd : layer.getParent().getZDisplayables()) order.put(zd, order.size());
+			final Comparator<Displayable> bottom_first = new Comparator<Displayable>() {
+				@Override
+				public int compare(final Displayable d1, final Displayable d2) {
+					return order.get(d1) - order.get(d2);
+				}
+			};
+			final int n0 = pa.n_edge_tiles;
+			stamps[0] = new long[n0 * n0];
+			for (int row = 0; row < n0; ++row) {
+				for (int col = 0; col < n0; ++col) {
+					if (null != dirty && !isDirty(0, row, col)) {
+						// Unchanged: trust the manifest
+						final Manifest.Entry e = manifest.get(0, row, col);
+						if (null != e) {
+							stamps[0][row * n0 + col] = e.stamp;
+							continue;
+						}
+					}
+					long h = mix(mix(pa.seed, row), col);
+					final Rectangle tile_src = getTileBounds(row, col);
+					if (tile_src.width > 0 && tile_src.height > 0) {
+						final ArrayList<Displayable> ds = new ArrayList<Displayable>();
+						for (final Displayable d : findPainted(tile_src)) {
+							if (order.containsKey(d)) ds.add(d);
+						}
+						Collections.sort(ds, bottom_first);
+						for (final Displayable d : ds) {
+							Long s = pa.stamps.get(d);
+							if (null == s) {
+								s = stamp(d);
+								pa.stamps.put(d, s);
+							}
+							h = mix(h, s);
+						}
+					}
+					stamps[0][row * n0 + col] = h;
+				}
+			}
+			for (int level = 1; level < pa.n_levels; ++level) {
+				final int n = n0 >> level,
+				          nc = n * 2;
+				final long[] s = stamps[level] = new long[n * n];
+				final long[] sc = stamps[level - 1];
+				for (int row = 0; row < n; ++row) {
+					for (int col = 0; col < n; ++col) {
+						long h = mix(pa.seed, level);
+						h = mix(h, sc[(2 * row) * nc + 2 * col]);
+						h = mix(h, sc[(2 * row) * nc + 2 * col + 1]);
+						h = mix(h, sc[(2 * row + 1) * nc + 2 * col]);
+						h = mix(h, sc[(2 * row + 1) * nc + 2 * col + 1]);
+						s[row * n + col] = h;
+					}
+				}
+			}
+		}
+
+		/** The box of the tile of the finest level in world coordinates, cropped to the srcRect; may be empty. */
+		private final Rectangle getTileBounds(final int row, final int col) {
+			final Rectangle srcRect = pa.srcRect;
+			final Rectangle tile_src = new Rectangle(srcRect.x + pa.tileSide * col,
+					srcRect.y + pa.tileSide * row,
+					pa.tileSide,
+					pa.tileSide);
+			if (tile_src.x + tile_src.width > srcRect.x + srcRect.width) tile_src.width = srcRect.x + srcRect.width - tile_src.x;
+			if (tile_src.y + tile_src.height > srcRect.y + srcRect.height) tile_src.height = srcRect.y + srcRect.height - tile_src.y;
+			return tile_src;
+		}
+
+		/** Make the tile if not up to date; returns it downsampled by half if {@code need_content}, or null when it is empty. */
+		private final ImageProcessor make(final int level, final int row, final int col, final boolean need_content) {
+			if (pa.worker.hasQuitted()) return null;
+			final int n = pa.n_edge_tiles >> level;
+			final long stamp = stamps[level][row * n + col];
+			final String path = ExportMultilevelTiles.makeTilePath(pa.directory_structure_type, pa.dir, index, row, col, level);
+			final File file = new File(path + pa.saver.getExtension());
+			final Manifest.Entry e = manifest.get(level, row, col);
+
+			if (null != e && (e.empty || file.exists()) && !isDirty(level, row, col) && (stamp == e.stamp || null != dirty)) {
+				// Up to date
+				if (0 == level) Utils.showProgress(pa.done.incrementAndGet() / (double)pa.total);
+				if (!need_content || e.empty) return null;
+				final ImageProcessor ip = open(file);
+				if (null != ip) return downsample(ip);
+				// Else make it again
+			}
+
+			ImageProcessor ip;
+			if (0 == level) {
+				ip = render(row, col);
+				Utils.showProgress(pa.done.incrementAndGet() / (double)pa.total);
+			} else {
+				final TileTask[] children = new TileTask[]{
+						new TileTask(this, level - 1, 2 * row,     2 * col,     true),
+						new TileTask(this, level - 1, 2 * row,     2 * col + 1, true),
+						new TileTask(this, level - 1, 2 * row + 1, 2 * col,     true),
+						new TileTask(this, level - 1, 2 * row + 1, 2 * col + 1, true)};
+				ForkJoinTask.invokeAll(children);
+				ip = null;
+				final int half = pa.tileSide / 2;
+				for (int i = 0; i < 4; ++i) {
+					final ImageProcessor quarter = children[i].getRawResult();
+					if (null == quarter) continue;
+					if (null == ip) ip = quarter.createProcessor(pa.tileSide, pa.tileSide);
+					ip.insert(quarter, (i % 2) * half, (i / 2) * half);
+				}
+			}
+
+			// Never record a tile made from the partial results of an interrupted export
+			if (pa.worker.hasQuitted()) return null;
+
+			final boolean empty = null == ip || ExportMultilevelTiles.isEmptyTile(ip);
+			if (empty && pa.skip_empty_tiles) {
+				if (file.exists()) file.delete();
+				manifest.record(level, row, col, stamp, true);
+				return null;
+			}
+			if (null == ip) ip = ImagePlus.COLOR_RGB == pa.type ? new ColorProcessor(pa.tileSide, pa.tileSide) : new ByteProcessor(pa.tileSide, pa.tileSide);
+			if (pa.saver.save(new ImagePlus(path.substring(path.lastIndexOf('/') + 1), ip), path)) {
+				manifest.record(level, row, col, stamp, false);
+			} else {
+				failed = true;
+			}
+			return need_content && !empty ? downsample(ip) : null;
+		}
+
+		/** As {@link ExportMultilevelTiles#makeTileRunnable} does, but returning the padded tile; null when there is nothing in it. */
+		private final ImageProcessor render(final int row, final int col) {
+			final Rectangle tile_src = getTileBounds(row, col);
+			if (tile_src.width <= 0 || tile_src.height <= 0 || findPainted(tile_src).isEmpty()) return null;
+			final ImagePlus imp = layer.getProject().getLoader().getFlatImage(layer, tile_src, 1.0, pa.c_alphas, pa.type, pa.clazz, null, true); // with quality
+			if (null == imp) return null;
+			ImageProcessor ip = imp.getProcessor();
+			// correct dimensions of cropped tiles, padding the outside with black
+			if (ip.getWidth() < pa.tileSide || ip.getHeight() < pa.tileSide) {
+				final ImageProcessor ip2 = ip.createProcessor(pa.tileSide, pa.tileSide);
+				ip2.insert(ip, 0, 0);
+				ip = ip2;
+			}
+			return ip;
+		}
+
+		/** Read a tile written before, or null if it cannot be read. */
+		private final ImageProcessor open(final File file) {
+			try {
+				final ImagePlus imp = new Opener().openImage(file.getAbsolutePath());
+				if (null == imp || imp.getWidth() != pa.tileSide || imp.getHeight() != pa.tileSide) return null;
+				final ImageProcessor ip = imp.getProcessor();
+				if (ImagePlus.COLOR_RGB == pa.type) return ip.convertToRGB();
+				return ip instanceof ByteProcessor ? ip : ip.convertToByte(false);
+			} catch (final Throwable t) {
+				Utils.log2("Could not read tile " + file + ": " + t);
+				return null;
+			}
+		}
+	}
+
+	static private final class TileTask extends RecursiveTask<ImageProcessor>
+	{
+		private static final long serialVersionUID = 1L;
+		private final LayerPyramid lp;
+		private final int level, row, col;
+		private final boolean need_content;
+
+		private TileTask(final LayerPyramid lp, final int level, final int row, final int col, final boolean need_content) {
+			this.lp = lp;
+			this.level = level;
+			this.row = row;
+			this.col = col;
+			this.need_content = need_content;
+		}
+
+		@Override
+		protected ImageProcessor compute() {
+			try {
+				return lp.make(level, row, col, need_content);
+			} catch (final Throwable t) {
+				IJError.print(t);
+				return null;
+			}
+		}
+	}
+
+	/** Half the size, averaging 2x2 blocks, as {@link ExportMultilevelTiles#exportFromOriginals} does. */
+	static private final ImageProcessor downsample(final ImageProcessor ip) {
+		final int width1 = ip.getWidth(),
+		          width2 = width1 / 2,
+		          height2 = ip.getHeight() / 2;
+		if (ip instanceof ByteProcessor) {
+			final ByteProcessor bp = new ByteProcessor(width2, height2);
+			final byte[] p1 = (byte[]) ip.getPixels();
+			final byte[] p2 = (byte[]) bp.getPixels();
+			for (int y2 = 0, i = 0; y2 < height2; ++y2) {
+				final int offset1a = 2 * y2 * width1,
+				          offset1b = offset1a + width1;
+				for (int x1 = 0, x2 = 0; x2 < width2; x1 += 2, ++x2) {
+					p2[i++] = (byte)( (   (p1[offset1a + x1] & 0xff) + (p1[offset1a + x1 + 1] & 0xff)
+							+ (p1[offset1b + x1] & 0xff) + (p1[offset1b + x1 + 1] & 0xff) ) / 4 );
+				}
+			}
+			return bp;
+		}
+		final ColorProcessor cp = new ColorProcessor(width2, height2);
+		final int[] p1 = (int[]) ip.getPixels();
+		final int[] p2 = (int[]) cp.getPixels();
+		for (int y2 = 0, i = 0; y2 < height2; ++y2) {
+			final int offset1a = 2 * y2 * width1,
+			          offset1b = offset1a + width1;
+			for (int x1 = 0, x2 = 0; x2 < width2; x1 += 2, ++x2) {
+				final int ka = p1[offset1a + x1],
+				          kb = p1[offset1a + x1 + 1],
+				          kc = p1[offset1b + x1],
+				          kd = p1[offset1b + x1 + 1];
+				// Average each channel independently
+				p2[i++] = (((((ka >> 16) & 0xff) + ((kb >> 16) & 0xff) + ((kc >> 16) & 0xff) + ((kd >> 16) & 0xff)) / 4) << 16)
+				        | (((((ka >> 8) & 0xff) + ((kb >> 8) & 0xff) + ((kc >> 8) & 0xff) + ((kd >> 8) & 0xff)) / 4) << 8)
+				        | (((ka & 0xff) + (kb & 0xff) + (kc & 0xff) + (kd & 0xff)) / 4);
+			}
+		}
+		return cp;
+	}
+
+	/** The XML of the Displayable, which for a {@link Patch} includes the transforms, filters, display range and ids
+	 * of the coordinate transform and alpha mask, plus the modification time and length of its image file. */
+	static final long stamp(final Displayable d) {
+		final StringBuilder sb = new StringBuilder();
+		d.exportXML(sb, "", new XMLOptions());
+		final String path = d instanceof Patch ? ((Patch)d).getImageFilePath() : null;
+		if (null != path) {
+			final File f = new File(path);
+			sb.append(f.lastModified()).append(' ').append(f.length());
+		}
+		return hash(sb.toString());
+	}
+
+	/** 64-bit FNV-1a. */
+	static final long hash(final String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); ++i) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	static final long mix(final long h, final long v) {
+		return (Long.rotateLeft(h, 5) ^ v) * 0x9e3779b97f4a7c15L;
+	}
+
+	/** One line per tile written: level, row, column, stamp and whether it was empty and not written.
+	 * Lines are appended as tiles are written; later lines replace earlier ones for the same tile.
+	 * {@link ExportVolume} records its blocks as the Z, Y and X of the block in the grid. */
+	static final class Manifest
+	{
+		static final class Entry {
+			final long stamp;
+			final boolean empty;
+			Entry(final long stamp, final boolean empty) {
+				this.stamp = stamp;
+				this.empty = empty;
+			}
+		}
+
+		private final String path;
+		private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+		private Writer writer = null;
+
+		Manifest(final String path) {
+			this.path = path;
+		}
+
+		static private final String key(final int level, final int row, final int col) {
+			return level + " " + row + " " + col;
+		}
+
+		/** Read the entries, if any, and prepare for appending. */
+		synchronized final void open() throws IOException {
+			final File f = new File(path);
+			if (f.exists()) {
+				BufferedReader r = null;
+				try {
+					r = new BufferedReader(new FileReader(f));
+					for (String line = r.readLine(); null != line; line = r.readLine()) {
+						final String[] s = line.split(" ");
+						if (s.length < 4) continue; // truncated by an interruption
+						try {
+							entries.put(s[0] + " " + s[1] + " " + s[2], new Entry(Long.parseUnsignedLong(s[3], 16), s.length > 4 && "empty".equals(s[4])));
+						} catch (final NumberFormatException nfe) {
+							// truncated by an interruption
+						}
+					}
+				} finally {
+					if (null != r) r.close();
+				}
+			}
+			writer = new FileWriter(f, true);
+		}
+
+		synchronized final Entry get(final int level, final int row, final int col) {
+			return entries.get(key(level, row, col));
+		}
+
+		synchronized final void record(final int level, final int row, final int col, final long stamp, final boolean empty) {
+			final String key = key(level, row, col);
+			entries.put(key, new Entry(stamp, empty));
+			if (null == writer) return;
+			try {
+				writer.write(key + " " + Long.toHexString(stamp) + (empty ? " empty\n" : "\n"));
+				writer.flush();
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+		}
+
+		/** Close, and if {@code compact}, rewrite with a single line per tile. */
+		synchronized final void close(final boolean compact) {
+			try {
+				if (null != writer) writer.close();
+				writer = null;
+				if (!compact) return;
+				final StringBuilder sb = new StringBuilder();
+				for (final Map.Entry<String,Entry> e : entries.entrySet()) {
+					sb.append(e.getKey()).append(' ').append(Long.toHexString(e.getValue().stamp));
+					if (e.getValue().empty) sb.append(" empty");
+					sb.append('\n');
+				}
+				final File tmp = new File(path + ".tmp");
+				if (Utils.saveToFile(tmp, sb.toString())) {
+					final File f = new File(path);
+					f.delete();
+					if (!tmp.renameTo(f)) Utils.log2("Could not rename " + tmp + " to " + f);
+				}
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,469 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+import mpicbg.trakem2.transform.MeshRasterizer;
+
+/** Exports a box of a range of {@link Layer} instances as a volume of blocks, in the N5 layout that the n5 libraries,
+ * BigDataViewer and other tools read without an ImageJ stack: a directory with an "attributes.json" file that gives the
+ * dimensions, block size, data type, compression and calibration, and one gzip-compressed file per block at "x/y/z",
+ * named after the position of the block in the grid. Blocks without images are not written, which N5 reads as empty.
+ *
+ * Each block is rendered from the original images of the {@link Patch} instances that intersect it in each of its layers,
+ * as {@link Patch#makeFlatImage(int, Layer, Rectangle, double, java.util.Collection, java.awt.Color)} does.
+ * Blocks are rendered in parallel, with at most two blocks per thread in memory at once. As in {@link ini.trakem2.imaging.TiledFlatImage},
+ * the image of a patch is converted, and its mesh made, once for all the blocks it paints, and freed after the last one.
+ *
+ * As in {@link ExportTilePyramid}, a manifest records the stamp of each block written, made of the stamps of the
+ * {@link Patch} instances it contains, so that an interrupted export resumes where it stopped and a repeated export
+ * only renders the blocks whose images have changed.
+ */
+public class ExportVolume
+{
+	static private final String MANIFEST = "blocks.manifest";
+
+	private ExportVolume() {}
+
+	/**
+	 * @param layers The layers to export, one per slice of the volume.
+	 * @param srcRect The box to export, in world coordinates.
+	 * @param scale may be up to 1.0, and applies to X and Y only.
+	 * @param type Any of ImagePlus.GRAY8, GRAY16 or GRAY32.
+	 * @param blockSize The width, height and depth of the blocks.
+	 * @param dir The directory of the volume, created if necessary. */
+	static public Worker export(
+			final List<Layer> layers,
+			final Rectangle srcRect,
+			final double scale,
+			final int type,
+			final int[] blockSize,
+			final String dir,
+			final int n_threads)
+	{
+		return new Worker("Exporting volume")
+		{
+			@Override
+			public void run() {
+				startedWorking();
+				try {
+					final Volume v = new Volume(this, layers, srcRect, scale < 1 ? scale : 1, type, blockSize, Utils.fixDir(dir));
+					v.run(Math.max(1, n_threads));
+				} catch (final Throwable t) {
+					IJError.print(t);
+				} finally {
+					Utils.showProgress(1);
+					finishedWorking();
+				}
+			}
+		};
+	}
+
+	static private final class Volume
+	{
+		private final Worker worker;
+		private final List<Layer> layers;
+		private final Rectangle srcRect;
+		private final double scale;
+		private final int type, width, height, depth;
+		private final int[] blockSize;
+		private final String dir;
+		private final long seed;
+		private final ExportTilePyramid.Manifest manifest;
+		/** The stacking order of the patches of each layer, made on first use. */
+		private final ConcurrentHashMap<Layer,HashMap<Patch,Integer>> orders = new ConcurrentHashMap<Layer,HashMap<Patch,Integer>>();
+		/** The stamp of each patch, made on first use. */
+		private final ConcurrentHashMap<Patch,Long> stamps = new ConcurrentHashMap<Patch,Long>();
+
+		/** The image of a patch and the triangles that map it into the slice, shared by the blocks that paint it. */
+		private final class Source {
+			private final Patch patch;
+			/** Number of blocks yet to paint it. */
+			private int uses = 0;
+			private float[] pixels = null;
+			private int pw, ph;
+			private MeshRasterizer rasterizer = null;
+
+			private Source(final Patch patch) {
+				this.patch = patch;
+			}
+
+			/** Paint into the block of {@code w} by {@code h} pixels whose top left pixel is at {@code x0},{@code y0} of the slice. */
+			private final void map(final float[] target, final int w, final int h, final int x0, final int y0) {
+				final float[] pix;
+				final MeshRasterizer r;
+				synchronized (this) {
+					if (null == pixels) {
+						final ImageProcessor ip = Patch.makeFlatSource(patch, type, true);
+						pw = ip.getWidth();
+						ph = ip.getHeight();
+						pixels = (float[])ip.convertToFloat().getPixels();
+						rasterizer = new MeshRasterizer(Patch.makeFlatMesh(patch, srcRect.x, srcRect.y, scale, 0, 0));
+					}
+					pix = pixels;
+					r = rasterizer;
+				}
+				if (r.intersects(x0, y0, w, h)) r.map(pix, null, pw, ph, target, null, w, h, x0, y0);
+			}
+
+			/** Called once by each block that would paint it; frees the image after the last one. */
+			synchronized private final void release() {
+				if (0 == --uses) {
+					pixels = null;
+					rasterizer = null;
+				}
+			}
+		}
+
+		private Volume(final Worker worker, final List<Layer> layers, final Rectangle srcRect, final double scale, final int type, final int[] blockSize, final String dir) {
+			switch (type) {
+				case ImagePlus.GRAY8:
+				case ImagePlus.GRAY16:
+				case ImagePlus.GRAY32:
+					break;
+				default:
+					throw new IllegalArgumentException("Can only export volumes of type 8-bit, 16-bit or 32-bit.");
+			}
+			if (3 != blockSize.length || blockSize[0] <= 0 || blockSize[1] <= 0 || blockSize[2] <= 0) {
+				throw new IllegalArgumentException("The block size must be three positive numbers.");
+			}
+			this.worker = worker;
+			this.layers = layers;
+			this.srcRect = new Rectangle(srcRect);
+			this.scale = scale;
+			this.type = type;
+			this.width = (int)(srcRect.width * scale);
+			this.height = (int)(srcRect.height * scale);
+			this.depth = layers.size();
+			this.blockSize = blockSize.clone();
+			this.dir = dir;
+			this.manifest = new ExportTilePyramid.Manifest(dir + MANIFEST);
+			// The block size changes the content of every block at the same grid position
+			long h = ExportTilePyramid.hash(srcRect.toString() + " " + scale + " " + type
+					+ " " + blockSize[0] + " " + blockSize[1] + " " + blockSize[2]);
+			for (final Layer la : layers) h = ExportTilePyramid.mix(h, la.getId());
+			this.seed = h;
+		}
+
+		private final void run(final int n_threads) throws Exception {
+			if (!Utils.ensure(dir + "attributes.json") || !Utils.saveToFile(new File(dir + "attributes.json"), makeAttributes())) {
+				Utils.log("Cannot write to the desired directory: " + dir);
+				return;
+			}
+			manifest.open();
+			final int nx = (width + blockSize[0] - 1) / blockSize[0],
+			          ny = (height + blockSize[1] - 1) / blockSize[1],
+			          nz = (depth + blockSize[2] - 1) / blockSize[2];
+			final long total = (long)nx * ny * nz;
+			final AtomicInteger done = new AtomicInteger(0);
+			final ExecutorService exec = Utils.newFixedThreadPool(n_threads, "ExportVolume");
+			// Bound the number of blocks in memory
+			final Semaphore in_flight = new Semaphore(2 * n_threads);
+			final LinkedList<Future<?>> fus = new LinkedList<Future<?>>();
+			boolean completed = false;
+			try {
+				// Slab by slab, so that the images of a layer are shared by all the blocks of the slab
+				for (int bz = 0; bz < nz; ++bz) {
+					// The patches of each slice of each block of the slab, and the number of blocks that paint each patch
+					final HashMap<Patch,Source> sources = new HashMap<Patch,Source>();
+					final ArrayList<List<List<Source>>> blocks = new ArrayList<List<List<Source>>>(nx * ny);
+					for (int by = 0; by < ny; ++by) {
+						for (int bx = 0; bx < nx; ++bx) {
+							blocks.add(findSources(bx, by, bz, sources));
+						}
+					}
+					// Only the blocks refer to the sources from now on
+					sources.clear();
+					for (int i = 0; i < blocks.size(); ++i) {
+						if (worker.hasQuitted()) return;
+						final int x = i % nx, y = i / nx, z = bz;
+						final List<List<Source>> slices = blocks.get(i);
+						blocks.set(i, null);
+						in_flight.acquire();
+						for (final Iterator<Future<?>> it = fus.iterator(); it.hasNext(); ) {
+							final Future<?> fu = it.next();
+							if (fu.isDone()) {
+								fu.get();
+								it.remove();
+							}
+						}
+						fus.add(exec.submit(new Callable<Void>() {
+							@Override
+							public Void call() throws Exception {
+								try {
+									if (!worker.hasQuitted()) export(x, y, z, slices);
+									Utils.showProgress(done.incrementAndGet() / (double)total);
+									return null;
+								} finally {
+									// Free the images of the patches that no other block will paint
+									for (final List<Source> ss : slices) {
+										for (final Source src : ss) src.release();
+									}
+									in_flight.release();
+								}
+							}
+						}));
+					}
+				}
+				for (final Future<?> fu : fus) fu.get();
+				completed = !worker.hasQuitted();
+			} finally {
+				exec.shutdownNow();
+				manifest.close(completed);
+			}
+		}
+
+		/** The world box of the block, plus a margin for interpolation. */
+		private final Rectangle getWorldBounds(final int x0, final int y0, final int w, final int h) {
+			final int x = (int)Math.floor(srcRect.x + (x0 - 1) / scale),
+			          y = (int)Math.floor(srcRect.y + (y0 - 1) / scale);
+			return new Rectangle(x, y,
+					(int)Math.ceil(srcRect.x + (x0 + w + 1) / scale) - x,
+					(int)Math.ceil(srcRect.y + (y0 + h + 1) / scale) - y);
+		}
+
+		/** The visible patches of {@code layer} that intersect {@code box}, bottom first. */
+		private final List<Patch> getPatches(final Layer layer, final Rectangle box) {
+			HashMap<Patch,Integer> order = orders.get(layer);
+			if (null == order) {
+				order = new HashMap<Patch,Integer>();
+				for (final Patch p : layer.getPatches(true)) order.put(p, order.size());
+				final HashMap<Patch,Integer> o = orders.putIfAbsent(layer, order);
+				if (null != o) order = o;
+			}
+			final HashMap<Patch,Integer> ord = order;
+			final ArrayList<Patch> ps = new ArrayList<Patch>();
+			for (final Displayable d : layer.find(Patch.class, box, true)) {
+				if (ord.containsKey(d)) ps.add((Patch)d);
+			}
+			Collections.sort(ps, new Comparator<Patch>() {
+				@Override
+				public int compare(final Patch p1, final Patch p2) {
+					return ord.get(p1) - ord.get(p2);
+				}
+			});
+			return ps;
+		}
+
+		private final long stamp(final Patch p) {
+			Long s = stamps.get(p);
+			if (null == s) {
+				s = ExportTilePyramid.stamp(p);
+				stamps.put(p, s);
+			}
+			return s;
+		}
+
+		/** The patches of each slice of the block, bottom first, with one {@link Source} per patch in {@code sources}
+		 * counting the blocks that paint it. */
+		private final List<List<Source>> findSources(final int bx, final int by, final int bz, final HashMap<Patch,Source> sources) {
+			final int x0 = bx * blockSize[0],
+			          y0 = by * blockSize[1],
+			          z0 = bz * blockSize[2],
+			          d = Math.min(blockSize[2], depth - z0);
+			final Rectangle box = getWorldBounds(x0, y0, Math.min(blockSize[0], width - x0), Math.min(blockSize[1], height - y0));
+			final List<List<Source>> slices = new ArrayList<List<Source>>(d);
+			for (int z = 0; z < d; ++z) {
+				final List<Patch> ps = getPatches(layers.get(z0 + z), box);
+				final ArrayList<Source> ss = new ArrayList<Source>(ps.size());
+				for (final Patch p : ps) {
+					Source src = sources.get(p);
+					if (null == src) {
+						src = new Source(p);
+						sources.put(p, src);
+					}
+					src.uses += 1;
+					ss.add(src);
+				}
+				slices.add(ss);
+			}
+			return slices;
+		}
+
+		private final void export(final int bx, final int by, final int bz, final List<List<Source>> slices) throws IOException {
+			final int x0 = bx * blockSize[0],
+			          y0 = by * blockSize[1],
+			          w = Math.min(blockSize[0], width - x0),
+			          h = Math.min(blockSize[1], height - y0),
+			          d = slices.size();
+
+			// The stamp of the block
+			long stamp = seed;
+			boolean empty = true;
+			for (int z = 0; z < d; ++z) {
+				final List<Source> ss = slices.get(z);
+				stamp = ExportTilePyramid.mix(stamp, z);
+				for (final Source src : ss) stamp = ExportTilePyramid.mix(stamp, stamp(src.patch));
+				if (!ss.isEmpty()) empty = false;
+			}
+
+			final File file = new File(dir + bx + "/" + by + "/" + bz);
+			final ExportTilePyramid.Manifest.Entry entry = manifest.get(bz, by, bx);
+			if (null != entry && stamp == entry.stamp && (entry.empty || file.exists())) return;
+
+			if (empty) {
+				// Stale blocks would be read instead of empty ones
+				if (file.exists()) file.delete();
+				manifest.record(bz, by, bx, stamp, true);
+				return;
+			}
+
+			final ImageProcessor[] ips = new ImageProcessor[d];
+			for (int z = 0; z < d; ++z) {
+				if (worker.hasQuitted()) return;
+				final float[] pixels = new float[w * h];
+				for (final Source src : slices.get(z)) {
+					src.map(pixels, w, h, x0, y0);
+				}
+				ips[z] = toType(pixels, w, h);
+			}
+
+			write(file, w, h, d, ips);
+			manifest.record(bz, by, bx, stamp, false);
+		}
+
+		/** Rounded and clamped as when painting into an image of the {@code type}. */
+		private final ImageProcessor toType(final float[] pixels, final int w, final int h) {
+			switch (type) {
+				case ImagePlus.GRAY8:
+					final byte[] b = new byte[pixels.length];
+					for (int i = 0; i < b.length; ++i) b[i] = (byte)Math.max(0, Math.min(255, (int)(pixels[i] + 0.5f)));
+					return new ByteProcessor(w, h, b, null);
+				case ImagePlus.GRAY16:
+					final short[] s = new short[pixels.length];
+					for (int i = 0; i < s.length; ++i) s[i] = (short)Math.max(0, Math.min(65535, (int)(pixels[i] + 0.5f)));
+					return new ShortProcessor(w, h, s, null);
+				default:
+					return new FloatProcessor(w, h, pixels, null);
+			}
+		}
+
+		/** Write to a temporary file first, then rename, so that readers never find a partial block.
+		 * An N5 block: mode 0, the number of dimensions and the size of the block in each, then the gzip-compressed pixels,
+		 * all in big endian byte order. */
+		private final void write(final File file, final int w, final int h, final int d, final ImageProcessor[] ips) throws IOException {
+			if (!Utils.ensure(file)) throw new IOException("Cannot write " + file);
+			final File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				final OutputStream fos = new BufferedOutputStream(new FileOutputStream(tmp), 65536);
+				out = new DataOutputStream(fos);
+				out.writeShort(0);
+				out.writeShort(3);
+				out.writeInt(w);
+				out.writeInt(h);
+				out.writeInt(d);
+				out.flush();
+				final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fos, 65536), 65536));
+				out = data;
+				for (final ImageProcessor ip : ips) {
+					switch (type) {
+						case ImagePlus.GRAY8:
+							data.write((byte[])ip.getPixels());
+							break;
+						case ImagePlus.GRAY16:
+							for (final short s : (short[])ip.getPixels()) data.writeShort(s);
+							break;
+						default:
+							for (final float f : (float[])ip.getPixels()) data.writeFloat(f);
+							break;
+					}
+				}
+				data.close();
+				out = null;
+				if (!tmp.renameTo(file)) {
+					file.delete();
+					if (!tmp.renameTo(file)) throw new IOException("Could not rename " + tmp + " to " + file);
+				}
+			} finally {
+				if (null != out) {
+					try { out.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+					tmp.delete();
+				}
+			}
+		}
+
+		private final String makeAttributes() {
+			final Calibration cal = layers.get(0).getParent().getCalibration();
+			final double rx = cal.pixelWidth / scale,
+			             ry = cal.pixelHeight / scale,
+			             rz = layers.get(0).getThickness() * cal.pixelWidth;
+			final String dataType;
+			switch (type) {
+				case ImagePlus.GRAY8: dataType = "uint8"; break;
+				case ImagePlus.GRAY16: dataType = "uint16"; break;
+				default: dataType = "float32"; break;
+			}
+			final StringBuilder sb = new StringBuilder();
+			sb.append("{\n")
+			  .append("  \"dimensions\": [").append(width).append(", ").append(height).append(", ").append(depth).append("],\n")
+			  .append("  \"blockSize\": [").append(blockSize[0]).append(", ").append(blockSize[1]).append(", ").append(blockSize[2]).append("],\n")
+			  .append("  \"dataType\": \"").append(dataType).append("\",\n")
+			  .append("  \"compression\": {\"type\": \"gzip\", \"level\": -1, \"useZlib\": false},\n")
+			  .append("  \"resolution\": [").append(rx).append(", ").append(ry).append(", ").append(rz).append("],\n")
+			  .append("  \"pixelResolution\": {\"unit\": \"").append(cal.getUnit().replace("\\", "\\\\").replace("\"", "\\\""))
+			  .append("\", \"dimensions\": [").append(rx).append(", ").append(ry).append(", ").append(rz).append("]},\n")
+			  .append("  \"srcRect\": [").append(srcRect.x).append(", ").append(srcRect.y).append(", ").append(srcRect.width).append(", ").append(srcRect.height).append("],\n")
+			  .append("  \"scale\": ").append(scale).append(",\n")
+			  .append("  \"layerIds\": [");
+			for (int i = 0; i < layers.size(); ++i) {
+				if (i > 0) sb.append(", ");
+				sb.append(layers.get(i).getId());
+			}
+			sb.append("]\n}\n");
+			return sb.toString();
+		}
+	}
+}
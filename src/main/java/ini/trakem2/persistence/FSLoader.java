@@ -49,9 +49,12 @@ import ini.trakem2.display.Patch;
 import ini.trakem2.display.Stack;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
+import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.ImageSaver;
 import ini.trakem2.io.RagMipMaps;
+import ini.trakem2.io.RawImages;
 import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.scripting.PatchScript;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
@@ -71,6 +74,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -446,6 +451,8 @@ public final class FSLoader extends Loader {
 			if (null != dir_masks) Utils.removePrefixedFiles(f, "trakem2.masks", null);
 			Utils.removePrefixedFiles(f, "features.ser", null);
 			Utils.removePrefixedFiles(f, "pointmatches.ser", null);
+			Utils.removePrefixedFiles(f, "jobs.ser", null);
+			Utils.removePrefixedFiles(f, "trakem2.processed", null);
 			// Only if empty:
 			if (f.isDirectory()) {
 				try {
@@ -611,9 +618,21 @@ public final class FSLoader extends Loader {
 			// reserve memory:
 			n_bytes = estimateImageFileSize(p, 0);
 			releaseToFit(n_bytes);
-			imp = openImage(path);
 
-			imp = preProcess(p, imp, n_bytes);
+			// Stacks are never cached as processed originals
+			final String processed_key = null == slice ? getProcessedKey(p, path) : null;
+			imp = null == processed_key ? null : RawImages.read(getProcessedPath(p), processed_key);
+			if (null != imp) {
+				// As done by preProcess
+				cache(p, imp);
+				p.updatePixelProperties(imp);
+			} else {
+				imp = openImage(path);
+
+				imp = preProcess(p, imp, n_bytes);
+
+				if (null != processed_key && null != imp) RawImages.save(getProcessedPath(p), processed_key, imp);
+			}
 
 			synchronized (db_lock) {
 				try {
@@ -776,6 +795,7 @@ public final class FSLoader extends Loader {
 					// STRATEGY change: images are not owned by the FSLoader.
 					Patch p = (Patch)ob;
 					if (!ob.getProject().getBooleanProperty("keep_mipmaps")) removeMipMaps(p);
+					new File(getProcessedPath(p)).delete(); // if any
 					ht_paths.remove(p.getId()); // after removeMipMaps !
 					mawts.remove(loid);
 					cannot_regenerate.remove(p);
@@ -1427,10 +1447,22 @@ public final class FSLoader extends Loader {
 				if (d.getClass() != Patch.class) continue;
 				fus.add(d.getProject().getLoader().regenerateMipMaps((Patch) d));
 			}
-			// Wait until all done
-			for (final Future<?> fu : fus) try {
-				if (null != fu) fu.get(); // fu could be null if a task was not submitted because it's already being done or it failed in some way.
-			} catch (Exception e) { IJError.print(e); }
+			// Wait until all done, reporting progress and the estimated time left
+			final long start = System.currentTimeMillis();
+			int n_done = 0;
+			for (final Future<?> fu : fus) {
+				try {
+					if (null != fu) fu.get(); // fu could be null if a task was not submitted because it's already being done or it failed in some way.
+				} catch (Exception e) { IJError.print(e); }
+				++n_done;
+				final long elapsed = System.currentTimeMillis() - start;
+				final long eta = (elapsed * (fus.size() - n_done)) / n_done;
+				Utils.showStatus(new StringBuilder("Regenerating mipmaps ").append(n_done).append('/').append(fus.size())
+						.append(", ETA ").append(eta / 60000).append(" min ").append((eta / 1000) % 60).append(" s").toString(), false);
+				Utils.showProgress(n_done / (double)fus.size());
+			}
+			Utils.showProgress(1);
+			if (fus.size() > 0) Utils.log2("Regenerated mipmaps for " + fus.size() + " patches in " + (System.currentTimeMillis() - start) + " ms");
 		}}, Project.findProject(this));
 	}
 
@@ -1668,14 +1700,19 @@ public final class FSLoader extends Loader {
 			
 			final int first_mipmap_level_saved = patch.getProject().getFirstMipMapLevelSaved();
 			
-			if (Loader.AREA_DOWNSAMPLING == resizing_mode) {
+			if (Loader.AREA_DOWNSAMPLING == resizing_mode || Loader.SINGLE_PASS_AREA_DOWNSAMPLING == resizing_mode) {
 				long t0 = System.currentTimeMillis();
-				final ImageBytes[] b = DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
+				final ImageBytes[] b = Loader.AREA_DOWNSAMPLING == resizing_mode ?
+					  DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask)
+					: StreamingMipMaps.create(patch, type, ip, alpha_mask, outside_mask, first_mipmap_level_saved);
 				long t1 = System.currentTimeMillis();
 				for (int i=0; i<b.length; ++i) {
 					if (i < first_mipmap_level_saved) {
 						// Ignore level i
 						if (null != b[i]) CachingThread.storeForReuse(b[i].c);
+					} else if (null == b[i]) {
+						// The short side of the image reached zero: no more levels
+						break;
 					} else {
 						boolean written = mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
 						if (!written) {
@@ -3125,9 +3162,7 @@ public final class FSLoader extends Loader {
 	@Override
 	protected boolean mapIntensities(final Patch p, final ImagePlus imp) {
 		
-		final String path = getUNUIdFolder() +
-				"trakem2.its/" +
-				createIdPath(Long.toString(p.getId()), "it", ".tif");
+		final String path = getIntensityMapPath(p);
 		
 		if (!new File(path).exists()) return false;
 		
@@ -3173,12 +3208,84 @@ public final class FSLoader extends Loader {
 		return true;
 	}
 	
+	private final String getIntensityMapPath(final Patch p) {
+		return getUNUIdFolder() +
+				"trakem2.its/" +
+				createIdPath(Long.toString(p.getId()), "it", ".tif");
+	}
+
+	/** Where the fully processed original of {@code p} is stored, if the project property "cache_processed_originals" is true. */
+	private final String getProcessedPath(final Patch p) {
+		return getUNUIdFolder() +
+				"trakem2.processed/" +
+				createIdPath(Long.toString(p.getId()), "processed", ".raw");
+	}
+
+	/** Describes all inputs of {@link #preProcess(Patch, ImagePlus, long)}: the image file, the min and max of the patch,
+	 * the preprocessor script file, or for a {@link PatchScript#JAVA_PREFIX} preprocessor the class file or jar of its class,
+	 * the filters and the intensity map file, each file by its path, modification time and length.
+	 * When any of them changes, so does the key, and the stored processed original is not used.
+	 * Files read by the preprocessor script itself are not considered.
+	 *
+	 * @return null if processed originals are not cached for this project, {@code p} is not processed at all,
+	 *         or the class of its preprocessor cannot be found on disk. */
+	private final String getProcessedKey(final Patch p, final String path) {
+		if (!p.getProject().getBooleanProperty("cache_processed_originals")) return null;
+		final String script = getPreprocessorScriptPath(p);
+		final IFilter[] fs = p.getFilters();
+		final File its = new File(getIntensityMapPath(p));
+		final boolean has_its = its.exists();
+		if (null == script && (null == fs || 0 == fs.length) && !has_its) return null;
+		final StringBuilder sb = new StringBuilder();
+		appendStamp(sb, path);
+		// The script sees the image with the min and max of the patch
+		sb.append(p.getMin()).append('\t').append(p.getMax()).append('\n');
+		if (null != script) {
+			if (PatchScript.isJavaPreprocessor(script)) {
+				final File cf = getClassFile(script);
+				if (null == cf) return null;
+				sb.append(script).append('\n');
+				appendStamp(sb, cf.getAbsolutePath());
+			} else {
+				appendStamp(sb, script);
+			}
+		}
+		if (null != fs) {
+			for (final IFilter f : fs) sb.append(f.toXML(""));
+		}
+		if (has_its) appendStamp(sb, its.getAbsolutePath());
+		return sb.toString();
+	}
+
+	/** The class file of the class named by a {@link PatchScript#JAVA_PREFIX} preprocessor, or the jar that contains it;
+	 * null if not found on disk. */
+	static private final File getClassFile(final String script) {
+		final String name = script.substring(PatchScript.JAVA_PREFIX.length()).trim();
+		final URL url = IJ.getClassLoader().getResource(name.replace('.', '/') + ".class");
+		if (null == url) return null;
+		String s = url.toString();
+		if ("jar".equals(url.getProtocol())) {
+			// jar:file:/path/to/file.jar!/the/Class.class
+			final int bang = s.indexOf("!/");
+			s = s.substring(4, -1 == bang ? s.length() : bang);
+		}
+		try {
+			final URI uri = new URI(s);
+			return "file".equals(uri.getScheme()) ? new File(uri) : null;
+		} catch (final Exception e) {
+			// Not a file URI
+			return null;
+		}
+	}
+
+	static private final void appendStamp(final StringBuilder sb, final String path) {
+		final File f = new File(path);
+		sb.append(path).append('\t').append(f.lastModified()).append('\t').append(f.length()).append('\n');
+	}
+
 	@Override
 	public boolean clearIntensityMap(final Patch p) {
-		final File coefficients = new File(
-				getUNUIdFolder() +
-				"trakem2.its/" +
-				createIdPath(Long.toString(p.getId()), "it", ".tif"));
+		final File coefficients = new File(getIntensityMapPath(p));
 		return coefficients.delete();
 	}
 }
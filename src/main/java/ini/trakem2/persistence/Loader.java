@@ -121,6 +121,8 @@ import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.LazyVirtualStack;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.StitchingTEM;
+import ini.trakem2.imaging.TiledFlatImage;
+import ini.trakem2.imaging.filters.FilterChain;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
 import ini.trakem2.io.ImageFileFilter;
@@ -2666,6 +2668,11 @@ while (it.hasNext()) {
 
 					Utils.showProgress(i / (float)layer.length);
 
+					if (null != target_dir && !fitsInMemory(srcRect_, scale, type)) {
+						saveTiledToPath(layer[i], srcRect_, scale, type, background, target_dir, layer[i].getPrintableTitle());
+						continue;
+					}
+
 					final ImagePlus slice = getFlatImage(layer[i], srcRect_, scale, c_alphas, type, Displayable.class, null, quality, background);
 					if (null == slice) {
 						Utils.log("Could not retrieve flat image for " + layer[i].toString());
@@ -2688,6 +2695,8 @@ while (it.hasNext()) {
 					impCalibration.pixelHeight /= scale;
 					imp.setCalibration(impCalibration);
 				}
+			} else if (null != target_dir && !fitsInMemory(srcRect_, scale, type)) {
+				saveTiledToPath(layer[0], srcRect_, scale, type, background, target_dir, layer[0].getPrintableTitle());
 			} else {
 				imp = getFlatImage(layer[0], srcRect_, scale, c_alphas, type, Displayable.class, null, quality, background);
 				if (null != target_dir) {
@@ -2704,6 +2713,29 @@ while (it.hasNext()) {
 		return Bureaucrat.createAndStart(worker, layer[0].getProject());
 	}
 
+	/** Whether a flat image of type GRAY8 or COLOR_RGB fits in an array and in half of the memory. */
+	private boolean fitsInMemory(final Rectangle srcRect, final double scale, final int type) {
+		final double s = Math.min(1, scale);
+		final long n = (long)(srcRect.width * s) * (long)(srcRect.height * s);
+		return n < Integer.MAX_VALUE && n * (ImagePlus.GRAY8 == type ? 1 : 4) < IJ.maxMemory() / 2;
+	}
+
+	/** Save the images of the layer as a tiled TIFF file, rendered tile by tile with {@link TiledFlatImage}.
+	 * Will never overwrite, rather, add an underscore and ordinal to the file name. */
+	private void saveTiledToPath(final Layer layer, final Rectangle srcRect, final double scale, final int type, final Color background, final String dir, final String file_name) {
+		Utils.log("Flat image of " + layer + " is too large for memory: saving images only, as a tiled TIFF.");
+		final String path = dir + "/" + file_name;
+		File file = new File(path + ".tif");
+		int k = 1;
+		while (file.exists()) {
+			file = new File(path + "_" + k + ".tif");
+			k++;
+		}
+		if (!TiledFlatImage.saveAsTiledTIFF(layer, srcRect, scale, type, background, file.getAbsolutePath())) {
+			Utils.log2("Could not save image for " + file_name);
+		}
+	}
+
 	/** Will never overwrite, rather, add an underscore and ordinal to the file name. */
 	private void saveToPath(final ImagePlus imp, final String dir, final String file_name, final String extension) {
 		if (null == imp) {
@@ -3731,7 +3763,9 @@ while (it.hasNext()) {
 			boolean update = false;
 			if (null != path) {
 				final File f = new File(path);
-				if (!f.exists()) {
+				if (ini.trakem2.scripting.PatchScript.isJavaPreprocessor(path)) {
+					// Not a file: names a PatchPreprocessor class
+				} else if (!f.exists()) {
 					Utils.log("ERROR: preprocessor script file does NOT exist: " + path);
 					return imp;
 				} else if (!f.canRead()) {
@@ -3762,10 +3796,7 @@ while (it.hasNext()) {
 			// Now apply the Patch filters, if any
 			final IFilter[] fs = p.getFilters();
 			if (null != fs && fs.length > 0) {
-				ImageProcessor ip = imp.getProcessor();
-				for (final IFilter filter : fs) {
-					ip = filter.process(ip);
-				}
+				final ImageProcessor ip = FilterChain.process(imp.getProcessor(), fs);
 				if (ip != imp.getProcessor()) {
 					imp.setProcessor(ip);
 				}
@@ -4396,6 +4427,7 @@ while (it.hasNext()) {
 	// Modes used for scaling images when creating mipmap pyramids
 	static public final int GAUSSIAN = 3;
 	static public final int AREA_DOWNSAMPLING = 6;
+	static public final int SINGLE_PASS_AREA_DOWNSAMPLING = 7;
 
 	// Home-made enum. Java enum have too much magic.
 	static public final Map<Integer,String> MIPMAP_MODES;
@@ -4403,6 +4435,7 @@ while (it.hasNext()) {
 		final TreeMap<Integer,String> modes = new TreeMap<Integer, String>();
 		modes.put(GAUSSIAN, "Gaussian");
 		modes.put(AREA_DOWNSAMPLING, "Area downsampling");
+		modes.put(SINGLE_PASS_AREA_DOWNSAMPLING, "Area downsampling, single pass");
 		MIPMAP_MODES = Collections.unmodifiableSortedMap(modes);
 	}
 
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.CachingThread;
+
+/** Mipmap pyramid by area downsampling, with all levels made in a single pass over the rows of the image.
+ *
+ * Each row of a level is averaged with the next one as soon as both exist, and the resulting row of the
+ * next level is pushed down the pyramid right away; only one pending row per level is kept, so that
+ * the working set is a few rows wide and stays in the CPU cache. The image channels, the alpha mask and
+ * the outside mask are downsampled in the same pass. The loops run over primitive arrays without branches,
+ * which the JIT compiler turns into SIMD instructions.
+ *
+ * Each level is half the width and height of the previous one, rounded down; each pixel is the average
+ * of four pixels, rounded to the nearest integer. 16-bit images are averaged as 16-bit, and mapped to 8-bit
+ * with the min and max of the image like {@link ImageProcessor#convertToByte(boolean)} does. A pixel of
+ * the outside mask is inside only when all four pixels are; the alpha mask is zero wherever outside.
+ *
+ * Float images are handed to {@link DownsamplerMipMaps}. */
+public final class StreamingMipMaps
+{
+	private StreamingMipMaps() {}
+
+	/**
+	 * @param patch
+	 * @param type
+	 * @param ip
+	 * @param alpha
+	 * @param outside
+	 * @param first_level The levels before it are not stored, but still computed on the way.
+	 * @return array of ImageBytes instances, with nulls before the first_level index.
+	 */
+	static public final ImageBytes[] create(
+			final Patch patch,
+			final int type,
+			final ImageProcessor ip,
+			final ByteProcessor alpha,
+			final ByteProcessor outside,
+			final int first_level) throws Exception
+	{
+		return create(type, Loader.getHighestMipMapLevel(patch) + 1, ip, alpha, outside, first_level);
+	}
+
+	static public final ImageBytes[] create(
+			final int type,
+			final int n_levels,
+			final ImageProcessor ip,
+			final ByteProcessor alpha,
+			final ByteProcessor outside,
+			final int first_level) throws Exception
+	{
+		switch (type) {
+			case ImagePlus.GRAY8:
+			case ImagePlus.GRAY16:
+			case ImagePlus.COLOR_RGB:
+				break;
+			case ImagePlus.GRAY32: {
+				final ImageBytes[] p = DownsamplerMipMaps.create(null, type, n_levels, ip, alpha, outside);
+				for (int i=0; i<first_level && i<p.length; ++i) {
+					CachingThread.storeForReuse(p[i].c);
+					p[i] = null;
+				}
+				return p;
+			}
+			default:
+				throw new Exception("Unhandable ImagePlus type: " + type);
+		}
+
+		final int w = ip.getWidth(),
+		          h = ip.getHeight();
+
+		// Channels: the image channels, then alpha and outside if present
+		final int n_image = ImagePlus.COLOR_RGB == type ? 3 : 1;
+		final int ia = null == alpha ? -1 : n_image,
+		          io = null == outside ? -1 : n_image + (null == alpha ? 0 : 1);
+		final int n = n_image + (null == alpha ? 0 : 1) + (null == outside ? 0 : 1);
+		// Output channels: the image channels, then the mask if any
+		final int n_out = n_image + (n > n_image ? 1 : 0);
+
+		final int[] ws = new int[n_levels],
+		            hs = new int[n_levels];
+		int levels = 0;
+		for (int k=0, lw=w, lh=h; k<n_levels && lw > 0 && lh > 0; ++k, lw /= 2, lh /= 2) {
+			ws[k] = lw;
+			hs[k] = lh;
+			++levels;
+		}
+
+		final ImageBytes[] p = new ImageBytes[n_levels];
+		for (int k=first_level; k<levels; ++k) {
+			p[k] = new ImageBytes(CachingThread.getOrCreateByteArray(n_out, ws[k] * hs[k]), ws[k], hs[k]);
+		}
+
+		// For 16-bit images, a table from 16-bit values to 8-bit
+		final byte[] lut = ImagePlus.GRAY16 == type ? shortToByte(ip.getMin(), ip.getMax()) : null;
+
+		// Per level: the row being made, the row waiting for its pair, and the index of the next row
+		final int[][][] current = new int[levels][][],
+		                pending = new int[levels][][];
+		final int[] next = new int[levels];
+		for (int k=0; k<levels; ++k) {
+			current[k] = new int[n][ws[k]];
+			if (k > 0) pending[k] = new int[n][ws[k-1]];
+		}
+		final boolean[] has_pending = new boolean[levels];
+
+		final Object pix = ip.getPixels();
+		final byte[] pa = null == alpha ? null : (byte[])alpha.getPixels(),
+		             po = null == outside ? null : (byte[])outside.getPixels();
+
+		for (int y=0; y<h; ++y) {
+			// Read row y into level 0
+			final int[][] row0 = current[0];
+			final int offset = y * w;
+			switch (type) {
+				case ImagePlus.GRAY8:
+					readBytes((byte[])pix, offset, row0[0], w);
+					break;
+				case ImagePlus.GRAY16:
+					readShorts((short[])pix, offset, row0[0], w);
+					break;
+				case ImagePlus.COLOR_RGB:
+					readRGB((int[])pix, offset, row0[0], row0[1], row0[2], w);
+					break;
+			}
+			if (-1 != ia) readBytes(pa, offset, row0[ia], w);
+			if (-1 != io) readBytes(po, offset, row0[io], w);
+			if (-1 != ia && -1 != io) mask(row0[ia], row0[io], w);
+
+			if (null != p[0]) write(p[0], next[0], row0, n_image, ia, io, lut);
+			next[0]++;
+
+			// Push the row down the pyramid for as long as it completes a pair
+			for (int k=1; k<levels; ++k) {
+				if (!has_pending[k]) {
+					// Swap: the row waits, and its buffer is reused for the next row of level k-1
+					final int[][] tmp = pending[k];
+					pending[k] = current[k-1];
+					current[k-1] = tmp;
+					has_pending[k] = true;
+					break;
+				}
+				has_pending[k] = false;
+				final int[][] a = pending[k],
+				              b = current[k-1],
+				              t = current[k];
+				final int tw = ws[k];
+				for (int c=0; c<n_image; ++c) average(a[c], b[c], t[c], tw);
+				if (-1 != ia) average(a[ia], b[ia], t[ia], tw);
+				if (-1 != io) inside(a[io], b[io], t[io], tw);
+				if (-1 != ia && -1 != io) mask(t[ia], t[io], tw);
+				if (null != p[k]) write(p[k], next[k], t, n_image, ia, io, lut);
+				next[k]++;
+			}
+		}
+
+		return p;
+	}
+
+	static private final void readBytes(final byte[] b, final int offset, final int[] row, final int w) {
+		for (int x=0; x<w; ++x) row[x] = b[offset + x] & 0xff;
+	}
+
+	static private final void readShorts(final short[] s, final int offset, final int[] row, final int w) {
+		for (int x=0; x<w; ++x) row[x] = s[offset + x] & 0xffff;
+	}
+
+	static private final void readRGB(final int[] argb, final int offset, final int[] r, final int[] g, final int[] b, final int w) {
+		for (int x=0; x<w; ++x) {
+			final int v = argb[offset + x];
+			r[x] = (v >> 16) & 0xff;
+			g[x] = (v >>  8) & 0xff;
+			b[x] =  v        & 0xff;
+		}
+	}
+
+	/** Zero alpha wherever outside, as in {@link ini.trakem2.imaging.P#merge(byte[], byte[])}. */
+	static private final void mask(final int[] alpha, final int[] outside, final int w) {
+		for (int x=0; x<w; ++x) alpha[x] = 255 == outside[x] ? alpha[x] : 0;
+	}
+
+	/** Each pixel of {@code t} is the rounded average of a 2x2 block of rows {@code a} and {@code b}. */
+	static private final void average(final int[] a, final int[] b, final int[] t, final int tw) {
+		for (int x=0, i=0; x<tw; ++x, i+=2) {
+			t[x] = (a[i] + a[i+1] + b[i] + b[i+1] + 2) >> 2;
+		}
+	}
+
+	/** Each pixel of {@code t} is inside (255) only if all four pixels of the 2x2 block are. */
+	static private final void inside(final int[] a, final int[] b, final int[] t, final int tw) {
+		for (int x=0, i=0; x<tw; ++x, i+=2) {
+			t[x] = 255 == (a[i] & a[i+1] & b[i] & b[i+1]) ? 255 : 0;
+		}
+	}
+
+	static private final void write(final ImageBytes ib, final int y, final int[][] row, final int n_image, final int ia, final int io, final byte[] lut) {
+		final int w = ib.width,
+		          offset = y * w;
+		if (null == lut) {
+			for (int c=0; c<n_image; ++c) toBytes(row[c], ib.c[c], offset, w);
+		} else {
+			final int[] r = row[0];
+			final byte[] b = ib.c[0];
+			for (int x=0; x<w; ++x) b[offset + x] = lut[r[x]];
+		}
+		if (-1 != ia) toBytes(row[ia], ib.c[n_image], offset, w);
+		else if (-1 != io) toBytes(row[io], ib.c[n_image], offset, w);
+	}
+
+	static private final void toBytes(final int[] row, final byte[] b, final int offset, final int w) {
+		for (int x=0; x<w; ++x) b[offset + x] = (byte)row[x];
+	}
+
+	/** Same scaling as ImageJ's conversion of 16-bit images to 8-bit. */
+	static private final byte[] shortToByte(final double dmin, final double dmax) {
+		final int min = (int)dmin,
+		          max = (int)dmax;
+		final double scale = 256.0 / (max - min + 1);
+		final byte[] lut = new byte[65536];
+		for (int i=0; i<lut.length; ++i) {
+			int v = i - min;
+			if (v < 0) v = 0;
+			v = (int)(v * scale + 0.5);
+			if (v > 255) v = 255;
+			lut[i] = (byte)v;
+		}
+		return lut;
+	}
+}
@@ -0,0 +1,38 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.scripting;
+
+import ij.ImagePlus;
+import ini.trakem2.display.Patch;
+
+/** A preprocessor written in java, to be used instead of a preprocessor script.
+ * Set the preprocessor script path of a {@link Patch} to {@link PatchScript#JAVA_PREFIX}
+ * followed by the fully qualified name of the implementing class, which must have
+ * a public constructor without arguments.
+ *
+ * A single instance is shared by all patches and threads, so implementations must be thread-safe. */
+public interface PatchPreprocessor
+{
+	/** Process the image of {@code patch} in place, like a preprocessor script does with its
+	 * {@code patch} and {@code imp} variables. May set a new processor into {@code imp}. */
+	public void process(Patch patch, ImagePlus imp);
+}
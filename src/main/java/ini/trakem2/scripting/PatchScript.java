@@ -25,28 +25,140 @@ import ij.IJ;
 import ij.ImagePlus;
 import ini.trakem2.display.Patch;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+/** Runs preprocessor scripts on the images of patches.
+ *
+ * Each distinct script is compiled once, when its language has a {@link Compilable} scripting engine,
+ * and compiled again only when its file is modified, outside of any lock, so that a slow compilation does
+ * not hold back the patches that use other scripts. Each run is given the same variables as Fiji's ScriptRunner
+ * would, {@code patch} and {@code imp}, as bindings. Engines that do not declare themselves thread-safe run one
+ * patch at a time. Scripts in other languages are interpreted for every patch by Fiji's ScriptRunner.
+ *
+ * A path starting with {@link #JAVA_PREFIX} names a {@link PatchPreprocessor} class instead. */
 public class PatchScript {
 
+	/** Prefix of preprocessor script paths that name a {@link PatchPreprocessor} class. */
+	static public final String JAVA_PREFIX = "java:";
+
 	static private Method m = null;
 
+	static private ScriptEngineManager manager = null;
+
+	static private final synchronized ScriptEngineManager getManager() {
+		if (null == manager) manager = new ScriptEngineManager(IJ.getClassLoader());
+		return manager;
+	}
+
+	/** A compiled script or a {@link PatchPreprocessor}; neither for scripts to interpret. */
+	static private final class Compiled {
+		private final long mtime;
+		private final CompiledScript script;
+		private final boolean concurrent;
+		private final PatchPreprocessor pp;
+		private Compiled(final long mtime, final CompiledScript script, final boolean concurrent, final PatchPreprocessor pp) {
+			this.mtime = mtime;
+			this.script = script;
+			this.concurrent = concurrent;
+			this.pp = pp;
+		}
+	}
+
+	/** By path. */
+	static private final ConcurrentHashMap<String,Compiled> registry = new ConcurrentHashMap<String,Compiled>();
+
+	static public final boolean isJavaPreprocessor(final String path) {
+		return null != path && path.startsWith(JAVA_PREFIX);
+	}
+
 	/** Run the script at path on the ImagePlus of patch. */
 	static public void run(final Patch patch, final ImagePlus imp, final String path) {
 		try {
-			HashMap<String,Object> vars = new HashMap<String,Object>();
-			vars.put("patch", patch);
-			vars.put("imp", imp);
-			if (null == m) {
-				Class<?> c = Class.forName("common.ScriptRunner");
-				m = c.getDeclaredMethod("run", String.class, Map.class);
+			final Compiled c = getCompiled(path);
+			if (null != c.pp) {
+				c.pp.process(patch, imp);
+			} else if (null != c.script) {
+				final Bindings bindings = c.script.getEngine().createBindings();
+				bindings.putAll(variables(patch, imp));
+				if (c.concurrent) c.script.eval(bindings);
+				else synchronized (c) { c.script.eval(bindings); }
+			} else {
+				interpret(patch, imp, path);
 			}
-			m.invoke(null, (IJ.isWindows() ? path.replace('/', '\\') : path), vars);
 		} catch (Exception e) {
 			IJError.print(e);
 		}
 	}
+
+	/** The variables given to a script, with the same names as for Fiji's ScriptRunner. */
+	static private final Map<String,Object> variables(final Patch patch, final ImagePlus imp) {
+		final HashMap<String,Object> vars = new HashMap<String,Object>();
+		vars.put("patch", patch);
+		vars.put("imp", imp);
+		return vars;
+	}
+
+	static private final Compiled getCompiled(final String path) throws Exception {
+		final boolean java = isJavaPreprocessor(path);
+		final long mtime = java ? 0 : new File(path).lastModified();
+		final Compiled c = registry.get(path);
+		if (null != c && c.mtime == mtime) return c;
+		// Compile without holding any lock: threads that get here at once for the same script
+		// may all compile it, but only the first to finish publishes its result
+		final Compiled fresh;
+		if (java) {
+			final Class<?> k = Class.forName(path.substring(JAVA_PREFIX.length()).trim(), true, IJ.getClassLoader());
+			fresh = new Compiled(0, null, true, (PatchPreprocessor) k.getDeclaredConstructor().newInstance());
+		} else {
+			fresh = compile(path, mtime);
+		}
+		if (null == c) {
+			final Compiled published = registry.putIfAbsent(path, fresh);
+			return null == published ? fresh : published;
+		}
+		return registry.replace(path, c, fresh) ? fresh : registry.get(path);
+	}
+
+	static private final Compiled compile(final String path, final long mtime) throws Exception {
+		final int idot = path.lastIndexOf('.');
+		if (-1 != idot) {
+			final ScriptEngine engine = getManager().getEngineByExtension(path.substring(idot + 1).toLowerCase());
+			if (engine instanceof Compilable) {
+				final Reader reader = new InputStreamReader(new FileInputStream(path), "UTF-8");
+				try {
+					final CompiledScript script = ((Compilable) engine).compile(reader);
+					final Object threading = engine.getFactory().getParameter("THREADING");
+					Utils.log2("Compiled preprocessor script " + path);
+					return new Compiled(mtime, script, "MULTITHREADED".equals(threading) || "THREAD-ISOLATED".equals(threading) || "STATELESS".equals(threading), null);
+				} finally {
+					reader.close();
+				}
+			}
+		}
+		return new Compiled(mtime, null, false, null);
+	}
+
+	/** Run the script at path with Fiji's ScriptRunner, which interprets it anew every time. */
+	static private void interpret(final Patch patch, final ImagePlus imp, final String path) throws Exception {
+		if (null == m) {
+			Class<?> c = Class.forName("common.ScriptRunner");
+			m = c.getDeclaredMethod("run", String.class, Map.class);
+		}
+		m.invoke(null, (IJ.isWindows() ? path.replace('/', '\\') : path), variables(patch, imp));
+	}
 }
@@ -33,7 +33,6 @@ import ini.trakem2.display.Tag;
 import ini.trakem2.display.Tree;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
-import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.FSLoader;
 
 import java.awt.Color;
@@ -51,10 +50,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFrame;
@@ -74,130 +75,338 @@ public class Merger {
 	static public final void compare(final Project p1, final Project p2) {
 		Utils.log("Be warned: only Treeline, AreaTree and Connector are considered at the moment.");
 
-		final LayerSet ls1 = p1.getRootLayerSet(),
-					   ls2 = p2.getRootLayerSet();
+		final Diff diff = diff(p1, p2, Runtime.getRuntime().availableProcessors());
+		if (null == diff) return;
 
-		final Collection<ZDisplayable> zds1 = ls1.getZDisplayables(),
-									   zds2 = ls2.getZDisplayables();
+		Utils.log("matched.size(): " + diff.changes.size() + " (" + diff.skipped + " unchanged, not compared node by node)");
+		
+		makeGUI(p1, p2, diff);
+	}
+
+	/** The differences between two projects, as a list of pairs of matching objects and the lists of objects without a match. */
+	static public final class Diff {
+		/** The pairs of objects with nodes in common, in the order of the objects of the first project. */
+		public final List<Change> changes = new ArrayList<Change>();
+		/** Objects of one project without any counterpart in the other. */
+		public final List<ZDisplayable> unmatched1 = new ArrayList<ZDisplayable>(),
+		                                unmatched2 = new ArrayList<ZDisplayable>();
+		/** Objects without any data, which are not compared. */
+		public final List<ZDisplayable> empty1 = new ArrayList<ZDisplayable>(),
+		                                empty2 = new ArrayList<ZDisplayable>();
+		/** How many of the {@link #changes} were found identical by their content hash alone. */
+		public int skipped = 0;
+	}
 
+	/** Match every {@link Treeline}, {@link AreaTree} and {@link Connector} of {@code p1} with those of {@code p2}.
+	 *
+	 * Each object is first paired with the object of the same class and id in the other project,
+	 * or else with one of the same class and content hash: when the hashes are equal the objects are
+	 * identical, and are not compared any further. Otherwise, the object is compared node by node only
+	 * with those objects of the other project whose bounds overlap its own, found via a spatial index,
+	 * and paired with those that have at least one node in common.
+	 *
+	 * @return The differences, or null if interrupted. */
+	static public final Diff diff(final Project p1, final Project p2, final int n_threads) {
 		final HashSet<Class<?>> accepted = new HashSet<Class<?>>();
 		accepted.add(Treeline.class);
 		accepted.add(AreaTree.class);
 		accepted.add(Connector.class);
 
-		final HashMap<Displayable,List<Change>> matched = new HashMap<Displayable,List<Change>>();
-		
-		final HashSet<ZDisplayable> empty1 = new HashSet<ZDisplayable>(),
-									empty2 = new HashSet<ZDisplayable>();
+		final Diff diff = new Diff();
+		final List<ZDisplayable> trees1 = new ArrayList<ZDisplayable>(),
+		                         trees2 = new ArrayList<ZDisplayable>();
+		for (final ZDisplayable zd : p1.getRootLayerSet().getZDisplayables()) {
+			if (!accepted.contains(zd.getClass())) Utils.log("Ignoring: [A] " + zd);
+			else if (zd.isDeletable()) diff.empty1.add(zd);
+			else trees1.add(zd);
+		}
+		for (final ZDisplayable zd : p2.getRootLayerSet().getZDisplayables()) {
+			if (!accepted.contains(zd.getClass())) continue;
+			if (zd.isDeletable()) diff.empty2.add(zd);
+			else trees2.add(zd);
+		}
 
-		final HashSet<ZDisplayable> unmatched1 = new HashSet<ZDisplayable>(),
-									unmatched2 = new HashSet<ZDisplayable>(zds2);
+		final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, n_threads), "Merger");
+		try {
+			final Summary[] s1 = summarize(trees1, exec),
+			                s2 = summarize(trees2, exec);
+			if (null == s1 || null == s2) return null;
 
-		// Remove instances of classes not accepted
-		for (final Iterator<ZDisplayable> it = unmatched2.iterator(); it.hasNext(); ) {
-			ZDisplayable zd = it.next();
-			if (!accepted.contains(zd.getClass())) {
-				it.remove();
-				continue;
+			// Indices of the second project
+			final HashMap<Long,Summary> by_id = new HashMap<Long,Summary>();
+			final HashMap<Long,Summary> by_hash = new HashMap<Long,Summary>();
+			for (final Summary s : s2) {
+				by_id.put(s.zd.getId(), s);
+				if (!by_hash.containsKey(s.hash)) by_hash.put(s.hash, s);
 			}
-			if (zd.isDeletable()) {
-				it.remove();
-				empty2.add(zd);
+			final Grid grid = new Grid(s2);
+
+			// Match each object of the first project, independently of all others
+			final AtomicInteger counter = new AtomicInteger(0);
+			final List<Future<List<Change>>> fus = new ArrayList<Future<List<Change>>>();
+			final int chunk = Math.max(1, Math.min(256, s1.length / (4 * Math.max(1, n_threads))));
+			for (int k = 0; k < s1.length; k += chunk) {
+				final int first = k,
+				          last = Math.min(s1.length, k + chunk);
+				fus.add(exec.submit(new Callable<List<Change>>() {
+					@Override
+					public List<Change> call() {
+						final List<Change> cs = new ArrayList<Change>();
+						for (int i = first; i < last; ++i) {
+							if (Thread.currentThread().isInterrupted()) return cs;
+							match(s1[i], by_id, by_hash, grid, cs);
+							Utils.showProgress(counter.incrementAndGet() / (float)s1.length);
+						}
+						return cs;
+					}
+				}));
+			}
+			final HashSet<ZDisplayable> matched1 = new HashSet<ZDisplayable>(),
+			                            matched2 = new HashSet<ZDisplayable>();
+			for (final Future<List<Change>> fu : fus) {
+				for (final Change c : fu.get()) {
+					diff.changes.add(c);
+					if (c.hashed) diff.skipped += 1;
+					matched1.add(c.d1);
+					matched2.add(c.d2);
+				}
 			}
+			if (Thread.currentThread().isInterrupted()) return null;
+			for (final ZDisplayable zd : trees1) {
+				if (!matched1.contains(zd)) diff.unmatched1.add(zd);
+			}
+			for (final ZDisplayable zd : trees2) {
+				if (!matched2.contains(zd)) diff.unmatched2.add(zd);
+			}
+			return diff;
+		} catch (final InterruptedException ie) {
+			return null;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		} finally {
+			exec.shutdownNow();
+			Utils.showProgress(1); // reset
 		}
-		zds2.removeAll(empty2);
-		
-		final AtomicInteger counter = new AtomicInteger(0);
-		
-		// For every Displayable in p1, find a corresponding Displayable in p2
-		// or at least one or more that are similar in that they have some nodes in common.
-		try {
-			ini.trakem2.parallel.Process.unbound(zds1,
-					new TaskFactory<ZDisplayable, Object>() {
-						@Override
-						public Object process(final ZDisplayable zd1) {
-							Utils.showProgress(counter.getAndIncrement() / (float)zds1.size());
-							if (!accepted.contains(zd1.getClass())) {
-								Utils.log("Ignoring: [A] " + zd1);
-								return null;
-							}
-							if (zd1.isDeletable()) {
-								synchronized (empty1) {
-									empty1.add(zd1);
-								}
-								return null;
-							}
-							final List<Change> cs = new ArrayList<Change>();
-							for (final ZDisplayable zd2 : zds2) {
-								// Same class?
-								if (zd1.getClass() != zd2.getClass()) continue;
-								if (zd1 instanceof Tree<?> && zd2 instanceof Tree<?>) {
-									Change c = compareTrees(zd1, zd2);
-									if (c.hasSimilarNodes()) {
-										cs.add(c);
-										if (1 == cs.size()) {
-											synchronized (matched) {
-												matched.put(zd1, cs);
-											}
-										}
-										synchronized (unmatched2) {
-											unmatched2.remove(zd2);
-										}
-									}
-									// debug
-									if (zd1.getId() == zd2.getId()) {
-										Utils.log("zd1 #" + zd1.getId() + " is similar to #" + zd2.getId() + ": " + c.hasSimilarNodes());
-									}
-								}
-							}
-							if (cs.isEmpty()) {
-								synchronized (unmatched1) {
-									unmatched1.add(zd1);
-								}
-							}
-							return null;
+	}
+
+	/** Find the counterparts of {@code a} among the objects of the other project, and add a Change for each to {@code cs}. */
+	static private final void match(final Summary a, final HashMap<Long,Summary> by_id, final HashMap<Long,Summary> by_hash,
+			final Grid grid, final List<Change> cs) {
+		Summary same = by_id.get(a.zd.getId());
+		if (null != same && same.zd.getClass() != a.zd.getClass()) same = null;
+		if (null == same) {
+			final Summary h = by_hash.get(a.hash);
+			if (null != h && h.zd.getClass() == a.zd.getClass()) same = h;
+		}
+		if (null != same && same.hash == a.hash && same.n_nodes == a.n_nodes) {
+			// Identical content: no need to look any further
+			final Change c = new Change(a.zd, same.zd);
+			c.hashed = true;
+			c.n_nodes_d1 = c.n_nodes_d2 = c.common_nodes = a.n_nodes;
+			c.common_tags = a.n_tags;
+			cs.add(c);
+			return;
+		}
+		for (final Summary b : grid.overlapping(a)) {
+			if (b.zd.getClass() != a.zd.getClass()) continue;
+			final Change c = compareTrees(a.zd, b.zd);
+			if (c.hasSimilarNodes()) cs.add(c);
+		}
+	}
+
+	/** What is needed to match a tree without looking at its nodes again. */
+	static private final class Summary {
+		final ZDisplayable zd;
+		/** Position in the list of objects of its project. */
+		final int index;
+		/** Hash of the title, the transform, and the world coordinates, tags and parent of every node. */
+		long hash = 0;
+		int n_nodes = 0,
+		    n_tags = 0;
+		/** World bounds of the nodes. */
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, z0 = Double.MAX_VALUE,
+		       x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE, z1 = -Double.MAX_VALUE;
+		Summary(final ZDisplayable zd, final int index) {
+			this.zd = zd;
+			this.index = index;
+			final Tree<?> t = (Tree<?>)zd;
+			final AffineTransform aff = t.getAffineTransform();
+			long h = 0;
+			for (final Node<?> nd : t.getRoot().getSubtreeNodes()) {
+				final WNode w = new WNode(nd, aff);
+				long hn = position(w);
+				final Node<?> parent = nd.getParent();
+				if (null != parent) hn = mix(hn ^ mix(position(new WNode(parent, aff)) + 1));
+				final Set<Tag> tags = nd.getTags();
+				if (null != tags) {
+					for (final Tag tag : tags) hn = mix(hn + tag.hashCode());
+					n_tags += tags.size();
+				}
+				// Independent of the order of the nodes
+				h += hn;
+				n_nodes += 1;
+				x0 = Math.min(x0, w.x);
+				y0 = Math.min(y0, w.y);
+				z0 = Math.min(z0, w.z);
+				x1 = Math.max(x1, w.x);
+				y1 = Math.max(y1, w.y);
+				z1 = Math.max(z1, w.z);
+			}
+			h = mix(h ^ t.getTitle().hashCode());
+			this.hash = mix(h ^ aff.hashCode());
+		}
+		final boolean overlaps(final Summary s) {
+			return x0 <= s.x1 + WNode.TOLERANCE && s.x0 <= x1 + WNode.TOLERANCE
+			    && y0 <= s.y1 + WNode.TOLERANCE && s.y0 <= y1 + WNode.TOLERANCE
+			    && z0 <= s.z1 + WNode.TOLERANCE && s.z0 <= z1 + WNode.TOLERANCE;
+		}
+	}
+
+	static private final long position(final WNode w) {
+		return mix(mix(Float.floatToIntBits(w.x) * 31L + Float.floatToIntBits(w.y)) ^ Double.doubleToLongBits(w.z));
+	}
+
+	/** The finalizer of MurmurHash3: spreads every bit of the input to all bits of the output. */
+	static private final long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Summarize all trees in parallel; returns null if interrupted. */
+	static private final Summary[] summarize(final List<ZDisplayable> trees, final ExecutorService exec) throws Exception {
+		final Summary[] ss = new Summary[trees.size()];
+		final List<Future<?>> fus = new ArrayList<Future<?>>();
+		final int chunk = 64;
+		for (int k = 0; k < ss.length; k += chunk) {
+			final int first = k,
+			          last = Math.min(ss.length, k + chunk);
+			fus.add(exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = first; i < last; ++i) {
+						if (Thread.currentThread().isInterrupted()) return;
+						ss[i] = new Summary(trees.get(i), i);
+					}
+				}
+			}));
+		}
+		for (final Future<?> fu : fus) fu.get();
+		if (Thread.currentThread().isInterrupted()) return null;
+		return ss;
+	}
+
+	/** A uniform grid over the XY bounds of trees, to find those whose bounds overlap with a given tree.
+	 *  Trees too large for the grid are always candidates. */
+	static private final class Grid {
+		static private final int MAX_CELLS = 64;
+		private final double cell;
+		private final HashMap<Long,ArrayList<Summary>> cells = new HashMap<Long,ArrayList<Summary>>();
+		private final ArrayList<Summary> large = new ArrayList<Summary>();
+
+		Grid(final Summary[] ss) {
+			// Cells about the size of the average tree
+			double area = 0;
+			for (final Summary s : ss) area += (s.x1 - s.x0 + 1) * (s.y1 - s.y0 + 1);
+			this.cell = Math.max(64, Math.sqrt(area / Math.max(1, ss.length)));
+			for (final Summary s : ss) {
+				final int cx0 = cell(s.x0), cx1 = cell(s.x1),
+				          cy0 = cell(s.y0), cy1 = cell(s.y1);
+				if (cx1 - cx0 >= MAX_CELLS || cy1 - cy0 >= MAX_CELLS) {
+					large.add(s);
+					continue;
+				}
+				for (int cy = cy0; cy <= cy1; ++cy) {
+					for (int cx = cx0; cx <= cx1; ++cx) {
+						final Long key = key(cx, cy);
+						ArrayList<Summary> list = cells.get(key);
+						if (null == list) {
+							list = new ArrayList<Summary>(4);
+							cells.put(key, list);
 						}
-					});
-		} catch (Exception e) {
-			IJError.print(e);
+						list.add(s);
+					}
+				}
+			}
 		}
-		
-		Utils.showProgress(1); // reset
 
-		Utils.log("matched.size(): " + matched.size());
-		
-		makeGUI(p1, p2, empty1, empty2, matched, unmatched1, unmatched2);
+		private final int cell(final double v) {
+			return (int)Math.floor(v / cell);
+		}
+
+		static private final long key(final int cx, final int cy) {
+			return (((long)cx) << 32) | (cy & 0xffffffffL);
+		}
+
+		/** The trees whose bounds overlap those of {@code s}, in their original order. */
+		final List<Summary> overlapping(final Summary s) {
+			final HashSet<Summary> found = new HashSet<Summary>();
+			final int cx0 = cell(s.x0 - WNode.TOLERANCE), cx1 = cell(s.x1 + WNode.TOLERANCE),
+			          cy0 = cell(s.y0 - WNode.TOLERANCE), cy1 = cell(s.y1 + WNode.TOLERANCE);
+			if ((long)(cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+				// Cheaper to visit every occupied cell
+				for (final ArrayList<Summary> list : cells.values()) collect(s, list, found);
+			} else {
+				for (int cy = cy0; cy <= cy1; ++cy) {
+					for (int cx = cx0; cx <= cx1; ++cx) {
+						final ArrayList<Summary> list = cells.get(key(cx, cy));
+						if (null != list) collect(s, list, found);
+					}
+				}
+			}
+			collect(s, large, found);
+			final List<Summary> sorted = new ArrayList<Summary>(found);
+			Collections.sort(sorted, new Comparator<Summary>() {
+				@Override
+				public int compare(final Summary a, final Summary b) {
+					return a.index - b.index;
+				}
+			});
+			return sorted;
+		}
+
+		static private final void collect(final Summary s, final ArrayList<Summary> list, final HashSet<Summary> found) {
+			for (final Summary t : list) {
+				if (s.overlaps(t)) found.add(t);
+			}
+		}
 	}
 
 
-	private static class Change {
-		ZDisplayable d1, d2;
+	static public final class Change {
+		public final ZDisplayable d1, d2;
+		/** If the pair was found identical by its content hash, without comparing node by node. */
+		public boolean hashed = false;
 		/** If the title is different. */
-		boolean title = false;
+		public boolean title = false;
 		/** If the AffineTransform is different. */
-		boolean transform = false;
+		public boolean transform = false;
 		/** If the tree has been rerooted. */
-		boolean root = false;
+		public boolean root = false;
 		/** The difference in the number of nodes, in percent */
-		int diff = 0;
+		public int diff = 0;
 		/** Number of nodes in d1 found also in d2 (independent of tags). */
-		int common_nodes = 0;
+		public int common_nodes = 0;
 		/** Number of nodes present in d1 but not in d2. */
-		int d1_only = 0;
+		public int d1_only = 0;
 		/** Number of nodes present in d2 but not in d1. */
-		int d2_only = 0;
+		public int d2_only = 0;
 
 		/** Total number of nodes in d1. */
-		int n_nodes_d1 = 0;
+		public int n_nodes_d1 = 0;
 		/** Total number of nodes in d2. */
-		int n_nodes_d2 = 0;
+		public int n_nodes_d2 = 0;
 		
 		/** Number of tags in common (node-wise, not overall tags) */
-		int common_tags = 0;
+		public int common_tags = 0;
 		/** Number of tags present in a node of d1 but not in d2. */
-		int tags_1_only = 0;
+		public int tags_1_only = 0;
 		/** Number of tags present in a node of d1 but not in d2. */
-		int tags_2_only = 0;
+		public int tags_2_only = 0;
 
 		Change(ZDisplayable d1, ZDisplayable d2) {
 			this.d1 = d1;
@@ -205,20 +414,20 @@ public class Merger {
 		}
 
 		/** WARNING: if both trees have zero nodes, returns true as well. */
-		boolean identical() {
+		public boolean identical() {
 			return !title && !transform && !root && 0 == diff
 			    && 0 == tags_1_only && 0 == tags_2_only
 			    && 0 == d1_only && 0 == d2_only;
 		}
 
-		boolean hasSimilarNodes() {
+		public boolean hasSimilarNodes() {
 			return common_nodes > 0;
 		}
 	}
 
-	/** Just so that hashCode will be 0 always and HashMap will be forced to use equals instead,
-	 *  and also using the affine. */
+	/** A node in world coordinates; equal to another when at the same place within {@link #TOLERANCE}. */
 	static private final class WNode {
+		static final double TOLERANCE = 0.01;
 		final Node<?> nd;
 		final float x, y;
 		final double z;
@@ -230,35 +439,77 @@ public class Merger {
 			this.y = f[1];
 			this.z = nd.getLayer().getZ();
 		}
-		@Override
-		public final int hashCode() {
-			return 0;
-		}
 		/** Compares only the node's world coordinates. */
 		@Override
 		public final boolean equals(Object ob) {
 			final WNode o = (WNode)ob;
 			return same(x, o.x) && same(y, o.y) && same(z, o.z);
 		}
+		@Override
+		public final int hashCode() {
+			// Not consistent with equals, which is not transitive: use WNodes instead of hash sets
+			return 0;
+		}
 		private final boolean same(final float f1, final float f2) {
-			return Math.abs(f1 - f2) < 0.01;
+			return Math.abs(f1 - f2) < TOLERANCE;
 		}
 		private final boolean same(final double f1, final double f2) {
-			return Math.abs(f1 - f2) < 0.01;
+			return Math.abs(f1 - f2) < TOLERANCE;
 		}
 	}
 
-	/*
-	static private final HashSet<WNode> asWNodes(final Collection<Node<?>> nds, final AffineTransform aff) {
-		final HashSet<WNode> col = new HashSet<WNode>();
-		for (final Node<?> nd : nds) {
-			col.add(new WNode(nd, aff));
+	/** A set of world nodes, in cells of the size of {@link WNode#TOLERANCE}, so that
+	 *  any node equal to a given one is in the same cell or in one of the 26 adjacent cells. */
+	static private final class WNodes {
+		private final HashMap<Long,ArrayList<WNode>> cells = new HashMap<Long,ArrayList<WNode>>();
+		/** The nodes, in the order they were added. */
+		final ArrayList<WNode> list = new ArrayList<WNode>();
+
+		static private final long key(final long cx, final long cy, final long cz) {
+			return mix(mix(cx * 31 + cy) + cz);
+		}
+
+		static private final long cell(final double v) {
+			return (long)Math.floor(v / WNode.TOLERANCE);
+		}
+
+		/** Add {@code w} unless an equal node is present already. */
+		final void add(final WNode w) {
+			if (null != get(w)) return;
+			final Long key = key(cell(w.x), cell(w.y), cell(w.z));
+			ArrayList<WNode> c = cells.get(key);
+			if (null == c) {
+				c = new ArrayList<WNode>(1);
+				cells.put(key, c);
+			}
+			c.add(w);
+			list.add(w);
+		}
+
+		/** The first added node equal to {@code w}, or null. */
+		final WNode get(final WNode w) {
+			final long cx = cell(w.x), cy = cell(w.y), cz = cell(w.z);
+			for (long dz = -1; dz < 2; ++dz) {
+				for (long dy = -1; dy < 2; ++dy) {
+					for (long dx = -1; dx < 2; ++dx) {
+						final ArrayList<WNode> c = cells.get(key(cx + dx, cy + dy, cz + dz));
+						if (null == c) continue;
+						for (final WNode o : c) {
+							if (o.equals(w)) return o;
+						}
+					}
+				}
+			}
+			return null;
+		}
+
+		final int size() {
+			return list.size();
 		}
-		return col;
 	}
-	*/
-	static private final HashSet<WNode> asWNodes(final Tree<?> tree) {
-		final HashSet<WNode> col = new HashSet<WNode>();
+
+	static private final WNodes asWNodes(final Tree<?> tree) {
+		final WNodes col = new WNodes();
 		for (final Node<?> nd : tree.getRoot().getSubtreeNodes()) {
 			col.add(new WNode(nd, tree.getAffineTransform()));
 		}
@@ -304,22 +555,18 @@ public class Merger {
 			c.title = true;
 		}
 		// Transform:
-		if (!t2.getAffineTransform().equals(t2.getAffineTransform())) {
+		if (!t1.getAffineTransform().equals(t2.getAffineTransform())) {
 			c.transform = true;
 		}
 		// Data
-		final HashSet<WNode> nds1 = asWNodes(t1);
-		final HashMap<WNode,WNode> nds2 = new HashMap<WNode,WNode>();
-		for (final Node<?> nd : t2.getRoot().getSubtreeNodes()) {
-			WNode nn = new WNode(nd, t2.getAffineTransform());
-			nds2.put(nn, nn);
-		}
+		final WNodes nds1 = asWNodes(t1),
+		             nds2 = asWNodes(t2);
 
 		// Which nodes are similar?
-		final HashSet<WNode> diff = new HashSet<WNode>(nds1);
-		diff.removeAll(nds2.keySet());
+		for (final WNode nd1 : nds1.list) {
+			if (null != nds2.get(nd1)) c.common_nodes += 1;
+		}
 
-		c.common_nodes = nds1.size() - diff.size();
 		c.n_nodes_d1 = nds1.size();
 		c.n_nodes_d2 = nds2.size();
 		c.d1_only = c.n_nodes_d1 - c.common_nodes;
@@ -328,17 +575,12 @@ public class Merger {
 		// Same amount of nodes?
 		c.diff = nds1.size() - nds2.size();
 
-		if (t1.getId() == t2.getId()) {
-			Utils.log2("nds1.size(): " + nds1.size() + ", nds2.size(): " + nds2.size() + ", diff.size(): " + diff.size()
-					+ ", c.common_nodes: " + c.common_nodes + ", c.diff: " + c.diff);
-		}
-
 		// is the root the same? I.e. has it been re-rooted?
 		if (nds1.size() > 0) {
-			c.root = t1.getRoot().equals(t2.getRoot());
+			c.root = !new WNode(t1.getRoot(), t1.getAffineTransform()).equals(new WNode(t2.getRoot(), t2.getAffineTransform()));
 		}
 		// what about tags?
-		for (final WNode nd1 : nds1) {
+		for (final WNode nd1 : nds1.list) {
 			final WNode nd2 = nds2.get(nd1);
 			if (null == nd2) continue;
 			final List<Set<Tag>> t = compareTags(nd1.nd, nd2.nd);
@@ -455,18 +697,17 @@ public class Merger {
 		}
 	}
 
-	private static void makeGUI(final Project p1, final Project p2,
-			HashSet<ZDisplayable> empty1, HashSet<ZDisplayable> empty2,
-			HashMap<Displayable,List<Change>> matched,
-			HashSet<ZDisplayable> unmatched1,
-			HashSet<ZDisplayable> unmatched2) {
+	private static void makeGUI(final Project p1, final Project p2, final Diff diff) {
 
 		final ArrayList<Row> rows = new ArrayList<Row>();
-		for (Map.Entry<Displayable,List<Change>> e : matched.entrySet()) {
-			for (Change c : e.getValue()) {
-				rows.add(new Row(c));
-			}
-			if (e.getValue().size() > 1) {
+		final HashMap<Displayable,Integer> counts = new HashMap<Displayable,Integer>();
+		for (final Change c : diff.changes) {
+			rows.add(new Row(c));
+			final Integer n = counts.get(c.d1);
+			counts.put(c.d1, null == n ? 1 : n + 1);
+		}
+		for (final Map.Entry<Displayable,Integer> e : counts.entrySet()) {
+			if (e.getValue() > 1) {
 				Utils.log("More than one assigned to " + e.getKey());
 			}
 		}
@@ -475,10 +716,10 @@ public class Merger {
 		final Table table = new Table();
 		tabs.addTab("Matched", new JScrollPane(table));
 
-		JTable tu1 = createTable(unmatched1, "Unmatched 1", p1, p2);
-		JTable tu2 = createTable(unmatched2, "Unmatched 2", p1, p2);
-		JTable tu3 = createTable(empty1, "Empty 1", p1, p2);
-		JTable tu4 = createTable(empty2, "Empty 2", p1, p2);
+		JTable tu1 = createTable(diff.unmatched1, "Unmatched 1", p1, p2);
+		JTable tu2 = createTable(diff.unmatched2, "Unmatched 2", p1, p2);
+		JTable tu3 = createTable(diff.empty1, "Empty 1", p1, p2);
+		JTable tu4 = createTable(diff.empty2, "Empty 2", p1, p2);
 
 		tabs.addTab("Unmatched 1", new JScrollPane(tu1));
 		tabs.addTab("Unmatched 2", new JScrollPane(tu2));
@@ -515,7 +756,7 @@ public class Merger {
 		private static final long serialVersionUID = 1L;
 		final List<ZDisplayable> items = new ArrayList<ZDisplayable>();
 		final boolean[] sent;
-		TwoColumnModel(final HashSet<ZDisplayable> ds, final String title) {
+		TwoColumnModel(final Collection<ZDisplayable> ds, final String title) {
 			items.addAll(ds);
 			sent = new boolean[items.size()];
 		}
@@ -557,7 +798,7 @@ public class Merger {
 		}
 	}
 
-	static private JTable createTable(final HashSet<ZDisplayable> hs, final String column_title,
+	static private JTable createTable(final Collection<ZDisplayable> hs, final String column_title,
 			final Project p1, final Project p2) {
 		final TwoColumnModel tcm = new TwoColumnModel(hs, column_title);
 		final JTable table = new JTable(tcm);
@@ -37,13 +37,11 @@ import ini.trakem2.display.Display3D;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Dissector;
 import ini.trakem2.display.Layer;
-import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Node;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.Polyline;
 import ini.trakem2.display.Profile;
-import ini.trakem2.display.Tag;
 import ini.trakem2.display.Tree;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
@@ -74,7 +72,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
 import java.util.regex.Pattern;
 
@@ -107,6 +104,9 @@ public class Search {
 
 	private Class<?>[] types = null;
 
+	/** Stop searching once this many results are found. */
+	static private final int MAX_RESULTS = 10000;
+
 	static public final void showWindow() {
 		if (null != instance) {
 			instance.makeGUI();
@@ -354,182 +354,93 @@ public class Search {
 				final Pattern pat = Pattern.compile(pattern,
 						Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
 								| Pattern.DOTALL);
-				// Utils.log2("pattern after: " + pattern);
-				final ArrayList<DBObject> al = new ArrayList<DBObject>();
-				// Utils.log("types[pulldown] = " +
-				// types[pulldown.getSelectedIndex()]);
-				find(project.getRootLayerSet(), al,
-						types[pulldown.getSelectedIndex()]);
-				// Utils.log2("found labels: " + al.size());
-				if (0 == al.size())
-					return;
+				final Class<?> type = types[pulldown.getSelectedIndex()];
 				final Vector<DBObject> v_obs = new Vector<DBObject>();
 				final Vector<String> v_txt = new Vector<String>();
 				final Vector<Coordinate<?>> v_co = new Vector<Coordinate<?>>();
-				Coordinate<?> co = null;
-				for (final DBObject dbo : al) {
-					if (Thread.currentThread().isInterrupted()) {
-						return;
-					}
-					boolean matched = false;
-					// Search in its title
-					Displayable d = null;
-					if (dbo instanceof Displayable) {
-						d = (Displayable) dbo;
-					}
-					String txt;
-					String meaningful_title = null;
-					if (null == d || Patch.class == d.getClass())
-						txt = dbo.getTitle();
-					else {
-						txt = meaningful_title = dbo.getProject()
-								.getMeaningfulTitle(d);
-					}
-
-					if (null == txt || 0 == txt.trim().length())
-						continue;
-					matched = pat.matcher(txt).matches();
-					if (!matched && null != d) {
-						// Search also in its annotation
-						txt = d.getAnnotation();
-						if (null != txt)
-							matched = pat.matcher(txt).matches();
-					}
-					if (!matched) {
-						// Search also in its toString()
-						txt = dbo.toString();
-						matched = pat.matcher(txt).matches();
-					}
-					if (!matched) {
-						// Search also in its id
-						txt = Long.toString(dbo.getId());
-						matched = pat.matcher(txt).matches();
-						if (matched)
-							txt = "id: #" + txt;
-					}
-					if (!matched && null != d) {
-						// Search also in its properties
-						Map<String, String> props = d.getProperties();
-						if (null != props) {
-							for (final Map.Entry<String, String> e : props
-									.entrySet()) {
-								if (pat.matcher(e.getKey()).matches()
-										|| pat.matcher(e.getValue()).matches()) {
-									matched = true;
-									txt = e.getKey() + " => " + e.getValue()
-											+ " [property]";
-									break;
-								}
-							}
+				final DisplayableTableModel model = new DisplayableTableModel(v_obs, v_txt, v_co);
+				// Show results as they are found, in the event dispatch thread
+				final int count = SearchIndex.get(project).query(pat, SearchIndex.requiredLiteral(typed_pattern), type, MAX_RESULTS, new SearchIndex.Listener() {
+					private boolean first = true;
+					public void found(final List<SearchIndex.Match> matches) {
+						final List<Coordinate<?>> cos = new ArrayList<Coordinate<?>>(matches.size());
+						for (final SearchIndex.Match m : matches) {
+							cos.add(null == m.node ? null : createCoordinate((Tree<?>) m.ob, m.node));
 						}
-						if (!matched) {
-							Map<Displayable, Map<String, String>> linked_props = ((Displayable) dbo)
-									.getLinkedProperties();
-							if (null != linked_props) {
-								for (final Map.Entry<Displayable, Map<String, String>> e : linked_props
-										.entrySet()) {
-									for (final Map.Entry<String, String> ee : e
-											.getValue().entrySet()) {
-										if (pat.matcher(ee.getKey()).matches()
-												|| pat.matcher(ee.getValue())
-														.matches()) {
-											matched = true;
-											txt = ee.getKey() + " => "
-													+ e.getValue()
-													+ " [linked property]";
-											break;
-										}
-									}
-								}
-							}
-						}
-					}
-					if (!matched && dbo instanceof Tree<?>) {
-						// search Node tags
-						Node<?> root = ((Tree<?>) dbo).getRoot();
-						if (null == root)
-							continue;
-						for (final Node<?> nd : root.getSubtreeNodes()) {
-							Set<Tag> tags = nd.getTags();
-							if (null == tags)
-								continue;
-							for (final Tag tag : tags) {
-								if (pat.matcher(tag.toString()).matches()) {
-									v_obs.add(dbo);
-									v_txt.add(new StringBuilder(tag.toString())
-											.append(" (")
-											.append(null == meaningful_title ? dbo
-													.toString()
-													: meaningful_title)
-											.append(')').toString());
-									v_co.add(createCoordinate((Tree<?>) dbo, nd));
+						final boolean show = first;
+						first = false;
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								final int row = v_obs.size();
+								for (int i = 0; i < matches.size(); i++) {
+									v_obs.add(matches.get(i).ob);
+									v_txt.add(matches.get(i).text);
+									v_co.add(cos.get(i));
 								}
+								if (show)
+									showResults(project, typed_pattern, model);
+								else
+									model.fireTableRowsInserted(row, v_obs.size() - 1);
 							}
-						}
-						continue; // all added if any
+						});
 					}
-
-					if (!matched)
-						continue;
-
-					// txt = txt.length() > 30 ? txt.substring(0, 27) + "..." :
-					// txt;
-					v_obs.add(dbo);
-					v_txt.add(txt);
-					v_co.add(co);
-				}
-
-				if (0 == v_obs.size()) {
+				});
+				if (0 == count) {
 					Utils.showMessage("Nothing found.");
-					return;
-				}
-				final JPanel result = new JPanel();
-				GridBagLayout gb = new GridBagLayout();
-				result.setLayout(gb);
-				GridBagConstraints c = new GridBagConstraints();
-				c.anchor = GridBagConstraints.NORTHWEST;
-				c.fill = GridBagConstraints.HORIZONTAL;
-				c.insets = new Insets(5, 10, 5, 10);
-				String xml = "";
-				if (project.getLoader() instanceof FSLoader) {
-					String path = ((FSLoader) project.getLoader())
-							.getProjectXMLPath();
-					if (null != path) {
-						xml = " [" + new File(path).getName() + "]";
-					}
+				} else if (count >= MAX_RESULTS) {
+					Utils.log("Search: showing only the first " + MAX_RESULTS
+							+ " results for " + typed_pattern);
 				}
-				JLabel projectTitle = new JLabel(project.getTitle() + xml);
-				gb.setConstraints(projectTitle, c);
-				result.add(projectTitle);
-				c.insets = new Insets(0, 0, 0, 0);
-				JPanel padding = new JPanel();
-				c.weightx = 1;
-				gb.setConstraints(padding, c);
-				result.add(padding);
-				c.gridy = 1;
-				c.gridwidth = 2;
-				c.fill = GridBagConstraints.BOTH;
-				c.weighty = 1;
-				JScrollPane jsp = makeTable(new DisplayableTableModel(v_obs,
-						v_txt, v_co), project);
-				gb.setConstraints(jsp, c);
-				result.add(jsp);
-				search_tabs.addTab(typed_pattern, result);
-				search_tabs.setSelectedComponent(result);
-
-				synchronized (tabMap) {
-					List<JPanel> cs = tabMap.get(project);
-					if (null == cs) {
-						cs = new ArrayList<JPanel>();
-						tabMap.put(project, cs);
-					}
-					cs.add(result);
-				}
-
 			}
 		}, project);
 	}
 
+	/** Open a new tab with the results; must run in the event dispatch thread. */
+	private void showResults(final Project project, final String typed_pattern,
+			final DisplayableTableModel model) {
+		final JPanel result = new JPanel();
+		GridBagLayout gb = new GridBagLayout();
+		result.setLayout(gb);
+		GridBagConstraints c = new GridBagConstraints();
+		c.anchor = GridBagConstraints.NORTHWEST;
+		c.fill = GridBagConstraints.HORIZONTAL;
+		c.insets = new Insets(5, 10, 5, 10);
+		String xml = "";
+		if (project.getLoader() instanceof FSLoader) {
+			String path = ((FSLoader) project.getLoader())
+					.getProjectXMLPath();
+			if (null != path) {
+				xml = " [" + new File(path).getName() + "]";
+			}
+		}
+		JLabel projectTitle = new JLabel(project.getTitle() + xml);
+		gb.setConstraints(projectTitle, c);
+		result.add(projectTitle);
+		c.insets = new Insets(0, 0, 0, 0);
+		JPanel padding = new JPanel();
+		c.weightx = 1;
+		gb.setConstraints(padding, c);
+		result.add(padding);
+		c.gridy = 1;
+		c.gridwidth = 2;
+		c.fill = GridBagConstraints.BOTH;
+		c.weighty = 1;
+		JScrollPane jsp = makeTable(model, project);
+		gb.setConstraints(jsp, c);
+		result.add(jsp);
+		search_tabs.addTab(typed_pattern, result);
+		search_tabs.setSelectedComponent(result);
+
+		synchronized (tabMap) {
+			List<JPanel> cs = tabMap.get(project);
+			if (null == cs) {
+				cs = new ArrayList<JPanel>();
+				tabMap.put(project, cs);
+			}
+			cs.add(result);
+		}
+	}
+
 	private Coordinate<Node<?>> createCoordinate(Tree<?> tree, Node<?> nd) {
 		double x = nd.getX(), y = nd.getY();
 		if (!tree.getAffineTransform().isIdentity()) {
@@ -735,39 +646,6 @@ public class Search {
 		}
 	}
 
-	/**
-	 * Recursive search into nested LayerSet instances, accumulating instances
-	 * of type into the list al.
-	 */
-	private void find(final LayerSet set, final ArrayList<DBObject> al,
-			final Class<?> type) {
-		if (type == DBObject.class) {
-			al.add(set);
-		}
-		for (final ZDisplayable zd : set.getZDisplayables()) {
-			if (DBObject.class == type || Displayable.class == type) {
-				al.add(zd);
-			} else if (zd.getClass() == type) {
-				al.add(zd);
-			}
-		}
-		for (final Layer layer : set.getLayers()) {
-			if (DBObject.class == type || Layer.class == type) {
-				al.add(layer);
-			}
-			for (final Displayable ob : layer.getDisplayables()) {
-				if (DBObject.class == type || Displayable.class == type) {
-					if (ob instanceof LayerSet)
-						find((LayerSet) ob, al, type);
-					else
-						al.add(ob);
-				} else if (ob.getClass() == type) {
-					al.add(ob);
-				}
-			}
-		}
-	}
-
 	static public void removeTabs(final Project p) {
 		final Search search = instance;
 		if (null == search)
@@ -0,0 +1,615 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.Tag;
+import ini.trakem2.display.Tree;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.persistence.DBObject;
+import ini.trakem2.tree.Thing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/** The searchable text of every object of a project, indexed by trigrams.
+ *
+ * Each object has a record with the texts that {@link Search} matches, in the same order:
+ * its title, annotation, {@link DBObject#toString()}, id, properties, linked properties, and the tags of the nodes of a {@link Tree}.
+ * Every three consecutive characters of the texts, in lower case, point to the records that contain them,
+ * so that a search only has to run its regular expression on the records that contain all trigrams
+ * of a literal which any match must contain, instead of on every object of the project.
+ *
+ * The index is brought up to date right before each query, only as much as needed:
+ * objects are enumerated again only when the {@link LayerSet#getEditCount()} changed, tags are read again only
+ * for the trees of the nodes in {@link Node#getTagEditsSince(long)}, and the texts of an object are read again only when
+ * the object was reported as {@link #changed(DBObject, String)}, which {@link DBObject#updateInDatabase(String)} does,
+ * and which a {@link Tree} does when it gains or loses nodes with tags.
+ */
+public final class SearchIndex {
+
+	static private final Map<Project,SearchIndex> indices = new HashMap<Project,SearchIndex>();
+
+	/** @return The index of {@code project}, created empty if there wasn't one: it is filled by the first query. */
+	static public final SearchIndex get(final Project project) {
+		synchronized (indices) {
+			SearchIndex index = indices.get(project);
+			if (null == index) {
+				index = new SearchIndex(project);
+				indices.put(project, index);
+			}
+			return index;
+		}
+	}
+
+	/** Discard the index of {@code project}, if any, which refers to the project and would otherwise keep it in memory. */
+	static public final void remove(final Project project) {
+		synchronized (indices) {
+			indices.remove(project);
+		}
+	}
+
+	/** Tell the index of the project of {@code ob}, if any, that a property of {@code ob} named {@code key} changed.
+	 *  The texts of {@code ob} will be read again before the next query; changes to layers and to the project tree
+	 *  affect the texts of many objects, and invalidate all. */
+	static public final void changed(final DBObject ob, final String key) {
+		if (null == ob) return;
+		final SearchIndex index;
+		synchronized (indices) {
+			if (indices.isEmpty()) return;
+			index = indices.get(ob.getProject());
+		}
+		if (null == index) return;
+		synchronized (index.dirty) {
+			if (ob instanceof Thing) {
+				// Titles derive from the project tree
+				index.all_stale = true;
+			} else if (ob instanceof Layer || ob instanceof LayerSet) {
+				// The z of a layer is in the text of every Displayable in it
+				if (!"stack_index".equals(key)) index.all_stale = true;
+				if (ob instanceof LayerSet) index.dirty.add(ob);
+			} else {
+				index.dirty.add(ob);
+			}
+		}
+	}
+
+	/** A matched object, with the text to show for it, and for tags the node that has it. */
+	static public final class Match {
+		public final DBObject ob;
+		public final String text;
+		/** The node whose tag matched, or null. */
+		public final Node<?> node;
+		private Match(final DBObject ob, final String text, final Node<?> node) {
+			this.ob = ob;
+			this.text = text;
+			this.node = node;
+		}
+	}
+
+	/** Receives the matches of a query, in batches and in the order of the objects in the project. */
+	static public interface Listener {
+		public void found(List<Match> matches);
+	}
+
+	/** The texts of a record at one point in time; never modified, but replaced as a whole. */
+	static private final class Texts {
+		/** What the pattern is matched against, and what to show in the results for each. */
+		final String[] texts, labels;
+		/** The tags of a tree and the node of each, or null. */
+		final String[] tags;
+		final Node<?>[] nodes;
+		/** What follows each tag in the results. */
+		final String tag_suffix;
+		Texts(final String[] texts, final String[] labels, final String[] tags, final Node<?>[] nodes, final String tag_suffix) {
+			this.texts = texts;
+			this.labels = labels;
+			this.tags = tags;
+			this.nodes = nodes;
+			this.tag_suffix = tag_suffix;
+		}
+	}
+
+	static private final Texts NONE = new Texts(new String[0], new String[0], null, null, null);
+
+	static private final class Record {
+		final DBObject ob;
+		/** Whether the object is inside a nested LayerSet. */
+		final boolean nested;
+		/** Position in the enumeration of the objects of the project. */
+		int index;
+		volatile Texts texts = NONE;
+		/** The trigrams under which this record is in the postings. */
+		long[] trigrams = new long[0];
+		Record(final DBObject ob, final boolean nested) {
+			this.ob = ob;
+			this.nested = nested;
+		}
+	}
+
+	private final Project project;
+	/** In the order of {@link Search}: each LayerSet, its ZDisplayables, then each Layer followed by its Displayables. */
+	private List<Record> records = new ArrayList<Record>();
+	private final HashMap<DBObject,Record> by_object = new HashMap<DBObject,Record>();
+	private final HashMap<Long,HashSet<Record>> postings = new HashMap<Long,HashSet<Record>>();
+	/** The root LayerSet and all nested ones, whose edit counts reveal additions and removals. */
+	private List<LayerSet> layer_sets = new ArrayList<LayerSet>();
+	/** Objects whose texts changed since the last update; also the lock for {@code all_stale},
+	 *  so that reporting changes never waits for an update to finish. */
+	private final HashSet<DBObject> dirty = new HashSet<DBObject>();
+	private boolean all_stale = true;
+	private long membership = -1,
+	             tag_edits = -1;
+
+	private SearchIndex(final Project project) {
+		this.project = project;
+	}
+
+	private final long membershipCount() {
+		long count = layer_sets.size();
+		for (final LayerSet ls : layer_sets) count += ls.getEditCount();
+		return count;
+	}
+
+	/** Bring the index up to date. Returns false when interrupted. */
+	synchronized private final boolean update(final ExecutorService exec) throws Exception {
+		final long tag_count = Node.getTagEditCount();
+		final boolean tags_changed = tag_count != this.tag_edits;
+		final boolean stale;
+		final ArrayList<DBObject> changed;
+		synchronized (dirty) {
+			stale = all_stale;
+			all_stale = false;
+			changed = new ArrayList<DBObject>(dirty);
+			dirty.clear();
+		}
+		final Set<Record> to_read = new HashSet<Record>();
+
+		if (0 == records.size() || membershipCount() != this.membership) {
+			final List<Record> current = new ArrayList<Record>();
+			final List<LayerSet> sets = new ArrayList<LayerSet>();
+			enumerate(project.getRootLayerSet(), false, current, sets);
+			// Reuse the records of objects that remain
+			final HashSet<DBObject> present = new HashSet<DBObject>();
+			for (int i = 0; i < current.size(); ++i) {
+				Record r = current.get(i);
+				final Record old = by_object.get(r.ob);
+				if (null != old && old.nested == r.nested) {
+					current.set(i, old);
+					r = old;
+				} else {
+					if (null != old) unpost(old);
+					by_object.put(r.ob, r);
+					to_read.add(r);
+				}
+				r.index = i;
+				present.add(r.ob);
+			}
+			for (final Record r : new ArrayList<Record>(by_object.values())) {
+				if (!present.contains(r.ob)) {
+					unpost(r);
+					by_object.remove(r.ob);
+				}
+			}
+			this.records = current;
+			this.layer_sets = sets;
+			this.membership = membershipCount();
+		}
+
+		if (stale) {
+			to_read.addAll(records);
+		} else {
+			for (final DBObject ob : changed) {
+				final Record r = by_object.get(ob);
+				if (null != r) to_read.add(r);
+			}
+			if (tags_changed) {
+				// Only the trees of the nodes whose tags changed, unless too many changed
+				final List<Node<?>> edited = Node.getTagEditsSince(this.tag_edits);
+				if (null == edited) {
+					for (final Record r : records) {
+						if (r.ob instanceof Tree<?>) to_read.add(r);
+					}
+				} else {
+					to_read.addAll(treesOf(edited, records));
+				}
+			}
+		}
+		this.tag_edits = tag_count;
+
+		if (to_read.isEmpty()) return true;
+
+		// Read the texts in parallel: titles are looked up in the project tree
+		final List<Record> list = new ArrayList<Record>(to_read);
+		final List<Future<long[][]>> fus = new ArrayList<Future<long[][]>>();
+		final int chunk = Math.max(64, list.size() / 64);
+		for (int k = 0; k < list.size(); k += chunk) {
+			final List<Record> part = list.subList(k, Math.min(list.size(), k + chunk));
+			fus.add(exec.submit(new Callable<long[][]>() {
+				@Override
+				public long[][] call() {
+					final long[][] tri = new long[part.size()][];
+					for (int i = 0; i < tri.length; ++i) {
+						if (Thread.currentThread().isInterrupted()) return null;
+						final Record r = part.get(i);
+						r.texts = read(r.ob);
+						tri[i] = trigrams(r.texts);
+					}
+					return tri;
+				}
+			}));
+		}
+		for (int f = 0, k = 0; f < fus.size(); ++f, k += chunk) {
+			final long[][] tri = fus.get(f).get();
+			if (null == tri || Thread.currentThread().isInterrupted()) {
+				// Start over next time
+				synchronized (dirty) { all_stale = true; }
+				return false;
+			}
+			for (int i = 0; i < tri.length; ++i) {
+				final Record r = list.get(k + i);
+				unpost(r);
+				r.trigrams = tri[i];
+				for (final long t : r.trigrams) {
+					HashSet<Record> set = postings.get(t);
+					if (null == set) {
+						set = new HashSet<Record>();
+						postings.put(t, set);
+					}
+					set.add(r);
+				}
+			}
+		}
+		return true;
+	}
+
+	/** The records, among {@code records}, of the trees that contain any of the {@code nodes}, found from the root of each node. */
+	static private final Set<Record> treesOf(final Collection<Node<?>> nodes, final List<Record> records) {
+		final HashMap<Node<?>,Record> roots = new HashMap<Node<?>,Record>();
+		for (final Record r : records) {
+			if (r.ob instanceof Tree<?>) {
+				final Node<?> root = ((Tree<?>)r.ob).getRoot();
+				if (null != root) roots.put(root, r);
+			}
+		}
+		final Set<Record> trees = new HashSet<Record>();
+		for (Node<?> nd : nodes) {
+			while (null != nd.getParent()) nd = nd.getParent();
+			// None for nodes that were deleted
+			final Record r = roots.get(nd);
+			if (null != r) trees.add(r);
+		}
+		return trees;
+	}
+
+	private final void unpost(final Record r) {
+		for (final long t : r.trigrams) {
+			final HashSet<Record> set = postings.get(t);
+			if (null == set) continue;
+			set.remove(r);
+			if (set.isEmpty()) postings.remove(t);
+		}
+		r.trigrams = new long[0];
+	}
+
+	/** Recursive into nested LayerSet instances, in the order in which {@link Search} has always listed objects. */
+	static private final void enumerate(final LayerSet set, final boolean nested, final List<Record> records, final List<LayerSet> sets) {
+		sets.add(set);
+		records.add(new Record(set, nested));
+		for (final ZDisplayable zd : set.getZDisplayables()) {
+			records.add(new Record(zd, nested));
+		}
+		for (final Layer layer : set.getLayers()) {
+			records.add(new Record(layer, nested));
+			for (final Displayable d : layer.getDisplayables()) {
+				if (d instanceof LayerSet) enumerate((LayerSet)d, true, records, sets);
+				else records.add(new Record(d, nested));
+			}
+		}
+	}
+
+	/** The texts of {@code ob}, in the order in which they are matched. */
+	static private final Texts read(final DBObject ob) {
+		final Displayable d = ob instanceof Displayable ? (Displayable)ob : null;
+		final String title;
+		String meaningful_title = null;
+		if (null == d || Patch.class == d.getClass()) title = ob.getTitle();
+		else title = meaningful_title = ob.getProject().getMeaningfulTitle(d);
+		// Objects without a title are never found
+		if (null == title || 0 == title.trim().length()) return NONE;
+
+		final ArrayList<String> texts = new ArrayList<String>(),
+		                        labels = new ArrayList<String>();
+		texts.add(title);
+		labels.add(title);
+		if (null != d && null != d.getAnnotation()) {
+			texts.add(d.getAnnotation());
+			labels.add(d.getAnnotation());
+		}
+		final String s = ob.toString();
+		texts.add(s);
+		labels.add(s);
+		final String id = Long.toString(ob.getId());
+		texts.add(id);
+		labels.add("id: #" + id);
+		if (null != d) {
+			final Map<String,String> props = d.getProperties();
+			if (null != props) {
+				for (final Map.Entry<String,String> e : props.entrySet()) {
+					final String label = e.getKey() + " => " + e.getValue() + " [property]";
+					texts.add(e.getKey());
+					labels.add(label);
+					texts.add(e.getValue());
+					labels.add(label);
+				}
+			}
+			final Map<Displayable,Map<String,String>> linked_props = d.getLinkedProperties();
+			if (null != linked_props) {
+				for (final Map<String,String> m : linked_props.values()) {
+					for (final Map.Entry<String,String> e : m.entrySet()) {
+						final String label = e.getKey() + " => " + e.getValue() + " [linked property]";
+						texts.add(e.getKey());
+						labels.add(label);
+						texts.add(e.getValue());
+						labels.add(label);
+					}
+				}
+			}
+		}
+
+		String[] tags = null;
+		Node<?>[] nodes = null;
+		String tag_suffix = null;
+		if (ob instanceof Tree<?>) {
+			final Node<?> root = ((Tree<?>)ob).getRoot();
+			if (null != root) {
+				final ArrayList<String> ts = new ArrayList<String>();
+				final ArrayList<Node<?>> ns = new ArrayList<Node<?>>();
+				for (final Node<?> nd : root.getSubtreeNodes()) {
+					final Set<Tag> set = nd.getTags();
+					if (null == set) continue;
+					for (final Tag tag : set) {
+						ts.add(tag.toString());
+						ns.add(nd);
+					}
+				}
+				tags = ts.toArray(new String[ts.size()]);
+				nodes = ns.toArray(new Node<?>[ns.size()]);
+			} else {
+				tags = new String[0];
+				nodes = new Node<?>[0];
+			}
+			tag_suffix = " (" + (null == meaningful_title ? s : meaningful_title) + ")";
+		}
+		return new Texts(texts.toArray(new String[texts.size()]), labels.toArray(new String[labels.size()]), tags, nodes, tag_suffix);
+	}
+
+	/** Three chars in one long, lower case. */
+	static private final long trigram(final CharSequence s, final int i) {
+		return ((long)Character.toLowerCase(s.charAt(i)) << 32)
+		     | ((long)Character.toLowerCase(s.charAt(i+1)) << 16)
+		     | Character.toLowerCase(s.charAt(i+2));
+	}
+
+	static private final long[] trigrams(final Texts texts) {
+		final HashSet<Long> set = new HashSet<Long>();
+		for (final String s : texts.texts) addTrigrams(s, set);
+		if (null != texts.tags) {
+			for (final String s : texts.tags) addTrigrams(s, set);
+		}
+		final long[] a = new long[set.size()];
+		int i = 0;
+		for (final Long t : set) a[i++] = t;
+		return a;
+	}
+
+	static private final void addTrigrams(final String s, final Set<Long> set) {
+		for (int i = 0, end = s.length() - 2; i < end; ++i) set.add(trigram(s, i));
+	}
+
+	/** The longest run of literal characters that any text matched by the regular expression {@code pattern} must contain,
+	 *  or an empty string if it can't be told. Only runs outside of groups count, and none if there are alternatives
+	 *  or escapes other than a quoted non-alphanumeric character such as {@code \.}. */
+	static public final String requiredLiteral(final String pattern) {
+		if (-1 != pattern.indexOf('|') || -1 != pattern.indexOf("\\Q")) return "";
+		String best = "";
+		final StringBuilder run = new StringBuilder();
+		int depth = 0;
+		for (int i = 0; i < pattern.length(); ++i) {
+			final char c = pattern.charAt(i);
+			switch (c) {
+				case '\\':
+					if (i + 1 < pattern.length() && !Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+						if (0 == depth) run.append(pattern.charAt(i + 1));
+						++i;
+						continue;
+					}
+					// A class such as \d, a back reference, or a character given by its code such as \x41:
+					// what follows is not a literal, and telling what is would require parsing the escape
+					return "";
+				case '[':
+					// Skip the character class
+					for (++i; i < pattern.length() && ']' != pattern.charAt(i); ++i) {
+						if ('\\' == pattern.charAt(i)) ++i;
+					}
+					break;
+				case '(':
+					++depth;
+					break;
+				case ')':
+					--depth;
+					break;
+				case '?':
+				case '*':
+				case '{':
+					// The preceding char is optional
+					if (run.length() > 0) run.setLength(run.length() - 1);
+					if ('{' == c) {
+						while (i < pattern.length() && '}' != pattern.charAt(i)) ++i;
+					}
+					break;
+				case '.':
+				case '^':
+				case '$':
+				case '+':
+					break;
+				default:
+					if (0 == depth) {
+						run.append(c);
+						continue;
+					}
+					break;
+			}
+			// The run is interrupted
+			if (run.length() > best.length()) best = run.toString();
+			run.setLength(0);
+		}
+		if (run.length() > best.length()) best = run.toString();
+		return best;
+	}
+
+	static private final boolean accepts(final Record r, final Class<?> type, final LayerSet root) {
+		if (DBObject.class == type) return true;
+		if (Displayable.class == type) return r.ob instanceof Displayable && !(r.ob instanceof LayerSet);
+		return !r.nested && r.ob != root && r.ob.getClass() == type;
+	}
+
+	/** Find all objects of {@code type} with a text matched by {@code pattern}, in parallel, and hand them to the {@code listener}
+	 * as they are found, in the order of the objects in the project.
+	 *
+	 * @param pattern The full pattern to match each text with.
+	 * @param literal Characters that every text matched by {@code pattern} contains, to be looked up in the index; see {@link #requiredLiteral(String)}.
+	 * @param type {@link DBObject} for all, {@link Displayable} for all except layers and layer sets, or a specific class of objects outside nested layer sets.
+	 * @param max The number of matches at which to stop.
+	 * @return The number of matches, or -1 if the thread was interrupted. */
+	public int query(final Pattern pattern, final String literal, final Class<?> type, final int max, final Listener listener) {
+		final ExecutorService exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Search");
+		try {
+			final List<Record> candidates;
+			synchronized (this) {
+				if (!update(exec)) return -1;
+				final LayerSet root = project.getRootLayerSet();
+				candidates = new ArrayList<Record>();
+				if (literal.length() < 3) {
+					for (final Record r : records) {
+						if (accepts(r, type, root)) candidates.add(r);
+					}
+				} else {
+					// Records that have every trigram of the literal, starting from the rarest
+					final ArrayList<HashSet<Record>> sets = new ArrayList<HashSet<Record>>();
+					for (int i = 0, end = literal.length() - 2; i < end; ++i) {
+						final HashSet<Record> set = postings.get(trigram(literal, i));
+						if (null == set) return 0;
+						sets.add(set);
+					}
+					Collections.sort(sets, new Comparator<HashSet<Record>>() {
+						@Override
+						public int compare(final HashSet<Record> s1, final HashSet<Record> s2) {
+							return s1.size() - s2.size();
+						}
+					});
+					C: for (final Record r : sets.get(0)) {
+						for (int i = 1; i < sets.size(); ++i) {
+							if (!sets.get(i).contains(r)) continue C;
+						}
+						if (accepts(r, type, root)) candidates.add(r);
+					}
+					Collections.sort(candidates, new Comparator<Record>() {
+						@Override
+						public int compare(final Record r1, final Record r2) {
+							return r1.index - r2.index;
+						}
+					});
+				}
+			}
+
+			// Match in parallel, report in order
+			final List<Future<List<Match>>> fus = new ArrayList<Future<List<Match>>>();
+			final int chunk = Math.max(256, candidates.size() / 64);
+			for (int k = 0; k < candidates.size(); k += chunk) {
+				final List<Record> part = candidates.subList(k, Math.min(candidates.size(), k + chunk));
+				fus.add(exec.submit(new Callable<List<Match>>() {
+					@Override
+					public List<Match> call() {
+						final List<Match> ms = new ArrayList<Match>();
+						for (final Record r : part) {
+							if (Thread.currentThread().isInterrupted()) return ms;
+							match(r, pattern, ms);
+						}
+						return ms;
+					}
+				}));
+			}
+			int count = 0;
+			for (final Future<List<Match>> fu : fus) {
+				if (Thread.currentThread().isInterrupted()) return -1;
+				List<Match> ms = fu.get();
+				if (ms.isEmpty()) continue;
+				if (count + ms.size() > max) ms = ms.subList(0, max - count);
+				count += ms.size();
+				listener.found(ms);
+				if (count >= max) break;
+			}
+			return count;
+		} catch (final InterruptedException ie) {
+			return -1;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return -1;
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** Adds to {@code ms} the first text of {@code r} that matches, or else every matching tag. */
+	static private final void match(final Record r, final Pattern pattern, final List<Match> ms) {
+		final Texts t = r.texts;
+		for (int i = 0; i < t.texts.length; ++i) {
+			if (pattern.matcher(t.texts[i]).matches()) {
+				ms.add(new Match(r.ob, t.labels[i], null));
+				return;
+			}
+		}
+		if (null == t.tags) return;
+		for (int i = 0; i < t.tags.length; ++i) {
+			if (pattern.matcher(t.tags[i]).matches()) {
+				ms.add(new Match(r.ob, t.tags[i] + t.tag_suffix, t.nodes[i]));
+			}
+		}
+	}
+}
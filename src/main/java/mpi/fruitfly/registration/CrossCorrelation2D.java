@@ -31,10 +31,11 @@ import ij.ImagePlus;
 import ij.io.Opener;
 import ij.process.ImageProcessor;
 
+import ini.trakem2.imaging.NormalizedCrossCorrelation;
+
 import java.awt.Point;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
 
-import mpi.fruitfly.general.MultiThreading;
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 
 /**
@@ -95,7 +96,7 @@ public class CrossCorrelation2D
      * Limits the overlap to 30% and restricts the shift furthermore by a factor you can tell him
      * (this is useful if you f. ex. know that the vertical shift is much less than the horizontal).
      *
-     * NOTE: Works multithreaded
+     * NOTE: Works multithreaded, see {@link NormalizedCrossCorrelation}
      *
      * @param relMinOverlapX double - if you want to scan for less possible translations seen from a direct overlay,
      * give the relative factor here (e.g. 0.3 means DONOT scan the outer 30%)
@@ -110,141 +111,25 @@ public class CrossCorrelation2D
      */
     public double[] computeCrossCorrelationMT(final double relMinOverlapX, final double relMinOverlapY, final boolean showImages)
     {
-        //final double relMinOverlap = 0.30;
-
-        final int w1 = img1.width;
-        final int w2 = img2.width;
-
-        final int h1 = img1.height;
-        final int h2 = img2.height;
-
-        final int min_border_w = (int) (w1 < w2 ? w1 * relMinOverlapX + 0.5 : w2 * relMinOverlapX + 0.5);
-        final int min_border_h = (int) (h1 < h2 ? h1 * relMinOverlapY + 0.5 : h2 * relMinOverlapY + 0.5);
-
-        /*System.out.println(w1 + " " + h1 + " " + w2 + " " + h2);
-        System.out.println(min_border_w + " " + min_border_h);
-        System.out.println("Y [" + (-h2 + min_border_h) + " , " + (h1 - min_border_h) + "]");*/
-
-        final AtomicInteger ai = new AtomicInteger(-w1 + min_border_w);
-
-        Thread[] threads = MultiThreading.newThreads();
-
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread(new Runnable()
-            {
-                public void run()
-                {
-                    for (int moveX = ai.getAndIncrement(); moveX < w2 - min_border_w; moveX = ai.getAndIncrement())
-                    {
-                        for (int moveY = -h1 + min_border_h; moveY < h2 - min_border_h; moveY++)
-                        {
-                            // compute average
-                            double avg1 = 0, avg2 = 0;
-                            int count = 0;
-                            double value1, value2;
-
-                            // iterate over the area which overlaps
-
-                            // if moveX < 0 we have to start just at -moveX because otherwise x2 is negative....
-                            // same for moveX > 0 and the right side
-
-                            //for (int x1 = 0; x1 < w1; x1++)
-                            for (int x1 = -min(0, moveX); x1 < min(w1, w2 - moveX); x1++)
-                            {
-                                int x2 = x1 + moveX;
-
-                                /*if (x2 < 0 || x2 > w2 - 1)
-                                    continue;*/
-
-                                //for (int y1 = 0; y1 < h1; y1++)
-                                for (int y1 = -min(0, moveY); y1 < min(h1, h2 - moveY); y1++)
-                                {
-                                    int y2 = y1 + moveY;
-
-                                    /*if (y2 < 0 || y2 > h2 - 1)
-                                        continue;*/
-
-                                    value1 = img1.get(x1, y1);
-                                    if (value1 == -1)
-                                        continue;
-
-                                    value2 = img2.get(x2, y2);
-                                    if (value2 == -1)
-                                        continue;
-
-                                    avg1 += value1;
-                                    avg2 += value2;
-                                    count++;
-
-                                }
-                            }
-
-                            if (0 == count)continue;
-
-                            avg1 /= (double) count;
-                            avg2 /= (double) count;
-
-                            double var1 = 0, var2 = 0;
-                            double coVar = 0;
-                            double dist1, dist2;
-
-                            // compute variances and co-variance
-                            //for (int x1 = 0; x1 < w1; x1++)
-                            for (int x1 = -min(0, moveX); x1 < min(w1, w2 - moveX); x1++)
-                            {
-                                int x2 = x1 + moveX;
-
-                                /*if (x2 < 0 || x2 > w2 - 1)
-                                    continue;*/
-
-                                //for (int y1 = 0; y1 < h1; y1++)
-                                for (int y1 = -min(0, moveY); y1 < min(h1, h2 - moveY); y1++)
-                                {
-                                    int y2 = y1 + moveY;
-
-                                    /*if (y2 < 0 || y2 > h2 - 1)
-                                        continue;*/
-
-                                    value1 = img1.get(x1, y1);
-                                    if (value1 == -1)
-                                        continue;
-
-                                    value2 = img2.get(x2, y2);
-                                    if (value2 == -1)
-                                        continue;
-
-                                    dist1 = value1 - avg1;
-                                    dist2 = value2 - avg2;
-
-                                    coVar += dist1 * dist2;
-                                    var1 += dist1 * dist1;
-                                    var2 += dist2 * dist2;
-                                }
-                            }
-
-                            var1 /= (double) count;
-                            var2 /= (double) count;
-                            coVar /= (double) count;
-
-                            double stDev1 = Math.sqrt(var1);
-                            double stDev2 = Math.sqrt(var2);
-
-                            // compute correlation coeffienct
-                            double R = coVar / (stDev1 * stDev2);
-
-                            compareAndSetR(R, moveX, moveY);
-
-                            if (R < -1 || R > 1)
-                            {
-                                System.out.println("BIG ERROR! R =" + R);
-                            }
-                        }
-                        //System.out.println(moveX + " [" + (-w2 + min_border_w) + ", " + (w1 - min_border_w) + "] + best R: " + maxR + " " + displaceX + " " + displaceY);
-                    }
+        final double[] best;
+        try
+        {
+            best = NormalizedCrossCorrelation.bestTranslation(
+                    img1.data, img1.width, img1.height,
+                    img2.data, img2.width, img2.height,
+                    relMinOverlapX, relMinOverlapY);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return new double[]{ -displaceX, -displaceY, maxR };
+        }
+        catch (final ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
 
-                }
-            });
-        MultiThreading.startAndJoin(threads);
+        compareAndSetR(best[2], (int) -best[0], (int) -best[1]);
 
         if (showImages)
         {
@@ -176,7 +176,7 @@ final public class AlignmentUtils
 		//exec.shutdown();
 	}
 
-    private static class LayerFeatureCallable implements Callable<ArrayList<Feature>>, Serializable
+    static class LayerFeatureCallable implements Callable<ArrayList<Feature>>, Serializable
     {
 
         private final Layer layer;
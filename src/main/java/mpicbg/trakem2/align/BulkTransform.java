@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Apply transformations to the {@link Patch Patches} of many
+ * {@link Layer Layers} at once.
+ *
+ * {@link CoordinateTransform CoordinateTransforms} are applied to all
+ * {@link Patch Patches} of all {@link Layer Layers} in one pool of threads,
+ * each {@link Patch} reading and writing its coordinate transform file only
+ * once.  The buckets of each {@link Layer} are recreated once at the end
+ * instead of being updated for each {@link Patch}.
+ */
+public class BulkTransform
+{
+	private BulkTransform() {}
+
+	/**
+	 * Append to all {@link Patch Patches} accepted by the filter the
+	 * {@link CoordinateTransform} of their {@link Layer}, in world
+	 * coordinates.  Does neither transform {@link ini.trakem2.display.VectorData}
+	 * nor regenerate mipmaps, see {@link #regenerateMipMaps(Collection)}.
+	 *
+	 * @param transforms the {@link CoordinateTransform} of each {@link Layer}
+	 * @param filter
+	 * @param numThreads
+	 *
+	 * @return the {@link Patch Patches} that were transformed
+	 * @throws InterruptedException
+	 */
+	final static public ArrayList< Patch > applyLayerTransforms(
+			final Map< Layer, ? extends CoordinateTransform > transforms,
+			final Filter< Patch > filter,
+			final int numThreads ) throws InterruptedException
+	{
+		final ArrayList< Patch > patches = new ArrayList< Patch >();
+		final ArrayList< CoordinateTransform > cts = new ArrayList< CoordinateTransform >();
+		for ( final Map.Entry< Layer, ? extends CoordinateTransform > entry : transforms.entrySet() )
+		{
+			for ( final Patch patch : AlignmentUtils.filterPatches( entry.getKey(), filter ) )
+			{
+				patches.add( patch );
+				cts.add( entry.getValue() );
+			}
+		}
+		if ( patches.isEmpty() )
+			return patches;
+
+		final long t0 = System.currentTimeMillis();
+		final AtomicInteger counter = new AtomicInteger( 0 );
+		final ExecutorService exec = Utils.newFixedThreadPool( Math.max( 1, numThreads ), "BulkTransform" );
+		try
+		{
+			final ArrayList< Future< Void > > fus = new ArrayList< Future< Void > >( patches.size() );
+			for ( int i = 0; i < patches.size(); ++i )
+			{
+				final Patch patch = patches.get( i );
+				final CoordinateTransform ct = cts.get( i );
+				fus.add( exec.submit( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						/*
+						 * Setting a transformation to a patch can take some time because
+						 * the new bounding box needs to be estimated which requires the
+						 * TransformMesh to be generated and all vertices iterated.
+						 */
+						Util.applyLayerTransformToPatch( patch, ct.copy(), false );
+						Utils.showProgress( counter.incrementAndGet() / ( double )patches.size() );
+						return null;
+					}
+				} ) );
+			}
+
+			for ( final Future< Void > fu : fus )
+			{
+				try
+				{
+					fu.get();
+				}
+				catch ( final ExecutionException e )
+				{
+					IJError.print( e.getCause() );
+				}
+			}
+		}
+		finally
+		{
+			exec.shutdownNow();
+
+			/* patches that were transformed before an interruption need their buckets updated, too */
+			final Layer[] layers = transforms.keySet().toArray( new Layer[ transforms.size() ] );
+			if ( layers.length > 0 )
+				layers[ 0 ].getProject().getLoader().recreateBuckets( layers );
+		}
+
+		Utils.log2( "Applied transformations to " + patches.size() + " patches in " + transforms.size() + " layers in " + ( System.currentTimeMillis() - t0 ) + " ms" );
+
+		return patches;
+	}
+
+	/**
+	 * Pre-concatenate to the {@link AffineTransform AffineTransforms} of all
+	 * {@link Patch Patches} accepted by the filter the
+	 * {@link AffineTransform} of their {@link Layer}, and transform the
+	 * {@link ini.trakem2.display.VectorData} over them accordingly.  Unlike
+	 * calling {@link AlignTask#transformPatchesAndVectorData(Collection, AffineTransform)}
+	 * for each {@link Layer}, the {@link ini.trakem2.display.VectorData} of
+	 * the {@link ini.trakem2.display.LayerSet} is collected only once.
+	 *
+	 * @param transforms the {@link AffineTransform} of each {@link Layer}
+	 * @param filter
+	 */
+	final static public void applyLayerAffines(
+			final Map< Layer, AffineTransform > transforms,
+			final Filter< Patch > filter )
+	{
+		final ArrayList< Patch > all = new ArrayList< Patch >();
+		final ArrayList< List< Patch > > patches = new ArrayList< List< Patch > >( transforms.size() );
+		final ArrayList< AffineTransform > affines = new ArrayList< AffineTransform >( transforms.size() );
+		for ( final Map.Entry< Layer, AffineTransform > entry : transforms.entrySet() )
+		{
+			final List< Patch > layerPatches = AlignmentUtils.filterPatches( entry.getKey(), filter );
+			all.addAll( layerPatches );
+			patches.add( layerPatches );
+			affines.add( entry.getValue() );
+		}
+
+		AlignTask.transformPatchesAndVectorData( all, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for ( int i = 0; i < patches.size(); ++i )
+					for ( final Patch patch : patches.get( i ) )
+						patch.getAffineTransform().preConcatenate( affines.get( i ) );
+			}
+		} );
+
+		final Layer[] layers = transforms.keySet().toArray( new Layer[ transforms.size() ] );
+		if ( layers.length > 0 )
+			layers[ 0 ].getProject().getLoader().recreateBuckets( layers );
+		for ( final Layer layer : layers )
+			Display.repaint( layer );
+	}
+
+	/**
+	 * Regenerate the mipmaps of all {@link Patch Patches} in one task that
+	 * reports progress and the estimated time left.  Returns immediately.
+	 */
+	final static public void regenerateMipMaps( final Collection< Patch > patches )
+	{
+		if ( patches.isEmpty() )
+			return;
+		patches.iterator().next().getProject().getLoader().regenerateMipMaps( patches );
+	}
+}
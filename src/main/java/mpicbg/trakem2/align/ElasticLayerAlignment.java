@@ -25,20 +25,25 @@ package mpicbg.trakem2.align;
 
 import java.awt.Rectangle;
 import java.awt.geom.Area;
+import java.io.File;
 import java.io.Serializable;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
 
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
@@ -46,6 +51,7 @@ import ini.trakem2.display.VectorData;
 import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import mpicbg.imagefeatures.Feature;
@@ -66,6 +72,9 @@ import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.Vertex;
 import mpicbg.trakem2.align.concurrent.BlockMatchPairCallable;
+import mpicbg.trakem2.align.concurrent.ConcurrentSpringMesh;
+import mpicbg.trakem2.align.concurrent.FlatImageCache;
+import mpicbg.trakem2.align.concurrent.JobGraph;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.MovingLeastSquaresTransform2;
 import mpicbg.trakem2.transform.ThinPlateSplineTransform;
@@ -102,9 +111,18 @@ public class ElasticLayerAlignment
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		public boolean useParallelOptimizer = false;
 
 		public boolean useTps = true;
 
+		/**
+		 * Persist intermediate results in the project folder such that an
+		 * interrupted alignment resumes from the last completed job and
+		 * other JVMs can contribute through
+		 * {@link ElasticLayerAlignment#work(Param, Project, List, Set, Rectangle, Filter)}.
+		 */
+		public boolean checkpoint = false;
+
 		public boolean setup( final Rectangle box )
 		{
 			/* Block Matching */
@@ -138,6 +156,7 @@ public class ElasticLayerAlignment
 			gdBlockMatching.addCheckbox( "layers_are_pre-aligned", isAligned );
 			gdBlockMatching.addNumericField( "test_maximally :", maxNumNeighbors, 0, 6, "layers" );
 			gdBlockMatching.addChoice( "elastic_transformation :", new String[] {"thin plate spline", "moving least squares" },  "thin plate spline" );
+			gdBlockMatching.addCheckbox( "checkpoint_to_project_folder", checkpoint );
 
 			gdBlockMatching.showDialog();
 
@@ -159,6 +178,7 @@ public class ElasticLayerAlignment
 			isAligned = gdBlockMatching.getNextBoolean();
 			maxNumNeighbors = ( int )gdBlockMatching.getNextNumber();
 			useTps = gdBlockMatching.getNextChoiceIndex() == 0;
+			checkpoint = gdBlockMatching.getNextBoolean();
 
 
 			if ( !isAligned )
@@ -207,6 +227,7 @@ public class ElasticLayerAlignment
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdOptimize.addCheckbox("use_legacy_optimizer :", useLegacyOptimizer);
+			gdOptimize.addCheckbox("use_parallel_optimizer :", useParallelOptimizer);
 
 			gdOptimize.showDialog();
 
@@ -222,6 +243,7 @@ public class ElasticLayerAlignment
 			maxIterationsSpringMesh = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdOptimize.getNextNumber();
 			useLegacyOptimizer = gdOptimize.getNextBoolean();
+			useParallelOptimizer = gdOptimize.getNextBoolean();
 
 			return true;
 		}
@@ -328,7 +350,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -376,6 +398,56 @@ public class ElasticLayerAlignment
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter,
 					useTps );
+			clone.checkpoint = checkpoint;
+			clone.useParallelOptimizer = useParallelOptimizer;
+			return clone;
+		}
+
+		/**
+		 * All parameters that change the result of an alignment, used to
+		 * identify its checkpoints.  The number of threads, visualization
+		 * and caching flags are not part of it.
+		 */
+		public String checkpointKey()
+		{
+			return new StringBuilder()
+				.append( ppm.sift.fdBins ).append( ' ' )
+				.append( ppm.sift.fdSize ).append( ' ' )
+				.append( ppm.sift.initialSigma ).append( ' ' )
+				.append( ppm.sift.maxOctaveSize ).append( ' ' )
+				.append( ppm.sift.minOctaveSize ).append( ' ' )
+				.append( ppm.sift.steps ).append( ' ' )
+				.append( ppm.rod ).append( ' ' )
+				.append( desiredModelIndex ).append( ' ' )
+				.append( expectedModelIndex ).append( ' ' )
+				.append( identityTolerance ).append( ' ' )
+				.append( isAligned ).append( ' ' )
+				.append( maxEpsilon ).append( ' ' )
+				.append( maxNumFailures ).append( ' ' )
+				.append( maxNumNeighbors ).append( ' ' )
+				.append( minInlierRatio ).append( ' ' )
+				.append( minNumInliers ).append( ' ' )
+				.append( rejectIdentity ).append( ' ' )
+				.append( blockRadius ).append( ' ' )
+				.append( dampSpringMesh ).append( ' ' )
+				.append( layerScale ).append( ' ' )
+				.append( localModelIndex ).append( ' ' )
+				.append( localRegionSigma ).append( ' ' )
+				.append( maxCurvatureR ).append( ' ' )
+				.append( maxIterationsSpringMesh ).append( ' ' )
+				.append( maxLocalEpsilon ).append( ' ' )
+				.append( maxLocalTrust ).append( ' ' )
+				.append( maxPlateauwidthSpringMesh ).append( ' ' )
+				.append( useLegacyOptimizer ).append( ' ' )
+				.append( useParallelOptimizer ).append( ' ' )
+				.append( maxStretchSpringMesh ).append( ' ' )
+				.append( minR ).append( ' ' )
+				.append( resolutionSpringMesh ).append( ' ' )
+				.append( rodR ).append( ' ' )
+				.append( searchRadius ).append( ' ' )
+				.append( stiffnessSpringMesh ).append( ' ' )
+				.append( useLocalSmoothnessFilter )
+				.toString();
 		}
 	}
 
@@ -393,55 +465,117 @@ public class ElasticLayerAlignment
 
 	}
 
-	@SuppressWarnings( "deprecation" )
-	final public void exec(
+	/**
+	 * Folder for the checkpoints of an alignment of layerRange with the
+	 * given parameters, fixed layers and bounding box.  The folder name is a
+	 * digest of all of them such that only compatible intermediate results
+	 * are ever reused.  The current transforms of all {@link Patch Patches}
+	 * in the layer range are part of the key, such that results computed
+	 * before the patches were transformed, e.g. by a previous alignment, are
+	 * never restored.  Note that the {@link Filter} cannot be part of the
+	 * key, so use a new folder when changing it.
+	 */
+	final static protected File checkpointFolder(
 			final Param param,
 			final Project project,
 			final List< Layer > layerRange,
 			final Set< Layer > fixedLayers,
-			final Set< Layer > emptyLayers,
-			final Rectangle box,
-			final boolean propagateTransformBefore,
-			final boolean propagateTransformAfter,
-			final Filter< Patch > filter ) throws Exception
+			final Rectangle box )
 	{
-        final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
-
-
-		/* create tiles and models for all layers */
-		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
-		for ( int i = 0; i < layerRange.size(); ++i )
+		final StringBuilder key = new StringBuilder( param.checkpointKey() );
+		key.append( ' ' ).append( box.x ).append( ' ' ).append( box.y ).append( ' ' ).append( box.width ).append( ' ' ).append( box.height );
+		for ( final Layer layer : layerRange )
 		{
-			switch ( param.desiredModelIndex )
+			key.append( ' ' ).append( layer.getId() );
+			if ( fixedLayers.contains( layer ) )
+				key.append( 'f' );
+			final double[] m = new double[ 6 ];
+			for ( final Displayable d : layer.getDisplayables( Patch.class ) )
 			{
-			case 0:
-				tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
-				break;
-			case 1:
-				tiles.add( new Tile< RigidModel2D >( new RigidModel2D() ) );
-				break;
-			case 2:
-				tiles.add( new Tile< SimilarityModel2D >( new SimilarityModel2D() ) );
-				break;
-			case 3:
-				tiles.add( new Tile< AffineModel2D >( new AffineModel2D() ) );
-				break;
-			case 4:
-				tiles.add( new Tile< HomographyModel2D >( new HomographyModel2D() ) );
-				break;
-			default:
-				return;
+				final Patch patch = ( Patch )d;
+				patch.getAffineTransform().getMatrix( m );
+				key.append( ' ' ).append( patch.getId() ).append( ':' ).append( patch.getCoordinateTransformId() );
+				for ( final double v : m )
+					key.append( ',' ).append( v );
 			}
 		}
 
+		final StringBuilder hex = new StringBuilder();
+		try
+		{
+			for ( final byte b : MessageDigest.getInstance( "MD5" ).digest( key.toString().getBytes( "UTF-8" ) ) )
+				hex.append( String.format( "%02x", b ) );
+		}
+		catch ( final Exception e )
+		{
+			hex.append( Integer.toHexString( key.toString().hashCode() ) );
+		}
+
+		return new File(
+				new StringBuilder( project.getLoader().getUNUIdFolder() )
+					.append( "jobs.ser/elastic." )
+					.append( hex )
+					.toString() );
+	}
+
+	final static protected JobGraph createJobGraph(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box )
+	{
+		if ( !param.checkpoint )
+			return new JobGraph( null );
+
+		final File folder = checkpointFolder( param, project, layerRange, fixedLayers, box );
+		Utils.log( "Elastic alignment checkpoints in " + folder );
+		return new JobGraph( folder );
+	}
+
+	final static protected ArrayList< ConcurrentSpringMesh > createMeshes( final Param param, final Rectangle box, final int numLayers )
+	{
+		final int meshWidth = ( int )Math.ceil( box.width * param.layerScale );
+		final int meshHeight = ( int )Math.ceil( box.height * param.layerScale );
+
+		final ArrayList< ConcurrentSpringMesh > meshes = new ArrayList< ConcurrentSpringMesh >( numLayers );
+		for ( int i = 0; i < numLayers; ++i )
+		{
+			meshes.add(
+					new ConcurrentSpringMesh(
+							param.resolutionSpringMesh,
+							meshWidth,
+							meshHeight,
+							param.stiffnessSpringMesh,
+							param.maxStretchSpringMesh * param.layerScale,
+							param.dampSpringMesh ) );
+		}
+		return meshes;
+	}
+
+	/**
+	 * Add the feature extraction, layer pair matching and block matching
+	 * jobs to the {@link JobGraph} and execute them.
+	 *
+	 * @return the block matching jobs in pair order
+	 */
+	final protected ArrayList< JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > > match(
+			final JobGraph graph,
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter,
+			final List< ? extends SpringMesh > meshes ) throws ExecutionException, InterruptedException
+	{
 		/* collect all pairs of slices for which a model could be found */
 		final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs =
                 new ArrayList< Triple< Integer, Integer, AbstractModel< ? > > >();
 
-
 		if ( !param.isAligned )
 		{
-		    preAlignStack(param, project, layerRange, box, filter, pairs);
+		    preAlignStack(graph, param, project, layerRange, box, filter, pairs);
 		}
 		else
 		{
@@ -457,78 +591,108 @@ public class ElasticLayerAlignment
 			}
 		}
 
-		/* Elastic alignment */
-
-		/* Initialization */
-		final TileConfiguration initMeshes = new TileConfiguration();
-
-		final int meshWidth = ( int )Math.ceil( box.width * param.layerScale );
-		final int meshHeight = ( int )Math.ceil( box.height * param.layerScale );
-
-		final ArrayList< SpringMesh > meshes = new ArrayList< SpringMesh >( layerRange.size() );
-		for ( int i = 0; i < layerRange.size(); ++i )
-        {
-			meshes.add(
-					new SpringMesh(
-							param.resolutionSpringMesh,
-							meshWidth,
-							meshHeight,
-							param.stiffnessSpringMesh,
-							param.maxStretchSpringMesh * param.layerScale,
-							param.dampSpringMesh ) );
-        }
-
 		//final int blockRadius = Math.max( 32, meshWidth / p.resolutionSpringMesh / 2 );
 		final int blockRadius = Math.max( 16, mpicbg.util.Util.roundPos( param.layerScale * param.blockRadius ) );
 
 		Utils.log( "effective block radius = " + blockRadius );
 
-        final ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>> futures =
-                new ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>>(pairs.size());
+		/* free memory */
+		project.getLoader().releaseAll();
+
+		final ArrayList< JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > > jobs =
+				new ArrayList< JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > >( pairs.size() );
 
+		/* pairs are in stack order, render each layer once for all its pairs */
+		final FlatImageCache flatImages = new FlatImageCache( filter );
+		final ArrayList< FlatImageCache.Reservation > reservations = new ArrayList< FlatImageCache.Reservation >();
 
 		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
 		{
-			/* free memory */
-			project.getLoader().releaseAll();
-
-			final SpringMesh m1 = meshes.get( pair.a );
-			final SpringMesh m2 = meshes.get( pair.b );
+			final ArrayList< Vertex > v1 = meshes.get( pair.a ).getVertices();
+			final ArrayList< Vertex > v2 = meshes.get( pair.b ).getVertices();
 
+			final boolean layer1Fixed = fixedLayers.contains( layerRange.get( pair.a ) );
+			final boolean layer2Fixed = fixedLayers.contains( layerRange.get( pair.b ) );
 
-			final ArrayList< Vertex > v1 = m1.getVertices();
-			final ArrayList< Vertex > v2 = m2.getVertices();
+			if ( !( layer1Fixed && layer2Fixed ) )
+			{
+				final FlatImageCache.Reservation image1 = flatImages.reserve( layerRange.get( pair.a ), box, param.layerScale );
+				final FlatImageCache.Reservation image2 = flatImages.reserve( layerRange.get( pair.b ), box, param.layerScale );
+				reservations.add( image1 );
+				reservations.add( image2 );
+				final BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
+						pair,
+						layerRange,
+						layer1Fixed, layer2Fixed,
+						filter,
+						param,
+						v1, v2,
+						box,
+						image1, image2);
+				jobs.add( graph.add( new JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults >( "blockmatch." + pair.a + "." + pair.b )
+				{
+					@Override
+					protected BlockMatchPairCallable.IndexedBlockMatchResults compute() throws Exception
+					{
+						return new BlockMatchPairCallable.IndexedBlockMatchResults( bmpc.call(), v1, v2 );
+					}
 
-			final Layer layer1 = layerRange.get( pair.a );
-			final Layer layer2 = layerRange.get( pair.b );
+					@Override
+					protected void restored()
+					{
+						image1.close();
+						image2.close();
+					}
+				} ) );
+			}
+		}
 
-			final boolean layer1Fixed = fixedLayers.contains(layer1);
-			final boolean layer2Fixed = fixedLayers.contains(layer2);
+		final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
+		try
+		{
+			graph.execute( service );
+		}
+		finally
+		{
+			service.shutdown();
+			/* the reservations of jobs that failed or were not run */
+			for ( final FlatImageCache.Reservation reservation : reservations )
+				reservation.close();
+		}
 
+		return jobs;
+	}
 
-			if ( !( layer1Fixed && layer2Fixed ) )
-			{
-                final BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
-                        pair,
-                        layerRange,
-                        layer1Fixed, layer2Fixed,
-                        filter,
-                        param,
-                        v1, v2,
-                        box);
-                futures.add(service.submit(bmpc));
-            }
-        }
+	/**
+	 * Connect the meshes by the block matching results, pre-align them by
+	 * a piecewise linear model and optimize them.
+	 *
+	 * @return for each mesh, its final vertex matches
+	 *   as by {@link #matchesToArrays(Collection)}, translated relative
+	 *   to the bounding box
+	 */
+	@SuppressWarnings( "deprecation" )
+	final protected ArrayList< double[][] > relax(
+			final Param param,
+			final List< Layer > layerRange,
+			final Rectangle box,
+			final List< Tile< ? > > tiles,
+			final List< ConcurrentSpringMesh > meshes,
+			final List< JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > > blockMatchJobs ) throws Exception
+	{
+		/* Initialization */
+		final TileConfiguration initMeshes = new TileConfiguration();
 
-        for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
+        for (final JobGraph.Job<BlockMatchPairCallable.IndexedBlockMatchResults> job : blockMatchJobs)
         {
-            final BlockMatchPairCallable.BlockMatchResults results = future.get();
+            final Triple<Integer, Integer, AbstractModel<?>> pair = job.getResult().pair;
+            final SpringMesh m1 = meshes.get( pair.a );
+            final SpringMesh m2 = meshes.get( pair.b );
+            final BlockMatchPairCallable.BlockMatchResults results =
+                    job.getResult().resolve( m1.getVertices(), m2.getVertices() );
             final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
-            final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
             final Tile< ? > t1 = tiles.get( pair.a );
             final Tile< ? > t2 = tiles.get( pair.b );
-            final SpringMesh m1 = meshes.get( pair.a );
-            final SpringMesh m2 = meshes.get( pair.b );
             final double springConstant  = 1.0 / ( pair.b - pair.a );
             final boolean layer1Fixed = results.layer1Fixed;
             final boolean layer2Fixed = results.layer2Fixed;
@@ -621,42 +785,55 @@ public class ElasticLayerAlignment
 			meshes.get( i ).init( tiles.get( i ).getModel() );
 
 		/* optimize the meshes */
-		try
-		{
-			final long t0 = System.currentTimeMillis();
-			Utils.log( "Optimizing spring meshes..." );
+		final long t0 = System.currentTimeMillis();
+		Utils.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+		if ( param.useParallelOptimizer )
+		{
+			Utils.log( "  ...using parallel optimizer...");
+			final ArrayList< int[] > connections = new ArrayList< int[] >( blockMatchJobs.size() );
+			for ( final JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > job : blockMatchJobs )
+				connections.add( new int[]{ job.getResult().pair.a, job.getResult().pair.b } );
+			final ExecutorService exec = Executors.newFixedThreadPool( param.maxNumThreads );
+			try
 			{
-				Utils.log( "  ...using legacy optimizer...");
-				SpringMesh.optimizeMeshes2(
+				ConcurrentSpringMesh.optimizeMeshes(
 						meshes,
+						connections,
 						param.maxEpsilon * param.layerScale,
 						param.maxIterationsSpringMesh,
 						param.maxPlateauwidthSpringMesh,
-						param.visualize );
+						exec );
 			}
-			else
+			finally
 			{
-				SpringMesh.optimizeMeshes(
-						meshes,
-						param.maxEpsilon * param.layerScale,
-						param.maxIterationsSpringMesh,
-						param.maxPlateauwidthSpringMesh,
-						param.visualize );
+				exec.shutdown();
 			}
-
-			Utils.log("Done optimizing spring meshes. Took " + (System.currentTimeMillis() - t0) + " ms");
-
 		}
-		catch ( final NotEnoughDataPointsException e )
+		else if ( param.useLegacyOptimizer )
 		{
-			Utils.log( "There were not enough data points to get the spring mesh optimizing." );
-			e.printStackTrace();
-			return;
+			Utils.log( "  ...using legacy optimizer...");
+			SpringMesh.optimizeMeshes2(
+					new ArrayList< SpringMesh >( meshes ),
+					param.maxEpsilon * param.layerScale,
+					param.maxIterationsSpringMesh,
+					param.maxPlateauwidthSpringMesh,
+					param.visualize );
 		}
+		else
+		{
+			SpringMesh.optimizeMeshes(
+					new ArrayList< SpringMesh >( meshes ),
+					param.maxEpsilon * param.layerScale,
+					param.maxIterationsSpringMesh,
+					param.maxPlateauwidthSpringMesh,
+					param.visualize );
+		}
+
+		Utils.log("Done optimizing spring meshes. Took " + (System.currentTimeMillis() - t0) + " ms");
 
 		/* translate relative to bounding box */
+		final ArrayList< double[][] > vas = new ArrayList< double[][] >( meshes.size() );
 		for ( final SpringMesh mesh : meshes )
 		{
 			for ( final PointMatch pm : mesh.getVA().keySet() )
@@ -670,8 +847,131 @@ public class ElasticLayerAlignment
 				w[ 0 ] = w[ 0 ] / param.layerScale + box.x;
 				w[ 1 ] = w[ 1 ] / param.layerScale + box.y;
 			}
+			vas.add( matchesToArrays( mesh.getVA().keySet() ) );
+		}
+
+		return vas;
+	}
+
+	/**
+	 * Compact representation of the source location and target world
+	 * coordinates of {@link PointMatch PointMatches}, sufficient for
+	 * {@link #makeTPS(Set)} and {@link MovingLeastSquaresTransform2}.
+	 *
+	 * @return {x1, y1, x2, y2, weight}
+	 */
+	final static protected double[][] matchesToArrays( final Collection< PointMatch > matches )
+	{
+		final double[][] a = new double[ 5 ][ matches.size() ];
+		int i = 0;
+		for ( final PointMatch match : matches )
+		{
+			final double[] l = match.getP1().getL();
+			final double[] w = match.getP2().getW();
+			a[ 0 ][ i ] = l[ 0 ];
+			a[ 1 ][ i ] = l[ 1 ];
+			a[ 2 ][ i ] = w[ 0 ];
+			a[ 3 ][ i ] = w[ 1 ];
+			a[ 4 ][ i ] = match.getWeight();
+			++i;
+		}
+		return a;
+	}
+
+	final static protected Set< PointMatch > arraysToMatches( final double[][] a )
+	{
+		final HashSet< PointMatch > matches = new HashSet< PointMatch >();
+		for ( int i = 0; i < a[ 0 ].length; ++i )
+			matches.add(
+					new PointMatch(
+							new Point( new double[]{ a[ 0 ][ i ], a[ 1 ][ i ] } ),
+							new Point( new double[]{ a[ 2 ][ i ], a[ 3 ][ i ] } ),
+							a[ 4 ][ i ] ) );
+		return matches;
+	}
+
+	final public void exec(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Set< Layer > emptyLayers,
+			final Rectangle box,
+			final boolean propagateTransformBefore,
+			final boolean propagateTransformAfter,
+			final Filter< Patch > filter ) throws Exception
+	{
+		/* create tiles and models for all layers */
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int i = 0; i < layerRange.size(); ++i )
+		{
+			switch ( param.desiredModelIndex )
+			{
+			case 0:
+				tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
+				break;
+			case 1:
+				tiles.add( new Tile< RigidModel2D >( new RigidModel2D() ) );
+				break;
+			case 2:
+				tiles.add( new Tile< SimilarityModel2D >( new SimilarityModel2D() ) );
+				break;
+			case 3:
+				tiles.add( new Tile< AffineModel2D >( new AffineModel2D() ) );
+				break;
+			case 4:
+				tiles.add( new Tile< HomographyModel2D >( new HomographyModel2D() ) );
+				break;
+			default:
+				return;
+			}
+		}
+
+		final JobGraph graph = createJobGraph( param, project, layerRange, fixedLayers, box );
+		/* cached features and matches are recomputed, so must be everything that depends on them */
+		if ( param.ppm.clearCache )
+			graph.clear();
+
+		/* Elastic alignment */
+		final ArrayList< ConcurrentSpringMesh > meshes = createMeshes( param, box, layerRange.size() );
+
+		final ArrayList< JobGraph.Job< BlockMatchPairCallable.IndexedBlockMatchResults > > blockMatchJobs =
+				match( graph, param, project, layerRange, fixedLayers, box, filter, meshes );
+
+		final JobGraph.Job< ArrayList< double[][] > > relaxJob = graph.add(
+				new JobGraph.Job< ArrayList< double[][] > >( "relax", blockMatchJobs )
+				{
+					@Override
+					protected ArrayList< double[][] > compute() throws Exception
+					{
+						return relax( param, layerRange, box, tiles, meshes, blockMatchJobs );
+					}
+				} );
+
+		final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
+		try
+		{
+			graph.execute( service );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof NotEnoughDataPointsException )
+			{
+				Utils.log( "There were not enough data points to get the spring mesh optimizing." );
+				e.getCause().printStackTrace();
+				return;
+			}
+			throw e;
+		}
+		finally
+		{
+			service.shutdown();
 		}
 
+		final ArrayList< Set< PointMatch > > vas = new ArrayList< Set< PointMatch > >( layerRange.size() );
+		for ( final double[][] va : relaxJob.getResult() )
+			vas.add( arraysToMatches( va ) );
+
 		/* free memory */
 		project.getLoader().releaseAll();
 
@@ -689,64 +989,62 @@ public class ElasticLayerAlignment
         vectorData.addAll(Utils.castCollection(ls.getZDisplayables(VectorData.class, true),
                 VectorData.class, true));
 
-		/* transfer layer transform into patch transforms and append to patches */
+		/* collect the transform of each layer, including those to propagate to */
+		final LinkedHashMap< Layer, CoordinateTransform > transforms = new LinkedHashMap< Layer, CoordinateTransform >();
 		if ( propagateTransformBefore || propagateTransformAfter )
 		{
 			if ( propagateTransformBefore )
 			{
-				final ThinPlateSplineTransform tps = makeTPS( meshes.get( 0 ).getVA().keySet() );
+				final ThinPlateSplineTransform tps = makeTPS( vas.get( 0 ) );
 				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
 				for ( int i = 0; i < firstLayerIndex; ++i )
-                {
-					applyTransformToLayer( layers.get( i ), tps, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, tps);
-                    }
-                }
-
+					transforms.put( layers.get( i ), tps );
 			}
 			if ( propagateTransformAfter )
 			{
 				final Layer last = layerRange.get( layerRange.size() - 1 );
 				final CoordinateTransform ct;
 				if ( param.useTps )
-					ct = makeTPS( meshes.get( meshes.size() - 1 ).getVA().keySet() );
+					ct = makeTPS( vas.get( vas.size() - 1 ) );
 				else {
 					final MovingLeastSquaresTransform2 mls = new MovingLeastSquaresTransform2();
-					mls.setMatches( meshes.get( meshes.size() - 1 ).getVA().keySet() );
+					mls.setMatches( vas.get( vas.size() - 1 ) );
 					ct = mls;
 				}
 				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
 				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
-                {
-                    applyTransformToLayer( layers.get( i ), ct, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, ct);
-                    }
-                }
+					transforms.put( layers.get( i ), ct );
 			}
 		}
 		for ( int l = 0; l < layerRange.size(); ++l )
-		{
-			IJ.showStatus( "Applying transformation to patches ..." );
-			IJ.showProgress( 0, layerRange.size() );
+			transforms.put( layerRange.get( l ), makeTPS( vas.get( l ) ) );
 
-			final Layer layer = layerRange.get( l );
-			final ThinPlateSplineTransform tps = makeTPS( meshes.get( l ).getVA().keySet() );
-			applyTransformToLayer( layer, tps, filter );
-            for (final VectorData vd : vectorData)
-            {
-                vd.apply(layer, infArea, tps);
-            }
+		/* transfer layer transform into patch transforms and append to patches */
+		IJ.showStatus( "Applying transformation to patches ..." );
+		try
+		{
+			BulkTransform.applyLayerTransforms( transforms, filter, param.maxNumThreads );
+		}
+		catch ( final InterruptedException e )
+		{
+			Utils.log( "Interrupted during applying transformations to patches.  No all patches have been updated.  Re-generate mipmaps manually." );
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			/* the checkpoints are consumed, restoring them would apply the transformations again */
+			graph.delete();
+		}
 
-			if ( Thread.interrupted() )
+		IJ.showStatus( "Applying transformation to vector data ..." );
+		int l = 0;
+		for ( final Map.Entry< Layer, CoordinateTransform > entry : transforms.entrySet() )
+		{
+			for ( final VectorData vd : vectorData )
 			{
-				Utils.log( "Interrupted during applying transformations to patches.  No all patches have been updated.  Re-generate mipmaps manually." );
+				vd.apply( entry.getKey(), infArea, entry.getValue() );
 			}
-
-			IJ.showProgress( l + 1, layerRange.size() );
+			IJ.showProgress( ++l, transforms.size() );
 		}
 
 		/* update patch mipmaps */
@@ -767,19 +1065,49 @@ public class ElasticLayerAlignment
 			lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
 		}
 
+		final ArrayList< Patch > updatedPatches = new ArrayList< Patch >();
 		for ( int i = firstLayerIndex; i <= lastLayerIndex; ++i )
 		{
 			final Layer layer = layers.get( i );
 			if ( !( emptyLayers.contains( layer ) || fixedLayers.contains( layer ) ) )
-			{
-				for ( final Patch patch : AlignmentUtils.filterPatches( layer, filter ) )
-					patch.updateMipMaps();
-			}
+				updatedPatches.addAll( AlignmentUtils.filterPatches( layer, filter ) );
 		}
+		BulkTransform.regenerateMipMaps( updatedPatches );
 
 		Utils.log( "Done." );
 	}
 
+	/**
+	 * Contribute to a checkpointed alignment that is executed by
+	 * {@link #exec(Param, Project, List, Set, Set, Rectangle, boolean, boolean, Filter)}
+	 * in another JVM with the same project opened.  Computes feature
+	 * extraction, layer pair matching and block matching jobs that have not
+	 * been claimed by another worker yet and returns when all of them are
+	 * done.  Spring mesh relaxation and applying the transformations are
+	 * left to the JVM that executes the alignment.
+	 *
+	 * The parameters, layer range, fixed layers and bounding box must be
+	 * the same as those of the alignment, otherwise the checkpoint folders
+	 * do not match.
+	 */
+	final public void work(
+			final Param param,
+			final Project project,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter ) throws Exception
+	{
+		if ( !param.checkpoint )
+		{
+			Utils.log( "Workers require checkpoints, enable them in the alignment parameters." );
+			return;
+		}
+		final JobGraph graph = createJobGraph( param, project, layerRange, fixedLayers, box );
+		match( graph, param, project, layerRange, fixedLayers, box, filter, createMeshes( param, box, layerRange.size() ) );
+		Utils.log( "Worker done." );
+	}
+
 	final static protected ThinPlateSplineTransform makeTPS( final Set< PointMatch > matches ) throws Exception
 	{
 		final double[][] srcPts = new double[ 2 ][ matches.size() ];
@@ -800,45 +1128,6 @@ public class ElasticLayerAlignment
 		return new ThinPlateSplineTransform( tps );
 	}
 
-	final static protected void applyTransformToLayer( final Layer layer, final CoordinateTransform mlt, final Filter< Patch > filter ) throws InterruptedException
-	{
-		/*
-		 * Setting a transformation to a patch can take some time because
-		 * the new bounding box needs to be estimated which requires the
-		 * TransformMesh to be generated and all vertices iterated.
-		 *
-		 * Therefore multithreading.
-		 */
-		final List< Patch > patches = AlignmentUtils.filterPatches( layer, filter );
-
-		final ArrayList< Thread > applyThreads = new ArrayList< Thread >( p.maxNumThreads );
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		for ( int t = 0; t < p.maxNumThreads; ++t )
-		{
-			final Thread thread = new Thread(
-					new Runnable()
-					{
-						@Override
-						final public void run()
-						{
-							try
-							{
-								for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.interrupted(); i = ai.getAndIncrement() )
-									mpicbg.trakem2.align.Util.applyLayerTransformToPatch( patches.get( i ), mlt.copy() );
-							}
-							catch ( final Exception e )
-							{
-								e.printStackTrace();
-							}
-						}
-					} );
-			applyThreads.add( thread );
-			thread.start();
-		}
-
-		for ( final Thread thread : applyThreads )
-			thread.join();
-	}
 
 
 	/**
@@ -912,208 +1201,108 @@ public class ElasticLayerAlignment
 		exec( p.clone(), project, layerRange, fixedLayers, emptyLayers, box, propagateTransformBefore, propagateTransformAfter, filter );
 	}
 
-    private void preAlignStack(final Param param, final Project project,
+    private void preAlignStack(final JobGraph graph, final Param param, final Project project,
                                final List<Layer> layerRange, final Rectangle box,
                                final Filter<Patch> filter,
                                final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs)
+            throws InterruptedException
     {
         final double scale = Math.min( 1.0, Math.min( ( double )param.ppm.sift.maxOctaveSize / ( double )box.width, ( double )param.ppm.sift.maxOctaveSize / ( double )box.height ) );
 
         /* extract and save features, overwrite cached files if requested */
+        final ArrayList< JobGraph.Job< Integer > > featureJobs = new ArrayList< JobGraph.Job< Integer > >( layerRange.size() );
+        for ( final Layer layer : layerRange )
+        {
+            featureJobs.add( graph.add( new JobGraph.Job< Integer >( "features." + layer.getId() )
+            {
+                @Override
+                protected Integer compute() throws Exception
+                {
+                    return new AlignmentUtils.LayerFeatureCallable( layer, box, scale, filter, param.ppm.sift, param.ppm.clearCache ).call().size();
+                }
+            } ) );
+        }
+
+        final ExecutorService featureService = ExecutorProvider.getExecutorService( 1.0f / ( float )param.ppm.maxNumThreadsSift );
         try
         {
-            AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
+            final long sTime = System.currentTimeMillis();
+            graph.execute( featureService );
+            Utils.log( "Extracted features in " + ( System.currentTimeMillis() - sTime ) + "ms" );
         }
-        catch ( final Exception e )
+        catch ( final ExecutionException e )
         {
+            Utils.log( "Execution exception during feature extraction." );
+            IJError.print( e );
             return;
         }
+        finally
+        {
+            featureService.shutdown();
+        }
 
         /* match and filter feature correspondences */
-        int numFailures = 0;
-
         final double pointMatchScale = param.layerScale / scale;
 
+        final ArrayList< ArrayList< JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > > > > modelJobs =
+                new ArrayList< ArrayList< JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > > > >( layerRange.size() );
+
         for ( int i = 0; i < layerRange.size(); ++i )
         {
-            final ArrayList< Thread > threads = new ArrayList< Thread >( param.maxNumThreads );
-
             final int sliceA = i;
-            final Layer layerA = layerRange.get( i );
             final int range = Math.min( layerRange.size(), i + param.maxNumNeighbors + 1 );
+            final ArrayList< JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > > > jobs =
+                    new ArrayList< JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > > >();
 
-            final String layerNameA = layerName( layerA );
-
-            for ( int j = i + 1; j < range; )
-J:            {
-                final int numThreads = Math.min( param.maxNumThreads, range - j );
-                final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > models =
-                        new ArrayList< Triple< Integer, Integer, AbstractModel< ? > > >( numThreads );
-
-                for ( int k = 0; k < numThreads; ++k )
-                    models.add( null );
-
-                for ( int t = 0;  t < numThreads && j < range; ++t, ++j )
-                {
-                    final int ti = t;
-                    final int sliceB = j;
-                    final Layer layerB = layerRange.get( j );
-
-                    final String layerNameB = layerName( layerB );
-
-                    final Thread thread = new Thread()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            IJ.showProgress( sliceA, layerRange.size() - 1 );
-
-                            Utils.log( "matching " + layerNameB + " -> " + layerNameA + "..." );
-
-                            ArrayList< PointMatch > candidates = null;
-                            if ( !param.ppm.clearCache )
-                                candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
-                                        project, param.ppm, "layer", layerB.getId(), layerA.getId() );
-
-                            if ( null == candidates )
-                            {
-                                final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                                        project, param.ppm.sift, "layer", layerA.getId() );
-                                final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                                        project, param.ppm.sift, "layer", layerB.getId() );
-                                candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
-
-                                /* scale the candidates */
-                                for ( final PointMatch pm : candidates )
-                                {
-                                    final Point p1 = pm.getP1();
-                                    final Point p2 = pm.getP2();
-                                    final double[] l1 = p1.getL();
-                                    final double[] w1 = p1.getW();
-                                    final double[] l2 = p2.getL();
-                                    final double[] w2 = p2.getW();
-
-                                    l1[ 0 ] *= pointMatchScale;
-                                    l1[ 1 ] *= pointMatchScale;
-                                    w1[ 0 ] *= pointMatchScale;
-                                    w1[ 1 ] *= pointMatchScale;
-                                    l2[ 0 ] *= pointMatchScale;
-                                    l2[ 1 ] *= pointMatchScale;
-                                    w2[ 0 ] *= pointMatchScale;
-                                    w2[ 1 ] *= pointMatchScale;
-
-                                }
-
-                                if ( !mpicbg.trakem2.align.Util.serializePointMatches(
-                                        project, param.ppm, "layer", layerB.getId(), layerA.getId(), candidates ) )
-                                    Utils.log( "Could not store point match candidates for layers " + layerNameB + " and " + layerNameA + "." );
-                            }
-
-                            AbstractModel< ? > model;
-                            switch ( param.expectedModelIndex )
-                            {
-                                case 0:
-                                    model = new TranslationModel2D();
-                                    break;
-                                case 1:
-                                    model = new RigidModel2D();
-                                    break;
-                                case 2:
-                                    model = new SimilarityModel2D();
-                                    break;
-                                case 3:
-                                    model = new AffineModel2D();
-                                    break;
-                                case 4:
-                                    model = new HomographyModel2D();
-                                    break;
-                                default:
-                                    return;
-                            }
-
-                            final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-
-                            boolean modelFound;
-                            boolean again = false;
-                            try
-                            {
-                                do
-                                {
-                                    again = false;
-                                    modelFound = model.filterRansac(
-                                            candidates,
-                                            inliers,
-                                            1000,
-                                            param.maxEpsilon * param.layerScale,
-                                            param.minInlierRatio,
-                                            param.minNumInliers,
-                                            3 );
-                                    if ( modelFound && param.rejectIdentity )
-                                    {
-                                        final ArrayList< Point > points = new ArrayList< Point >();
-                                        PointMatch.sourcePoints( inliers, points );
-                                        if ( Transforms.isIdentity( model, points, param.identityTolerance *  param.layerScale ) )
-                                        {
-                                            IJ.log( "Identity transform for " + inliers.size() + " matches rejected." );
-                                            candidates.removeAll( inliers );
-                                            inliers.clear();
-                                            again = true;
-                                        }
-                                    }
-                                }
-                                while ( again );
-                            }
-                            catch ( final NotEnoughDataPointsException e )
-                            {
-                                modelFound = false;
-                            }
-
-                            if ( modelFound )
-                            {
-                                Utils.log( layerNameB + " -> " + layerNameA + ": " + inliers.size() + " corresponding features with an average displacement of " + ( PointMatch.meanDistance( inliers ) / param.layerScale ) + "px identified." );
-                                Utils.log( "Estimated transformation model: " + model );
-                                models.set( ti, new Triple< Integer, Integer, AbstractModel< ? > >( sliceA, sliceB, model ) );
-                            }
-                            else
-                            {
-                                Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found." );
-                                return;
-                            }
-                        }
-                    };
-                    threads.add( thread );
-                    thread.start();
-                }
-
-                try
-                {
-                    for ( final Thread thread : threads )
-                        thread.join();
-                }
-                catch ( final InterruptedException e )
+            for ( int j = i + 1; j < range; ++j )
+            {
+                final int sliceB = j;
+                jobs.add( graph.add( new JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > >(
+                        "model." + sliceA + "." + sliceB, featureJobs.get( sliceA ), featureJobs.get( sliceB ) )
                 {
-                    Utils.log( "Establishing feature correspondences interrupted." );
-                    for ( final Thread thread : threads )
-                        thread.interrupt();
-                    try
+                    @Override
+                    protected Triple< Integer, Integer, AbstractModel< ? > > compute() throws Exception
                     {
-                        for ( final Thread thread : threads )
-                            thread.join();
+                        return matchLayerPair( param, project, layerRange, box, filter, scale, sliceA, sliceB, pointMatchScale );
                     }
-                    catch ( final InterruptedException f ) {}
-                    return;
-                }
+                } ) );
+            }
+            modelJobs.add( jobs );
+        }
 
-                threads.clear();
+        final ExecutorService modelService = ExecutorProvider.getExecutorService( 1.0f / ( float )param.maxNumThreads );
+        try
+        {
+            graph.execute( modelService );
+        }
+        catch ( final ExecutionException e )
+        {
+            Utils.log( "Establishing feature correspondences failed." );
+            IJError.print( e );
+            return;
+        }
+        finally
+        {
+            modelService.shutdown();
+        }
 
-                /* collect successfully matches pairs and break the search on gaps */
-                for ( int t = 0; t < models.size(); ++t )
+        /* collect successfully matches pairs and break the search on gaps,
+         * in batches of maxNumThreads as they used to be matched */
+        int numFailures = 0;
+        for ( final ArrayList< JobGraph.Job< Triple< Integer, Integer, AbstractModel< ? > > > > jobs : modelJobs )
+        {
+            for ( int j = 0; j < jobs.size(); )
+J:          {
+                final int numThreads = Math.min( param.maxNumThreads, jobs.size() - j );
+                final int end = j + numThreads;
+                for ( ; j < end; ++j )
                 {
-                    final Triple< Integer, Integer, AbstractModel< ? > > pair = models.get( t );
+                    final Triple< Integer, Integer, AbstractModel< ? > > pair = jobs.get( j ).getResult();
                     if ( pair == null )
                     {
                         if ( ++numFailures > param.maxNumFailures )
                         {
+                            j = end;
                             break J;
                         }
                     }
@@ -1127,6 +1316,159 @@ J:            {
         }
     }
 
+    /**
+     * Find a model between two layers from their feature correspondences.
+     *
+     * @return the model or null if none was found
+     */
+    private Triple< Integer, Integer, AbstractModel< ? > > matchLayerPair(
+            final Param param,
+            final Project project,
+            final List< Layer > layerRange,
+            final Rectangle box,
+            final Filter< Patch > filter,
+            final double scale,
+            final int sliceA,
+            final int sliceB,
+            final double pointMatchScale ) throws Exception
+    {
+        final Layer layerA = layerRange.get( sliceA );
+        final Layer layerB = layerRange.get( sliceB );
+        final String layerNameA = layerName( layerA );
+        final String layerNameB = layerName( layerB );
+
+        IJ.showProgress( sliceA, layerRange.size() - 1 );
+
+        Utils.log( "matching " + layerNameB + " -> " + layerNameA + "..." );
+
+        ArrayList< PointMatch > candidates = null;
+        if ( !param.ppm.clearCache )
+            candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
+                    project, param.ppm, "layer", layerB.getId(), layerA.getId() );
+
+        if ( null == candidates )
+        {
+            final ArrayList< Feature > fs1 = loadFeatures( param, project, layerA, box, filter, scale );
+            final ArrayList< Feature > fs2 = loadFeatures( param, project, layerB, box, filter, scale );
+            candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+
+            /* scale the candidates */
+            for ( final PointMatch pm : candidates )
+            {
+                final Point p1 = pm.getP1();
+                final Point p2 = pm.getP2();
+                final double[] l1 = p1.getL();
+                final double[] w1 = p1.getW();
+                final double[] l2 = p2.getL();
+                final double[] w2 = p2.getW();
+
+                l1[ 0 ] *= pointMatchScale;
+                l1[ 1 ] *= pointMatchScale;
+                w1[ 0 ] *= pointMatchScale;
+                w1[ 1 ] *= pointMatchScale;
+                l2[ 0 ] *= pointMatchScale;
+                l2[ 1 ] *= pointMatchScale;
+                w2[ 0 ] *= pointMatchScale;
+                w2[ 1 ] *= pointMatchScale;
+
+            }
+
+            if ( !mpicbg.trakem2.align.Util.serializePointMatches(
+                    project, param.ppm, "layer", layerB.getId(), layerA.getId(), candidates ) )
+                Utils.log( "Could not store point match candidates for layers " + layerNameB + " and " + layerNameA + "." );
+        }
+
+        AbstractModel< ? > model;
+        switch ( param.expectedModelIndex )
+        {
+            case 0:
+                model = new TranslationModel2D();
+                break;
+            case 1:
+                model = new RigidModel2D();
+                break;
+            case 2:
+                model = new SimilarityModel2D();
+                break;
+            case 3:
+                model = new AffineModel2D();
+                break;
+            case 4:
+                model = new HomographyModel2D();
+                break;
+            default:
+                return null;
+        }
+
+        final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
+
+        boolean modelFound;
+        boolean again = false;
+        try
+        {
+            do
+            {
+                again = false;
+                modelFound = model.filterRansac(
+                        candidates,
+                        inliers,
+                        1000,
+                        param.maxEpsilon * param.layerScale,
+                        param.minInlierRatio,
+                        param.minNumInliers,
+                        3 );
+                if ( modelFound && param.rejectIdentity )
+                {
+                    final ArrayList< Point > points = new ArrayList< Point >();
+                    PointMatch.sourcePoints( inliers, points );
+                    if ( Transforms.isIdentity( model, points, param.identityTolerance *  param.layerScale ) )
+                    {
+                        IJ.log( "Identity transform for " + inliers.size() + " matches rejected." );
+                        candidates.removeAll( inliers );
+                        inliers.clear();
+                        again = true;
+                    }
+                }
+            }
+            while ( again );
+        }
+        catch ( final NotEnoughDataPointsException e )
+        {
+            modelFound = false;
+        }
+
+        if ( modelFound )
+        {
+            Utils.log( layerNameB + " -> " + layerNameA + ": " + inliers.size() + " corresponding features with an average displacement of " + ( PointMatch.meanDistance( inliers ) / param.layerScale ) + "px identified." );
+            Utils.log( "Estimated transformation model: " + model );
+            return new Triple< Integer, Integer, AbstractModel< ? > >( sliceA, sliceB, model );
+        }
+        else
+        {
+            Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found." );
+            return null;
+        }
+    }
+
+    /**
+     * Load the features of a layer as saved by the feature extraction job.
+     * Extracts them again if the feature file has been removed since.
+     */
+    private ArrayList< Feature > loadFeatures(
+            final Param param,
+            final Project project,
+            final Layer layer,
+            final Rectangle box,
+            final Filter< Patch > filter,
+            final double scale ) throws Exception
+    {
+        final ArrayList< Feature > fs = mpicbg.trakem2.align.Util.deserializeFeatures(
+                project, param.ppm.sift, "layer", layer.getId() );
+        if ( null != fs )
+            return fs;
+        return new AlignmentUtils.LayerFeatureCallable( layer, box, scale, filter, param.ppm.sift, false ).call();
+    }
+
 
 	/**
 	 * Stateful.  Changing the parameters of this instance.  Do not use in parallel.
@@ -64,6 +64,7 @@ import mpicbg.models.SpringMesh;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.Vertex;
 import mpicbg.trakem2.align.Align.ParamOptimize;
+import mpicbg.trakem2.align.concurrent.ConcurrentSpringMesh;
 import mpicbg.trakem2.transform.ThinPlateSplineTransform;
 import mpicbg.trakem2.util.Triple;
 import mpicbg.util.Util;
@@ -118,6 +119,7 @@ public class ElasticMontage
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		public boolean useParallelOptimizer = false;
 
 		/**
 		 * Visualize spring mesh optimization
@@ -188,6 +190,7 @@ public class ElasticMontage
 			gdSpringMesh.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdSpringMesh.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdSpringMesh.addCheckbox( "use_legacy_optimizer :", useLegacyOptimizer );
+			gdSpringMesh.addCheckbox( "use_parallel_optimizer :", useParallelOptimizer );
 
 
 			gdSpringMesh.showDialog();
@@ -201,6 +204,7 @@ public class ElasticMontage
 			maxIterationsSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			useLegacyOptimizer = gdSpringMesh.getNextBoolean();
+			useParallelOptimizer = gdSpringMesh.getNextBoolean();
 
 			if ( isAligned )
 				po.desiredModelIndex = 3;
@@ -248,6 +252,7 @@ public class ElasticMontage
 			clone.maxIterationsSpringMesh = maxIterationsSpringMesh;
 			clone.maxPlateauwidthSpringMesh = maxPlateauwidthSpringMesh;
 			clone.useLegacyOptimizer = useLegacyOptimizer;
+			clone.useParallelOptimizer = useParallelOptimizer;
 
 			clone.visualize = visualize;
 
@@ -473,8 +478,9 @@ public class ElasticMontage
 		/* Initialization */
 		final double springTriangleHeightTwice = 2 * Math.sqrt( 0.75 * param.springLengthSpringMesh * param.springLengthSpringMesh );
 
-		final ArrayList< SpringMesh > meshes = new ArrayList< SpringMesh >( tiles.size() );
+		final ArrayList< ConcurrentSpringMesh > meshes = new ArrayList< ConcurrentSpringMesh >( tiles.size() );
 		final HashMap< AbstractAffineTile2D< ? >, SpringMesh > tileMeshMap = new HashMap< AbstractAffineTile2D< ? >, SpringMesh >();
+		final HashMap< SpringMesh, Integer > meshIndices = new HashMap< SpringMesh, Integer >();
 		for ( final AbstractAffineTile2D< ? > tile : tiles )
 		{
 			final double w = tile.getWidth();
@@ -484,7 +490,7 @@ public class ElasticMontage
 			final double wMesh = ( numX - 1 ) * param.springLengthSpringMesh;
 			final double hMesh = ( numY - 1 ) * springTriangleHeightTwice;
 
-			final SpringMesh mesh = new SpringMesh(
+			final ConcurrentSpringMesh mesh = new ConcurrentSpringMesh(
 							numX,
 							numY,
 							wMesh,
@@ -492,6 +498,7 @@ public class ElasticMontage
 							param.stiffnessSpringMesh,
 							param.maxStretchSpringMesh * param.bmScale,
 							param.dampSpringMesh );
+			meshIndices.put( mesh, meshes.size() );
 			meshes.add( mesh );
 			tileMeshMap.put( tile, mesh );
 		}
@@ -504,6 +511,7 @@ public class ElasticMontage
 
 		final AbstractModel< ? > localSmoothnessFilterModel = mpicbg.trakem2.align.Util.createModel( param.bmLocalModelIndex );
 
+		final ArrayList< int[] > connections = new ArrayList< int[] >( pairs.size() );
 
 		for ( final Triple< AbstractAffineTile2D< ? >, AbstractAffineTile2D< ? >, InvertibleCoordinateTransform > pair : pairs )
 		{
@@ -513,6 +521,8 @@ public class ElasticMontage
 			final SpringMesh m1 = tileMeshMap.get( t1 );
 			final SpringMesh m2 = tileMeshMap.get( t2 );
 
+			connections.add( new int[]{ meshIndices.get( m1 ), meshIndices.get( m2 ) } );
+
 			final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
 			final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
 
@@ -662,11 +672,30 @@ public class ElasticMontage
 			final long t0 = System.currentTimeMillis();
 			IJ.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useParallelOptimizer )
+			{
+				Utils.log( "  ...using parallel optimizer...");
+				final ExecutorService exec = Executors.newFixedThreadPool( param.maxNumThreads );
+				try
+				{
+					ConcurrentSpringMesh.optimizeMeshes(
+							meshes,
+							connections,
+							param.po.maxEpsilon,
+							param.maxIterationsSpringMesh,
+							param.maxPlateauwidthSpringMesh,
+							exec );
+				}
+				finally
+				{
+					exec.shutdown();
+				}
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
-						meshes,
+						new ArrayList< SpringMesh >( meshes ),
 						param.po.maxEpsilon,
 						param.maxIterationsSpringMesh,
 						param.maxPlateauwidthSpringMesh,
@@ -675,7 +704,7 @@ public class ElasticMontage
 			else
 			{
 				SpringMesh.optimizeMeshes(
-						meshes,
+						new ArrayList< SpringMesh >( meshes ),
 						param.po.maxEpsilon,
 						param.maxIterationsSpringMesh,
 						param.maxPlateauwidthSpringMesh,
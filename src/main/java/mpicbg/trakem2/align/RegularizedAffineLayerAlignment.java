@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -38,7 +39,6 @@ import java.util.concurrent.Future;
 
 import ij.IJ;
 import ij.gui.GenericDialog;
-import ini.trakem2.display.Display;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
@@ -428,6 +428,7 @@ public class RegularizedAffineLayerAlignment
 		Utils.log( "  minimal displacement: " + String.format( "%.3f", tileConfiguration.getMinError() ) + "px" );
 		Utils.log( "  maximal displacement: " + String.format( "%.3f", tileConfiguration.getMaxError() ) + "px" );
 
+		final LinkedHashMap< Layer, AffineTransform > transforms = new LinkedHashMap< Layer, AffineTransform >();
 		if ( propagateTransformBefore || propagateTransformAfter )
 		{
 			final Layer first = layerRange.get( 0 );
@@ -437,7 +438,7 @@ public class RegularizedAffineLayerAlignment
 				final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( 0 ).getModel() ).createAffine() );
 				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
 				for ( int i = 0; i < firstLayerIndex; ++i )
-					applyTransformToLayer( layers.get( i ), b, filter );
+					transforms.put( layers.get( i ), b );
 			}
 			if ( propagateTransformAfter )
 			{
@@ -445,15 +446,18 @@ public class RegularizedAffineLayerAlignment
 				final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( tiles.size() - 1 ).getModel() ).createAffine() );
 				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
 				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
-					applyTransformToLayer( layers.get( i ), b, filter );
+					transforms.put( layers.get( i ), b );
 			}
 		}
 		for ( int i = 0; i < layerRange.size(); ++i )
 		{
 			final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( i ).getModel() ).createAffine() );
-			applyTransformToLayer( layerRange.get( i ), b, filter );
+			transforms.put( layerRange.get( i ), b );
 		}
 
+		/* all layers at once, collecting the vector data only once */
+		BulkTransform.applyLayerAffines( transforms, filter );
+
 		Utils.log( "Done." );
 	}
 
@@ -466,12 +470,6 @@ public class RegularizedAffineLayerAlignment
 		return b;
 	}
 
-	final static protected void applyTransformToLayer( final Layer layer, final AffineTransform affine, final Filter< Patch > filter )
-	{
-		AlignTask.transformPatchesAndVectorData( AlignmentUtils.filterPatches( layer, filter ), affine );
-		Display.repaint( layer );
-	}
-
 
 	/**
 	 * Stateful.  Changing the parameters of this instance.  Do not use in parallel.
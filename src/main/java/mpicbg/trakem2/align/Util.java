@@ -280,6 +280,51 @@ public class Util
 	final static public void applyLayerTransformToPatch( final Patch patch, final CoordinateTransform ct ) throws Exception
 	{
 		final Rectangle pbox = patch.getCoordinateTransformBoundingBox();
+		patch.appendCoordinateTransform( createLayerTransformForPatch( patch, pbox, ct ) );
+	}
+	
+	/**
+	 * Same as {@link #applyLayerTransformToPatch(Patch, CoordinateTransform)}
+	 * but reads the current {@link CoordinateTransform} of the {@link Patch}
+	 * only once and optionally does not update its bucket.  For bulk
+	 * operations that recreate the buckets of each layer afterwards.
+	 */
+	@SuppressWarnings( "unchecked" )
+	final static public void applyLayerTransformToPatch( final Patch patch, final CoordinateTransform ct, final boolean updateBucket ) throws Exception
+	{
+		if ( patch.isLinked() )
+		{
+			Utils.log( "Cannot set coordinate transform: patch is linked!" );
+			return;
+		}
+		
+		final CoordinateTransform patchCt = patch.hasCoordinateTransform() ? patch.getCoordinateTransform() : null;
+		final Rectangle pbox = Patch.getCoordinateTransformBoundingBox( patch, patchCt );
+		final CoordinateTransformList< CoordinateTransform > ctl = createLayerTransformForPatch( patch, pbox, ct );
+		
+		final CoordinateTransform appended;
+		if ( null == patchCt )
+			appended = ctl;
+		else
+		{
+			/* freshly read from file, no need to copy */
+			final CoordinateTransformList< CoordinateTransform > list;
+			if ( patchCt instanceof CoordinateTransformList< ? > )
+				list = ( CoordinateTransformList< CoordinateTransform > )patchCt;
+			else
+			{
+				list = new CoordinateTransformList< CoordinateTransform >();
+				list.add( patchCt );
+			}
+			list.add( ctl );
+			appended = list;
+		}
+		
+		patch.setCoordinateTransform( appended, pbox, updateBucket );
+	}
+	
+	final static protected CoordinateTransformList< CoordinateTransform > createLayerTransformForPatch( final Patch patch, final Rectangle pbox, final CoordinateTransform ct ) throws Exception
+	{
 		final AffineTransform pat = new AffineTransform();
 		pat.translate( -pbox.x, -pbox.y );
 		pat.preConcatenate( patch.getAffineTransform() );
@@ -292,7 +337,7 @@ public class Util
 		ctl.add( ct );
 		ctl.add( toWorld.createInverse() );
 		
-		patch.appendCoordinateTransform( ctl );
+		return ctl;
 	}
 
 	
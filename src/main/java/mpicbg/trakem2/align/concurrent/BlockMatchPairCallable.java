@@ -29,6 +29,7 @@ import java.awt.Rectangle;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -41,7 +42,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.trakem2.align.AlignmentUtils;
 import mpicbg.trakem2.align.ElasticLayerAlignment;
 import mpicbg.trakem2.align.Util;
-import mpicbg.trakem2.transform.ExportBestFlatImage;
 import mpicbg.trakem2.util.Pair;
 import mpicbg.trakem2.util.Triple;
 
@@ -77,6 +77,111 @@ public class BlockMatchPairCallable implements
         }
     }
 
+    /**
+     * {@link BlockMatchResults} in a form that can be written to disk and
+     * read back in another JVM.  The source {@link Point Points} of all
+     * matches are vertices of a {@link mpicbg.models.SpringMesh} and are
+     * stored as their index into the vertex list of that mesh, which is
+     * the same for all meshes constructed with the same parameters.
+     */
+    public static class IndexedBlockMatchResults implements Serializable
+    {
+        private static final long serialVersionUID = -2740356313396120841L;
+
+        /* per direction: source vertex index, target l and w, weight */
+        final int[] index12, index21;
+        final double[] l12, w12, weight12, l21, w21, weight21;
+        public final boolean layer1Fixed, layer2Fixed;
+        public final Triple<Integer, Integer, AbstractModel<?>> pair;
+
+        public IndexedBlockMatchResults(final BlockMatchResults results,
+                                        final List<? extends Point> v1,
+                                        final List<? extends Point> v2)
+        {
+            index12 = new int[results.pm12.size()];
+            l12 = new double[2 * index12.length];
+            w12 = new double[2 * index12.length];
+            weight12 = new double[index12.length];
+            index(results.pm12, v1, index12, l12, w12, weight12);
+
+            index21 = new int[results.pm21.size()];
+            l21 = new double[2 * index21.length];
+            w21 = new double[2 * index21.length];
+            weight21 = new double[index21.length];
+            index(results.pm21, v2, index21, l21, w21, weight21);
+
+            layer1Fixed = results.layer1Fixed;
+            layer2Fixed = results.layer2Fixed;
+            pair = results.pair;
+        }
+
+        private static void index(final Collection<PointMatch> matches,
+                                  final List<? extends Point> vertices,
+                                  final int[] index,
+                                  final double[] l,
+                                  final double[] w,
+                                  final double[] weight)
+        {
+            final IdentityHashMap<Point, Integer> indices = new IdentityHashMap<Point, Integer>();
+            for (int i = 0; i < vertices.size(); ++i)
+            {
+                indices.put(vertices.get(i), i);
+            }
+            int i = 0;
+            for (final PointMatch pm : matches)
+            {
+                final Integer k = indices.get(pm.getP1());
+                if (k == null)
+                {
+                    throw new IllegalArgumentException("Block match source point is not a mesh vertex.");
+                }
+                index[i] = k;
+                final double[] pl = pm.getP2().getL();
+                final double[] pw = pm.getP2().getW();
+                l[2 * i] = pl[0];
+                l[2 * i + 1] = pl[1];
+                w[2 * i] = pw[0];
+                w[2 * i + 1] = pw[1];
+                weight[i] = pm.getWeight();
+                ++i;
+            }
+        }
+
+        private static ArrayList<PointMatch> resolve(final List<? extends Point> vertices,
+                                                     final int[] index,
+                                                     final double[] l,
+                                                     final double[] w,
+                                                     final double[] weight)
+        {
+            final ArrayList<PointMatch> matches = new ArrayList<PointMatch>(index.length);
+            for (int i = 0; i < index.length; ++i)
+            {
+                final Point p2 = new Point(new double[]{l[2 * i], l[2 * i + 1]});
+                final double[] pw = p2.getW();
+                pw[0] = w[2 * i];
+                pw[1] = w[2 * i + 1];
+                matches.add(new PointMatch(vertices.get(index[i]), p2, weight[i]));
+            }
+            return matches;
+        }
+
+        /**
+         * Recreate the {@link BlockMatchResults} for the vertices of the
+         * meshes of this JVM.
+         */
+        public BlockMatchResults resolve(final List<? extends Point> v1, final List<? extends Point> v2)
+        {
+            return new BlockMatchResults(
+                    v1,
+                    v2,
+                    resolve(v1, index12, l12, w12, weight12),
+                    resolve(v2, index21, l21, w21, weight21),
+                    layer1Fixed,
+                    layer2Fixed,
+                    pair);
+        }
+    }
+
     private final Layer layer1, layer2;
     private final boolean layer1Fixed, layer2Fixed;
     private final Filter<Patch> filter;
@@ -84,6 +189,7 @@ public class BlockMatchPairCallable implements
     private final Collection<? extends Point> v1, v2;
     private final Rectangle box;
     private final Triple<Integer, Integer, AbstractModel<?>> pair;
+    private transient final FlatImageCache.Reservation image1, image2;
 
 
     public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
@@ -95,6 +201,27 @@ public class BlockMatchPairCallable implements
                                   final Collection< ? extends Point > sourcePoints1,
                                   final Collection< ? extends Point > sourcePoints2,
                                   final Rectangle box)
+    {
+        this(pair, layerRange, layer1Fixed, layer2Fixed, filter, param, sourcePoints1, sourcePoints2, box, null, null);
+    }
+
+    /**
+     * @param image1, image2 the {@link FlatImageCache#reserve reserved} flat
+     *   images of both layers, closed when {@link #call()} returns;
+     *   <code>null</code> to render them for this pair only.  The owner
+     *   closes them too if {@link #call()} is never called.
+     */
+    public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
+                                  final List<Layer> layerRange,
+                                  final boolean layer1Fixed,
+                                  final boolean layer2Fixed,
+                                  final Filter<Patch> filter,
+                                  final ElasticLayerAlignment.Param param,
+                                  final Collection< ? extends Point > sourcePoints1,
+                                  final Collection< ? extends Point > sourcePoints2,
+                                  final Rectangle box,
+                                  final FlatImageCache.Reservation image1,
+                                  final FlatImageCache.Reservation image2)
     {
         this.pair = pair;
         layer1 = layerRange.get(pair.a);
@@ -106,19 +233,39 @@ public class BlockMatchPairCallable implements
         v1 = sourcePoints1;
         v2 = sourcePoints2;
         this.box = box;
+        this.image1 = image1;
+        this.image2 = image2;
     }
 
     @Override
     public BlockMatchResults call() throws Exception
+    {
+        if (image1 == null || image2 == null)
+        {
+            return match(
+                    makeFlatImage( layer1, AlignmentUtils.filterPatches( layer1, filter ), box, param.layerScale ),
+                    makeFlatImage( layer2, AlignmentUtils.filterPatches( layer2, filter ), box, param.layerScale ));
+        }
+
+        try
+        {
+            return match(image1.acquire(), image2.acquire());
+        }
+        finally
+        {
+            image2.close();
+            image1.close();
+        }
+    }
+
+    private BlockMatchResults match(final Pair< FloatProcessor, FloatProcessor > pair1,
+                                    final Pair< FloatProcessor, FloatProcessor > pair2) throws Exception
     {
         final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
         final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
 
         System.out.println("BMC rev 0: " + pair.a + " " + pair.b);
 
-        final Pair< FloatProcessor, FloatProcessor > pair1 = makeFlatImage( layer1, AlignmentUtils.filterPatches( layer1, filter ), box, param.layerScale );
-        final Pair< FloatProcessor, FloatProcessor > pair2 = makeFlatImage( layer2, AlignmentUtils.filterPatches( layer2, filter ), box, param.layerScale );
-        
         final FloatProcessor ip1 = pair1.a;
         final FloatProcessor ip1Mask = pair1.b;
         final FloatProcessor ip2 = pair2.a;
@@ -222,14 +369,6 @@ public class BlockMatchPairCallable implements
      */
     private Pair< FloatProcessor, FloatProcessor > makeFlatImage( final Layer layer, final List<Patch> patches, final Rectangle box, final double scale )
     {    	
-    	final Pair< FloatProcessor, FloatProcessor > pair = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatFloatGrayImageAndAlpha();
-    	
-    	// Map alpha from 8-bit to the range [0..1]
-    	final float[] alpha = (float[]) pair.b.getPixels();
-    	for (int i=0; i<alpha.length; ++i) {
-    		alpha[i] = alpha[i] / 255f;
-    	}
-    	
-    	return pair;
+    	return FlatImageCache.makeFlatImage( patches, box, scale );
     }
 }
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align.concurrent;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.SpringMesh;
+
+/**
+ * A {@link SpringMesh} that can be optimized concurrently with other
+ * {@link SpringMesh SpringMeshes} it is connected to.
+ *
+ * {@link SpringMesh#optimizeMeshes(Collection, double, int, int, boolean)}
+ * steps all meshes one after the other, each step reading the passive
+ * vertices of the meshes connected to it.  Here, the meshes are colored
+ * such that no two connected meshes have the same color.  Each iteration
+ * steps all meshes of one color in parallel, then those of the next color.
+ * Meshes of the same color do not read each other's vertices, so the result
+ * does not depend on the number of threads.
+ *
+ * Each mesh is observed separately and is not stepped anymore once it has
+ * converged by the same criteria that the global optimizer applies to the
+ * average force.  Converged meshes are stepped again every
+ * {@link #RECHECK_INTERVAL} iterations and resume the optimization if their
+ * neighbors pulled them away from equilibrium.
+ */
+public class ConcurrentSpringMesh extends SpringMesh
+{
+	final static public int RECHECK_INTERVAL = 10;
+
+	public ConcurrentSpringMesh(
+			final int resolution,
+			final double width,
+			final double height,
+			final double stiffness,
+			final double maxStretch,
+			final double damp )
+	{
+		super( resolution, width, height, stiffness, maxStretch, damp );
+	}
+
+	public ConcurrentSpringMesh(
+			final int numX,
+			final int numY,
+			final double width,
+			final double height,
+			final double stiffness,
+			final double maxStretch,
+			final double damp )
+	{
+		super( numX, numY, width, height, stiffness, maxStretch, damp );
+	}
+
+	/**
+	 * One optimization step of this mesh alone.
+	 */
+	public void step() throws Exception
+	{
+		optimizeStep();
+	}
+
+	/**
+	 * Greedy coloring of the mesh graph.
+	 *
+	 * @param numMeshes
+	 * @param connections pairs of indices of connected meshes
+	 * @return the color of each mesh, starting at 0
+	 */
+	final static public int[] color( final int numMeshes, final Collection< int[] > connections )
+	{
+		final ArrayList< BitSet > neighbors = new ArrayList< BitSet >( numMeshes );
+		for ( int i = 0; i < numMeshes; ++i )
+			neighbors.add( new BitSet( numMeshes ) );
+		for ( final int[] c : connections )
+		{
+			neighbors.get( c[ 0 ] ).set( c[ 1 ] );
+			neighbors.get( c[ 1 ] ).set( c[ 0 ] );
+		}
+
+		final int[] colors = new int[ numMeshes ];
+		Arrays.fill( colors, -1 );
+		for ( int i = 0; i < numMeshes; ++i )
+		{
+			final BitSet used = new BitSet();
+			final BitSet n = neighbors.get( i );
+			for ( int j = n.nextSetBit( 0 ); j >= 0; j = n.nextSetBit( j + 1 ) )
+				if ( colors[ j ] >= 0 )
+					used.set( colors[ j ] );
+			colors[ i ] = used.nextClearBit( 0 );
+		}
+		return colors;
+	}
+
+	final static protected boolean hasConverged(
+			final ErrorStatistic observer,
+			final double force,
+			final double maxError,
+			final int maxPlateauwidth )
+	{
+		if ( force > maxError )
+			return false;
+
+		int d = maxPlateauwidth;
+		while ( d >= 1 )
+		{
+			try
+			{
+				if ( Math.abs( observer.getWideSlope( d ) ) > 0.0001 )
+					return false;
+			}
+			catch ( final Exception e ) { IJError.print( e ); }
+			d /= 2;
+		}
+		return true;
+	}
+
+	/**
+	 * Optimize a {@link List} of connected {@link ConcurrentSpringMesh
+	 * ConcurrentSpringMeshes}.
+	 *
+	 * @param meshes
+	 * @param connections pairs of indices of meshes that are connected by
+	 *   springs
+	 * @param maxError do not accept convergence if error is &gt; max_error
+	 * @param maxIterations stop after that many iterations even if there was
+	 *   no minimum found
+	 * @param maxPlateauwidth convergence is reached if the average slope in
+	 *   an interval of this size is 0.0 (in double accuracy).  This prevents
+	 *   the algorithm from stopping at plateaus smaller than this value.
+	 * @param service steps the meshes of one color
+	 */
+	final static public void optimizeMeshes(
+			final List< ConcurrentSpringMesh > meshes,
+			final Collection< int[] > connections,
+			final double maxError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final ExecutorService service ) throws NotEnoughDataPointsException, InterruptedException, ExecutionException
+	{
+		final int[] colors = color( meshes.size(), connections );
+		int numColors = 0;
+		for ( final int c : colors )
+			numColors = Math.max( numColors, c + 1 );
+
+		final ArrayList< ErrorStatistic > observers = new ArrayList< ErrorStatistic >( meshes.size() );
+		for ( int k = 0; k < meshes.size(); ++k )
+			observers.add( new ErrorStatistic( maxPlateauwidth + 1 ) );
+
+		final boolean[] converged = new boolean[ meshes.size() ];
+		final double[] forces = new double[ meshes.size() ];
+
+		Utils.log( "Optimizing " + meshes.size() + " spring meshes in " + numColors + " independent groups..." );
+		Utils.log2( "i mean max active ms" );
+
+		final long t0 = System.currentTimeMillis();
+		int i = 0;
+		int numActive = meshes.size();
+		while ( i < maxIterations && numActive > 0 )
+		{
+			final long ti = System.currentTimeMillis();
+			final boolean recheck = i % RECHECK_INTERVAL == 0;
+
+			for ( int c = 0; c < numColors; ++c )
+			{
+				final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+				for ( int k = 0; k < meshes.size(); ++k )
+				{
+					if ( colors[ k ] != c || ( converged[ k ] && !recheck ) )
+						continue;
+					final ConcurrentSpringMesh mesh = meshes.get( k );
+					futures.add( service.submit( new Callable< Void >()
+					{
+						@Override
+						public Void call() throws Exception
+						{
+							mesh.step();
+							return null;
+						}
+					} ) );
+				}
+				try
+				{
+					for ( final Future< Void > future : futures )
+						future.get();
+				}
+				catch ( final ExecutionException e )
+				{
+					if ( e.getCause() instanceof NotEnoughDataPointsException )
+						throw ( NotEnoughDataPointsException )e.getCause();
+					throw e;
+				}
+				catch ( final InterruptedException e )
+				{
+					for ( final Future< Void > future : futures )
+						future.cancel( true );
+					throw e;
+				}
+			}
+
+			double force = 0;
+			double maxForce = 0;
+			numActive = 0;
+			for ( int k = 0; k < meshes.size(); ++k )
+			{
+				if ( !converged[ k ] || recheck )
+				{
+					forces[ k ] = meshes.get( k ).getForce();
+					observers.get( k ).add( forces[ k ] );
+					converged[ k ] = i > maxPlateauwidth && hasConverged( observers.get( k ), forces[ k ], maxError, maxPlateauwidth );
+				}
+				force += forces[ k ];
+				maxForce = Math.max( maxForce, forces[ k ] );
+				if ( !converged[ k ] )
+					++numActive;
+			}
+
+			Utils.log2( i + " " + force / meshes.size() + " " + maxForce + " " + numActive + " " + ( System.currentTimeMillis() - ti ) );
+
+			++i;
+		}
+
+		for ( final SpringMesh mesh : meshes )
+			mesh.updateAffines();
+
+		Utils.log( "Optimized spring meshes in " + i + " iterations, " + ( System.currentTimeMillis() - t0 ) + " ms, " + numActive + " meshes did not converge." );
+	}
+}
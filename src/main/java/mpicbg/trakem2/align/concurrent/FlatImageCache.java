@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align.concurrent;
+
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.trakem2.align.AlignmentUtils;
+import mpicbg.trakem2.transform.ExportBestFlatImage;
+import mpicbg.trakem2.util.Pair;
+
+/**
+ * A memory bounded cache of flat {@link FloatProcessor} images and alpha
+ * masks of {@link Layer Layers} as used for block matching.  Each image is
+ * rendered once, concurrent requests for the same image wait for the thread
+ * that renders it.
+ *
+ * Users {@link #reserve(Layer, Rectangle, double) reserve} an image for each
+ * time they will {@link #acquire(Layer, Rectangle, double) acquire} it, and
+ * {@link #release(Layer, Rectangle, double) release} it after use.  Each
+ * reservation is a {@link Reservation} that is {@link Reservation#close()
+ * closed} in a finally block, so that uses that never happen, e.g. of jobs
+ * that failed or were not run, do not keep their images.  An image is
+ * evicted as soon as all its reservations are released.  When layer pairs
+ * are processed in stack order, this is a sliding window over the stack in
+ * which every layer is rendered once and dropped when the window has moved
+ * past it.  If the images exceed the memory bound, the least recently used
+ * images that are not in use are evicted early and rendered again on demand.
+ *
+ * The cached images are shared, callers must not modify them.
+ */
+public class FlatImageCache
+{
+	final static protected class Key
+	{
+		final protected long layerId;
+		final protected Rectangle box;
+		final protected double scale;
+
+		public Key( final Layer layer, final Rectangle box, final double scale )
+		{
+			this.layerId = layer.getId();
+			this.box = new Rectangle( box );
+			this.scale = scale;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key )o;
+			return layerId == k.layerId && scale == k.scale && box.equals( k.box );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			final long s = Double.doubleToLongBits( scale );
+			return ( int )( layerId ^ ( layerId >>> 32 ) ) * 31 * 31 + ( int )( s ^ ( s >>> 32 ) ) * 31 + box.hashCode();
+		}
+	}
+
+	final static protected class Entry
+	{
+		protected FutureTask< Pair< FloatProcessor, FloatProcessor > > task = null;
+		/* number of pending uses */
+		protected int reserved = 0;
+		/* number of current uses */
+		protected int acquired = 0;
+		protected long bytes = 0;
+	}
+
+	final protected Filter< Patch > filter;
+	final protected long maxBytes;
+	protected long bytes = 0;
+
+	/* in access order, least recently used first */
+	final protected LinkedHashMap< Key, Entry > entries = new LinkedHashMap< Key, Entry >( 16, 0.75f, true );
+
+	/**
+	 * @param filter selects the {@link Patch Patches} to be rendered,
+	 *   <code>null</code> for all
+	 * @param maxBytes the memory bound
+	 */
+	public FlatImageCache( final Filter< Patch > filter, final long maxBytes )
+	{
+		this.filter = filter;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Bound to a quarter of the maximum heap size.
+	 */
+	public FlatImageCache( final Filter< Patch > filter )
+	{
+		this( filter, Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	/**
+	 * One use of an image, {@link #acquire() acquired} at most once and then
+	 * {@link #close() closed}.
+	 */
+	public class Reservation
+	{
+		final protected Layer layer;
+		final protected Rectangle box;
+		final protected double scale;
+		/* guarded by the cache */
+		private boolean reserved = true, acquired = false;
+
+		protected Reservation( final Layer layer, final Rectangle box, final double scale )
+		{
+			this.layer = layer;
+			this.box = new Rectangle( box );
+			this.scale = scale;
+		}
+
+		/**
+		 * Get the image as {@link FlatImageCache#acquire(Layer, Rectangle, double)}
+		 * does.  It is released by {@link #close()}, also when this throws.
+		 */
+		public Pair< FloatProcessor, FloatProcessor > acquire() throws InterruptedException, ExecutionException
+		{
+			synchronized ( FlatImageCache.this )
+			{
+				if ( !reserved )
+					throw new IllegalStateException( "The reservation was closed or acquired before." );
+				reserved = false;
+				acquired = true;
+			}
+			return FlatImageCache.this.acquire( layer, box, scale );
+		}
+
+		/**
+		 * Release the image if it was acquired, or else drop the reservation.
+		 * Closing more than once does nothing.
+		 */
+		public void close()
+		{
+			synchronized ( FlatImageCache.this )
+			{
+				if ( acquired )
+					release( layer, box, scale );
+				else if ( reserved )
+					unreserve( new Key( layer, box, scale ) );
+				reserved = false;
+				acquired = false;
+			}
+		}
+	}
+
+	/**
+	 * Announce that the image will be {@link #acquire(Layer, Rectangle, double)
+	 * acquired} once more.
+	 *
+	 * @return the reservation, to be {@link Reservation#close() closed} also
+	 *   when it is not used
+	 */
+	synchronized public Reservation reserve( final Layer layer, final Rectangle box, final double scale )
+	{
+		final Key key = new Key( layer, box, scale );
+		Entry entry = entries.get( key );
+		if ( null == entry )
+		{
+			entry = new Entry();
+			entries.put( key, entry );
+		}
+		++entry.reserved;
+		return new Reservation( layer, box, scale );
+	}
+
+	/**
+	 * Drop one reservation of an image that will not be acquired.
+	 */
+	synchronized protected void unreserve( final Key key )
+	{
+		final Entry entry = entries.get( key );
+		if ( null == entry )
+			return;
+		if ( entry.reserved > 0 )
+			--entry.reserved;
+		if ( 0 == entry.reserved && 0 == entry.acquired )
+		{
+			entries.remove( key );
+			if ( null != entry.task )
+				bytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Get the flat image and alpha mask in [0,1] of a {@link Layer}, render
+	 * it if necessary.  Every call must be followed by exactly one call to
+	 * {@link #release(Layer, Rectangle, double)}, also when it throws.
+	 */
+	public Pair< FloatProcessor, FloatProcessor > acquire( final Layer layer, final Rectangle box, final double scale ) throws InterruptedException, ExecutionException
+	{
+		final Key key = new Key( layer, box, scale );
+		final FutureTask< Pair< FloatProcessor, FloatProcessor > > task;
+		synchronized ( this )
+		{
+			Entry entry = entries.get( key );
+			if ( null == entry )
+			{
+				/* not reserved, cache it until released */
+				entry = new Entry();
+				entry.reserved = 1;
+				entries.put( key, entry );
+			}
+			if ( null == entry.task )
+			{
+				entry.task = new FutureTask< Pair< FloatProcessor, FloatProcessor > >( new Callable< Pair< FloatProcessor, FloatProcessor > >()
+				{
+					@Override
+					public Pair< FloatProcessor, FloatProcessor > call()
+					{
+						return render( layer, box, scale );
+					}
+				} );
+				entry.bytes = 2L * 4L * ( long )Math.ceil( box.width * scale ) * ( long )Math.ceil( box.height * scale );
+				bytes += entry.bytes;
+			}
+			++entry.acquired;
+			task = entry.task;
+		}
+
+		/* renders in this thread unless another thread did or does */
+		task.run();
+		try
+		{
+			return task.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			/* do not cache the failure */
+			synchronized ( this )
+			{
+				final Entry entry = entries.get( key );
+				if ( null != entry && task == entry.task )
+				{
+					entry.task = null;
+					bytes -= entry.bytes;
+				}
+			}
+			throw e;
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Release an image {@link #acquire(Layer, Rectangle, double) acquired}
+	 * before and drop one reservation.
+	 */
+	synchronized public void release( final Layer layer, final Rectangle box, final double scale )
+	{
+		final Key key = new Key( layer, box, scale );
+		final Entry entry = entries.get( key );
+		if ( null == entry )
+			return;
+		if ( entry.acquired > 0 )
+			--entry.acquired;
+		if ( entry.reserved > 0 )
+			--entry.reserved;
+		if ( 0 == entry.reserved && 0 == entry.acquired )
+		{
+			entries.remove( key );
+			if ( null != entry.task )
+				bytes -= entry.bytes;
+		}
+		else
+			evict();
+	}
+
+	/**
+	 * Render the flat image and alpha mask of the {@link Patch Patches} of
+	 * {@code layer} that pass the filter.
+	 */
+	protected Pair< FloatProcessor, FloatProcessor > render( final Layer layer, final Rectangle box, final double scale )
+	{
+		return makeFlatImage( AlignmentUtils.filterPatches( layer, filter ), box, scale );
+	}
+
+	/**
+	 * Drop the images of the least recently used entries that are not in use
+	 * until the memory bound is met.
+	 */
+	protected void evict()
+	{
+		for ( final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator(); bytes > maxBytes && it.hasNext(); )
+		{
+			final Entry entry = it.next().getValue();
+			if ( 0 == entry.acquired && null != entry.task && entry.task.isDone() )
+			{
+				entry.task = null;
+				bytes -= entry.bytes;
+				Utils.log2( "FlatImageCache: evicted an image before its last use, consider increasing the memory bound." );
+			}
+		}
+	}
+
+	/**
+	 * Use different methods depending on the dimensions of the target image
+	 * and the availability of mipmaps.  The goal is to obtain the best
+	 * possible image.
+	 *
+	 * The alpha channel is returned with values between [0..1]
+	 *
+	 * @param patches
+	 * @param box
+	 * @param scale
+	 * @return
+	 */
+	static public Pair< FloatProcessor, FloatProcessor > makeFlatImage( final List< Patch > patches, final Rectangle box, final double scale )
+	{
+		final Pair< FloatProcessor, FloatProcessor > pair = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatFloatGrayImageAndAlpha();
+
+		// Map alpha from 8-bit to the range [0..1]
+		final float[] alpha = ( float[] )pair.b.getPixels();
+		for ( int i = 0; i < alpha.length; ++i )
+			alpha[ i ] = alpha[ i ] / 255f;
+
+		return pair;
+	}
+}
@@ -0,0 +1,456 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align.concurrent;
+
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A graph of {@link Job Jobs} whose results are optionally persisted to a
+ * checkpoint folder.  A {@link Job} is executed as soon as all its
+ * dependencies are done.  With a checkpoint folder:
+ * <ul>
+ * <li>a {@link Job} whose result file exists is not executed again but its
+ * result is read from disk, which resumes an interrupted computation from
+ * the last completed {@link Job Jobs};</li>
+ * <li>a {@link Job} is claimed through an atomically created lock file
+ * before it is executed, so several JVMs sharing the same checkpoint folder
+ * (e.g. the project folder on a network share) compute disjoint subsets of
+ * the graph and wait for each other's results.</li>
+ * </ul>
+ * Lock files are touched regularly by their owner.  Locks that have not been
+ * touched for {@link #LOCK_TIMEOUT} ms are considered left over by a crashed
+ * worker and are taken over.
+ *
+ * Without a checkpoint folder, the graph is just executed in memory.
+ */
+public class JobGraph
+{
+	final static public long LOCK_TIMEOUT = 5 * 60 * 1000;
+	final static protected long LOCK_REFRESH = 30 * 1000;
+	final static protected long POLL_INTERVAL = 500;
+
+	/**
+	 * A node of the {@link JobGraph}.  Results must be {@link Serializable}
+	 * if the {@link JobGraph} has a checkpoint folder.  <code>null</code>
+	 * is a valid result.
+	 *
+	 * @param <T> the type of the result
+	 */
+	static public abstract class Job< T >
+	{
+		final protected String id;
+		final protected Collection< Job< ? > > dependencies;
+
+		private volatile boolean done = false;
+		private T result = null;
+
+		public Job( final String id, final Collection< ? extends Job< ? > > dependencies )
+		{
+			this.id = id;
+			this.dependencies = new ArrayList< Job< ? > >( dependencies );
+		}
+
+		public Job( final String id, final Job< ? >... dependencies )
+		{
+			this( id, Arrays.asList( dependencies ) );
+		}
+
+		abstract protected T compute() throws Exception;
+
+		/**
+		 * Called instead of {@link #compute()} when the result was restored
+		 * from a checkpoint, to free what only {@link #compute()} would have
+		 * used.
+		 */
+		protected void restored() {}
+
+		final public String getId()
+		{
+			return id;
+		}
+
+		final public boolean isDone()
+		{
+			return done;
+		}
+
+		/**
+		 * @return the result of this {@link Job}, only valid if
+		 * {@link #isDone()}
+		 */
+		final public T getResult()
+		{
+			return result;
+		}
+
+		final protected boolean isReady()
+		{
+			for ( final Job< ? > dependency : dependencies )
+				if ( !dependency.isDone() )
+					return false;
+			return true;
+		}
+
+		@SuppressWarnings( "unchecked" )
+		final protected void setResult( final Object result )
+		{
+			this.result = ( T )result;
+			done = true;
+		}
+	}
+
+	final protected File folder;
+	final protected LinkedHashMap< String, Job< ? > > jobs = new LinkedHashMap< String, Job< ? > >();
+	final protected Set< File > ownedLocks = new HashSet< File >();
+
+	/**
+	 * @param folder the checkpoint folder, <code>null</code> for in-memory
+	 *   execution only
+	 */
+	public JobGraph( final File folder )
+	{
+		this.folder = folder;
+		if ( null != folder )
+			folder.mkdirs();
+	}
+
+	public File getFolder()
+	{
+		return folder;
+	}
+
+	/**
+	 * Delete all checkpoints and locks such that no {@link Job} is restored
+	 * anymore, e.g. when its inputs have to be recomputed.  Workers of other
+	 * JVMs that still compute {@link Job Jobs} of this graph will write
+	 * their results again.
+	 */
+	public void clear()
+	{
+		if ( null == folder )
+			return;
+		final File[] files = folder.listFiles();
+		if ( null == files )
+			return;
+		for ( final File file : files )
+			if ( !file.delete() )
+				Utils.log( "Could not delete checkpoint " + file );
+	}
+
+	/**
+	 * Delete the checkpoint folder, when the results of all {@link Job Jobs}
+	 * have been consumed.
+	 */
+	public void delete()
+	{
+		if ( null == folder )
+			return;
+		clear();
+		folder.delete();
+	}
+
+	/**
+	 * Add a {@link Job}.  If a {@link Job} with the same id has been added
+	 * before, that one is returned instead.
+	 */
+	@SuppressWarnings( "unchecked" )
+	synchronized public < T > Job< T > add( final Job< T > job )
+	{
+		final Job< ? > existing = jobs.get( job.id );
+		if ( null != existing )
+			return ( Job< T > )existing;
+		jobs.put( job.id, job );
+		return job;
+	}
+
+	/**
+	 * Execute all {@link Job Jobs} that are not done yet.  Returns when all
+	 * {@link Job Jobs} are done, including those computed by other workers.
+	 *
+	 * @param service executes the {@link Job Jobs} claimed by this worker
+	 * @throws ExecutionException if a {@link Job} failed
+	 * @throws InterruptedException
+	 */
+	public void execute( final ExecutorService service ) throws ExecutionException, InterruptedException
+	{
+		final LinkedHashMap< Job< ? >, Future< ? > > running = new LinkedHashMap< Job< ? >, Future< ? > >();
+		final ArrayList< Job< ? > > todo;
+		synchronized ( this )
+		{
+			todo = new ArrayList< Job< ? > >( jobs.values() );
+		}
+
+		final Timer heartbeat = null == folder ? null : new Timer( "JobGraph lock heartbeat", true );
+		if ( null != heartbeat )
+			heartbeat.schedule( new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					final long now = System.currentTimeMillis();
+					synchronized ( ownedLocks )
+					{
+						for ( final File lock : ownedLocks )
+							lock.setLastModified( now );
+					}
+				}
+			}, LOCK_REFRESH, LOCK_REFRESH );
+
+		try
+		{
+			int numRestored = 0;
+			while ( true )
+			{
+				boolean pending = false;
+				boolean progress = false;
+				for ( final Job< ? > job : todo )
+				{
+					if ( job.isDone() )
+						continue;
+					pending = true;
+
+					final Future< ? > future = running.get( job );
+					if ( null != future )
+					{
+						if ( future.isDone() )
+						{
+							running.remove( job );
+							future.get();
+							progress = true;
+						}
+						continue;
+					}
+
+					if ( !job.isReady() )
+						continue;
+
+					if ( restore( job ) )
+					{
+						++numRestored;
+						progress = true;
+					}
+					else if ( claim( job ) )
+					{
+						/* another worker may have finished it right before */
+						if ( restore( job ) )
+						{
+							release( job );
+							++numRestored;
+							progress = true;
+							continue;
+						}
+						running.put( job, service.submit( new Callable< Void >()
+						{
+							@Override
+							public Void call() throws Exception
+							{
+								try
+								{
+									final Object result = job.compute();
+									store( job, result );
+									job.setResult( result );
+								}
+								finally
+								{
+									release( job );
+								}
+								return null;
+							}
+						} ) );
+						progress = true;
+					}
+				}
+
+				if ( !pending )
+					break;
+
+				if ( Thread.interrupted() )
+					throw new InterruptedException( "Job graph execution interrupted." );
+
+				if ( !progress )
+					Thread.sleep( POLL_INTERVAL );
+			}
+			if ( numRestored > 0 )
+				Utils.log( numRestored + " jobs restored from checkpoints in " + folder );
+		}
+		finally
+		{
+			for ( final Map.Entry< Job< ? >, Future< ? > > entry : running.entrySet() )
+				entry.getValue().cancel( true );
+			if ( null != heartbeat )
+				heartbeat.cancel();
+		}
+	}
+
+	protected File resultFile( final Job< ? > job )
+	{
+		return new File( folder, job.id + ".ser" );
+	}
+
+	protected File lockFile( final Job< ? > job )
+	{
+		return new File( folder, job.id + ".lock" );
+	}
+
+	/**
+	 * Read the result of a {@link Job} from its checkpoint file if it
+	 * exists.
+	 *
+	 * @return true if the {@link Job} is done now
+	 */
+	protected boolean restore( final Job< ? > job )
+	{
+		if ( null == folder )
+			return false;
+		final File file = resultFile( job );
+		if ( !file.exists() )
+			return false;
+		ObjectInputStream in = null;
+		try
+		{
+			in = new ObjectInputStream( new FileInputStream( file ) );
+			job.setResult( in.readObject() );
+			job.restored();
+			return true;
+		}
+		catch ( final Exception e )
+		{
+			Utils.log( "Could not read checkpoint " + file + ", recomputing: " + e );
+			file.delete();
+			return false;
+		}
+		finally
+		{
+			if ( null != in )
+				try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * Write the result of a {@link Job} to a temporary file first and then
+	 * rename it such that no other worker ever reads a partially written
+	 * checkpoint.
+	 */
+	protected void store( final Job< ? > job, final Object result ) throws IOException
+	{
+		if ( null == folder )
+			return;
+		final File file = resultFile( job );
+		final File tmp = new File( folder, job.id + ".ser.tmp" );
+		final ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( tmp ) );
+		try
+		{
+			out.writeObject( result );
+		}
+		finally
+		{
+			out.close();
+		}
+		if ( !tmp.renameTo( file ) )
+		{
+			file.delete();
+			if ( !tmp.renameTo( file ) )
+				throw new IOException( "Could not write checkpoint " + file );
+		}
+	}
+
+	/**
+	 * Claim a {@link Job} for this worker.  A stale lock is first renamed
+	 * to a name of this worker's own, which succeeds for only one of the
+	 * workers that found it stale; the others leave it alone.
+	 *
+	 * @return true if this worker is to compute the {@link Job}
+	 */
+	protected boolean claim( final Job< ? > job )
+	{
+		if ( null == folder )
+			return true;
+		final File lock = lockFile( job );
+		try
+		{
+			if ( !lock.createNewFile() )
+			{
+				final long lastModified = lock.lastModified();
+				if ( 0 == lastModified || System.currentTimeMillis() - lastModified < LOCK_TIMEOUT )
+					return false;
+				final File stale = new File( folder, job.id + ".lock." + UUID.randomUUID() );
+				if ( !lock.renameTo( stale ) )
+					return false;
+				if ( System.currentTimeMillis() - stale.lastModified() < LOCK_TIMEOUT )
+				{
+					/* another worker took it over and locked it anew in the meantime: give it back */
+					if ( !stale.renameTo( lock ) )
+						Utils.log( "Could not restore lock " + lock + " from " + stale );
+					return false;
+				}
+				Utils.log( "Taking over stale lock " + lock );
+				stale.delete();
+				if ( !lock.createNewFile() )
+					return false;
+			}
+		}
+		catch ( final IOException e )
+		{
+			Utils.log( "Could not create lock " + lock + ": " + e );
+			return false;
+		}
+		synchronized ( ownedLocks )
+		{
+			ownedLocks.add( lock );
+		}
+		return true;
+	}
+
+	protected void release( final Job< ? > job )
+	{
+		if ( null == folder )
+			return;
+		final File lock = lockFile( job );
+		synchronized ( ownedLocks )
+		{
+			ownedLocks.remove( lock );
+		}
+		lock.delete();
+	}
+}
@@ -38,6 +38,7 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.display.Patch;
 import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import mpicbg.trakem2.util.Pair;
 
@@ -364,11 +365,21 @@ public class ExportBestFlatImage
 
 		loader.releaseAll();
 
-		// Use originals and Gaussian-downsample them, then map them onto the target image
-		final Pair<ByteProcessor, ByteProcessor> pair = ExportUnsignedByte.makeFlatImageFromOriginals( patches, finalBox, 0, scale );
+		// Use originals and Gaussian-downsample them, then map them onto the target image in tiles, in parallel,
+		// without rounding to 8-bit
+		final Pair<FloatProcessor, FloatProcessor> pair;
+		try {
+			pair = ExportUnsignedShort.makeFlatFloatImage( patches, finalBox, scale, Runtime.getRuntime().availableProcessors() );
+		} catch ( final Exception e ) {
+			IJError.print( e );
+			return null;
+		}
 
-		return new Pair<FloatProcessor, FloatProcessor>(
-				pair.a.convertToFloatProcessor(),
-				pair.b.convertToFloatProcessor() );
+		// From the 16-bit range into the 8-bit range
+		final float[] pixels = ( float[] )pair.a.getPixels();
+		for ( int i = 0; i < pixels.length; ++i ) {
+			pixels[i] *= 255.0f / 65535.0f;
+		}
+		return pair;
 	}
 }
@@ -161,6 +161,41 @@ public class ExportUnsignedByte
 		}
 	}
 
+	/**
+	 * Paint the image of a patch, as fetched by an {@link ImageSource}, into a target image
+	 * whose top-left pixel is at x,y in world coordinates and which is scaled by scale.
+	 */
+	static public final void map(
+			final Patch patch,
+			final ImageData imgd,
+			final double x,
+			final double y,
+			final double scale,
+			final ByteProcessor target,
+			final ByteProcessor targetMask)
+	{
+		// The affine to apply to the MipMap.image
+		final AffineTransform atc = new AffineTransform();
+		atc.scale( scale, scale );
+		atc.translate( -x, -y );
+		
+		final AffineTransform at = new AffineTransform();
+		at.preConcatenate( atc );
+		at.concatenate( patch.getAffineTransform() );
+		at.scale( imgd.scaleX, imgd.scaleY );
+		
+		final AffineModel2D aff = new AffineModel2D();
+		aff.set( at );
+		
+		final CoordinateTransformMesh mesh = new CoordinateTransformMesh( aff, patch.getMeshResolution(), imgd.bp.getWidth(), imgd.bp.getHeight() );
+		final TransformMeshMappingWithMasks< CoordinateTransformMesh > mapping = new TransformMeshMappingWithMasks< >( mesh );
+		
+		imgd.bp.setInterpolationMethod( ImageProcessor.BILINEAR );
+		imgd.alpha.setInterpolationMethod( ImageProcessor.NEAREST_NEIGHBOR );
+		
+		mapping.map( imgd.bp, imgd.alpha, target, targetMask );
+	}
+
 	static public final Pair< ByteProcessor, ByteProcessor > makeFlatImage(
 			final List<Patch> patches,
 			final Rectangle roi,
@@ -174,28 +209,7 @@ public class ExportUnsignedByte
 		targetMask.setInterpolationMethod( ImageProcessor.NEAREST_NEIGHBOR );
 
 		for (final Patch patch : patches) {
-			final ImageData imgd = fetcher.fetch( patch, scale );
-
-			// The affine to apply to the MipMap.image
-			final AffineTransform atc = new AffineTransform();
-			atc.scale( scale, scale );
-			atc.translate( -roi.x, -roi.y );
-			
-			final AffineTransform at = new AffineTransform();
-			at.preConcatenate( atc );
-			at.concatenate( patch.getAffineTransform() );
-			at.scale( imgd.scaleX, imgd.scaleY );
-			
-			final AffineModel2D aff = new AffineModel2D();
-			aff.set( at );
-			
-			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( aff, patch.getMeshResolution(), imgd.bp.getWidth(), imgd.bp.getHeight() );
-			final TransformMeshMappingWithMasks< CoordinateTransformMesh > mapping = new TransformMeshMappingWithMasks< >( mesh );
-			
-			imgd.bp.setInterpolationMethod( ImageProcessor.BILINEAR );
-			imgd.alpha.setInterpolationMethod( ImageProcessor.NEAREST_NEIGHBOR );
-			
-			mapping.map( imgd.bp, imgd.alpha, target, targetMask );
+			map( patch, fetcher.fetch( patch, scale ), roi.x, roi.y, scale, target, targetMask );
 		}
 		
 		return new Pair< >( target, targetMask );
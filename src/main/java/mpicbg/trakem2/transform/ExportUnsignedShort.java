@@ -23,19 +23,35 @@ package mpicbg.trakem2.transform;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
 import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.TiledFlatImage;
+import ini.trakem2.io.TiledTIFFWriter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.models.CoordinateTransform;
 import mpicbg.models.CoordinateTransformList;
@@ -75,6 +91,167 @@ public class ExportUnsignedShort
 		}
 	}
 
+	/**
+	 * The intensities of a {@link Patch} mapped into the range of the export,
+	 * its alpha mask, and the triangles that map it into the target.
+	 */
+	static protected class PatchSource
+	{
+		final public Patch patch;
+		final public float[] pixels;
+		final public byte[] mask;
+		final public int width, height;
+		final public MeshRasterizer rasterizer;
+
+		/**
+		 * @param x, y the world coordinates of the target origin
+		 * @param scale ignored when NaN
+		 * @param clamp whether to clamp intensities to [0,65535]
+		 */
+		PatchSource( final PatchIntensityRange pir, final double min, final double max, final double x, final double y, final double scale, final boolean clamp )
+		{
+			this( pir, min, max, x, y, scale, clamp, 0 );
+		}
+
+		/**
+		 * @param sigma of the Gaussian that smooths the image and its alpha
+		 *   mask before mapping, none when 0
+		 */
+		PatchSource( final PatchIntensityRange pir, final double min, final double max, final double x, final double y, final double scale, final boolean clamp, final double sigma )
+		{
+			patch = pir.patch;
+			final ImageProcessor ip = patch.getImageProcessor();
+			width = ip.getWidth();
+			height = ip.getHeight();
+			pixels = mapIntensitiesToFloat( pir, ip, min, max, clamp );
+			final ByteProcessor alpha = patch.hasAlphaMask() ? patch.getAlphaMask() : null;
+			if ( null == alpha || alpha.getWidth() != width || alpha.getHeight() != height )
+				mask = null;
+			else
+			{
+				if ( sigma > 0 )
+					new GaussianBlur().blurGaussian( alpha, sigma, sigma, 0.002 );
+				mask = ( byte[] )alpha.getPixels();
+			}
+			if ( sigma > 0 )
+				new GaussianBlur().blurGaussian( new FloatProcessor( width, height, pixels, null ), sigma, sigma, 0.0002 );
+			rasterizer = new MeshRasterizer( createMesh( patch, x, y, scale ) );
+		}
+
+		final public void map( final float[] target, final float[] alphaTarget, final int w, final int h, final int ox, final int oy )
+		{
+			if ( rasterizer.intersects( ox, oy, w, h ) )
+				rasterizer.map( pixels, mask, width, height, target, alphaTarget, w, h, ox, oy );
+		}
+	}
+
+	/**
+	 * A {@link PatchSource} made on first use by any of the tiles that share
+	 * it, and released when the last of them is done with it.
+	 */
+	static protected class SharedSource
+	{
+		final protected PatchIntensityRange pir;
+		final private double min, max, x, y, scale, sigma;
+		final private boolean clamp;
+		/* number of tiles yet to use it */
+		private int uses = 0;
+		private PatchSource source = null;
+
+		SharedSource( final PatchIntensityRange pir, final double min, final double max, final double x, final double y, final double scale, final boolean clamp, final double sigma )
+		{
+			this.pir = pir;
+			this.min = min;
+			this.max = max;
+			this.x = x;
+			this.y = y;
+			this.scale = scale;
+			this.clamp = clamp;
+			this.sigma = sigma;
+		}
+
+		/** Count one more tile that will use it. */
+		synchronized void use()
+		{
+			++uses;
+		}
+
+		synchronized PatchSource get()
+		{
+			if ( null == source )
+				source = new PatchSource( pir, min, max, x, y, scale, clamp, sigma );
+			return source;
+		}
+
+		/** Called once by each tile when done; the last one frees the pixels. */
+		synchronized void release()
+		{
+			if ( 0 == --uses )
+				source = null;
+		}
+	}
+
+	/**
+	 * The sigma of the Gaussian that avoids aliasing when the image of
+	 * {@code patch} is mapped at {@code scale}, as in
+	 * {@link ExportUnsignedByte.OriginalSource}; 0 when not downsampled.
+	 */
+	final static protected double smoothingSigma( final Patch patch, final double scale )
+	{
+		final double k = scale * Math.max( patch.getWidth() / patch.getOWidth(), patch.getHeight() / patch.getOHeight() );
+		return k < 1 ? 0.5 / k - 0.25 : 0;
+	}
+
+	/**
+	 * Like {@link #mapIntensities(PatchIntensityRange, double, double)} but
+	 * without rounding, and without clamping unless requested.
+	 */
+	final static protected float[] mapIntensitiesToFloat( final PatchIntensityRange pir, final ImageProcessor source, final double min, final double max, final boolean clamp )
+	{
+		final double a = 65535.0 / ( max - min );
+		final double pmin = pir.patch.getMin();
+		final float[] targetPixels = new float[ source.getWidth() * source.getHeight() ];
+		for ( int i = 0; i < targetPixels.length; ++i )
+		{
+			final double v = ( ( source.getf( i ) - pmin ) / pir.a - min ) * a;
+			targetPixels[ i ] = ( float )( clamp ? Math.max( 0, Math.min( 65535, v ) ) : v );
+		}
+		return targetPixels;
+	}
+
+	/**
+	 * The mesh of {@code patch} in the target whose origin is at world
+	 * coordinates {@code x, y}, scaled by {@code scale} unless NaN.
+	 */
+	final static protected CoordinateTransformMesh createMesh( final Patch patch, final double x, final double y, final double scale )
+	{
+		final CoordinateTransformList< CoordinateTransform > ctl = new CoordinateTransformList< CoordinateTransform >();
+		ctl.add( patch.getFullCoordinateTransform() );
+		final AffineModel2D t = new AffineModel2D();
+		if ( Double.isNaN( scale ) )
+			t.set( 1, 0, 0, 1, -x, -y );
+		else
+			t.set( scale, 0, 0, scale, -x * scale, -y * scale );
+		ctl.add( t );
+		return new CoordinateTransformMesh( ctl, patch.getMeshResolution(), patch.getOWidth(), patch.getOHeight() );
+	}
+
+	final static protected ShortProcessor toShortProcessor( final float[] pixels, final int width, final int height )
+	{
+		final short[] s = new short[ pixels.length ];
+		for ( int i = 0; i < s.length; ++i )
+			s[ i ] = ( short )Math.max( 0, Math.min( 65535, Math.round( pixels[ i ] ) ) );
+		return new ShortProcessor( width, height, s, null );
+	}
+
+	final static protected ByteProcessor toByteProcessor( final float[] pixels, final int width, final int height )
+	{
+		final byte[] b = new byte[ pixels.length ];
+		for ( int i = 0; i < b.length; ++i )
+			b[ i ] = ( byte )Math.max( 0, Math.min( 255, Math.round( pixels[ i ] ) ) );
+		return new ByteProcessor( width, height, b, null );
+	}
+
 	final static protected ShortProcessor mapIntensities( final PatchIntensityRange pir, final double min, final double max )
 	{
 		final double a = 65535.0 / ( max - min );
@@ -214,6 +391,8 @@ public class ExportUnsignedShort
 	/** Create constant size tiles that carpet the areas of the {@code layer} where there are images;
 	 * these tiles are returned in a lazy sequence of {@link Callable} objects that create a tripled
 	 * consisting of the {@link ShortProcessor} and the X and Y pixel coordinates of that tile.
+	 * The image of each patch is read and mapped once, shared by all the tiles that intersect it,
+	 * and released when the last of them is done.
 	 *
 	 * @param layer The layer to export images for
 	 * @param tileWidth The width of the tiles to export
@@ -232,6 +411,7 @@ public class ExportUnsignedShort
 
 		/* calculate intensity transfer */
 		final ArrayList< PatchIntensityRange > patchIntensityRanges = new ArrayList< PatchIntensityRange >();
+		final Rectangle[] bounds = new Rectangle[ patches.size() ];
 		double min_ = Double.MAX_VALUE;
 		double max_ = -Double.MAX_VALUE;
 		for ( final Displayable d : patches )
@@ -242,6 +422,7 @@ public class ExportUnsignedShort
 				min_ = pir.min;
 			if ( pir.max > max_ )
 				max_ = pir.max;
+			bounds[ patchIntensityRanges.size() ] = patch.getBoundingBox();
 			patchIntensityRanges.add( pir );
 		}
 
@@ -269,10 +450,25 @@ public class ExportUnsignedShort
 					            col = 0,
 					            x0 = box.x,
 					            y0 = box.y;
-					private final ArrayList< PatchIntensityRange > ps = new ArrayList< PatchIntensityRange >();
+					private final ArrayList< SharedSource > ps = new ArrayList< SharedSource >();
+					/* one per patch, in the frame of the box, shared by all tiles that intersect the patch */
+					private final SharedSource[] sources = new SharedSource[ bounds.length ];
 
 					{
-						// Constructor body. Prepare to be able to answer "hasNext()"
+						// Constructor body. Count the tiles that will use each patch, so that the last one releases it
+						for ( int i = 0; i < sources.length; ++i )
+							sources[ i ] = new SharedSource( patchIntensityRanges.get( i ), min, max, box.x, box.y, Double.NaN, true, 0 );
+						for ( int r = 0; r < nRows; ++r )
+						{
+							for ( int c = 0; c < nCols; ++c )
+							{
+								final Rectangle tileBounds = new Rectangle( box.x + c * tileWidth, box.y + r * tileHeight, tileWidth, tileHeight );
+								for ( int i = 0; i < sources.length; ++i )
+									if ( bounds[ i ].intersects( tileBounds ) )
+										sources[ i ].use();
+							}
+						}
+						// Prepare to be able to answer "hasNext()"
 						findNext();
 					}
 
@@ -290,11 +486,11 @@ public class ExportUnsignedShort
 							y0 = box.y + row * tileHeight;
 							final Rectangle tileBounds = new Rectangle( x0, y0, tileWidth, tileHeight );
 
-							for ( final PatchIntensityRange pir : patchIntensityRanges )
+							for ( int i = 0; i < sources.length; ++i )
 							{
-								if ( pir.patch.getBoundingBox().intersects( tileBounds ) )
+								if ( bounds[ i ].intersects( tileBounds ) )
 								{
-									ps.add( pir );
+									ps.add( sources[ i ] );
 								}
 							}
 
@@ -323,7 +519,7 @@ public class ExportUnsignedShort
 					public Callable<ExportedTile> next()
 					{
 						// Capture state locally
-						final ArrayList< PatchIntensityRange > pirs = new ArrayList< PatchIntensityRange >( ps );
+						final ArrayList< SharedSource > ss = new ArrayList< SharedSource >( ps );
 						final int x = x0;
 						final int y = y0;
 						// Advance
@@ -335,14 +531,24 @@ public class ExportUnsignedShort
 							@Override
 							public ExportedTile call()
 									throws Exception {
-								final ShortProcessor sp = new ShortProcessor( tileWidth, tileHeight );
-								sp.setMinAndMax( minI, maxI );
+								final float[] pixels = new float[ tileWidth * tileHeight ];
 
-								for ( final PatchIntensityRange pir : pirs )
+								try
+								{
+									for ( final SharedSource source : ss )
+									{
+										source.get().map( pixels, null, tileWidth, tileHeight, x - box.x, y - box.y );
+									}
+								}
+								finally
 								{
-									map( new PatchTransform( pir ), x, y, mapIntensities( pir, min, max ), sp );
+									for ( final SharedSource source : ss )
+										source.release();
 								}
 
+								final ShortProcessor sp = toShortProcessor( pixels, tileWidth, tileHeight );
+								sp.setMinAndMax( minI, maxI );
+
 								return new ExportedTile( sp, x, y, minI, maxI );
 							}
 						};
@@ -402,28 +608,30 @@ public class ExportUnsignedShort
 		final double minI = -min * 65535.0 / ( max - min );
 		final double maxI = ( 1.0 - min ) * 65535.0 / ( max - min );
 
-		final ShortProcessor sp;
-		
+		final int width, height;
 		if ( Double.isNaN( scale ) ) {
-			sp = new ShortProcessor( roi.width, roi.height );
+			width = roi.width;
+			height = roi.height;
 		} else {
-			sp = new ShortProcessor( (int)(roi.width * scale + 0.5), (int)(roi.height * scale + 0.5) );
+			width = (int)(roi.width * scale + 0.5);
+			height = (int)(roi.height * scale + 0.5);
 		}
 
-		sp.setMinAndMax( minI, maxI );
-		if (0 != backgroundValue) {
-			sp.setValue(backgroundValue);
-			sp.setRoi(0, 0, roi.width, roi.height);
-			sp.fill();
-		}
-		
-		final ByteProcessor alphaTarget = makeAlphaMask ? new ByteProcessor( sp.getWidth(), sp.getHeight() ) : null;
+		final float[] pixels = new float[ width * height ];
+		if ( 0 != backgroundValue )
+			Arrays.fill( pixels, ( float )backgroundValue );
+
+		final float[] alpha = makeAlphaMask ? new float[ pixels.length ] : null;
 
 		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			map( new PatchTransform( pir ), roi.x, roi.y, scale, mapIntensities( pir, min, max ), sp, alphaTarget );
+			new PatchSource( pir, min, max, roi.x, roi.y, scale, true ).map( pixels, alpha, width, height, 0, 0 );
 		}
 
+		final ShortProcessor sp = toShortProcessor( pixels, width, height );
+		sp.setMinAndMax( minI, maxI );
+		final ByteProcessor alphaTarget = makeAlphaMask ? toByteProcessor( alpha, width, height ) : null;
+
 		return new Pair< ShortProcessor, ByteProcessor >( sp, alphaTarget );
 	}
 
@@ -441,4 +649,301 @@ public class ExportUnsignedShort
 		}
 		return stack;
 	}
+
+	/**
+	 * Receives the pixels of each tile of
+	 * {@link ExportUnsignedShort#render(List, Rectangle, double, int, boolean, boolean, boolean, FloatTileSink, int)},
+	 * and their alpha when requested, from several threads at once.
+	 */
+	static protected interface FloatTileSink
+	{
+		public void put( int col, int row, float[] pixels, float[] alpha ) throws IOException;
+	}
+
+	/**
+	 * Render {@code patches}, bottom first, within {@code roi} at
+	 * {@code scale}, with their intensities mapped as in
+	 * {@link #makeFlatImage(List, Rectangle, double, double, boolean)}, in
+	 * square tiles that are handed to {@code sink} and then discarded, so
+	 * that the whole image is never in memory.  Tiles are rendered in
+	 * parallel, in rows from top to bottom.
+	 *
+	 * The intensities and the triangles of the mesh of each {@link Patch}
+	 * are computed once and shared by all tiles that it intersects, and
+	 * released when the last of them is done.
+	 *
+	 * @param side the side of the tiles
+	 * @param clamp whether to clamp intensities to [0,65535]
+	 * @param smooth whether to Gaussian-smooth images that are downsampled
+	 * @param withAlpha whether to hand the alpha of each tile to {@code sink}
+	 */
+	final static protected void render(
+			final List< Patch > patches,
+			final Rectangle roi,
+			final double scale,
+			final int side,
+			final boolean clamp,
+			final boolean smooth,
+			final boolean withAlpha,
+			final FloatTileSink sink,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final int width = ( int )( roi.width * scale );
+		final int height = ( int )( roi.height * scale );
+		final int nCols = ( width + side - 1 ) / side;
+		final int nRows = ( height + side - 1 ) / side;
+
+		final ExecutorService exec = Utils.newFixedThreadPool( Math.max( 1, numThreads ), "ExportUnsignedShort" );
+		try
+		{
+			/* calculate intensity transfer, reading the images in parallel */
+			final ArrayList< Future< PatchIntensityRange > > pirFutures = new ArrayList< Future< PatchIntensityRange > >( patches.size() );
+			for ( final Patch patch : patches )
+			{
+				pirFutures.add( exec.submit( new Callable< PatchIntensityRange >()
+				{
+					@Override
+					public PatchIntensityRange call()
+					{
+						return new PatchIntensityRange( patch );
+					}
+				} ) );
+			}
+			final PatchIntensityRange[] pirs = new PatchIntensityRange[ patches.size() ];
+			final Rectangle[] bounds = new Rectangle[ patches.size() ];
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for ( int i = 0; i < pirs.length; ++i )
+			{
+				pirs[ i ] = pirFutures.get( i ).get();
+				if ( pirs[ i ].min < min )
+					min = pirs[ i ].min;
+				if ( pirs[ i ].max > max )
+					max = pirs[ i ].max;
+				bounds[ i ] = pirs[ i ].patch.getBoundingBox();
+			}
+			pirFutures.clear();
+
+			/* the patches of each tile, bottom first, each counting the tiles that use it */
+			final SharedSource[] sources = new SharedSource[ pirs.length ];
+			for ( int i = 0; i < pirs.length; ++i )
+				sources[ i ] = new SharedSource( pirs[ i ], min, max, roi.x, roi.y, scale, clamp, smooth ? smoothingSigma( pirs[ i ].patch, scale ) : 0 );
+			final ArrayList< List< SharedSource > > tiles = new ArrayList< List< SharedSource > >( nCols * nRows );
+			for ( int row = 0; row < nRows; ++row )
+			{
+				for ( int col = 0; col < nCols; ++col )
+				{
+					/* the world box of the tile, with a margin for interpolation */
+					final Rectangle box = new Rectangle(
+							( int )Math.floor( roi.x + ( col * side - 1 ) / scale ),
+							( int )Math.floor( roi.y + ( row * side - 1 ) / scale ),
+							( int )Math.ceil( ( side + 2 ) / scale ) + 1,
+							( int )Math.ceil( ( side + 2 ) / scale ) + 1 );
+					final ArrayList< SharedSource > ss = new ArrayList< SharedSource >();
+					for ( int i = 0; i < sources.length; ++i )
+					{
+						if ( bounds[ i ].intersects( box ) )
+						{
+							sources[ i ].use();
+							ss.add( sources[ i ] );
+						}
+					}
+					tiles.add( ss );
+				}
+			}
+
+			/* bound the number of tiles, and therefore of patch images, in memory */
+			final Semaphore inFlight = new Semaphore( 2 * Math.max( 1, numThreads ) );
+			final LinkedList< Future< ? > > fus = new LinkedList< Future< ? > >();
+			final AtomicInteger done = new AtomicInteger( 0 );
+			for ( int i = 0; i < tiles.size(); ++i )
+			{
+				final int col = i % nCols;
+				final int row = i / nCols;
+				final List< SharedSource > ss = tiles.get( i );
+				/* only the tile's task refers to its sources from now on */
+				tiles.set( i, null );
+				inFlight.acquire();
+				for ( final Iterator< Future< ? > > it = fus.iterator(); it.hasNext(); )
+				{
+					final Future< ? > fu = it.next();
+					if ( fu.isDone() )
+					{
+						fu.get();
+						it.remove();
+					}
+				}
+				fus.add( exec.submit( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						try
+						{
+							final float[] pixels = new float[ side * side ];
+							final float[] alpha = withAlpha ? new float[ pixels.length ] : null;
+							for ( final SharedSource source : ss )
+							{
+								if ( Thread.currentThread().isInterrupted() )
+									return null;
+								source.get().map( pixels, alpha, side, side, col * side, row * side );
+							}
+							sink.put( col, row, pixels, alpha );
+							Utils.showProgress( done.incrementAndGet() / ( double )( nCols * nRows ) );
+							return null;
+						}
+						finally
+						{
+							for ( final SharedSource source : ss )
+								source.release();
+							inFlight.release();
+						}
+					}
+				} ) );
+			}
+			for ( final Future< ? > fu : fus )
+				fu.get();
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Render the visible {@link Patch Patches} of {@code layer} within
+	 * {@code roi} in tiles, as in
+	 * {@link #render(List, Rectangle, double, int, boolean, boolean, boolean, FloatTileSink, int)}.
+	 *
+	 * @param type either {@link ImagePlus#GRAY16}, or {@link ImagePlus#GRAY32}
+	 *   for the same intensities without rounding and clamping
+	 * @param scale up to 1
+	 * @param side the side of the tiles, a multiple of 16
+	 */
+	final static public void exportTiled(
+			final Layer layer,
+			final Rectangle roi,
+			final double scale,
+			final int type,
+			final int side,
+			final TiledFlatImage.TileSink sink,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		if ( ImagePlus.GRAY16 != type && ImagePlus.GRAY32 != type )
+			throw new IllegalArgumentException( "Can only export 16-bit or 32-bit images." );
+		if ( side <= 0 || 0 != side % 16 )
+			throw new IllegalArgumentException( "The side of the tiles must be a positive multiple of 16." );
+
+		final boolean gray16 = ImagePlus.GRAY16 == type;
+		render( layer.getPatches( true ), roi, Math.min( 1, scale ), side, gray16, false, false, new FloatTileSink()
+		{
+			@Override
+			public void put( final int col, final int row, final float[] pixels, final float[] alpha ) throws IOException
+			{
+				sink.put( col, row, gray16 ? toShortProcessor( pixels, side, side ) : new FloatProcessor( side, side, pixels, null ) );
+			}
+		}, numThreads );
+	}
+
+	/**
+	 * A flat image of {@code patches} within {@code roi} at {@code scale},
+	 * and its alpha, with the intensities of
+	 * {@link #makeFlatImage(List, Rectangle, double, double, boolean)}
+	 * without rounding.  Rendered in tiles, in parallel, as in
+	 * {@link #render(List, Rectangle, double, int, boolean, boolean, boolean, FloatTileSink, int)};
+	 * images that are downsampled are Gaussian-smoothed first.
+	 */
+	final static public Pair< FloatProcessor, FloatProcessor > makeFlatFloatImage(
+			final List< Patch > patches,
+			final Rectangle roi,
+			final double scale,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final int width = ( int )( roi.width * scale );
+		final int height = ( int )( roi.height * scale );
+		final int side = 512;
+		final float[] pixels = new float[ width * height ];
+		final float[] alpha = new float[ pixels.length ];
+		render( patches, roi, scale, side, true, true, true, new FloatTileSink()
+		{
+			@Override
+			public void put( final int col, final int row, final float[] tile, final float[] tileAlpha )
+			{
+				final int x = col * side;
+				final int w = Math.min( side, width - x );
+				for ( int y = row * side, yEnd = Math.min( height, y + side ), k = 0; y < yEnd; ++y, k += side )
+				{
+					System.arraycopy( tile, k, pixels, y * width + x, w );
+					System.arraycopy( tileAlpha, k, alpha, y * width + x, w );
+				}
+			}
+		}, numThreads );
+		return new Pair< FloatProcessor, FloatProcessor >(
+				new FloatProcessor( width, height, pixels, null ),
+				new FloatProcessor( width, height, alpha, null ) );
+	}
+
+	/**
+	 * Save as an uncompressed tiled TIFF file, or BigTIFF when larger than
+	 * 4 GB.  Returns false when it failed, and deletes the file.
+	 *
+	 * @see #exportTiled(Layer, Rectangle, double, int, int, TiledFlatImage.TileSink, int)
+	 */
+	final static public boolean saveAsTiledTIFF( final Layer layer, final Rectangle roi, final double scale, final int type, final String path )
+	{
+		final double s = Math.min( 1, scale );
+		TiledTIFFWriter writer = null;
+		try
+		{
+			writer = new TiledTIFFWriter( path, type, ( int )( roi.width * s ), ( int )( roi.height * s ), 512, 512 );
+			exportTiled( layer, roi, s, type, 512, TiledFlatImage.makeTIFFSink( writer ), Runtime.getRuntime().availableProcessors() );
+			writer.close();
+			return true;
+		}
+		catch ( final Throwable t )
+		{
+			IJError.print( t );
+			if ( null != writer )
+			{
+				try { writer.abort(); }
+				catch ( final IOException ioe ) { IJError.print( ioe ); }
+			}
+			new File( path ).delete();
+		}
+		return false;
+	}
+
+	/**
+	 * Save the pixels only, row after row, in big endian byte order, as
+	 * ImageJ's "File - Import - Raw" reads them.  Returns false when it
+	 * failed, and deletes the file.
+	 *
+	 * @see #exportTiled(Layer, Rectangle, double, int, int, TiledFlatImage.TileSink, int)
+	 */
+	final static public boolean saveAsRaw( final Layer layer, final Rectangle roi, final double scale, final int type, final String path )
+	{
+		final double s = Math.min( 1, scale );
+		RandomAccessFile ra = null;
+		try
+		{
+			final File f = new File( path );
+			if ( f.exists() )
+				f.delete();
+			ra = new RandomAccessFile( f, "rw" );
+			exportTiled( layer, roi, s, type, 512, TiledFlatImage.makeRawSink( ra, type, ( int )( roi.width * s ), ( int )( roi.height * s ), 512 ), Runtime.getRuntime().availableProcessors() );
+			ra.close();
+			return true;
+		}
+		catch ( final Throwable t )
+		{
+			IJError.print( t );
+			if ( null != ra )
+			{
+				try { ra.close(); }
+				catch ( final IOException ioe ) { IJError.print( ioe ); }
+			}
+			new File( path ).delete();
+		}
+		return false;
+	}
 }
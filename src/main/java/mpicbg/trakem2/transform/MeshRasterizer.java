@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.models.PointMatch;
+import mpicbg.models.TransformMesh;
+
+/**
+ * Maps float images through a {@link TransformMesh} into float targets, on
+ * primitive arrays.
+ *
+ * The inverse affine of each triangle, from target to source, and its bounds
+ * in the target are computed once, so that a single instance can map its
+ * source into any number of tiles of the target.  Each triangle is scanned
+ * row by row over the span that it covers, and the source coordinates are
+ * advanced by the inverse affine's increment instead of testing and
+ * transforming every pixel of its bounding box as
+ * {@link mpicbg.ij.TransformMeshMapping} does.  Pixels where all four
+ * neighbours in the source mask are transparent are skipped before reading
+ * the source.
+ *
+ * Spans are half open on the right, and rows on the bottom, so that pixels on
+ * edges shared by two triangles are written once.
+ */
+public class MeshRasterizer
+{
+	final protected int n;
+
+	/* target vertices x0, y0, x1, y1, x2, y2 of each triangle */
+	final protected double[] vertices;
+
+	/* inverse affine m00, m01, m02, m10, m11, m12 of each triangle */
+	final protected double[] inverses;
+
+	/* target bounds of all triangles */
+	final protected double minX, minY, maxX, maxY;
+
+	public MeshRasterizer( final TransformMesh mesh )
+	{
+		final ArrayList< List< PointMatch > > triangles = new ArrayList< List< PointMatch > >( mesh.getAV().values() );
+		n = triangles.size();
+		vertices = new double[ 6 * n ];
+		inverses = new double[ 6 * n ];
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for ( int t = 0; t < n; ++t )
+		{
+			final List< PointMatch > pm = triangles.get( t );
+			final double[] s = new double[ 6 ];
+			for ( int k = 0; k < 3; ++k )
+			{
+				final double[] l = pm.get( k ).getP1().getL();
+				final double[] w = pm.get( k ).getP2().getW();
+				s[ 2 * k ] = l[ 0 ];
+				s[ 2 * k + 1 ] = l[ 1 ];
+				vertices[ 6 * t + 2 * k ] = w[ 0 ];
+				vertices[ 6 * t + 2 * k + 1 ] = w[ 1 ];
+				x0 = Math.min( x0, w[ 0 ] );
+				y0 = Math.min( y0, w[ 1 ] );
+				x1 = Math.max( x1, w[ 0 ] );
+				y1 = Math.max( y1, w[ 1 ] );
+			}
+			invert( vertices, 6 * t, s, inverses, 6 * t );
+		}
+		minX = x0;
+		minY = y0;
+		maxX = x1;
+		maxY = y1;
+	}
+
+	/**
+	 * The affine that maps the target triangle at {@code v[ i ]} onto the
+	 * source triangle {@code s}.  Degenerate triangles get NaNs and are never
+	 * scanned.
+	 */
+	final static protected void invert( final double[] v, final int i, final double[] s, final double[] m, final int j )
+	{
+		final double ax = v[ i + 2 ] - v[ i ], ay = v[ i + 3 ] - v[ i + 1 ];
+		final double bx = v[ i + 4 ] - v[ i ], by = v[ i + 5 ] - v[ i + 1 ];
+		final double det = ax * by - ay * bx;
+		final double sax = s[ 2 ] - s[ 0 ], say = s[ 3 ] - s[ 1 ];
+		final double sbx = s[ 4 ] - s[ 0 ], sby = s[ 5 ] - s[ 1 ];
+		/* solve [sa sb] = M [a b] */
+		final double m00 = ( sax * by - sbx * ay ) / det;
+		final double m01 = ( sbx * ax - sax * bx ) / det;
+		final double m10 = ( say * by - sby * ay ) / det;
+		final double m11 = ( sby * ax - say * bx ) / det;
+		m[ j ] = m00;
+		m[ j + 1 ] = m01;
+		m[ j + 2 ] = s[ 0 ] - m00 * v[ i ] - m01 * v[ i + 1 ];
+		m[ j + 3 ] = m10;
+		m[ j + 4 ] = m11;
+		m[ j + 5 ] = s[ 1 ] - m10 * v[ i ] - m11 * v[ i + 1 ];
+	}
+
+	/**
+	 * Whether the target box {@code ox, oy, width, height} intersects the
+	 * bounds of the mesh.
+	 */
+	public boolean intersects( final int ox, final int oy, final int width, final int height )
+	{
+		return maxX >= ox && maxY >= oy && minX < ox + width && minY < oy + height;
+	}
+
+	/**
+	 * Map {@code source} into the target tile whose top left pixel is at
+	 * {@code ox, oy} of the mesh's target space, with bilinear
+	 * interpolation.  Each target pixel is blended with the source by the
+	 * interpolated {@code mask} value, as {@code t + a ( s - t )}.
+	 *
+	 * @param source pixels of a {@code sw * sh} image
+	 * @param mask alpha of the source, in [0,255]; null for opaque
+	 * @param target pixels of a {@code tw * th} tile
+	 * @param alphaTarget receives the alpha of the composite, in [0,255]; may be null
+	 */
+	public void map(
+			final float[] source,
+			final byte[] mask,
+			final int sw,
+			final int sh,
+			final float[] target,
+			final float[] alphaTarget,
+			final int tw,
+			final int th,
+			final int ox,
+			final int oy )
+	{
+		final double sxMax = sw - 1, syMax = sh - 1;
+		for ( int t = 0; t < n; ++t )
+		{
+			final int i = 6 * t;
+			final double ax = vertices[ i ] - ox, ay = vertices[ i + 1 ] - oy;
+			final double bx = vertices[ i + 2 ] - ox, by = vertices[ i + 3 ] - oy;
+			final double cx = vertices[ i + 4 ] - ox, cy = vertices[ i + 5 ] - oy;
+
+			final int yStart = Math.max( 0, ( int )Math.ceil( Math.min( ay, Math.min( by, cy ) ) ) );
+			final int yEnd = Math.min( th, ( int )Math.ceil( Math.max( ay, Math.max( by, cy ) ) ) );
+			if ( yStart >= yEnd )
+				continue;
+
+			final double m00 = inverses[ i ], m01 = inverses[ i + 1 ], m02 = inverses[ i + 2 ];
+			final double m10 = inverses[ i + 3 ], m11 = inverses[ i + 4 ], m12 = inverses[ i + 5 ];
+			if ( Double.isNaN( m00 + m01 + m10 + m11 ) || Double.isInfinite( m00 + m01 + m10 + m11 ) )
+				continue;
+
+			for ( int y = yStart; y < yEnd; ++y )
+			{
+				/* span of the triangle on this row */
+				double xl = Double.MAX_VALUE, xr = -Double.MAX_VALUE;
+				if ( ( ay <= y ) != ( by <= y ) )
+				{
+					final double x = ax + ( y - ay ) * ( bx - ax ) / ( by - ay );
+					xl = Math.min( xl, x );
+					xr = Math.max( xr, x );
+				}
+				if ( ( by <= y ) != ( cy <= y ) )
+				{
+					final double x = bx + ( y - by ) * ( cx - bx ) / ( cy - by );
+					xl = Math.min( xl, x );
+					xr = Math.max( xr, x );
+				}
+				if ( ( cy <= y ) != ( ay <= y ) )
+				{
+					final double x = cx + ( y - cy ) * ( ax - cx ) / ( ay - cy );
+					xl = Math.min( xl, x );
+					xr = Math.max( xr, x );
+				}
+				final int xStart = Math.max( 0, ( int )Math.ceil( xl ) );
+				final int xEnd = Math.min( tw, ( int )Math.ceil( xr ) );
+				if ( xStart >= xEnd )
+					continue;
+
+				/* source coordinates of the first pixel, in world coordinates of the mesh */
+				final double wy = y + oy;
+				double sx = m00 * ( xStart + ox ) + m01 * wy + m02;
+				double sy = m10 * ( xStart + ox ) + m11 * wy + m12;
+				for ( int x = xStart, k = y * tw + xStart; x < xEnd; ++x, ++k, sx += m00, sy += m10 )
+				{
+					if ( sx < -0.5 || sy < -0.5 || sx > sxMax + 0.5 || sy > syMax + 0.5 )
+						continue;
+					/* clamp to the edge pixels */
+					final double px = sx < 0 ? 0 : sx > sxMax ? sxMax : sx;
+					final double py = sy < 0 ? 0 : sy > syMax ? syMax : sy;
+					final int x0 = ( int )px, y0 = ( int )py;
+					final int x1 = x0 < sxMax ? x0 + 1 : x0, y1 = y0 < syMax ? y0 + 1 : y0;
+					final double dx = px - x0, dy = py - y0;
+					final int i00 = y0 * sw + x0, i01 = y0 * sw + x1, i10 = y1 * sw + x0, i11 = y1 * sw + x1;
+
+					double a = 1;
+					if ( null != mask )
+					{
+						final int a00 = mask[ i00 ] & 0xff, a01 = mask[ i01 ] & 0xff, a10 = mask[ i10 ] & 0xff, a11 = mask[ i11 ] & 0xff;
+						if ( 0 == ( a00 | a01 | a10 | a11 ) )
+							continue;
+						a = ( ( a00 + dx * ( a01 - a00 ) ) * ( 1 - dy ) + ( a10 + dx * ( a11 - a10 ) ) * dy ) / 255.0;
+					}
+
+					final double v0 = source[ i00 ] + dx * ( source[ i01 ] - source[ i00 ] );
+					final double v1 = source[ i10 ] + dx * ( source[ i11 ] - source[ i10 ] );
+					final double v = v0 + dy * ( v1 - v0 );
+
+					if ( a >= 1 )
+					{
+						target[ k ] = ( float )v;
+						if ( null != alphaTarget )
+							alphaTarget[ k ] = 255;
+					}
+					else
+					{
+						target[ k ] += ( float )( a * ( v - target[ k ] ) );
+						if ( null != alphaTarget )
+							alphaTarget[ k ] += ( float )( a * ( 255 - alphaTarget[ k ] ) );
+					}
+				}
+			}
+		}
+	}
+}
@@ -26,11 +26,11 @@ import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ini.trakem2.parallel.ExecutorProvider;
 
 import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.ij.integral.BlockStatistics;
@@ -154,7 +154,7 @@ public class RobustNormalizeLocalContrast
 		final int w = mean.getWidth();
 		final int h = mean.getHeight();
 		
-		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		final ExecutorService exec = ExecutorProvider.getExecutorService( 1 );
 		final ArrayList< Future< ? > > tasks = new ArrayList< Future< ? > >();
 		
 		/* the big inside */
@@ -24,12 +24,12 @@
  */
 package org.janelia.intensity;
 
-import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
+import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -50,8 +50,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -79,42 +80,67 @@ import net.imglib2.util.ValuePair;
  */
 public class MatchIntensities implements TPlugIn
 {
-	final private class Matcher implements Runnable
+	/**
+	 * Matches between coefficient tile i of one patch and coefficient tile j
+	 * of another, as indices into the tiles of all patches.
+	 */
+	final static private class Connection
+	{
+		final private int i, j;
+		final private ArrayList< PointMatch > matches;
+
+		Connection( final int i, final int j, final ArrayList< PointMatch > matches )
+		{
+			this.i = i;
+			this.j = j;
+			this.matches = matches;
+		}
+	}
+
+	/**
+	 * Collects the {@link Connection}s of a pair of patches without touching
+	 * any shared state, so that any number can run at once.
+	 */
+	final static private class Matcher implements Callable< ArrayList< Connection > >
 	{
 		final private Rectangle roi;
 		final private ValuePair< Patch, Patch > patchPair;
-		final private HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles;
+		final private int firstTile1, firstTile2;
 		final private PointMatchFilter filter;
 		final private double scale;
 		final private int numCoefficients;
 
+		/**
+		 * @param firstTile1 index of the first coefficient tile of the first patch
+		 * @param firstTile2 index of the first coefficient tile of the second patch
+		 * @param filter used only by this {@link Matcher}
+		 */
 		public Matcher(
 				final Rectangle roi,
 				final ValuePair< Patch, Patch > patchPair,
-				final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
+				final int firstTile1,
+				final int firstTile2,
 				final PointMatchFilter filter,
 				final double scale,
 				final int numCoefficients )
 		{
 			this.roi = roi;
 			this.patchPair = patchPair;
-			this.coefficientsTiles = coefficientsTiles;
+			this.firstTile1 = firstTile1;
+			this.firstTile2 = firstTile2;
 			this.filter = filter;
 			this.scale = scale;
 			this.numCoefficients = numCoefficients;
 		}
 
 		@Override
-		public void run()
+		public ArrayList< Connection > call()
 		{
 			final Patch p1 = patchPair.getA();
 			final Patch p2 = patchPair.getB();
 
 			final Rectangle box1 = p1.getBoundingBox().intersection( roi );
 
-			/* get the coefficient tiles */
-			final ArrayList< Tile< ? > > p1CoefficientsTiles = coefficientsTiles.get( p1 );
-
 			/* render intersection */
 			final Rectangle box2 = p2.getBoundingBox();
 			final Rectangle box = box1.intersection( box2 );
@@ -185,29 +211,20 @@ public class MatchIntensities implements TPlugIn
 				candidates.addAll( inliers );
 			}
 
-			/* get the coefficient tiles of p2 */
-			final ArrayList< Tile< ? > > p2CoefficientsTiles = coefficientsTiles.get( p2 );
-
 			/* connect tiles across patches */
+			final ArrayList< Connection > connections = new ArrayList< Connection >();
 			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
 			{
-				final Tile< ? > t1 = p1CoefficientsTiles.get( i );
 				ra.setPosition( i, 0 );
 				for ( int j = 0; j < numCoefficients * numCoefficients; ++j )
 				{
 					ra.setPosition( j, 1 );
 					final ArrayList< PointMatch > matches = ra.get();
 					if ( matches.size() > 0 )
-					{
-						final Tile< ? > t2 = p2CoefficientsTiles.get( j );
-						synchronized ( MatchIntensities.this )
-						{
-							t1.connect( t2, ra.get() );
-							IJ.log( "Connected patch " + p1.getId() + ", coefficient " + i + "  +  patch " + p2.getId() + ", coefficient " + j + " by " + matches.size() + " samples." );
-						}
-					}
+						connections.add( new Connection( firstTile1 + i, firstTile2 + j, matches ) );
 				}
 			}
+			return connections;
 		}
 	}
 
@@ -220,6 +237,9 @@ public class MatchIntensities implements TPlugIn
 	static protected int radius = 5;
 	static protected int iterations = 2000;
 	static protected double scale = -1;
+	static protected int solver = 0;
+
+	final static protected String[] SOLVERS = new String[]{ "iterative tile optimizer", "sparse least squares" };
 
 	private Layer currentLayer( final Object... params )
 	{
@@ -316,12 +336,43 @@ public class MatchIntensities implements TPlugIn
 		return map;
 	}
 
-	final static protected void identityConnect( final Tile< ? > t1, final Tile< ? > t2, final double weight )
+	final static protected ArrayList< PointMatch > identityMatches()
 	{
 		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
 		matches.add( new PointMatch( new Point( new double[] { 0 } ), new Point( new double[] { 0 } ) ) );
 		matches.add( new PointMatch( new Point( new double[] { 1 } ), new Point( new double[] { 1 } ) ) );
-		t1.connect( t2, matches );
+		return matches;
+	}
+
+	final static protected void identityConnect( final Tile< ? > t1, final Tile< ? > t2, final double weight )
+	{
+		t1.connect( t2, identityMatches() );
+	}
+
+	/**
+	 * @return the pairs of neighboring coefficients within a patch, first
+	 * along columns and then along rows
+	 */
+	final static protected ArrayList< int[] > coefficientNeighbors( final int numCoefficients )
+	{
+		final ArrayList< int[] > pairs = new ArrayList< int[] >();
+		for ( int y = 1; y < numCoefficients; ++y )
+		{
+			final int yr = numCoefficients * y;
+			final int yr1 = yr - numCoefficients;
+			for ( int x = 0; x < numCoefficients; ++x )
+				pairs.add( new int[]{ yr1 + x, yr + x } );
+		}
+		for ( int y = 0; y < numCoefficients; ++y )
+		{
+			final int yr = numCoefficients * y;
+			for ( int x = 1; x < numCoefficients; ++x )
+			{
+				final int yrx = yr + x;
+				pairs.add( new int[]{ yrx, yrx - 1 } );
+			}
+		}
+		return pairs;
 	}
 
 	@Override
@@ -338,6 +389,7 @@ public class MatchIntensities implements TPlugIn
         gd.addNumericField( "coefficient resolution : ", numCoefficients, 0, 6, "" );
         gd.addNumericField( "test_maximally :", radius, 0, 6, "layers" );
         gd.addMessage( "Optimizer :" );
+        gd.addChoice( "solver :", SOLVERS, SOLVERS[ solver ] );
         gd.addNumericField( "iterations :", iterations, 0, 6, "" );
         gd.addNumericField( "scale_regularization :", lambda1, 2, 6, "" );
         gd.addNumericField( "translation_regularization :", lambda2, 2, 6, "" );
@@ -356,6 +408,7 @@ public class MatchIntensities implements TPlugIn
         lambda1 = gd.getNextNumber();
         lambda2 = gd.getNextNumber();
         neighborWeight = gd.getNextNumber();
+        solver = gd.getNextChoiceIndex();
 
 		try
 		{
@@ -383,6 +436,8 @@ public class MatchIntensities implements TPlugIn
 
 
     /**
+     * Match intensities with the solver chosen in the dialog.
+     *
      * @param layers
      * @param radius
      * @param scale
@@ -402,34 +457,62 @@ public class MatchIntensities implements TPlugIn
 			final double neighborWeight,
 			final Rectangle roi ) throws InterruptedException, ExecutionException
 	{
+		run( layers, radius, scale, numCoefficients, lambda1, lambda2, neighborWeight, roi, solver == 1 );
+	}
+
+	final static private long logTime( final String phase, final long start )
+	{
+		final long now = System.currentTimeMillis();
+		Utils.log( "  " + phase + " took " + ( now - start ) + " ms" );
+		return now;
+	}
+
+    /**
+     * @param layers
+     * @param radius
+     * @param scale
+     * @param numCoefficients
+     * @param lambda1
+     * @param lambda2
+     * @param neighborWeight
+     * @param roi
+     * @param sparse whether to solve with a {@link SparseAffineSolver} or with the iterative tile optimizer
+     */
+	public < M extends Model< M > & Affine1D< M > > void run(
+			final List< Layer > layers,
+			final int radius,
+			final double scale,
+			final int numCoefficients,
+			final double lambda1,
+			final double lambda2,
+			final double neighborWeight,
+			final Rectangle roi,
+			final boolean sparse ) throws InterruptedException, ExecutionException
+	{
+		final long start = System.currentTimeMillis();
+		long time = start;
+
 		final int firstLayerIndex = layerset.getLayerIndex( layers.get( 0 ).getId() );
 		final int lastLayerIndex = layerset.getLayerIndex( layers.get( layers.size() - 1 ).getId() );
 
-		// final PointMatchFilter filter = new RansacRegressionFilter();
-		final PointMatchFilter filter = new RansacRegressionReduceFilter();
-
 		/* collect patches */
 		Utils.log( "Collecting patches ... " );
 		final ArrayList< Patch > patches = new ArrayList< Patch >();
 		for ( final Layer layer : layers )
 			patches.addAll( ( Collection )layer.getDisplayables( Patch.class, roi ) );
 
+		/* the coefficient tiles of patch k are numbered from k * numCoefficients^2 on */
+		final int numCoefficients2 = numCoefficients * numCoefficients;
+		final int numTiles = patches.size() * numCoefficients2;
+		final HashMap< Patch, Integer > firstTiles = new HashMap< Patch, Integer >();
+		for ( int k = 0; k < patches.size(); ++k )
+			firstTiles.put( patches.get( k ), k * numCoefficients2 );
+
 		/* delete existing intensity coefficients */
 		Utils.log( "Clearing existing intensity maps ... " );
 		for ( final Patch p : patches )
 			p.clearIntensityMap();
 
-		/* generate coefficient tiles for all patches
-		 * TODO consider offering alternative models */
-		final HashMap< Patch, ArrayList< Tile< ? extends M > > > coefficientsTiles =
-				( HashMap ) generateCoefficientsTiles(
-						patches,
-						new InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel >(
-								new InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >(
-										new AffineModel1D(), new TranslationModel1D(), lambda1 ),
-								new IdentityModel(), lambda2 ),
-						numCoefficients * numCoefficients );
-
 		/* completed patches */
 		final HashSet< Patch > completedPatches = new HashSet< Patch >();
 
@@ -463,9 +546,14 @@ public class MatchIntensities implements TPlugIn
 				if ( completedPatches.contains( p2 ) )
 					continue;
 
+				/* outside of the roi or of the layer range */
+				if ( !firstTiles.containsKey( p2 ) )
+					continue;
+
 				patchPairs.add( new ValuePair< Patch, Patch >( p1, p2 ) );
 			}
 		}
+		time = logTime( "Collecting " + patches.size() + " patches and " + patchPairs.size() + " pairs", time );
 
 		final int numThreads = Integer.parseInt(
 				layerset.getProperty(
@@ -475,121 +563,180 @@ public class MatchIntensities implements TPlugIn
 		Utils.log( "Matching intensities using " + numThreads + " threads ... " );
 
 		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
-		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
-		for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
+		try
 		{
-			futures.add(
-					exec.submit(
-							new Matcher(
-									roi,
-									patchPair,
-									( HashMap )coefficientsTiles,
-									filter,
-									scale,
-									numCoefficients ) ) );
-		}
+			final ArrayList< int[] > neighbors = coefficientNeighbors( numCoefficients );
 
-		for ( final Future< ? > future : futures )
-			future.get();
+			/* either the sums of the sparse system, or the coefficient tiles, to take the connections as they come */
+			final SparseAffineSolver affineSolver;
+			final ArrayList< Tile< ? extends M > > tiles;
+			if ( sparse )
+			{
+				affineSolver = new SparseAffineSolver( numTiles );
+				tiles = null;
+			}
+			else
+			{
+				affineSolver = null;
+				/* generate coefficient tiles for all patches
+				 * TODO consider offering alternative models */
+				final HashMap< Patch, ArrayList< Tile< ? extends M > > > coefficientsTiles =
+						( HashMap ) generateCoefficientsTiles(
+								patches,
+								new InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel >(
+										new InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >(
+												new AffineModel1D(), new TranslationModel1D(), lambda1 ),
+										new IdentityModel(), lambda2 ),
+								numCoefficients2 );
+				tiles = new ArrayList< Tile< ? extends M > >( numTiles );
+				for ( final Patch p : patches )
+					tiles.addAll( coefficientsTiles.get( p ) );
+			}
 
-		/* connect tiles within patches */
-		Utils.log( "Connecting coefficient tiles in the same patch  ... " );
-		for ( final Patch p1 : completedPatches )
-		{
-			/* get the coefficient tiles */
-			final ArrayList< Tile< ? extends M > > p1CoefficientsTiles = coefficientsTiles.get( p1 );
+			/* each matcher returns its connections, with a filter of its own */
+			final ExecutorCompletionService< ArrayList< Connection > > matchers = new ExecutorCompletionService< ArrayList< Connection > >( exec );
+			for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
+			{
+				matchers.submit(
+						new Matcher(
+								roi,
+								patchPair,
+								firstTiles.get( patchPair.getA() ),
+								firstTiles.get( patchPair.getB() ),
+								new RansacRegressionReduceFilter(),
+								scale,
+								numCoefficients ) );
+			}
 
-			for ( int y = 1; y < numCoefficients; ++y )
+			/* in the order they complete: the sparse solver reduces the matches to sums right away */
+			int numConnections = 0;
+			for ( int k = 0; k < patchPairs.size(); ++k )
 			{
-				final int yr = numCoefficients * y;
-				final int yr1 = yr - numCoefficients;
-				for ( int x = 0; x < numCoefficients; ++x )
+				for ( final Connection c : matchers.take().get() )
 				{
-					identityConnect( p1CoefficientsTiles.get( yr1 + x ), p1CoefficientsTiles.get( yr + x ), neighborWeight );
+					if ( sparse )
+						affineSolver.addMatches( c.i, c.j, c.matches );
+					else
+						tiles.get( c.i ).connect( tiles.get( c.j ), c.matches );
+					++numConnections;
 				}
 			}
-			for ( int y = 0; y < numCoefficients; ++y )
+			time = logTime( "Matching " + numConnections + " pairs of coefficients", time );
+
+			/* { a, b } of each coefficient tile */
+			final double[] ab;
+
+			if ( sparse )
 			{
-				final int yr = numCoefficients * y;
-				for ( int x = 1; x < numCoefficients; ++x )
+				Utils.log( "Solving ... " );
+
+				/* connect tiles within patches */
+				final ArrayList< PointMatch > identity = identityMatches();
+				for ( int first = 0; first < numTiles; first += numCoefficients2 )
+					for ( final int[] pair : neighbors )
+						affineSolver.addMatches( first + pair[ 0 ], first + pair[ 1 ], identity );
+
+				ab = affineSolver.solve( lambda1, lambda2, iterations, 1e-8, exec, numThreads );
+				time = logTime( "Solving " + numTiles + " coefficient tiles in " + affineSolver.getIterations() + " iterations, to a residual of " + affineSolver.getResidual(), time );
+			}
+			else
+			{
+				/* connect tiles within patches */
+				Utils.log( "Connecting coefficient tiles in the same patch  ... " );
+				for ( int first = 0; first < numTiles; first += numCoefficients2 )
+					for ( final int[] pair : neighbors )
+						identityConnect( tiles.get( first + pair[ 0 ] ), tiles.get( first + pair[ 1 ] ), neighborWeight );
+
+				/* optimize */
+				Utils.log( "Optimizing ... " );
+				final TileConfiguration tc = new TileConfiguration();
+				tc.addTiles( tiles );
+
+				try
 				{
-					final int yrx = yr + x;
-					identityConnect( p1CoefficientsTiles.get( yrx ), p1CoefficientsTiles.get( yrx - 1 ), neighborWeight );
+					tc.optimize( 0.01f, iterations, iterations, 0.75f );
+				}
+				catch ( final NotEnoughDataPointsException e )
+				{
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				catch ( final IllDefinedDataPointsException e )
+				{
+					// TODO Auto-generated catch block
+					e.printStackTrace();
 				}
-			}
-		}
 
-		/* optimize */
-		Utils.log( "Optimizing ... " );
-		final TileConfiguration tc = new TileConfiguration();
-		for ( final ArrayList< Tile< ? extends M > > coefficients : coefficientsTiles.values() )
-		{
-			// for ( final Tile< ? > t : coefficients )
-			// if ( t.getMatches().size() == 0 )
-			// IJ.log( "bang" );
-			tc.addTiles( coefficients );
-		}
+				ab = new double[ 2 * numTiles ];
+				final double[] tab = new double[ 2 ];
+				for ( int i = 0; i < numTiles; ++i )
+				{
+					final Affine1D< ? > affine = tiles.get( i ).getModel();
+					affine.toArray( tab );
+					ab[ 2 * i ] = tab[ 0 ];
+					ab[ 2 * i + 1 ] = tab[ 1 ];
+				}
+				time = logTime( "Optimizing " + numTiles + " coefficient tiles", time );
+			}
 
-		try
-		{
-			tc.optimize( 0.01f, iterations, iterations, 0.75f );
-		}
-		catch ( final NotEnoughDataPointsException e )
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch ( final IllDefinedDataPointsException e )
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+			/* save the coefficients of each patch and update its mipmaps as soon as they are written */
+			Utils.log( "Saving intensity maps and updating mipmaps ... " );
+			final FSLoader loader = ( FSLoader ) layerset.getProject().getLoader();
+			final String itsDir = loader.getUNUIdFolder() + "trakem2.its/";
+			final ArrayList< Future< Future< Boolean > > > mipmapFutures = new ArrayList< Future< Future< Boolean > > >();
+			for ( int k = 0; k < patches.size(); ++k )
+			{
+				final Patch p = patches.get( k );
+				final int first = k * numCoefficients2;
+				mipmapFutures.add( exec.submit( new Callable< Future< Boolean > >()
+				{
+					@Override
+					public Future< Boolean > call()
+					{
+						final FloatProcessor as = new FloatProcessor( numCoefficients, numCoefficients );
+						final FloatProcessor bs = new FloatProcessor( numCoefficients, numCoefficients );
 
-		/* save coefficients */
-		final double[] ab = new double[ 2 ];
-		final FSLoader loader = ( FSLoader ) layerset.getProject().getLoader();
-		final String itsDir = loader.getUNUIdFolder() + "trakem2.its/";
-		for ( final Entry< Patch, ArrayList< Tile< ? extends M > > > entry : coefficientsTiles.entrySet() )
-		{
-			final FloatProcessor as = new FloatProcessor( numCoefficients, numCoefficients );
-			final FloatProcessor bs = new FloatProcessor( numCoefficients, numCoefficients );
+						final double min = p.getMin();
+						final double max = p.getMax();
 
-			final Patch p = entry.getKey();
+						for ( int i = 0; i < numCoefficients2; ++i )
+						{
+							final double a = ab[ 2 * ( first + i ) ];
+							final double b = ab[ 2 * ( first + i ) + 1 ];
 
-			final double min = p.getMin();
-			final double max = p.getMax();
+							/* coefficients mapping into existing [min, max] */
+							as.setf( i, ( float ) a );
+							bs.setf( i, ( float ) ( ( max - min ) * b + min - a * min ) );
+						}
+						final ImageStack coefficientsStack = new ImageStack( numCoefficients, numCoefficients );
+						coefficientsStack.addSlice( as );
+						coefficientsStack.addSlice( bs );
 
-			final ArrayList< Tile< ? extends M > > tiles = entry.getValue();
-			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
-			{
-				final Tile< ? extends M > t = tiles.get( i );
-				final Affine1D< ? > affine = t.getModel();
-				affine.toArray( ab );
+						final String itsPath = itsDir + FSLoader.createIdPath( Long.toString( p.getId() ), "it", ".tif" );
+						new File( itsPath ).getParentFile().mkdirs();
+						if ( !new FileSaver( new ImagePlus( "", coefficientsStack ) ).saveAsTiffStack( itsPath ) )
+							Utils.log( "Could not save the intensity map of patch #" + p.getId() );
 
-				/* coefficients mapping into existing [min, max] */
-				as.setf( i, ( float ) ab[ 0 ] );
-				bs.setf( i, ( float ) ( ( max - min ) * ab[ 1 ] + min - ab[ 0 ] * min ) );
+						p.getProject().getLoader().decacheImagePlus( p.getId() );
+						return p.updateMipMaps();
+					}
+				} ) );
 			}
-			final ImageStack coefficientsStack = new ImageStack( numCoefficients, numCoefficients );
-			coefficientsStack.addSlice( as );
-			coefficientsStack.addSlice( bs );
 
-			final String itsPath = itsDir + FSLoader.createIdPath( Long.toString( p.getId() ), "it", ".tif" );
-			new File( itsPath ).getParentFile().mkdirs();
-			IJ.saveAs( new ImagePlus( "", coefficientsStack ), "tif", itsPath );
+			for ( final Future< Future< Boolean > > f : mipmapFutures )
+			{
+				final Future< Boolean > mipmaps = f.get();
+				if ( mipmaps != null )
+					mipmaps.get();
+			}
+			time = logTime( "Saving intensity maps and updating mipmaps", time );
+		}
+		finally
+		{
+			exec.shutdownNow();
 		}
 
-		/* update mipmaps */
-		for ( final Patch p : patches )
-			p.getProject().getLoader().decacheImagePlus(p.getId());
-		final ArrayList< Future< Boolean > > mipmapFutures = new ArrayList< Future< Boolean > >();
-		for ( final Patch p : patches )
-			mipmapFutures.add( p.updateMipMaps() );
-
-		for ( final Future< Boolean > f : mipmapFutures )
-			f.get();
-
-		Utils.log( "Matching intensities done." );
+		Utils.log( "Matching intensities done in " + ( System.currentTimeMillis() - start ) + " ms." );
 	}
 
 	final static public void main( final String... args )
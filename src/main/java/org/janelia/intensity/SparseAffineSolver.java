@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package org.janelia.intensity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.PointMatch;
+
+/**
+ * Least squares affine intensity maps a x + b for a set of coefficient tiles,
+ * solved as one sparse linear system by conjugate gradients with a block
+ * Jacobi preconditioner, instead of iterating over the tiles.
+ *
+ * Each match ( p, q ) with weight w between tiles i and j contributes
+ * w ( a_i p + b_i - a_j q - b_j )^2.  The matches are reduced to sums of
+ * products as they are added, so none is retained.  In place of the
+ * {@link mpicbg.models.InterpolatedAffineModel1D} regularizers, each tile is
+ * penalized on its own samples for deviating from a translation, with weight
+ * lambda1 / ( 1 - lambda1 ), and from the identity, with weight
+ * lambda2 / ( 1 - lambda2 ).
+ *
+ * Adding matches is not thread-safe.
+ */
+public class SparseAffineSolver
+{
+	final private int n;
+
+	/* per tile: sum of weights, of weighted samples, and of weighted squared samples */
+	final private double[] self;
+
+	/* per pair of tiles i < j, with key i * n + j: the 2x2 block of rows a_i, b_i and columns a_j, b_j */
+	final private HashMap< Long, double[] > pairs = new HashMap< Long, double[] >();
+
+	private int iterations = 0;
+	private double residual = 0;
+
+	/**
+	 * @param numTiles the number of tiles, indexed from 0
+	 */
+	public SparseAffineSolver( final int numTiles )
+	{
+		this.n = numTiles;
+		this.self = new double[ 3 * numTiles ];
+	}
+
+	/**
+	 * Add matches from the intensities of tile i, in their local coordinates,
+	 * to those of tile j.
+	 */
+	public void addMatches( final int i, final int j, final Iterable< PointMatch > matches )
+	{
+		if ( i == j )
+			throw new IllegalArgumentException( "Cannot match tile " + i + " to itself." );
+
+		/* the term is symmetric: store it for i < j */
+		final boolean swap = i > j;
+		final int ti = swap ? j : i;
+		final int tj = swap ? i : j;
+		final Long key = ( long )ti * n + tj;
+		double[] block = pairs.get( key );
+		if ( block == null )
+		{
+			block = new double[ 4 ];
+			pairs.put( key, block );
+		}
+
+		for ( final PointMatch pm : matches )
+		{
+			final double w = pm.getWeight();
+			final double p1 = pm.getP1().getL()[ 0 ];
+			final double p2 = pm.getP2().getL()[ 0 ];
+			final double p = swap ? p2 : p1;
+			final double q = swap ? p1 : p2;
+
+			block[ 0 ] -= w * p * q;
+			block[ 1 ] -= w * p;
+			block[ 2 ] -= w * q;
+			block[ 3 ] -= w;
+
+			self[ 3 * ti ] += w;
+			self[ 3 * ti + 1 ] += w * p;
+			self[ 3 * ti + 2 ] += w * p * p;
+			self[ 3 * tj ] += w;
+			self[ 3 * tj + 1 ] += w * q;
+			self[ 3 * tj + 2 ] += w * q * q;
+		}
+	}
+
+	/**
+	 * Solve for all tiles.
+	 *
+	 * @param lambda1 regularization towards a translation, in [0, 1)
+	 * @param lambda2 regularization towards the identity, in [0, 1)
+	 * @param maxIterations
+	 * @param maxRelativeResidual stop when the residual is below this fraction of the initial one
+	 * @param exec to compute the matrix-vector products in parallel, or null
+	 * @param numThreads the number of parts in which to split the products
+	 *
+	 * @return { a_0, b_0, a_1, b_1, ... }, starting from the identity
+	 */
+	public double[] solve(
+			final double lambda1,
+			final double lambda2,
+			final int maxIterations,
+			final double maxRelativeResidual,
+			final ExecutorService exec,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final double c1 = weight( lambda1 );
+		final double c2 = weight( lambda2 );
+
+		/* diagonal blocks { aa, ab, bb } and right hand side */
+		final double[] diag = new double[ 3 * n ];
+		final double[] rhs = new double[ 2 * n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final double s = self[ 3 * i ], sp = self[ 3 * i + 1 ], spp = self[ 3 * i + 2 ];
+			diag[ 3 * i ] = ( 1 + c1 + c2 ) * spp;
+			diag[ 3 * i + 1 ] = ( 1 + c2 ) * sp;
+			diag[ 3 * i + 2 ] = ( 1 + c2 ) * s;
+			rhs[ 2 * i ] = ( c1 + c2 ) * spp;
+			rhs[ 2 * i + 1 ] = c2 * sp;
+		}
+
+		/* off-diagonal blocks, by rows */
+		final int[] rowStart = new int[ n + 1 ];
+		for ( final Long key : pairs.keySet() )
+		{
+			++rowStart[ ( int )( key / n ) + 1 ];
+			++rowStart[ ( int )( key % n ) + 1 ];
+		}
+		for ( int i = 0; i < n; ++i )
+			rowStart[ i + 1 ] += rowStart[ i ];
+		final int[] next = rowStart.clone();
+		final int[] cols = new int[ rowStart[ n ] ];
+		final double[] vals = new double[ 4 * rowStart[ n ] ];
+		for ( final Entry< Long, double[] > entry : pairs.entrySet() )
+		{
+			final int i = ( int )( entry.getKey() / n );
+			final int j = ( int )( entry.getKey() % n );
+			final double[] b = entry.getValue();
+			int k = next[ i ]++;
+			cols[ k ] = j;
+			vals[ 4 * k ] = b[ 0 ];
+			vals[ 4 * k + 1 ] = b[ 1 ];
+			vals[ 4 * k + 2 ] = b[ 2 ];
+			vals[ 4 * k + 3 ] = b[ 3 ];
+			k = next[ j ]++;
+			cols[ k ] = i;
+			vals[ 4 * k ] = b[ 0 ];
+			vals[ 4 * k + 1 ] = b[ 2 ];
+			vals[ 4 * k + 2 ] = b[ 1 ];
+			vals[ 4 * k + 3 ] = b[ 3 ];
+		}
+
+		/* inverse of the diagonal blocks, zero for tiles without any constraint */
+		final double[] inv = new double[ 3 * n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final double aa = diag[ 3 * i ], ab = diag[ 3 * i + 1 ], bb = diag[ 3 * i + 2 ];
+			final double det = aa * bb - ab * ab;
+			if ( det > 1e-12 * aa * bb )
+			{
+				inv[ 3 * i ] = bb / det;
+				inv[ 3 * i + 1 ] = -ab / det;
+				inv[ 3 * i + 2 ] = aa / det;
+			}
+			else
+			{
+				inv[ 3 * i ] = aa > 0 ? 1.0 / aa : 0;
+				inv[ 3 * i + 2 ] = bb > 0 ? 1.0 / bb : 0;
+			}
+		}
+
+		final Product product = new Product( diag, rowStart, cols, vals, exec, numThreads );
+
+		final double[] x = new double[ 2 * n ];
+		for ( int i = 0; i < n; ++i )
+			x[ 2 * i ] = 1;
+
+		final double[] r = new double[ 2 * n ];
+		final double[] z = new double[ 2 * n ];
+		final double[] d = new double[ 2 * n ];
+		final double[] ad = new double[ 2 * n ];
+
+		product.apply( x, ad );
+		for ( int k = 0; k < r.length; ++k )
+			r[ k ] = rhs[ k ] - ad[ k ];
+		precondition( inv, r, z );
+		System.arraycopy( z, 0, d, 0, z.length );
+		double rz = dot( r, z );
+		final double r0 = Math.sqrt( dot( r, r ) );
+		residual = r0;
+		iterations = 0;
+
+		while ( iterations < maxIterations && residual > maxRelativeResidual * r0 )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				throw new InterruptedException();
+
+			product.apply( d, ad );
+			final double dad = dot( d, ad );
+			if ( !( dad > 0 ) )
+				break;
+			final double alpha = rz / dad;
+			for ( int k = 0; k < x.length; ++k )
+			{
+				x[ k ] += alpha * d[ k ];
+				r[ k ] -= alpha * ad[ k ];
+			}
+			++iterations;
+			residual = Math.sqrt( dot( r, r ) );
+
+			precondition( inv, r, z );
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			for ( int k = 0; k < d.length; ++k )
+				d[ k ] = z[ k ] + beta * d[ k ];
+		}
+
+		return x;
+	}
+
+	/**
+	 * @return the number of iterations of the last {@link #solve}
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return the norm of the residual after the last {@link #solve}
+	 */
+	public double getResidual()
+	{
+		return residual;
+	}
+
+	final static private double weight( final double lambda )
+	{
+		final double l = Math.max( 0, Math.min( 0.999, lambda ) );
+		return l / ( 1 - l );
+	}
+
+	final static private void precondition( final double[] inv, final double[] r, final double[] z )
+	{
+		for ( int i = 0; i < inv.length / 3; ++i )
+		{
+			final double ra = r[ 2 * i ], rb = r[ 2 * i + 1 ];
+			z[ 2 * i ] = inv[ 3 * i ] * ra + inv[ 3 * i + 1 ] * rb;
+			z[ 2 * i + 1 ] = inv[ 3 * i + 1 ] * ra + inv[ 3 * i + 2 ] * rb;
+		}
+	}
+
+	final static private double dot( final double[] a, final double[] b )
+	{
+		double s = 0;
+		for ( int k = 0; k < a.length; ++k )
+			s += a[ k ] * b[ k ];
+		return s;
+	}
+
+	/**
+	 * Product of the symmetric block matrix with a vector, by ranges of rows.
+	 */
+	final static private class Product
+	{
+		final private double[] diag;
+		final private int[] rowStart;
+		final private int[] cols;
+		final private double[] vals;
+		final private ExecutorService exec;
+		final private int numParts;
+
+		Product(
+				final double[] diag,
+				final int[] rowStart,
+				final int[] cols,
+				final double[] vals,
+				final ExecutorService exec,
+				final int numThreads )
+		{
+			this.diag = diag;
+			this.rowStart = rowStart;
+			this.cols = cols;
+			this.vals = vals;
+			this.exec = exec;
+			/* not worth splitting small systems */
+			this.numParts = exec == null ? 1 : Math.max( 1, Math.min( numThreads, cols.length / 10000 ) );
+		}
+
+		void apply( final double[] in, final double[] out ) throws InterruptedException, ExecutionException
+		{
+			final int n = rowStart.length - 1;
+			if ( numParts == 1 )
+			{
+				apply( in, out, 0, n );
+				return;
+			}
+			final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+			for ( int t = 0; t < numParts; ++t )
+			{
+				final int i0 = ( int )( ( long )n * t / numParts );
+				final int i1 = ( int )( ( long )n * ( t + 1 ) / numParts );
+				futures.add( exec.submit( new Callable< Void >()
+				{
+					@Override
+					public Void call()
+					{
+						apply( in, out, i0, i1 );
+						return null;
+					}
+				} ) );
+			}
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+
+		private void apply( final double[] in, final double[] out, final int i0, final int i1 )
+		{
+			for ( int i = i0; i < i1; ++i )
+			{
+				final double xa = in[ 2 * i ], xb = in[ 2 * i + 1 ];
+				double ya = diag[ 3 * i ] * xa + diag[ 3 * i + 1 ] * xb;
+				double yb = diag[ 3 * i + 1 ] * xa + diag[ 3 * i + 2 ] * xb;
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				{
+					final int j = cols[ k ];
+					final double ja = in[ 2 * j ], jb = in[ 2 * j + 1 ];
+					ya += vals[ 4 * k ] * ja + vals[ 4 * k + 1 ] * jb;
+					yb += vals[ 4 * k + 2 ] * ja + vals[ 4 * k + 3 ] * jb;
+				}
+				out[ 2 * i ] = ya;
+				out[ 2 * i + 1 ] = yb;
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import static org.junit.Assert.*;
+
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString3D;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link EditDistance} kernel with a full dynamic programming matrix,
+ * and with the Levenshtein distance of {@link Editions}.
+ */
+public class EditDistanceTest {
+
+	static private final double DELTA = 1, WI = 1.1, WD = 1.1, WM = 1;
+
+	static private double[][] randomVectors(final Random rnd, final int n) {
+		final double[][] v = new double[3][n];
+		for (int d = 0; d < 3; ++d) {
+			for (int i = 0; i < n; ++i) v[d][i] = rnd.nextGaussian();
+		}
+		return v;
+	}
+
+	/** Random walk of {@code n} points with steps of about {@code step}. */
+	static private double[][] randomWalk(final Random rnd, final int n, final double step) {
+		final double[][] p = new double[3][n];
+		for (int i = 1; i < n; ++i) {
+			for (int d = 0; d < 3; ++d) p[d][i] = p[d][i - 1] + step * (rnd.nextDouble() - 0.3);
+		}
+		return p;
+	}
+
+	/** The whole matrix, with the costs as documented in {@link EditDistance}. */
+	static private double naive(final double[][] a, final double[][] b, final double wi, final double wd, final double wm) {
+		final int n = a[0].length,
+		          m = b[0].length;
+		final double[][] d = new double[n + 1][m + 1];
+		for (int i = 1; i <= n; ++i) d[i][0] = i * wd * DELTA;
+		for (int j = 1; j <= m; ++j) d[0][j] = j * wi * DELTA;
+		for (int i = 1; i <= n; ++i) {
+			for (int j = 1; j <= m; ++j) {
+				final double dx = a[0][i - 1] - b[0][j - 1],
+				             dy = a[1][i - 1] - b[1][j - 1],
+				             dz = a[2][i - 1] - b[2][j - 1];
+				d[i][j] = Math.min(d[i - 1][j - 1] + wm * Math.sqrt(dx * dx + dy * dy + dz * dz),
+				          Math.min(d[i - 1][j] + wd * DELTA, d[i][j - 1] + wi * DELTA));
+			}
+		}
+		return d[n][m];
+	}
+
+	@Test
+	public void testFullMatrix() {
+		final Random rnd = new Random(44);
+		final EditDistance ed = new EditDistance();
+		for (int run = 0; run < 500; ++run) {
+			final double[][] a = randomVectors(rnd, rnd.nextInt(25)),
+			                 b = randomVectors(rnd, rnd.nextInt(25));
+			final double wi = 0.5 + rnd.nextDouble(),
+			             wd = 0.5 + rnd.nextDouble();
+			assertEquals(naive(a, b, wi, wd, WM), ed.distance(a, 0, a[0].length, b, 0, b[0].length, DELTA, wi, wd, WM, -1, Double.MAX_VALUE), 1e-9);
+		}
+	}
+
+	@Test
+	public void testOffsets() {
+		final Random rnd = new Random(45);
+		final EditDistance ed = new EditDistance();
+		final double[][] a = randomVectors(rnd, 30),
+		                 b = randomVectors(rnd, 20);
+		final double[][] a_sub = new double[3][],
+		                 b_sub = new double[3][];
+		for (int d = 0; d < 3; ++d) {
+			a_sub[d] = Arrays.copyOfRange(a[d], 5, 17);
+			b_sub[d] = Arrays.copyOfRange(b[d], 3, 18);
+		}
+		assertEquals(naive(a_sub, b_sub, WI, WD, WM), ed.distance(a, 5, 12, b, 3, 15, DELTA, WI, WD, WM, -1, Double.MAX_VALUE), 1e-9);
+	}
+
+	@Test
+	public void testBand() {
+		final Random rnd = new Random(46);
+		final EditDistance ed = new EditDistance();
+		for (int run = 0; run < 500; ++run) {
+			final double[][] a = randomVectors(rnd, 1 + rnd.nextInt(25)),
+			                 b = randomVectors(rnd, 1 + rnd.nextInt(25));
+			final int n = a[0].length,
+			          m = b[0].length;
+			final double exact = naive(a, b, WI, WD, WM);
+			// A band as wide as the matrix is exact, and a narrower one never finds a shorter path
+			assertEquals(exact, ed.distance(a, 0, n, b, 0, m, DELTA, WI, WD, WM, Math.max(n, m), Double.MAX_VALUE), 1e-9);
+			final double banded = ed.distance(a, 0, n, b, 0, m, DELTA, WI, WD, WM, rnd.nextInt(4), Double.MAX_VALUE);
+			assertTrue(banded >= exact - 1e-9);
+		}
+	}
+
+	@Test
+	public void testCutoff() {
+		final Random rnd = new Random(47);
+		final EditDistance ed = new EditDistance();
+		for (int run = 0; run < 200; ++run) {
+			final double[][] a = randomVectors(rnd, rnd.nextInt(25)),
+			                 b = randomVectors(rnd, rnd.nextInt(25));
+			final double exact = naive(a, b, WI, WD, WM);
+			assertEquals(exact, ed.distance(a, 0, a[0].length, b, 0, b[0].length, DELTA, WI, WD, WM, -1, exact + 1e-6), 1e-9);
+			if (exact > 0) {
+				assertEquals(Double.POSITIVE_INFINITY, ed.distance(a, 0, a[0].length, b, 0, b[0].length, DELTA, WI, WD, WM, -1, exact * 0.99), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testReversed() {
+		final double[][] p = randomWalk(new Random(48), 10, 1);
+		final double[][] v = EditDistance.vectors(p[0], p[1], p[2]);
+		final double[][] r = EditDistance.reversed(v);
+		final double[][] p_rev = new double[3][10];
+		for (int d = 0; d < 3; ++d) {
+			for (int i = 0; i < 10; ++i) p_rev[d][i] = p[d][9 - i];
+		}
+		final double[][] v_rev = EditDistance.vectors(p_rev[0], p_rev[1], p_rev[2]);
+		for (int d = 0; d < 3; ++d) assertArrayEquals(v_rev[d], r[d], 1e-12);
+	}
+
+	@Test
+	public void testSameAsEditions() throws Exception {
+		final Random rnd = new Random(49);
+		final EditDistance ed = new EditDistance();
+		for (int run = 0; run < 50; ++run) {
+			final double[][] p1 = randomWalk(rnd, 10 + rnd.nextInt(30), 3),
+			                 p2 = randomWalk(rnd, 10 + rnd.nextInt(30), 3);
+			final VectorString3D vs1 = new VectorString3D(p1[0], p1[1], p1[2], false),
+			                     vs2 = new VectorString3D(p2[0], p2[1], p2[2], false);
+			vs1.resample(DELTA);
+			vs2.resample(DELTA);
+			final double[][] v1 = EditDistance.vectors(vs1.getPoints(0), vs1.getPoints(1), vs1.getPoints(2)),
+			                 v2 = EditDistance.vectors(vs2.getPoints(0), vs2.getPoints(1), vs2.getPoints(2));
+			final double expected = new Editions(vs1, vs2, DELTA, false, WI, WD, WM).getDistance();
+			assertEquals(expected, ed.distance(v1, 0, v1[0].length, v2, 0, v2[0].length, DELTA, WI, WD, WM, -1, Double.MAX_VALUE), 1e-6 * Math.max(1, expected));
+
+			// All four orientations, the lowest
+			final VectorString3D vs1rev = vs1.makeReversedCopy(),
+			                     vs2rev = vs2.makeReversedCopy();
+			final double lowest = Math.min(
+					Math.min(expected, new Editions(vs1rev, vs2rev, DELTA, false, WI, WD, WM).getDistance()),
+					Math.min(new Editions(vs1, vs2rev, DELTA, false, WI, WD, WM).getDistance(),
+					         new Editions(vs1rev, vs2, DELTA, false, WI, WD, WM).getDistance()));
+			final Compare.KernelScoring ks = new Compare.KernelScoring(DELTA, false, false, WI, WD, WM, -1);
+			assertEquals(lowest, ks.score(ks.prepare(vs1), ks.prepare(vs2)), 1e-4 * Math.max(1, lowest));
+		}
+	}
+}
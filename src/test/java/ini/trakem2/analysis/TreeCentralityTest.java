@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link TreeCentrality} and {@link Centrality#compute(java.util.Collection)}
+ * with a count of the paths through each vertex, on small random trees and forests.
+ */
+public class TreeCentralityTest {
+
+	/** Random forest with {@code n} vertices, each with probability {@code p_root} of being a root. */
+	static private int[] randomForest(final Random rnd, final int n, final double p_root) {
+		final int[] parents = new int[n];
+		// Parents are picked among earlier vertices, then the indices are shuffled
+		final int[] perm = new int[n];
+		for (int i = 0; i < n; ++i) perm[i] = i;
+		for (int i = n - 1; i > 0; --i) {
+			final int j = rnd.nextInt(i + 1);
+			final int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+		for (int i = 0; i < n; ++i) {
+			parents[perm[i]] = 0 == i || rnd.nextDouble() < p_root ? -1 : perm[rnd.nextInt(i)];
+		}
+		return parents;
+	}
+
+	/** The vertices from {@code v} up to its root. */
+	static private ArrayList<Integer> pathToRoot(final int[] parents, int v) {
+		final ArrayList<Integer> path = new ArrayList<Integer>();
+		for (; -1 != v; v = parents[v]) path.add(v);
+		return path;
+	}
+
+	/** For each ordered pair of vertices of the same tree, count the vertices strictly inside the path between them. */
+	static private double[] bruteForce(final int[] parents) {
+		final int n = parents.length;
+		final double[] c = new double[n];
+		for (int s = 0; s < n; ++s) {
+			final ArrayList<Integer> ps = pathToRoot(parents, s);
+			for (int t = 0; t < n; ++t) {
+				if (s == t) continue;
+				final ArrayList<Integer> pt = pathToRoot(parents, t);
+				if (!ps.get(ps.size() - 1).equals(pt.get(pt.size() - 1))) continue; // different trees
+				// Lowest common ancestor: the first vertex of the path of s that is also in the path of t
+				int lca = -1;
+				for (final int v : ps) {
+					if (pt.contains(v)) {
+						lca = v;
+						break;
+					}
+				}
+				for (final int v : ps) {
+					if (v == lca) break;
+					if (v != s) c[v] += 1;
+				}
+				for (final int v : pt) {
+					if (v == lca) break;
+					if (v != t) c[v] += 1;
+				}
+				if (lca != s && lca != t) c[lca] += 1;
+			}
+		}
+		return c;
+	}
+
+	static private ArrayList<Vertex<Integer>> toVertices(final int[] parents) {
+		final ArrayList<Vertex<Integer>> vs = new ArrayList<Vertex<Integer>>();
+		for (int i = 0; i < parents.length; ++i) vs.add(new Vertex<Integer>(i));
+		for (int i = 0; i < parents.length; ++i) {
+			if (-1 == parents[i]) continue;
+			vs.get(i).neighbors.add(vs.get(parents[i]));
+			vs.get(parents[i]).neighbors.add(vs.get(i));
+		}
+		return vs;
+	}
+
+	@Test
+	public void testRandomTrees() {
+		final Random rnd = new Random(42);
+		for (int run = 0; run < 200; ++run) {
+			final int[] parents = randomForest(rnd, 1 + rnd.nextInt(30), 0);
+			assertArrayEquals(bruteForce(parents), TreeCentrality.compute(parents), 0);
+		}
+	}
+
+	@Test
+	public void testRandomForests() {
+		final Random rnd = new Random(7);
+		for (int run = 0; run < 200; ++run) {
+			final int[] parents = randomForest(rnd, 1 + rnd.nextInt(30), 0.1);
+			assertArrayEquals(bruteForce(parents), TreeCentrality.compute(parents), 0);
+		}
+	}
+
+	@Test
+	public void testPath() {
+		// 0 - 1 - 2 - 3: the inner vertices separate 1 and 2 vertices, in both directions
+		assertArrayEquals(new double[]{0, 4, 4, 0}, TreeCentrality.compute(new int[]{-1, 0, 1, 2}), 0);
+	}
+
+	@Test
+	public void testCentralityOfForests() {
+		final Random rnd = new Random(1234);
+		for (int run = 0; run < 100; ++run) {
+			final int[] parents = randomForest(rnd, 2 + rnd.nextInt(30), 0.05);
+			final ArrayList<Vertex<Integer>> vs = toVertices(parents);
+			Centrality.compute(vs);
+			final double[] expected = bruteForce(parents);
+			for (int i = 0; i < parents.length; ++i) {
+				assertEquals("vertex " + i, expected[i], vs.get(i).centrality, 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCentralityOfCycle() {
+		// A square: each vertex is on one of the two shortest paths between its two neighbors, in both directions
+		final ArrayList<Vertex<Integer>> vs = toVertices(new int[]{-1, 0, 1, 2});
+		vs.get(0).neighbors.add(vs.get(3));
+		vs.get(3).neighbors.add(vs.get(0));
+		Centrality.compute(vs);
+		for (final Vertex<Integer> v : vs) {
+			assertEquals(1, v.centrality, 1e-6);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCycleInParents() {
+		TreeCentrality.compute(new int[]{-1, 2, 3, 1});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParentOutOfRange() {
+		TreeCentrality.compute(new int[]{-1, 5});
+	}
+}
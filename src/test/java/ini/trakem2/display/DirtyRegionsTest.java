@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the merging and forgetting of the dirty regions of {@link DirtyRegions}.
+ */
+public class DirtyRegionsTest {
+
+	private DirtyRegions dr;
+	private Layer layer, other;
+
+	@Before
+	public void setUp() {
+		dr = new DirtyRegions();
+		// As reconstructed from the database: without project or LayerSet
+		layer = new Layer(null, 1, 0, 1);
+		other = new Layer(null, 2, 1, 1);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertTrue(dr.get(layer).isEmpty());
+		dr.add(layer, new Rectangle(0, 0, 0, 10));
+		dr.add(layer, null);
+		assertTrue(dr.get(layer).isEmpty());
+	}
+
+	@Test
+	public void testMergeOverlapping() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(layer, new Rectangle(5, 5, 10, 10));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 15, 15)), dr.get(layer));
+	}
+
+	@Test
+	public void testMergeTouching() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(layer, new Rectangle(10, 0, 10, 10));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 20, 10)), dr.get(layer));
+	}
+
+	@Test
+	public void testKeepApart() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(layer, new Rectangle(11, 0, 10, 10));
+		dr.add(other, new Rectangle(5, 5, 10, 10));
+		assertEquals(2, dr.get(layer).size());
+		assertEquals(Arrays.asList(new Rectangle(5, 5, 10, 10)), dr.get(other));
+	}
+
+	@Test
+	public void testMergeChain() {
+		// A region that bridges two others merges the three, and one that then bridges their union and a fourth merges all
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(layer, new Rectangle(30, 0, 10, 30));
+		dr.add(layer, new Rectangle(5, 20, 10, 10));
+		assertEquals(3, dr.get(layer).size());
+		dr.add(layer, new Rectangle(0, 5, 20, 20));
+		assertEquals(2, dr.get(layer).size());
+		dr.add(layer, new Rectangle(20, 0, 10, 10));
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 40, 30)), dr.get(layer));
+	}
+
+	@Test
+	public void testGetIsACopy() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.get(layer).get(0).setBounds(100, 100, 1, 1);
+		dr.get(layer).clear();
+		assertEquals(Arrays.asList(new Rectangle(0, 0, 10, 10)), dr.get(layer));
+	}
+
+	@Test
+	public void testRemoveExported() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(layer, new Rectangle(50, 50, 10, 10));
+		final List<Rectangle> exported = dr.get(layer);
+		// Marked dirty during the export: merged with an exported region, so no longer within it
+		dr.add(layer, new Rectangle(55, 55, 10, 10));
+		dr.add(layer, new Rectangle(100, 0, 10, 10));
+		dr.remove(layer, exported);
+		final List<Rectangle> left = dr.get(layer);
+		assertEquals(2, left.size());
+		assertTrue(left.contains(new Rectangle(50, 50, 15, 15)));
+		assertTrue(left.contains(new Rectangle(100, 0, 10, 10)));
+		dr.remove(layer, left);
+		assertTrue(dr.get(layer).isEmpty());
+	}
+
+	@Test
+	public void testRemoveWithinArea() {
+		dr.add(layer, new Rectangle(0, 0, 100, 100));
+		dr.add(layer, new Rectangle(200, 0, 10, 10));
+		final List<Rectangle> exported = dr.get(layer);
+		// Only the middle was exported: the frame around it and the region outside remain
+		dr.remove(layer, exported, new Rectangle(20, 30, 50, 40));
+		final List<Rectangle> left = dr.get(layer);
+		assertEquals(5, left.size());
+		assertTrue(left.contains(new Rectangle(200, 0, 10, 10)));
+		long area = 0;
+		for (final Rectangle r : left) {
+			area += r.width * r.height;
+			assertFalse(r.intersects(new Rectangle(20, 30, 50, 40)));
+		}
+		assertEquals(100 * 100 - 50 * 40 + 10 * 10, area);
+		// A region that grew during the export is not forgotten, not even its exported part
+		final List<Rectangle> exported2 = dr.get(layer);
+		dr.add(layer, new Rectangle(60, 60, 30, 30));
+		dr.remove(layer, exported2, new Rectangle(0, 0, 1000, 1000));
+		final List<Rectangle> grown = dr.get(layer);
+		assertFalse(grown.isEmpty());
+		for (final Rectangle r : grown) assertTrue(r.contains(new Rectangle(60, 60, 30, 30)));
+	}
+
+	@Test
+	public void testClear() {
+		dr.add(layer, new Rectangle(0, 0, 10, 10));
+		dr.add(other, new Rectangle(0, 0, 10, 10));
+		dr.clear(layer);
+		assertTrue(dr.get(layer).isEmpty());
+		assertEquals(1, dr.get(other).size());
+	}
+}
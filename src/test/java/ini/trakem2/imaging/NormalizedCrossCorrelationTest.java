@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link NormalizedCrossCorrelation#bestTranslation(float[], int, int, float[], int, int, double, double)}
+ * finds known translations, and that its correlations equal Pearson's R computed pixel by pixel,
+ * with and without missing pixels.
+ */
+public class NormalizedCrossCorrelationTest {
+
+	static private float[] randomImage(final Random rnd, final int w, final int h) {
+		final float[] img = new float[w * h];
+		for (int i = 0; i < img.length; ++i) img[i] = rnd.nextFloat() * 255;
+		return img;
+	}
+
+	static private float[] crop(final float[] img, final int w, final int x0, final int y0, final int cw, final int ch) {
+		final float[] c = new float[cw * ch];
+		for (int y = 0; y < ch; ++y) {
+			System.arraycopy(img, (y0 + y) * w + x0, c, y * cw, cw);
+		}
+		return c;
+	}
+
+	/** Pearson's R of the overlap of {@code img1} and {@code img2} translated by moveX, moveY, skipping -1 pixels;
+	 * -2 if no pixels, NaN if either has no variance. */
+	static private double pearson(
+			final float[] img1, final int w1, final int h1,
+			final float[] img2, final int w2, final int h2,
+			final int moveX, final int moveY) {
+		double s1 = 0, s2 = 0;
+		int count = 0;
+		for (int y1 = 0; y1 < h1; ++y1) {
+			for (int x1 = 0; x1 < w1; ++x1) {
+				final int x2 = x1 + moveX,
+				          y2 = y1 + moveY;
+				if (x2 < 0 || x2 >= w2 || y2 < 0 || y2 >= h2) continue;
+				final float v1 = img1[y1 * w1 + x1],
+				            v2 = img2[y2 * w2 + x2];
+				if (-1 == v1 || -1 == v2) continue;
+				s1 += v1;
+				s2 += v2;
+				++count;
+			}
+		}
+		if (0 == count) return -2;
+		final double m1 = s1 / count,
+		             m2 = s2 / count;
+		double coVar = 0, var1 = 0, var2 = 0;
+		for (int y1 = 0; y1 < h1; ++y1) {
+			for (int x1 = 0; x1 < w1; ++x1) {
+				final int x2 = x1 + moveX,
+				          y2 = y1 + moveY;
+				if (x2 < 0 || x2 >= w2 || y2 < 0 || y2 >= h2) continue;
+				final float v1 = img1[y1 * w1 + x1],
+				            v2 = img2[y2 * w2 + x2];
+				if (-1 == v1 || -1 == v2) continue;
+				coVar += (v1 - m1) * (v2 - m2);
+				var1 += (v1 - m1) * (v1 - m1);
+				var2 += (v2 - m2) * (v2 - m2);
+			}
+		}
+		return coVar / Math.sqrt(var1 * var2);
+	}
+
+	/** The highest of the correlations that {@link NormalizedCrossCorrelation} scans, computed pixel by pixel. */
+	static private double bestPearson(
+			final float[] img1, final int w1, final int h1,
+			final float[] img2, final int w2, final int h2,
+			final double relMinOverlapX, final double relMinOverlapY) {
+		final int min_border_w = (int) (w1 < w2 ? w1 * relMinOverlapX + 0.5 : w2 * relMinOverlapX + 0.5);
+		final int min_border_h = (int) (h1 < h2 ? h1 * relMinOverlapY + 0.5 : h2 * relMinOverlapY + 0.5);
+		double maxR = -2;
+		for (int moveX = -w1 + min_border_w; moveX < w2 - min_border_w; ++moveX) {
+			for (int moveY = -h1 + min_border_h; moveY < h2 - min_border_h; ++moveY) {
+				final double r = pearson(img1, w1, h1, img2, w2, h2, moveX, moveY);
+				if (r > maxR) maxR = r;
+			}
+		}
+		return maxR;
+	}
+
+	private void check(final float[] img1, final int w1, final int h1, final float[] img2, final int w2, final int h2,
+			final int dx, final int dy) throws Exception {
+		final double[] best = NormalizedCrossCorrelation.bestTranslation(img1, w1, h1, img2, w2, h2, 0.3, 0.3);
+		assertEquals(dx, best[0], 0);
+		assertEquals(dy, best[1], 0);
+		assertEquals(pearson(img1, w1, h1, img2, w2, h2, -dx, -dy), best[2], 1e-6);
+		assertEquals(bestPearson(img1, w1, h1, img2, w2, h2, 0.3, 0.3), best[2], 1e-6);
+	}
+
+	@Test
+	public void testKnownTranslation() throws Exception {
+		final Random rnd = new Random(69);
+		final float[] big = randomImage(rnd, 64, 48);
+		for (final int[] d : new int[][]{{5, 3}, {0, 0}, {9, 0}, {2, 11}}) {
+			final float[] img1 = crop(big, 64, 0, 0, 40, 30),
+			              img2 = crop(big, 64, d[0], d[1], 36, 32);
+			check(img1, 40, 30, img2, 36, 32, d[0], d[1]);
+			// Swapped, the translation is the opposite
+			check(img2, 36, 32, img1, 40, 30, -d[0], -d[1]);
+		}
+	}
+
+	@Test
+	public void testMissingPixels() throws Exception {
+		final Random rnd = new Random(96);
+		final float[] big = randomImage(rnd, 64, 48);
+		final float[] img1 = crop(big, 64, 0, 0, 40, 30),
+		              img2 = crop(big, 64, 7, 4, 40, 30);
+		for (int i = 0; i < img1.length; i += 5) img1[i] = -1;
+		for (int i = 3; i < img2.length; i += 7) img2[i] = -1;
+		check(img1, 40, 30, img2, 40, 30, 7, 4);
+	}
+
+	@Test
+	public void testHighOffset() throws Exception {
+		// Large blocks of bright pixels with little variance: sums in single precision would lose the correlation
+		final Random rnd = new Random(7);
+		final float[] big = new float[240 * 180];
+		for (int i = 0; i < big.length; ++i) big[i] = 4000 + rnd.nextFloat() * 4;
+		final float[] img1 = crop(big, 240, 0, 0, 200, 150),
+		              img2 = crop(big, 240, 13, 6, 200, 150);
+		final double[] best = NormalizedCrossCorrelation.bestTranslation(img1, 200, 150, img2, 200, 150, 0.3, 0.3);
+		assertEquals(13, best[0], 0);
+		assertEquals(6, best[1], 0);
+		assertEquals(pearson(img1, 200, 150, img2, 200, 150, -13, -6), best[2], 1e-6);
+	}
+
+	@Test
+	public void testFlatImage() throws Exception {
+		// No overlap has any variance: no correlation is found
+		final float[] img = new float[20 * 10];
+		Arrays.fill(img, 100);
+		final double[] best = NormalizedCrossCorrelation.bestTranslation(img, 20, 10, img, 20, 10, 0.3, 0.3);
+		assertEquals(-2, best[2], 0);
+	}
+}
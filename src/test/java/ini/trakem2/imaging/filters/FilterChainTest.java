@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import static org.junit.Assert.*;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the fused runs of {@link FilterChain} with applying each filter
+ * one at a time, on images large enough to be split into many bands.
+ */
+public class FilterChainTest {
+
+	static private final int W = 700, H = 300;
+
+	static private ByteProcessor randomBytes(final Random rnd) {
+		final byte[] pix = new byte[W * H];
+		rnd.nextBytes(pix);
+		return new ByteProcessor(W, H, pix, null);
+	}
+
+	static private ImageProcessor oneAtATime(ImageProcessor ip, final IFilter[] filters) {
+		for (final IFilter f : filters) ip = f.process(ip);
+		return ip;
+	}
+
+	@Test
+	public void testByte() {
+		final ByteProcessor bp = randomBytes(new Random(1));
+		final ImageProcessor copy = bp.duplicate();
+		final IFilter[] filters = new IFilter[]{new Invert(), new ResetMinAndMax(), new Invert(), new Invert()};
+		assertArrayEquals((byte[])oneAtATime(copy, filters).getPixels(), (byte[])FilterChain.process(bp, filters).getPixels());
+	}
+
+	@Test
+	public void testRGBWithinRoi() {
+		final Random rnd = new Random(2);
+		final int[] pix = new int[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = 0xff000000 | rnd.nextInt(0x1000000);
+		final ColorProcessor cp = new ColorProcessor(W, H, pix);
+		// Crosses the bands of rows, and leaves pixels outside on every side
+		cp.setRoi(13, 41, 500, 217);
+		final ImageProcessor copy = cp.duplicate();
+		copy.setRoi(cp.getRoi());
+		final IFilter[] filters = new IFilter[]{new Invert()};
+		assertArrayEquals((int[])oneAtATime(copy, filters).getPixels(), (int[])FilterChain.process(cp, filters).getPixels());
+	}
+
+	@Test
+	public void testValueToNoise() {
+		final ByteProcessor bp = randomBytes(new Random(3));
+		final byte[] before = ((byte[])bp.getPixels()).clone();
+		// The pixels that were 0 are 255 after inverting, and become noise between 10 and 20
+		FilterChain.process(bp, new IFilter[]{new Invert(), new ValueToNoise(255, 10, 20)});
+		final byte[] after = (byte[])bp.getPixels();
+		for (int i = 0; i < after.length; ++i) {
+			final int v = before[i] & 0xff,
+			          w = after[i] & 0xff;
+			if (0 == v) assertTrue("pixel " + i, w >= 10 && w <= 20);
+			else assertEquals("pixel " + i, 255 - v, w);
+		}
+	}
+
+	@Test
+	public void testNotFused() {
+		// Inverting a float image depends on its min and max: not a tile filter, but the result is the same
+		final Random rnd = new Random(4);
+		final float[] pix = new float[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = rnd.nextFloat() * 1000;
+		final FloatProcessor fp = new FloatProcessor(W, H, pix, null);
+		final ImageProcessor copy = fp.duplicate();
+		final IFilter[] filters = new IFilter[]{new Invert(), new ValueToNoise(Double.NaN, 0, 1), new Invert()};
+		assertFalse(new Invert().canProcessRows(fp));
+		assertArrayEquals((float[])oneAtATime(copy, filters).getPixels(), (float[])FilterChain.process(fp, filters).getPixels(), 0);
+	}
+}
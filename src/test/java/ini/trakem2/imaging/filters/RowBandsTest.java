@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares a neighbourhood filter run by {@link RowBands} on bands with halos
+ * with the same filter run on the whole image.
+ */
+public class RowBandsTest {
+
+	static private final int W = 301, H = 517;
+
+	/** A 3x3 mean, which depends on the pixels within one row of each. */
+	static private final RowBands.Op SMOOTH = new RowBands.Op() {
+		@Override
+		public void process(final ImageProcessor band) {
+			band.smooth();
+		}
+	};
+
+	static private void assumeBands() {
+		assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+	}
+
+	@Test
+	public void testByte() {
+		assumeBands();
+		final byte[] pix = new byte[W * H];
+		new Random(1).nextBytes(pix);
+		final ByteProcessor bp = new ByteProcessor(W, H, pix, null),
+		                    whole = (ByteProcessor)bp.duplicate();
+		assertTrue(RowBands.run(bp, 1, SMOOTH));
+		SMOOTH.process(whole);
+		assertArrayEquals((byte[])whole.getPixels(), (byte[])bp.getPixels());
+	}
+
+	@Test
+	public void testRGB() {
+		assumeBands();
+		final Random rnd = new Random(2);
+		final int[] pix = new int[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = 0xff000000 | rnd.nextInt(0x1000000);
+		final ColorProcessor cp = new ColorProcessor(W, H, pix),
+		                     whole = (ColorProcessor)cp.duplicate();
+		assertTrue(RowBands.run(cp, 1, SMOOTH));
+		SMOOTH.process(whole);
+		assertArrayEquals((int[])whole.getPixels(), (int[])cp.getPixels());
+	}
+
+	@Test
+	public void testFloatKeepsDisplayRange() {
+		assumeBands();
+		final Random rnd = new Random(3);
+		final float[] pix = new float[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = rnd.nextFloat() * 100;
+		final FloatProcessor fp = new FloatProcessor(W, H, pix, null);
+		fp.setMinAndMax(10, 20);
+		final ImageProcessor whole = fp.duplicate();
+		assertTrue(RowBands.run(fp, 1, SMOOTH));
+		SMOOTH.process(whole);
+		assertArrayEquals((float[])whole.getPixels(), (float[])fp.getPixels(), 0);
+		assertEquals(10, fp.getMin(), 0);
+		assertEquals(20, fp.getMax(), 0);
+	}
+
+	@Test
+	public void testTooSmall() {
+		final ByteProcessor bp = new ByteProcessor(W, 2 * RowBands.MIN_ROWS - 1);
+		bp.set(7, 7, 200);
+		final byte[] before = ((byte[])bp.getPixels()).clone();
+		assertFalse(RowBands.run(bp, 1, SMOOTH));
+		assertArrayEquals(before, (byte[])bp.getPixels());
+	}
+}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.io;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saves images of each type with {@link RawImages} and reads them back,
+ * including images larger than the chunks in which the pixels are read,
+ * and checks that files with another key or truncated are not read.
+ */
+public class RawImagesTest {
+
+	/** More pixels than fit in one chunk, and not a multiple of it. */
+	static private final int W = 301, H = 257;
+
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = File.createTempFile("rawimages", "");
+		folder.delete();
+	}
+
+	@After
+	public void tearDown() {
+		if (null == folder.listFiles()) return;
+		for (final File f : folder.listFiles()) f.delete();
+		folder.delete();
+	}
+
+	private ImageProcessor roundTrip(final ImageProcessor ip) {
+		final String path = new File(folder, "image.raw").getAbsolutePath();
+		assertTrue(RawImages.save(path, "key", new ImagePlus("image", ip)));
+		final ImagePlus imp = RawImages.read(path, "key");
+		assertNotNull(imp);
+		assertEquals(W, imp.getWidth());
+		assertEquals(H, imp.getHeight());
+		return imp.getProcessor();
+	}
+
+	@Test
+	public void testGray8() {
+		final byte[] pix = new byte[W * H];
+		new Random(1).nextBytes(pix);
+		assertArrayEquals(pix, (byte[])roundTrip(new ByteProcessor(W, H, pix.clone(), null)).getPixels());
+	}
+
+	@Test
+	public void testGray16() {
+		final Random rnd = new Random(2);
+		final short[] pix = new short[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = (short)rnd.nextInt(65536);
+		final ShortProcessor sp = new ShortProcessor(W, H, pix.clone(), null);
+		sp.setMinAndMax(100, 40000);
+		final ImageProcessor ip = roundTrip(sp);
+		assertArrayEquals(pix, (short[])ip.getPixels());
+		assertEquals(100, ip.getMin(), 0);
+		assertEquals(40000, ip.getMax(), 0);
+	}
+
+	@Test
+	public void testGray32() {
+		final Random rnd = new Random(3);
+		final float[] pix = new float[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = (float)rnd.nextGaussian();
+		assertArrayEquals(pix, (float[])roundTrip(new FloatProcessor(W, H, pix.clone(), null)).getPixels(), 0);
+	}
+
+	@Test
+	public void testRGB() {
+		final Random rnd = new Random(4);
+		final int[] pix = new int[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = rnd.nextInt();
+		assertArrayEquals(pix, (int[])roundTrip(new ColorProcessor(W, H, pix.clone())).getPixels());
+	}
+
+	@Test
+	public void testKeyAndTruncation() throws IOException {
+		final String path = new File(folder, "image.raw").getAbsolutePath();
+		assertTrue(RawImages.save(path, "key", new ImagePlus("image", new FloatProcessor(W, H))));
+		assertNull(RawImages.read(path, "other key"));
+		final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		assertNull(RawImages.read(path, "key"));
+		assertNull(RawImages.read(new File(folder, "none.raw").getAbsolutePath(), "key"));
+	}
+}
@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.io;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes images with {@link TiledTIFFWriter}, with their tiles in random order,
+ * and reads them back with a minimal reader of the tags it writes.
+ */
+public class TiledTIFFWriterTest {
+
+	static private final int W = 100, H = 70, TW = 32, TH = 48;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("tiled", ".tif");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/** The first value of each tag of the first directory, or the offset to its values when they do not fit in the entry. */
+	static private HashMap<Integer,long[]> readTags(final RandomAccessFile ra) throws IOException {
+		ra.seek(0);
+		assertEquals(0x4d4d, ra.readUnsignedShort());
+		assertEquals(42, ra.readUnsignedShort());
+		ra.seek(ra.readInt() & 0xffffffffL);
+		final int n = ra.readUnsignedShort();
+		final HashMap<Integer,long[]> tags = new HashMap<Integer,long[]>();
+		for (int i = 0; i < n; ++i) {
+			final int tag = ra.readUnsignedShort(),
+			          type = ra.readUnsignedShort();
+			final long count = ra.readInt() & 0xffffffffL;
+			final long value = 3 == type && 1 == count ? ra.readUnsignedShort() : ra.readInt() & 0xffffffffL;
+			if (3 == type && 1 == count) ra.skipBytes(2);
+			tags.put(tag, new long[]{type, count, value});
+		}
+		assertEquals(0, ra.readInt());
+		return tags;
+	}
+
+	/** Reassemble the image from its tiles, with the pixels of each as written: big endian, RGB as three bytes. */
+	static private ImageProcessor read(final File file, final int type) throws IOException {
+		final RandomAccessFile ra = new RandomAccessFile(file, "r");
+		try {
+			final HashMap<Integer,long[]> tags = readTags(ra);
+			final int width = (int)tags.get(256)[2],
+			          height = (int)tags.get(257)[2],
+			          tw = (int)tags.get(322)[2],
+			          th = (int)tags.get(323)[2],
+			          samples = (int)tags.get(277)[2];
+			assertEquals(1, tags.get(259)[2]);
+			assertEquals(ImagePlus.COLOR_RGB == type ? 2 : 1, tags.get(262)[2]);
+			assertEquals(ImagePlus.GRAY32 == type ? 3 : 1, tags.get(339)[2]);
+			final int nCols = (width + tw - 1) / tw,
+			          nRows = (height + th - 1) / th;
+			final long[] offsets = new long[nCols * nRows];
+			assertEquals(offsets.length, tags.get(324)[1]);
+			if (1 == offsets.length) offsets[0] = tags.get(324)[2];
+			else {
+				ra.seek(tags.get(324)[2]);
+				for (int i = 0; i < offsets.length; ++i) offsets[i] = ra.readInt() & 0xffffffffL;
+			}
+			final ImageProcessor ip;
+			switch (type) {
+				case ImagePlus.GRAY8: ip = new ByteProcessor(width, height); break;
+				case ImagePlus.GRAY16: ip = new ShortProcessor(width, height); break;
+				case ImagePlus.GRAY32: ip = new FloatProcessor(width, height); break;
+				default: ip = new ColorProcessor(width, height); break;
+			}
+			assertEquals(ImagePlus.COLOR_RGB == type ? 3 : 1, samples);
+			for (int row = 0; row < nRows; ++row) {
+				for (int col = 0; col < nCols; ++col) {
+					ra.seek(offsets[row * nCols + col]);
+					// Padded at the right and bottom edges
+					for (int y = row * th; y < (row + 1) * th; ++y) {
+						for (int x = col * tw; x < (col + 1) * tw; ++x) {
+							final int v;
+							switch (type) {
+								case ImagePlus.GRAY8: v = ra.readUnsignedByte(); break;
+								case ImagePlus.GRAY16: v = ra.readUnsignedShort(); break;
+								case ImagePlus.GRAY32: v = ra.readInt(); break;
+								default: v = 0xff000000 | (ra.readUnsignedByte() << 16) | (ra.readUnsignedByte() << 8) | ra.readUnsignedByte(); break;
+							}
+							if (x < width && y < height) ip.set(x, y, v);
+						}
+					}
+				}
+			}
+			return ip;
+		} finally {
+			ra.close();
+		}
+	}
+
+	static private ImageProcessor random(final int type, final Random rnd) {
+		final ImageProcessor ip;
+		switch (type) {
+			case ImagePlus.GRAY8: ip = new ByteProcessor(W, H); break;
+			case ImagePlus.GRAY16: ip = new ShortProcessor(W, H); break;
+			case ImagePlus.GRAY32: ip = new FloatProcessor(W, H); break;
+			default: ip = new ColorProcessor(W, H); break;
+		}
+		for (int i = 0; i < W * H; ++i) {
+			switch (type) {
+				case ImagePlus.GRAY8: ip.set(i, rnd.nextInt(256)); break;
+				case ImagePlus.GRAY16: ip.set(i, rnd.nextInt(65536)); break;
+				case ImagePlus.GRAY32: ip.setf(i, (float)rnd.nextGaussian()); break;
+				default: ip.set(i, 0xff000000 | rnd.nextInt(0x1000000)); break;
+			}
+		}
+		return ip;
+	}
+
+	/** Write {@code ip} one tile at a time, in random order, each cropped from it and padded to the size of a tile. */
+	static private void write(final File file, final int type, final ImageProcessor ip, final Random rnd) throws IOException {
+		final TiledTIFFWriter writer = new TiledTIFFWriter(file.getAbsolutePath(), type, W, H, TW, TH);
+		assertEquals(4, writer.getColumns());
+		assertEquals(2, writer.getRows());
+		final List<int[]> tiles = new ArrayList<int[]>();
+		for (int row = 0; row < writer.getRows(); ++row) {
+			for (int col = 0; col < writer.getColumns(); ++col) tiles.add(new int[]{col, row});
+		}
+		Collections.shuffle(tiles, rnd);
+		for (final int[] t : tiles) {
+			final ImageProcessor tile = ip.createProcessor(TW, TH);
+			tile.insert(ip, -t[0] * TW, -t[1] * TH);
+			writer.writeTile(t[0], t[1], tile);
+		}
+		writer.close();
+	}
+
+	private void assertRoundTrip(final int type, final long seed) throws IOException {
+		final Random rnd = new Random(seed);
+		final ImageProcessor ip = random(type, rnd);
+		write(file, type, ip, rnd);
+		final ImageProcessor back = read(file, type);
+		assertEquals(W, back.getWidth());
+		assertEquals(H, back.getHeight());
+		for (int i = 0; i < W * H; ++i) assertEquals("pixel " + i, ip.get(i), back.get(i));
+	}
+
+	@Test
+	public void testGray8() throws IOException {
+		assertRoundTrip(ImagePlus.GRAY8, 1);
+	}
+
+	@Test
+	public void testGray16() throws IOException {
+		assertRoundTrip(ImagePlus.GRAY16, 2);
+	}
+
+	@Test
+	public void testGray32() throws IOException {
+		assertRoundTrip(ImagePlus.GRAY32, 3);
+	}
+
+	@Test
+	public void testRGB() throws IOException {
+		assertRoundTrip(ImagePlus.COLOR_RGB, 4);
+	}
+
+	@Test
+	public void testMissingTile() throws IOException {
+		final TiledTIFFWriter writer = new TiledTIFFWriter(file.getAbsolutePath(), ImagePlus.GRAY8, W, H, TW, TH);
+		writer.writeTile(0, 0, new ByteProcessor(TW, TH));
+		try {
+			writer.close();
+			fail("Closing with tiles missing should have failed.");
+		} catch (final IOException e) {
+			// expected
+		}
+		// Closed anyway
+		try {
+			writer.writeTile(1, 0, new ByteProcessor(TW, TH));
+			fail("Writing after closing should have failed.");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTileSize() throws IOException {
+		new TiledTIFFWriter(file.getAbsolutePath(), ImagePlus.GRAY8, W, H, 30, 32);
+	}
+}
@@ -0,0 +1,210 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the levels made by {@link StreamingMipMaps} with those made one at a time
+ * from the whole previous level, as its documentation describes them.
+ */
+public class StreamingMipMapsTest {
+
+	static private final int W = 37, H = 23, N_LEVELS = 6;
+
+	/** Half the width and height of {@code a}, rounded down, with each pixel the rounded average of four. */
+	static private int[] halve(final int[] a, final int w, final int h) {
+		final int tw = w / 2,
+		          th = h / 2;
+		final int[] t = new int[tw * th];
+		for (int y = 0; y < th; ++y) {
+			for (int x = 0; x < tw; ++x) {
+				final int i = 2 * y * w + 2 * x;
+				t[y * tw + x] = (a[i] + a[i + 1] + a[i + w] + a[i + w + 1] + 2) >> 2;
+			}
+		}
+		return t;
+	}
+
+	/** Inside (255) only where all four pixels are. */
+	static private int[] inside(final int[] a, final int w, final int h) {
+		final int tw = w / 2,
+		          th = h / 2;
+		final int[] t = new int[tw * th];
+		for (int y = 0; y < th; ++y) {
+			for (int x = 0; x < tw; ++x) {
+				final int i = 2 * y * w + 2 * x;
+				t[y * tw + x] = 255 == (a[i] & a[i + 1] & a[i + w] & a[i + w + 1]) ? 255 : 0;
+			}
+		}
+		return t;
+	}
+
+	static private int[] mask(final int[] alpha, final int[] outside) {
+		final int[] m = new int[alpha.length];
+		for (int i = 0; i < m.length; ++i) m[i] = 255 == outside[i] ? alpha[i] : 0;
+		return m;
+	}
+
+	static private int[] randomBytes(final Random rnd, final int n) {
+		final int[] a = new int[n];
+		for (int i = 0; i < n; ++i) a[i] = rnd.nextInt(256);
+		return a;
+	}
+
+	static private ByteProcessor toByteProcessor(final int[] a, final int w, final int h) {
+		final byte[] b = new byte[w * h];
+		for (int i = 0; i < b.length; ++i) b[i] = (byte)a[i];
+		return new ByteProcessor(w, h, b, null);
+	}
+
+	static private void assertChannel(final String msg, final int[] expected, final byte[] actual) {
+		assertEquals(msg, expected.length, actual.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(msg + ", pixel " + i, expected[i], actual[i] & 0xff);
+		}
+	}
+
+	@Test
+	public void testGray8() throws Exception {
+		final int[] img = randomBytes(new Random(1), W * H);
+		final ImageBytes[] p = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, W, H), null, null, 0);
+		int[] a = img;
+		int k = 0;
+		for (int w = W, h = H; w > 0 && h > 0; a = halve(a, w, h), w /= 2, h /= 2, ++k) {
+			assertEquals(w, p[k].width);
+			assertEquals(h, p[k].height);
+			assertEquals(1, p[k].c.length);
+			assertChannel("level " + k, a, p[k].c[0]);
+		}
+		// Levels beyond a single pixel are not made
+		for (; k < N_LEVELS; ++k) assertNull(p[k]);
+	}
+
+	@Test
+	public void testExtremeAspectRatio() throws Exception {
+		// The short side reaches zero at level 2, long before the long side does
+		final int w = 301, h = 3;
+		final int[] img = randomBytes(new Random(6), w * h);
+		final ImageBytes[] p = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, w, h), null, null, 0);
+		assertEquals(N_LEVELS, p.length);
+		assertChannel("level 0", img, p[0].c[0]);
+		assertEquals(150, p[1].width);
+		assertEquals(1, p[1].height);
+		assertChannel("level 1", halve(img, w, h), p[1].c[0]);
+		for (int k = 2; k < N_LEVELS; ++k) assertNull("level " + k, p[k]);
+		// Nothing at all when the first level to keep is beyond the last one
+		final ImageBytes[] none = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, w, h), null, null, 3);
+		for (final ImageBytes b : none) assertNull(b);
+	}
+
+	@Test
+	public void testFirstLevel() throws Exception {
+		final int[] img = randomBytes(new Random(2), W * H);
+		final ImageBytes[] all = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, W, H), null, null, 0),
+		                   some = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, W, H), null, null, 2);
+		assertNull(some[0]);
+		assertNull(some[1]);
+		for (int k = 2; k < N_LEVELS && null != all[k]; ++k) {
+			assertArrayEquals("level " + k, all[k].c[0], some[k].c[0]);
+		}
+	}
+
+	@Test
+	public void testRGB() throws Exception {
+		final Random rnd = new Random(3);
+		final int[][] rgb = new int[][]{randomBytes(rnd, W * H), randomBytes(rnd, W * H), randomBytes(rnd, W * H)};
+		final int[] pix = new int[W * H];
+		for (int i = 0; i < pix.length; ++i) pix[i] = 0xff000000 | (rgb[0][i] << 16) | (rgb[1][i] << 8) | rgb[2][i];
+		final ImageBytes[] p = StreamingMipMaps.create(ImagePlus.COLOR_RGB, N_LEVELS, new ColorProcessor(W, H, pix), null, null, 0);
+		for (int k = 0, w = W, h = H; w > 0 && h > 0; w /= 2, h /= 2, ++k) {
+			assertEquals(3, p[k].c.length);
+			for (int c = 0; c < 3; ++c) {
+				assertChannel("level " + k + ", channel " + c, rgb[c], p[k].c[c]);
+				rgb[c] = halve(rgb[c], w, h);
+			}
+		}
+	}
+
+	@Test
+	public void testAlphaAndOutside() throws Exception {
+		final Random rnd = new Random(4);
+		final int[] img = randomBytes(rnd, W * H),
+		            alpha = randomBytes(rnd, W * H),
+		            outside = new int[W * H];
+		// Inside, except for a corner and a few scattered pixels
+		for (int y = 0; y < H; ++y) {
+			for (int x = 0; x < W; ++x) {
+				outside[y * W + x] = (x < 9 && y < 7) || 0 == rnd.nextInt(20) ? 0 : 255;
+			}
+		}
+		final ImageBytes[] p = StreamingMipMaps.create(ImagePlus.GRAY8, N_LEVELS, toByteProcessor(img, W, H),
+				toByteProcessor(alpha, W, H), toByteProcessor(outside, W, H), 0);
+		int[] a = img,
+		      m = mask(alpha, outside),
+		      o = outside;
+		for (int k = 0, w = W, h = H; w > 0 && h > 0; ++k) {
+			assertEquals(2, p[k].c.length);
+			assertChannel("level " + k, a, p[k].c[0]);
+			assertChannel("mask of level " + k, m, p[k].c[1]);
+			a = halve(a, w, h);
+			o = inside(o, w, h);
+			m = mask(halve(m, w, h), o);
+			w /= 2;
+			h /= 2;
+		}
+	}
+
+	@Test
+	public void testGray16() throws Exception {
+		final Random rnd = new Random(5);
+		final short[] pix = new short[W * H];
+		int[] a = new int[W * H];
+		for (int i = 0; i < pix.length; ++i) {
+			a[i] = 1000 + rnd.nextInt(3000);
+			pix[i] = (short)a[i];
+		}
+		final ShortProcessor sp = new ShortProcessor(W, H, pix, null);
+		sp.resetMinAndMax();
+		final ImageBytes[] p = StreamingMipMaps.create(ImagePlus.GRAY16, N_LEVELS, sp, null, null, 0);
+		// Averaged as 16-bit, then mapped to 8-bit with the min and max of the image
+		for (int k = 0, w = W, h = H; w > 0 && h > 0; ++k) {
+			final short[] s = new short[w * h];
+			for (int i = 0; i < s.length; ++i) s[i] = (short)a[i];
+			final ShortProcessor level = new ShortProcessor(w, h, s, null);
+			level.setMinAndMax(sp.getMin(), sp.getMax());
+			assertArrayEquals("level " + k, (byte[])level.convertToByte(true).getPixels(), p[k].c[0]);
+			a = halve(a, w, h);
+			w /= 2;
+			h /= 2;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Tag;
+import ini.trakem2.display.Treeline;
+import ini.trakem2.persistence.DBObject;
+
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the literals that {@link SearchIndex} looks up, and that its records
+ * follow the tags of the nodes of a {@link Treeline} as they are added,
+ * removed, and as tagged nodes are deleted.
+ */
+public class SearchIndexTest {
+
+	private File folder;
+	private Project project;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = File.createTempFile("searchindex", "");
+		folder.delete();
+		folder.mkdirs();
+		ControlWindow.setGUIEnabled(false);
+	}
+
+	@After
+	public void tearDown() {
+		if (null != project) project.destroy();
+		for (final File f : folder.listFiles()) f.delete();
+		folder.delete();
+	}
+
+	/** The nodes whose tag matched {@code text}. */
+	private List<Node<?>> findTag(final String text) {
+		final List<Node<?>> nodes = new ArrayList<Node<?>>();
+		final int count = SearchIndex.get(project).query(Pattern.compile(Pattern.quote(text)), text, DBObject.class, 100, new SearchIndex.Listener() {
+			@Override
+			public void found(final List<SearchIndex.Match> matches) {
+				for (final SearchIndex.Match m : matches) {
+					if (null != m.node) nodes.add(m.node);
+				}
+			}
+		});
+		assertTrue(count >= 0);
+		return nodes;
+	}
+
+	@Test
+	public void testRequiredLiteral() {
+		assertEquals("neuron", SearchIndex.requiredLiteral(".*neuron.*"));
+		assertEquals("a.b", SearchIndex.requiredLiteral("a\\.b"));
+		assertEquals("", SearchIndex.requiredLiteral("axon|dendrite"));
+		assertEquals("", SearchIndex.requiredLiteral("\\Qa.b\\E"));
+		// The arguments of escapes are not literals
+		assertEquals("", SearchIndex.requiredLiteral("\\x41bc"));
+		assertEquals("", SearchIndex.requiredLiteral("\\u0041bc"));
+		assertEquals("", SearchIndex.requiredLiteral("\\0101bc"));
+		assertEquals("", SearchIndex.requiredLiteral("(ab)\\1cd"));
+		assertEquals("", SearchIndex.requiredLiteral("\\d+xyz"));
+	}
+
+	@Test
+	public void testTagEditsSince() {
+		final long count = Node.getTagEditCount();
+		final Treeline.RadiusNode nd = new Treeline.RadiusNode(0, 0, null);
+		nd.addTag(new Tag("soma", KeyEvent.VK_S));
+		nd.addTag(new Tag("branch", KeyEvent.VK_B));
+		final List<Node<?>> edited = Node.getTagEditsSince(count);
+		assertEquals(2, edited.size());
+		assertSame(nd, edited.get(0));
+		assertTrue(Node.getTagEditsSince(Node.getTagEditCount()).isEmpty());
+		// Too far back to remember
+		assertNull(Node.getTagEditsSince(-1));
+	}
+
+	@Test
+	public void testUpdate() {
+		project = Project.newFSProject("blank", null, folder.getAbsolutePath() + "/", false);
+		assumeNotNull(project);
+		final LayerSet ls = project.getRootLayerSet();
+		final Layer layer = new Layer(project, 0, 1, ls);
+		ls.add(layer);
+		final Treeline tl = new Treeline(project, "neuron");
+		ls.add(tl);
+		final Treeline.RadiusNode root = new Treeline.RadiusNode(10, 10, layer),
+		                           child = new Treeline.RadiusNode(20, 20, layer);
+		tl.setRoot(root);
+		tl.addNode(root, child, Node.MAX_EDGE_CONFIDENCE);
+		child.addTag(new Tag("soma", KeyEvent.VK_S));
+		assertEquals(1, findTag("soma").size());
+		assertSame(child, findTag("soma").get(0));
+
+		// A tag added to another node: the tree is read again
+		root.addTag(new Tag("origin", KeyEvent.VK_O));
+		assertEquals(1, findTag("origin").size());
+		assertEquals(1, findTag("soma").size());
+
+		// The tagged node is deleted, without any tag edit
+		final long count = Node.getTagEditCount();
+		tl.removeNode(child);
+		assertEquals(count, Node.getTagEditCount());
+		assertTrue(findTag("soma").isEmpty());
+		assertEquals(1, findTag("origin").size());
+
+		// A tagged node added back
+		tl.addNode(root, child, Node.MAX_EDGE_CONFIDENCE);
+		assertEquals(1, findTag("soma").size());
+	}
+}
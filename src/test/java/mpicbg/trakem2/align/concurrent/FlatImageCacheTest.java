@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align.concurrent;
+
+import static org.junit.Assert.*;
+
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Layer;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.trakem2.util.Pair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the images of {@link FlatImageCache} are rendered once for all
+ * their reservations, and dropped when the last one is closed, whether it was
+ * used or not.
+ */
+public class FlatImageCacheTest {
+
+	static private final Rectangle BOX = new Rectangle(0, 0, 10, 10);
+
+	/** Renders blank images, and fails when asked to. */
+	static private class CountingCache extends FlatImageCache {
+		final AtomicInteger renders = new AtomicInteger(0);
+		volatile boolean fail = false;
+
+		CountingCache() {
+			super(null, Long.MAX_VALUE);
+		}
+
+		@Override
+		protected Pair<FloatProcessor, FloatProcessor> render(final Layer layer, final Rectangle box, final double scale) {
+			renders.incrementAndGet();
+			if (fail) throw new RuntimeException("failed to render");
+			return new Pair<FloatProcessor, FloatProcessor>(new FloatProcessor(box.width, box.height), new FloatProcessor(box.width, box.height));
+		}
+	}
+
+	private CountingCache cache;
+	private Layer layer1, layer2;
+
+	@Before
+	public void setUp() {
+		cache = new CountingCache();
+		layer1 = new Layer(null, 1, 0, 1);
+		layer2 = new Layer(null, 2, 1, 1);
+	}
+
+	@Test
+	public void testRenderedOnceForAllReservations() throws Exception {
+		final FlatImageCache.Reservation r1 = cache.reserve(layer1, BOX, 0.5),
+		                                 r2 = cache.reserve(layer1, BOX, 0.5);
+		final Pair<FloatProcessor, FloatProcessor> p1 = r1.acquire();
+		r1.close();
+		// Still reserved by r2: kept
+		assertEquals(1, cache.entries.size());
+		assertTrue(cache.bytes > 0);
+		assertSame(p1, r2.acquire());
+		r2.close();
+		assertEquals(1, cache.renders.get());
+		assertTrue(cache.entries.isEmpty());
+		assertEquals(0, cache.bytes);
+	}
+
+	@Test
+	public void testUnusedReservations() throws Exception {
+		final FlatImageCache.Reservation used = cache.reserve(layer1, BOX, 0.5),
+		                                 unused = cache.reserve(layer1, BOX, 0.5),
+		                                 other = cache.reserve(layer2, BOX, 0.5);
+		used.acquire();
+		used.close();
+		// As when the jobs that would use them never run
+		unused.close();
+		other.close();
+		assertTrue(cache.entries.isEmpty());
+		assertEquals(0, cache.bytes);
+		assertEquals(1, cache.renders.get());
+	}
+
+	@Test
+	public void testCloseTwice() throws Exception {
+		final FlatImageCache.Reservation r1 = cache.reserve(layer1, BOX, 0.5),
+		                                 r2 = cache.reserve(layer1, BOX, 0.5);
+		r1.acquire();
+		r1.close();
+		r1.close();
+		// The second close did not drop the reservation of r2
+		assertEquals(1, cache.entries.size());
+		r2.close();
+		assertTrue(cache.entries.isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAcquireAfterClose() throws Exception {
+		final FlatImageCache.Reservation r = cache.reserve(layer1, BOX, 0.5);
+		r.close();
+		r.acquire();
+	}
+
+	@Test
+	public void testFailedRender() throws Exception {
+		final FlatImageCache.Reservation r1 = cache.reserve(layer1, BOX, 0.5),
+		                                 r2 = cache.reserve(layer1, BOX, 0.5);
+		cache.fail = true;
+		try {
+			r1.acquire();
+			fail("The render should have failed.");
+		} catch (final ExecutionException e) {
+			// expected
+		} finally {
+			r1.close();
+		}
+		// The failure is not cached: rendered again for r2
+		cache.fail = false;
+		assertNotNull(r2.acquire());
+		r2.close();
+		assertEquals(2, cache.renders.get());
+		assertTrue(cache.entries.isEmpty());
+		assertEquals(0, cache.bytes);
+	}
+}
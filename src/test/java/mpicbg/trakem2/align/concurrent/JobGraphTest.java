@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align.concurrent;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link JobGraph} runs each {@link JobGraph.Job} after its
+ * dependencies, restores the results of a checkpoint folder instead of
+ * computing them again, and claims lock files only when free or stale.
+ */
+public class JobGraphTest {
+
+	private File folder;
+	private ExecutorService service;
+
+	/** Counts its computations and restorations, and records the order of computation. */
+	static private class Counted extends JobGraph.Job<Integer> {
+		final AtomicInteger computed = new AtomicInteger(0),
+		                    restored = new AtomicInteger(0);
+		final List<String> order;
+		final int value;
+
+		Counted(final String id, final int value, final List<String> order, final JobGraph.Job<?>... dependencies) {
+			super(id, dependencies);
+			this.value = value;
+			this.order = order;
+		}
+
+		@Override
+		protected Integer compute() {
+			computed.incrementAndGet();
+			order.add(id);
+			return value;
+		}
+
+		@Override
+		protected void restored() {
+			restored.incrementAndGet();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		folder = File.createTempFile("jobgraph", "");
+		folder.delete();
+		service = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		service.shutdownNow();
+		new JobGraph(folder).delete();
+	}
+
+	@Test
+	public void testDependencies() throws Exception {
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final JobGraph graph = new JobGraph(null);
+		final Counted x = new Counted("x", 1, order),
+		              y = new Counted("y", 2, order, x),
+		              z = new Counted("z", 3, order, x, y);
+		// Added in reverse, but computed after their dependencies
+		graph.add(z);
+		graph.add(y);
+		graph.add(x);
+		graph.execute(service);
+		assertTrue(x.isDone() && y.isDone() && z.isDone());
+		assertEquals(3, (int)z.getResult());
+		assertTrue(order.indexOf("x") < order.indexOf("y"));
+		assertTrue(order.indexOf("y") < order.indexOf("z"));
+		// A job with the id of an existing one is not added again
+		assertSame(y, graph.add(new Counted("y", 5, order)));
+	}
+
+	@Test
+	public void testRestore() throws Exception {
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final JobGraph first = new JobGraph(folder);
+		final Counted a1 = new Counted("a", 7, order),
+		              b1 = new Counted("b", 8, order, a1);
+		first.add(a1);
+		first.add(b1);
+		first.execute(service);
+		assertEquals(1, a1.computed.get());
+		assertEquals(0, a1.restored.get());
+
+		// As when resuming an interrupted computation: the results are read, not computed
+		final JobGraph second = new JobGraph(folder);
+		final Counted a2 = new Counted("a", -1, order),
+		              b2 = new Counted("b", -1, order, a2);
+		second.add(a2);
+		second.add(b2);
+		second.execute(service);
+		assertEquals(0, a2.computed.get());
+		assertEquals(0, b2.computed.get());
+		assertEquals(1, a2.restored.get());
+		assertEquals(1, b2.restored.get());
+		assertEquals(7, (int)a2.getResult());
+		assertEquals(8, (int)b2.getResult());
+		// No locks are left behind
+		for (final String name : folder.list()) assertFalse(name, name.contains(".lock"));
+
+		// After clearing, they are computed again
+		second.clear();
+		final JobGraph third = new JobGraph(folder);
+		final Counted a3 = new Counted("a", 9, order);
+		third.add(a3);
+		third.execute(service);
+		assertEquals(1, a3.computed.get());
+		assertEquals(9, (int)a3.getResult());
+	}
+
+	@Test
+	public void testClaim() throws Exception {
+		final JobGraph worker1 = new JobGraph(folder),
+		               worker2 = new JobGraph(folder);
+		final Counted job = new Counted("job", 1, new ArrayList<String>());
+
+		// A fresh lock of another worker is respected
+		assertTrue(worker1.claim(job));
+		assertFalse(worker2.claim(job));
+		worker1.release(job);
+		assertTrue(worker2.claim(job));
+		worker2.release(job);
+
+		// A stale lock is taken over by one worker only
+		final File lock = worker1.lockFile(job);
+		assertTrue(lock.createNewFile());
+		assertTrue(lock.setLastModified(System.currentTimeMillis() - 2 * JobGraph.LOCK_TIMEOUT));
+		assertTrue(worker1.claim(job));
+		assertTrue(lock.exists());
+		assertFalse(worker2.claim(job));
+		assertTrue(worker1.ownedLocks.contains(lock));
+		assertFalse(worker2.ownedLocks.contains(lock));
+		worker1.release(job);
+		assertFalse(lock.exists());
+		// The stale lock, renamed to take it over, is gone too
+		assertEquals(0, folder.list().length);
+	}
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2025 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package org.janelia.intensity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.AffineModel1D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link SparseAffineSolver} with the iterative
+ * {@link TileConfiguration} on a small system of consistent matches.
+ */
+public class SparseAffineSolverTest
+{
+	/* a chain of tiles, and one loop */
+	final static private int[][] CONNECTIONS = new int[][]{ { 0, 1 }, { 1, 2 }, { 2, 3 }, { 3, 4 }, { 0, 2 } };
+
+	final static private int NUM_TILES = 5;
+
+	/**
+	 * @return { a_0, b_0, a_1, b_1, ... } near the identity, with the identity for tile 0
+	 */
+	final static private double[] randomMaps( final Random rnd )
+	{
+		final double[] ab = new double[ 2 * NUM_TILES ];
+		ab[ 0 ] = 1;
+		for ( int i = 1; i < NUM_TILES; ++i )
+		{
+			ab[ 2 * i ] = 0.8 + 0.4 * rnd.nextDouble();
+			ab[ 2 * i + 1 ] = 0.2 * rnd.nextDouble() - 0.1;
+		}
+		return ab;
+	}
+
+	/**
+	 * Matches from samples p of tile i to the q of tile j that the maps take
+	 * to the same intensity.
+	 */
+	final static private ArrayList< PointMatch > matches( final double[] ab, final int i, final int j, final Random rnd )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		for ( int k = 0; k < 20; ++k )
+		{
+			final double p = rnd.nextDouble();
+			final double q = ( ab[ 2 * i ] * p + ab[ 2 * i + 1 ] - ab[ 2 * j + 1 ] ) / ab[ 2 * j ];
+			matches.add( new PointMatch( new Point( new double[]{ p } ), new Point( new double[]{ q } ) ) );
+		}
+		return matches;
+	}
+
+	/**
+	 * The intensity x of tile i mapped into tile 0, which does not depend on
+	 * any map applied to all tiles.
+	 */
+	final static private double relative( final double[] ab, final int i, final double x )
+	{
+		return ( ab[ 2 * i ] * x + ab[ 2 * i + 1 ] - ab[ 1 ] ) / ab[ 0 ];
+	}
+
+	@Test
+	public void testSameAsTileConfiguration() throws Exception
+	{
+		final Random rnd = new Random( 1234 );
+		for ( int run = 0; run < 5; ++run )
+		{
+			final double[] truth = randomMaps( rnd );
+
+			final SparseAffineSolver solver = new SparseAffineSolver( NUM_TILES );
+			final ArrayList< Tile< AffineModel1D > > tiles = new ArrayList< Tile< AffineModel1D > >();
+			for ( int i = 0; i < NUM_TILES; ++i )
+				tiles.add( new Tile< AffineModel1D >( new AffineModel1D() ) );
+
+			for ( final int[] c : CONNECTIONS )
+			{
+				final ArrayList< PointMatch > matches = matches( truth, c[ 0 ], c[ 1 ], rnd );
+				solver.addMatches( c[ 0 ], c[ 1 ], matches );
+				tiles.get( c[ 0 ] ).connect( tiles.get( c[ 1 ] ), matches );
+			}
+
+			/* barely regularized, so that only a map common to all tiles is left to the regularizer */
+			final double[] sparse = solver.solve( 0, 1e-6, 1000, 1e-12, null, 1 );
+
+			final TileConfiguration tc = new TileConfiguration();
+			tc.addTiles( tiles );
+			tc.fixTile( tiles.get( 0 ) );
+			tc.optimize( 0, 5000, 5000, 0.75f );
+
+			final double[] iterative = new double[ 2 * NUM_TILES ];
+			final double[] tab = new double[ 2 ];
+			for ( int i = 0; i < NUM_TILES; ++i )
+			{
+				tiles.get( i ).getModel().toArray( tab );
+				iterative[ 2 * i ] = tab[ 0 ];
+				iterative[ 2 * i + 1 ] = tab[ 1 ];
+			}
+
+			for ( int i = 1; i < NUM_TILES; ++i )
+			{
+				for ( final double x : new double[]{ 0, 0.5, 1 } )
+				{
+					assertEquals( "sparse, tile " + i + " at " + x, relative( truth, i, x ), relative( sparse, i, x ), 1e-4 );
+					assertEquals( "iterative, tile " + i + " at " + x, relative( truth, i, x ), relative( iterative, i, x ), 1e-3 );
+					assertEquals( "sparse vs iterative, tile " + i + " at " + x, relative( iterative, i, x ), relative( sparse, i, x ), 1e-3 );
+				}
+			}
+		}
+	}
+}